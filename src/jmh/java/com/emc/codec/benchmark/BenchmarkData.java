@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.benchmark;
+
+import com.emc.codec.AbstractCodec;
+import com.emc.codec.CodecChain;
+import com.emc.codec.EncodeStage;
+import com.emc.codec.compression.deflate.BlockDeflateCodec;
+import com.emc.codec.compression.deflate.DeflateCodec;
+import com.emc.codec.compression.lz4.Lz4Codec;
+import com.emc.codec.compression.lzma.LzmaCodec;
+import com.emc.codec.compression.zstd.ZstdCodec;
+import com.emc.codec.encryption.BasicKeyProvider;
+import com.emc.codec.encryption.EncryptionCodec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Shared fixtures for the benchmarks: repeatable test data, chains by name and RSA master keys.
+ */
+public final class BenchmarkData {
+    /**
+     * Objects larger than this repeat the same block of data, so very large LZMA dictionaries will see the repetition.
+     */
+    public static final int MAX_BLOCK_SIZE = 32 * 1024 * 1024;
+
+    private static final String[] WORDS = ("lorem ipsum dolor sit amet consectetur adipiscing elit sed do eiusmod " +
+            "tempor incididunt ut labore et dolore magna aliqua enim ad minim veniam quis nostrud exercitation " +
+            "ullamco laboris nisi aliquip ex ea commodo consequat duis aute irure in reprehenderit voluptate velit " +
+            "esse cillum eu fugiat nulla pariatur excepteur sint occaecat cupidatat non proident sunt culpa qui " +
+            "officia deserunt mollit anim id est laborum 0 1 2 3 4 5 6 7 8 9 {\"key\": \"value\"} <tag/>").split(" ");
+
+    /**
+     * Parses sizes like "1K", "64K", "16M" or "1G".
+     */
+    public static long parseSize(String size) {
+        char unit = Character.toUpperCase(size.charAt(size.length() - 1));
+        long multiplier = unit == 'K' ? 1024 : unit == 'M' ? 1024 * 1024 : unit == 'G' ? 1024 * 1024 * 1024 : 1;
+        if (multiplier > 1) size = size.substring(0, size.length() - 1);
+        return Long.parseLong(size) * multiplier;
+    }
+
+    /**
+     * Text-like data (compresses roughly 3:1 with Deflate), always the same for the same size.
+     */
+    public static byte[] generateText(int size) {
+        Random random = new Random(size);
+        byte[] data = new byte[size];
+        int pos = 0;
+        while (pos < size) {
+            byte[] word = (WORDS[random.nextInt(WORDS.length)] + (random.nextInt(12) == 0 ? "\n" : " ")).getBytes();
+            int count = Math.min(word.length, size - pos);
+            System.arraycopy(word, 0, data, pos, count);
+            pos += count;
+        }
+        return data;
+    }
+
+    /**
+     * @return a stream of <code>size</code> bytes of text-like data
+     */
+    public static InputStream openSource(long size) {
+        return new RepeatingInputStream(generateText((int) Math.min(size, MAX_BLOCK_SIZE)), size);
+    }
+
+    public static KeyPair generateRsaKey(int keySize) throws NoSuchAlgorithmException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(keySize);
+        return generator.generateKeyPair();
+    }
+
+    /**
+     * Builds a chain from a name like "Deflate", "LZMA+AES128" or "BlockDeflate+AES256".
+     */
+    public static CodecChain createChain(String name, int bufferSize, KeyPair masterKey) {
+        List<AbstractCodec> codecs = new ArrayList<AbstractCodec>();
+        Map<String, Object> properties = new HashMap<String, Object>();
+        EncodeStage.setBufferSize(properties, bufferSize);
+        LzmaCodec.setPipeBufferSize(properties, bufferSize);
+
+        for (String part : name.split("\\+")) {
+            if (part.equals("Deflate")) {
+                codecs.add(new DeflateCodec());
+            } else if (part.equals("BlockDeflate")) {
+                codecs.add(new BlockDeflateCodec());
+            } else if (part.equals("LZMA")) {
+                codecs.add(new LzmaCodec());
+            } else if (part.equals("LZ4")) {
+                codecs.add(new Lz4Codec());
+            } else if (part.equals("ZSTD")) {
+                codecs.add(new ZstdCodec());
+            } else if (part.startsWith("AES")) {
+                codecs.add(new EncryptionCodec());
+                EncryptionCodec.setKeySize(properties, Integer.parseInt(part.substring(3)));
+                EncryptionCodec.setKeyProvider(properties, new BasicKeyProvider(masterKey));
+            } else {
+                throw new IllegalArgumentException("unknown codec " + part);
+            }
+        }
+
+        return new CodecChain(codecs, properties);
+    }
+
+    public static long copy(InputStream in, OutputStream out, byte[] buffer) throws IOException {
+        long total = 0;
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+            total += read;
+        }
+        in.close();
+        out.close();
+        return total;
+    }
+
+    /**
+     * Discards everything, but counts it so the JIT can't remove the work.
+     */
+    public static class NullOutputStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+
+        public long getCount() {
+            return count;
+        }
+    }
+
+    public static class RepeatingInputStream extends InputStream {
+        private byte[] block;
+        private long remaining;
+        private int pos = 0;
+
+        public RepeatingInputStream(byte[] block, long size) {
+            this.block = block;
+            this.remaining = size;
+        }
+
+        @Override
+        public int read() {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (remaining <= 0) return -1;
+            int count = (int) Math.min(Math.min(len, block.length - pos), remaining);
+            System.arraycopy(block, pos, b, off, count);
+            pos = (pos + count) % block.length;
+            remaining -= count;
+            return count;
+        }
+    }
+
+    private BenchmarkData() {
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.benchmark;
+
+import com.emc.codec.CodecChain;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.security.KeyPair;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encodes and decodes whole objects through every codec and common chain. Each invocation processes one object of
+ * <code>size</code> bytes, so throughput is <code>size</code> / average time. Narrow the run with JMH's
+ * <code>-p</code> option, i.e. <code>-p chain=Deflate+AES128 -p size=1M</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ChainBenchmark {
+    @Param({"Deflate", "BlockDeflate", "LZMA", "LZ4", "ZSTD", "AES128", "AES256", "Deflate+AES128",
+            "BlockDeflate+AES128", "LZMA+AES128", "LZ4+AES128", "ZSTD+AES128"})
+    public String chain;
+
+    @Param({"1K", "64K", "1M", "16M", "1G"})
+    public String size;
+
+    @Param({"4K", "64K", "1M"})
+    public String bufferSize;
+
+    private CodecChain codecChain;
+    private long objectSize;
+    private byte[] buffer;
+    private File encodedFile;
+    private Map<String, String> encodedMetadata;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        KeyPair masterKey = chain.contains("AES") ? BenchmarkData.generateRsaKey(2048) : null;
+        int bufSize = (int) BenchmarkData.parseSize(bufferSize);
+        codecChain = BenchmarkData.createChain(chain, bufSize, masterKey);
+        objectSize = BenchmarkData.parseSize(size);
+        buffer = new byte[bufSize];
+
+        // encode once to a file for the decode benchmarks (files keep the heap small for large objects)
+        encodedFile = File.createTempFile("codec-bench", ".bin");
+        encodedFile.deleteOnExit();
+        encodedMetadata = new HashMap<String, String>();
+        codecChain.encode(BenchmarkData.openSource(objectSize),
+                new BufferedOutputStream(new FileOutputStream(encodedFile), bufSize), encodedMetadata);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (encodedFile != null) encodedFile.delete();
+    }
+
+    /**
+     * Encode through the filter-stream API (push).
+     */
+    @Benchmark
+    public long encodeStream() throws IOException {
+        BenchmarkData.NullOutputStream target = new BenchmarkData.NullOutputStream();
+        BenchmarkData.copy(BenchmarkData.openSource(objectSize),
+                codecChain.getEncodeStream(target, new HashMap<String, String>()), buffer);
+        return target.getCount();
+    }
+
+    /**
+     * Encode through the single-pass API (stages, where supported).
+     */
+    @Benchmark
+    public long encodeSinglePass() throws IOException {
+        BenchmarkData.NullOutputStream target = new BenchmarkData.NullOutputStream();
+        codecChain.encode(BenchmarkData.openSource(objectSize), target, new HashMap<String, String>());
+        return target.getCount();
+    }
+
+    /**
+     * Decode through the filter-stream API (pull).
+     */
+    @Benchmark
+    public long decodeStream() throws IOException {
+        BenchmarkData.NullOutputStream target = new BenchmarkData.NullOutputStream();
+        InputStream source = new FileInputStream(encodedFile);
+        BenchmarkData.copy(codecChain.getDecodeStream(source, new HashMap<String, String>(encodedMetadata)), target,
+                buffer);
+        return target.getCount();
+    }
+
+    /**
+     * Decode through the single-pass API.
+     */
+    @Benchmark
+    public long decodeSinglePass() throws IOException {
+        BenchmarkData.NullOutputStream target = new BenchmarkData.NullOutputStream();
+        codecChain.decode(new FileInputStream(encodedFile), target, new HashMap<String, String>(encodedMetadata));
+        return target.getCount();
+    }
+}
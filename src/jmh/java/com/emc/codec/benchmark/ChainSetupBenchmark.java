@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.benchmark;
+
+import com.emc.codec.CodecChain;
+import com.emc.codec.CodecChainTemplate;
+import com.emc.codec.compression.deflate.DeflateCodec;
+import com.emc.codec.encryption.BasicKeyProvider;
+import com.emc.codec.encryption.EncryptionCodec;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-request overhead that doesn't depend on object size: building chains and opening (and closing) an encode stream
+ * for an empty object, which includes key generation, key wrapping and signing for encrypted chains.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ChainSetupBenchmark {
+    private static final String[] SPECS = {DeflateCodec.encodeSpec(5), EncryptionCodec.encodeSpec("AES/CBC/PKCS5Padding")};
+
+    private Map<String, Object> properties;
+    private CodecChainTemplate template;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        properties = new HashMap<String, Object>();
+        EncryptionCodec.setKeyProvider(properties, new BasicKeyProvider(BenchmarkData.generateRsaKey(2048)));
+        template = new CodecChainTemplate(properties, SPECS);
+    }
+
+    @Benchmark
+    public CodecChain newChainFromSpecs() {
+        return new CodecChain(SPECS).withProperties(properties);
+    }
+
+    @Benchmark
+    public CodecChain newChainFromCodecs() {
+        return new CodecChain(new DeflateCodec(), new EncryptionCodec()).withProperties(properties);
+    }
+
+    @Benchmark
+    public CodecChainTemplate newTemplate() {
+        return new CodecChainTemplate(properties, SPECS);
+    }
+
+    @Benchmark
+    public Map<String, String> encodeEmptyObject() throws IOException {
+        Map<String, String> metadata = new HashMap<String, String>();
+        OutputStream out = template.getEncodeStream(new BenchmarkData.NullOutputStream(), metadata);
+        out.close();
+        return metadata;
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.benchmark;
+
+import com.emc.codec.CodecChain;
+import com.emc.codec.encryption.EncryptionConstants;
+import com.emc.codec.encryption.EncryptionUtil;
+import org.openjdk.jmh.annotations.*;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import java.security.KeyPair;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per-object RSA operations: wrapping the object key (encode), unwrapping it (decode) and signing the metadata
+ * (encode and rekey).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class KeyBenchmark {
+    @Param({"1024", "2048", "4096"})
+    public int rsaKeySize;
+
+    @Param({"128", "256"})
+    public int aesKeySize;
+
+    private KeyPair masterKey;
+    private SecretKey objectKey;
+    private String encryptedKey;
+    private Map<String, String> metadata;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        masterKey = BenchmarkData.generateRsaKey(rsaKeySize);
+
+        KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+        keyGenerator.init(aesKeySize);
+        objectKey = keyGenerator.generateKey();
+        encryptedKey = EncryptionUtil.encryptKey(objectKey, null, masterKey.getPublic());
+
+        // typical metadata of an encrypted object
+        metadata = new HashMap<String, String>();
+        metadata.put(CodecChain.META_TRANSFORM_MODE, "COMP:Deflate/5,ENC:AES/CBC/PKCS5Padding");
+        metadata.put(EncryptionConstants.META_ENCRYPTION_UNENC_SIZE, "1048576");
+        metadata.put(EncryptionConstants.META_ENCRYPTION_UNENC_SHA1, "027e997e6b1dfc97b93eb28dc9a6804096d85873");
+        metadata.put(EncryptionConstants.META_ENCRYPTION_IV, "cB6RMnDE6HRJ9uq6mFE2Sg==");
+        metadata.put(EncryptionConstants.META_ENCRYPTION_KEY_ID,
+                EncryptionUtil.getRsaPublicKeyFingerprint((RSAPublicKey) masterKey.getPublic()));
+        metadata.put(EncryptionConstants.META_ENCRYPTION_OBJECT_KEY, encryptedKey);
+    }
+
+    @Benchmark
+    public String encryptKey() {
+        return EncryptionUtil.encryptKey(objectKey, null, masterKey.getPublic());
+    }
+
+    @Benchmark
+    public SecretKey decryptKey() {
+        return EncryptionUtil.decryptKey(encryptedKey, "AES", null, masterKey.getPrivate());
+    }
+
+    @Benchmark
+    public String signMetadata() {
+        return EncryptionUtil.signMetadata(metadata, (RSAPrivateKey) masterKey.getPrivate(), null);
+    }
+}
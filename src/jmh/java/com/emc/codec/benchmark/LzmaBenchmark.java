@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.benchmark;
+
+import com.emc.codec.CodecChain;
+import com.emc.codec.compression.lzma.LzmaCodec;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LZMA encode and decode at every compression level (the levels differ by orders of magnitude, so they are kept out
+ * of {@link ChainBenchmark}).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LzmaBenchmark {
+    @Param({"0", "1", "2", "3", "4", "5", "6", "7", "8", "9"})
+    public int level;
+
+    @Param({"1M", "16M"})
+    public String size;
+
+    private CodecChain chain;
+    private byte[] original;
+    private byte[] encoded;
+    private Map<String, String> encodedMetadata;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        chain = new CodecChain(LzmaCodec.encodeSpec(level));
+        original = BenchmarkData.generateText((int) BenchmarkData.parseSize(size));
+
+        encodedMetadata = new HashMap<String, String>();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        chain.encode(new ByteArrayInputStream(original), out, encodedMetadata);
+        encoded = out.toByteArray();
+    }
+
+    @Benchmark
+    public long encode() throws IOException {
+        BenchmarkData.NullOutputStream target = new BenchmarkData.NullOutputStream();
+        chain.encode(new ByteArrayInputStream(original), target, new HashMap<String, String>());
+        return target.getCount();
+    }
+
+    @Benchmark
+    public long decode() throws IOException {
+        BenchmarkData.NullOutputStream target = new BenchmarkData.NullOutputStream();
+        chain.decode(new ByteArrayInputStream(encoded), target, new HashMap<String, String>(encodedMetadata));
+        return target.getCount();
+    }
+}
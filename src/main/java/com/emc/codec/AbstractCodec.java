@@ -28,6 +28,7 @@
 
 package com.emc.codec;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Map;
@@ -45,6 +46,15 @@ public abstract class AbstractCodec<M extends EncodeMetadata> implements Encoder
 
     protected abstract boolean canProcess(String encodeSpec);
 
+    /**
+     * Checks that this codec can process <code>encodeSpec</code> with the specified properties. Called once when a
+     * {@link CodecChainTemplate} is created so that configuration errors surface up front instead of on the first
+     * request. Implementations should call super and throw an unchecked exception for any invalid setting.
+     */
+    public void validate(String encodeSpec, Map<String, Object> codecProperties) {
+        if (!canProcess(encodeSpec)) throw new IllegalArgumentException("cannot process " + encodeSpec);
+    }
+
     @Override
     public long getEncodedSize(long originalSize, Map<String, Object> codecProperties) {
         return getEncodedSize(originalSize, getDefaultEncodeSpec(), codecProperties);
@@ -60,6 +70,49 @@ public abstract class AbstractCodec<M extends EncodeMetadata> implements Encoder
         return getEncodingStream(originalStream, getDefaultEncodeSpec(), codecProperties);
     }
 
+    /**
+     * Return true if this codec implements {@link #getEncodingStage(BufferSink, String, Map)} and
+     * {@link #getDecodingStage(BufferSink, EncodeMetadata, Map)}. Chains fall back to the stream API for codecs that
+     * don't.
+     */
+    public boolean isStageSupported() {
+        return false;
+    }
+
+    /**
+     * Returns a buffer-based encoder that pushes its output to <code>target</code>. Only called if
+     * {@link #isStageSupported()} returns true.
+     */
+    public EncodeStage<M> getEncodingStage(BufferSink target, String encodeSpec, Map<String, Object> codecProperties) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support encode stages");
+    }
+
+    /**
+     * Returns a buffer-based decoder that pushes its output to <code>target</code>. Only called if
+     * {@link #isStageSupported()} returns true.
+     */
+    public BufferSink getDecodingStage(BufferSink target, M metadata, Map<String, Object> codecProperties) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support decode stages");
+    }
+
+    /**
+     * Return true if this codec can decode an arbitrary range of an object encoded with <code>metadata</code> without
+     * reading it from the beginning (see {@link #getDecodingStream(RangeSource, EncodeMetadata, long, long, Map)}).
+     */
+    public boolean isRangeSupported(M metadata) {
+        return false;
+    }
+
+    /**
+     * Returns a stream of <code>length</code> decoded bytes starting at decoded position <code>offset</code>,
+     * fetching only the encoded ranges of <code>source</code> that are needed. The range is truncated at the decoded
+     * size of the object. Only called if {@link #isRangeSupported(EncodeMetadata)} returns true.
+     */
+    public InputStream getDecodingStream(RangeSource source, M metadata, long offset, long length,
+                                         Map<String, Object> codecProperties) throws IOException {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support ranged decoding");
+    }
+
     @Override
     public int compareTo(AbstractCodec<M> o) {
         return getPriority() - o.getPriority();
@@ -28,24 +28,23 @@
 
 package com.emc.codec;
 
+import com.emc.codec.compression.CompressionConstants;
+import com.emc.codec.metrics.CodecMetrics;
+import com.emc.codec.metrics.MetricsUtil;
+import com.emc.codec.metrics.PipelineMeter;
+import com.emc.codec.util.*;
+
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.*;
 
 public class CodecChain {
     public static final String META_TRANSFORM_MODE = "x-emc-transform-mode";
     public static final String META_TRANSFORM_COMPLETE = "x-emc-transform-complete";
 
-    // apparently ServiceLoader instances are not thread-safe and we don't want to synchronize on a static property or
-    // load an instance each time a codec is constructed (potentially in every read request from the encryption client)
-    private static ThreadLocal<ServiceLoader<AbstractCodec>> codecLoader = new ThreadLocal<ServiceLoader<AbstractCodec>>();
-
-    private static ServiceLoader<AbstractCodec> getCodecLoader() {
-        if (codecLoader.get() == null) {
-            codecLoader.set(ServiceLoader.load(AbstractCodec.class));
-        }
-        return codecLoader.get();
-    }
-
     public static String[] getEncodeSpecs(Map<String, String> metaMap) {
         if (metaMap == null) return null;
         String specString = metaMap.get(META_TRANSFORM_MODE);
@@ -76,19 +75,22 @@ public class CodecChain {
     private Map<AbstractCodec, String> specMap = new HashMap<AbstractCodec, String>();
     private Map<String, Object> properties = new HashMap<String, Object>();
 
+    /**
+     * Builds a chain from encode specs, resolving each spec through the shared {@link CodecRegistry} (resolution is
+     * memoized, so this does not scan codec providers per request).
+     */
     public CodecChain(String... encodeSpecs) {
-        codecs = new ArrayList<AbstractCodec>();
+        this(CodecRegistry.getInstance(), encodeSpecs);
+    }
+
+    public CodecChain(CodecRegistry registry, String... encodeSpecs) {
+        codecs = new ArrayList<AbstractCodec>(encodeSpecs.length);
 
         for (String encodeSpec : encodeSpecs) {
-            boolean codecFound = false;
-            for (AbstractCodec codec : getCodecLoader()) {
-                if (codec.canDecode(encodeSpec)) {
-                    codecFound = true;
-                    codecs.add(codec);
-                    specMap.put(codec, encodeSpec);
-                }
-            }
-            if (!codecFound) throw new IllegalArgumentException("Unsupported encoder: " + encodeSpec);
+            AbstractCodec<?> codec = registry.getCodec(encodeSpec);
+            if (codec == null) throw new IllegalArgumentException("Unsupported encoder: " + encodeSpec);
+            codecs.add(codec);
+            specMap.put(codec, encodeSpec);
         }
     }
 
@@ -97,9 +99,18 @@ public class CodecChain {
     }
 
     public CodecChain(List<AbstractCodec> codecs, Map<String, Object> properties) {
-        this.codecs = codecs;
+        this.codecs = new ArrayList<AbstractCodec>(codecs); // don't reorder the caller's list
         if (properties != null) this.properties = properties;
-        Collections.sort(codecs); // make sure codecs are sorted by priority
+        Collections.sort(this.codecs); // make sure codecs are sorted by priority
+    }
+
+    /**
+     * Used by {@link CodecChainTemplate} to wrap state that has already been resolved and frozen.
+     */
+    CodecChain(List<AbstractCodec<?>> codecs, Map<AbstractCodec<?>, String> specMap, Map<String, Object> properties) {
+        this.codecs = new ArrayList<AbstractCodec>(codecs);
+        this.specMap = new HashMap<AbstractCodec, String>(specMap);
+        this.properties = properties;
     }
 
     public boolean isSizePredictable() {
@@ -120,36 +131,54 @@ public class CodecChain {
     }
 
     public OutputStream getEncodeStream(OutputStream targetStream, Map<String, String> completeMetaMap) {
+        PipelineMeter meter = createMeter(true, true, getEncodeSpecs());
+        if (meter != null) targetStream = meter.wrap(targetStream, meter.getLastBoundary());
+
         for (int i = codecs.size() - 1; i >= 0; i--) { // wrap encode output streams in reverse order
             AbstractCodec codec = codecs.get(i);
             String encodeSpec = specMap.get(codec);
             if (encodeSpec == null) targetStream = codec.getEncodingStream(targetStream, properties);
             else targetStream = codec.getEncodingStream(targetStream, encodeSpec, properties);
+            if (meter != null && i > 0) targetStream = meter.wrap(targetStream, i);
         }
 
-        return new MetaAddingOutputStream((EncodeOutputStream) targetStream, completeMetaMap);
+        OutputStream metaStream = new MetaAddingOutputStream((EncodeOutputStream) targetStream, completeMetaMap);
+        return meter == null ? metaStream : meter.wrapHead(metaStream);
     }
 
     public InputStream getEncodeStream(InputStream sourceStream, Map<String, String> completeMetaMap) {
-        for (AbstractCodec codec : codecs) { // wrap encode input streams in natural order
+        PipelineMeter meter = createMeter(true, false, getEncodeSpecs());
+        if (meter != null) sourceStream = meter.wrap(sourceStream, 0);
+
+        for (int i = 0; i < codecs.size(); i++) { // wrap encode input streams in natural order
+            AbstractCodec codec = codecs.get(i);
             String encodeSpec = specMap.get(codec);
             if (encodeSpec == null) sourceStream = codec.getEncodingStream(sourceStream, properties);
             else sourceStream = codec.getEncodingStream(sourceStream, encodeSpec, properties);
+            if (meter != null && i < codecs.size() - 1) sourceStream = meter.wrap(sourceStream, i + 1);
         }
 
-        return new MetaAddingInputStream((EncodeInputStream) sourceStream, completeMetaMap);
+        InputStream metaStream = new MetaAddingInputStream((EncodeInputStream) sourceStream, completeMetaMap);
+        return meter == null ? metaStream : meter.wrapTail(metaStream);
     }
 
     @SuppressWarnings("unchecked")
     public OutputStream getDecodeStream(OutputStream targetStream, Map<String, String> completeMetaMap) {
         List<EncodeMetadata> metadataList = getEncodeMetadataList(completeMetaMap);
+        List<String> decodeSpecs = getDecodeSpecs(metadataList);
+        PipelineMeter meter = createMeter(false, true, decodeSpecs);
+        if (meter != null) targetStream = meter.wrap(targetStream, meter.getLastBoundary());
 
         // wrap decode output streams in natural order
+        int boundary = decodeSpecs.size();
         for (int i = 0; i < codecs.size(); i++) {
             AbstractCodec codec = codecs.get(i);
             EncodeMetadata metadata = metadataList.get(i);
+            if (metadata == null) continue; // not applied to this object
             targetStream = codec.getDecodingStream(targetStream, metadata, properties);
+            if (meter != null && --boundary > 0) targetStream = meter.wrap(targetStream, boundary);
         }
+        if (meter != null) targetStream = meter.wrapHead(targetStream);
 
         // remove encode metadata from map (we don't need it anymore)
         removeEncodeMetadata(completeMetaMap, metadataList);
@@ -160,13 +189,20 @@ public class CodecChain {
     @SuppressWarnings("unchecked")
     public InputStream getDecodeStream(InputStream sourceStream, Map<String, String> completeMetaMap) {
         List<EncodeMetadata> metadataList = getEncodeMetadataList(completeMetaMap);
+        List<String> decodeSpecs = getDecodeSpecs(metadataList);
+        PipelineMeter meter = createMeter(false, false, decodeSpecs);
+        if (meter != null) sourceStream = meter.wrap(sourceStream, 0);
 
         // wrap decode input streams in reverse order
+        int boundary = 0;
         for (int i = codecs.size() - 1; i >= 0; i--) {
             AbstractCodec codec = codecs.get(i);
             EncodeMetadata metadata = metadataList.get(i);
+            if (metadata == null) continue; // not applied to this object
             sourceStream = codec.getDecodingStream(sourceStream, metadata, properties);
+            if (meter != null && ++boundary < decodeSpecs.size()) sourceStream = meter.wrap(sourceStream, boundary);
         }
+        if (meter != null) sourceStream = meter.wrapTail(sourceStream);
 
         // remove encode metadata from map (we don't need it anymore)
         removeEncodeMetadata(completeMetaMap, metadataList);
@@ -174,25 +210,300 @@ public class CodecChain {
         return sourceStream;
     }
 
+    /**
+     * Decodes <code>length</code> bytes of the original object starting at <code>offset</code>. Each codec fetches only
+     * the encoded ranges it needs from the codec (or <code>source</code>) below it, so the amount of work depends on
+     * the size of the range rather than the size of the object. The range is truncated at the end of the object.
+     *
+     * @throws UnsupportedOperationException if any codec in the chain cannot decode ranges of this object (i.e.
+     *                                       stream compression or a non-CBC cipher)
+     */
+    @SuppressWarnings("unchecked")
+    public InputStream getDecodeStream(RangeSource source, Map<String, String> completeMetaMap, long offset, long length)
+            throws IOException {
+        if (offset < 0 || length < 0)
+            throw new IllegalArgumentException(String.format("invalid range (offset: %d, length: %d)", offset, length));
+
+        List<EncodeMetadata> metadataList = getEncodeMetadataList(completeMetaMap);
+
+        // the last codec in the chain is the outermost encoding, so it reads directly from the source
+        for (int i = codecs.size() - 1; i >= 0; i--) {
+            AbstractCodec codec = codecs.get(i);
+            EncodeMetadata metadata = metadataList.get(i);
+            if (metadata == null) continue; // not applied to this object
+            if (!codec.isRangeSupported(metadata))
+                throw new UnsupportedOperationException("ranged decoding is not supported for " + metadata.getEncodeSpec());
+            source = new DecodingRangeSource(codec, metadata, source);
+        }
+
+        // remove encode metadata from map (we don't need it anymore)
+        removeEncodeMetadata(completeMetaMap, metadataList);
+
+        return source.getRange(offset, length);
+    }
+
+    /**
+     * @return true if every codec in this chain supports buffer-based stages. If not, the sink and channel methods
+     * fall back to wrapping the stream API.
+     */
+    public boolean isStageSupported() {
+        for (AbstractCodec<?> codec : codecs) {
+            if (!codec.isStageSupported()) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Buffer-based version of {@link #getEncodeStream(OutputStream, Map)}. Buffers written to the returned sink are
+     * encoded and pushed to <code>target</code>; encode metadata is added to <code>completeMetaMap</code> the same way
+     * as the stream version (complete once the sink is closed).
+     */
+    @SuppressWarnings("unchecked")
+    public BufferSink getEncodeSink(BufferSink target, Map<String, String> completeMetaMap) {
+        if (!isStageSupported())
+            return new OutputStreamSink(getEncodeStream(new SinkOutputStream(target), completeMetaMap));
+
+        PipelineMeter meter = createMeter(true, true, getEncodeSpecs());
+        BufferSink sink = meter == null ? target : meter.wrap(target, meter.getLastBoundary());
+        for (int i = codecs.size() - 1; i >= 0; i--) { // wrap encode stages in reverse order
+            AbstractCodec<?> codec = codecs.get(i);
+            String encodeSpec = specMap.get(codec);
+            if (encodeSpec == null) encodeSpec = codec.getDefaultEncodeSpec();
+            sink = codec.getEncodingStage(sink, encodeSpec, properties);
+            if (meter != null && i > 0) sink = meter.wrap(sink, i);
+        }
+
+        BufferSink metaSink = new MetaAddingSink((EncodeStage<?>) sink, completeMetaMap);
+        return meter == null ? metaSink : meter.wrapHead(metaSink);
+    }
+
+    /**
+     * Buffer-based version of {@link #getDecodeStream(OutputStream, Map)}.
+     */
+    @SuppressWarnings("unchecked")
+    public BufferSink getDecodeSink(BufferSink target, Map<String, String> completeMetaMap) {
+        if (!isStageSupported())
+            return new OutputStreamSink(getDecodeStream(new SinkOutputStream(target), completeMetaMap));
+
+        List<EncodeMetadata> metadataList = getEncodeMetadataList(completeMetaMap);
+        List<String> decodeSpecs = getDecodeSpecs(metadataList);
+        PipelineMeter meter = createMeter(false, true, decodeSpecs);
+        if (meter != null) target = meter.wrap(target, meter.getLastBoundary());
+
+        // wrap decode stages in natural order
+        int boundary = decodeSpecs.size();
+        for (int i = 0; i < codecs.size(); i++) {
+            AbstractCodec codec = codecs.get(i);
+            EncodeMetadata metadata = metadataList.get(i);
+            if (metadata == null) continue; // not applied to this object
+            target = codec.getDecodingStage(target, metadata, properties);
+            if (meter != null && --boundary > 0) target = meter.wrap(target, boundary);
+        }
+        if (meter != null) target = meter.wrapHead(target);
+
+        // remove encode metadata from map (we don't need it anymore)
+        removeEncodeMetadata(completeMetaMap, metadataList);
+
+        return target;
+    }
+
+    public WritableByteChannel getEncodeChannel(WritableByteChannel targetChannel, Map<String, String> completeMetaMap) {
+        return new SinkChannel(getEncodeSink(new ChannelSink(targetChannel), completeMetaMap));
+    }
+
+    public ReadableByteChannel getEncodeChannel(ReadableByteChannel sourceChannel, Map<String, String> completeMetaMap) {
+        if (!isStageSupported())
+            return Channels.newChannel(getEncodeStream(Channels.newInputStream(sourceChannel), completeMetaMap));
+
+        int bufferSize = EncodeStage.getBufferSize(properties);
+        BufferCollector collector = new BufferCollector(bufferSize);
+        return new PullChannel(sourceChannel, getEncodeSink(collector, completeMetaMap), collector, bufferSize);
+    }
+
+    public WritableByteChannel getDecodeChannel(WritableByteChannel targetChannel, Map<String, String> completeMetaMap) {
+        return new SinkChannel(getDecodeSink(new ChannelSink(targetChannel), completeMetaMap));
+    }
+
+    public ReadableByteChannel getDecodeChannel(ReadableByteChannel sourceChannel, Map<String, String> completeMetaMap) {
+        if (!isStageSupported())
+            return Channels.newChannel(getDecodeStream(Channels.newInputStream(sourceChannel), completeMetaMap));
+
+        int bufferSize = EncodeStage.getBufferSize(properties);
+        BufferCollector collector = new BufferCollector(bufferSize);
+        return new PullChannel(sourceChannel, getDecodeSink(collector, completeMetaMap), collector, bufferSize);
+    }
+
+    /**
+     * Encodes everything in <code>source</code> to <code>target</code> in a single pass. When every codec supports
+     * stages, the data is read into one reusable (per-thread) buffer and pushed straight through each codec's stage,
+     * which avoids the filter-stream stack entirely; otherwise this simply copies through
+     * {@link #getEncodeStream(OutputStream, Map)}. Either way the encoded bytes and metadata are identical.
+     * <p>
+     * Both streams are closed when this method returns. If encoding fails, the chain is still closed (so pooled
+     * resources are released), but nothing more is written to <code>target</code>.
+     *
+     * @return the number of source bytes read
+     */
+    public long encode(InputStream source, OutputStream target, Map<String, String> completeMetaMap) throws IOException {
+        AbortableOutputStream abortableTarget = new AbortableOutputStream(target);
+        BufferSink head;
+        if (isStageSupported()) head = getEncodeSink(new OutputStreamSink(abortableTarget), completeMetaMap);
+        else head = new OutputStreamSink(getEncodeStream(abortableTarget, completeMetaMap));
+        return pump(source, head, abortableTarget);
+    }
+
+    /**
+     * Single-pass version of {@link #getDecodeStream(OutputStream, Map)}. See
+     * {@link #encode(InputStream, OutputStream, Map)}.
+     *
+     * @return the number of encoded bytes read
+     */
+    public long decode(InputStream source, OutputStream target, Map<String, String> completeMetaMap) throws IOException {
+        AbortableOutputStream abortableTarget = new AbortableOutputStream(target);
+        return pump(source, getDecodeSink(new OutputStreamSink(abortableTarget), completeMetaMap), abortableTarget);
+    }
+
+    private long pump(InputStream source, BufferSink head, AbortableOutputStream target) throws IOException {
+        int bufferSize = EncodeStage.getBufferSize(properties);
+
+        // take the buffer off the thread while in use, in case a sink re-enters on the same thread
+        byte[] buffer = pumpBuffer.get();
+        pumpBuffer.remove();
+        if (buffer == null || buffer.length != bufferSize) buffer = new byte[bufferSize];
+
+        ByteBuffer wrapper = ByteBuffer.wrap(buffer);
+        long total = 0;
+        boolean closed = false;
+        try {
+            int read;
+            while ((read = source.read(buffer)) != -1) {
+                wrapper.clear().limit(read);
+                head.write(wrapper);
+                total += read;
+            }
+            closed = true;
+            head.close();
+        } finally {
+            if (!closed) {
+                // release pooled deflaters, ciphers, etc., but don't write a trailer after a partial object
+                target.abort();
+                try {
+                    head.close();
+                } catch (Throwable t) {
+                    // ignore; the original failure is propagating
+                }
+            }
+            pumpBuffer.set(buffer);
+            try {
+                source.close();
+            } catch (Throwable t) {
+                // ignore
+            }
+        }
+        return total;
+    }
+
+    // reused by encode/decode so the single-pass path does not allocate a read buffer per object
+    private static final ThreadLocal<byte[]> pumpBuffer = new ThreadLocal<byte[]>();
+
+    /**
+     * Returns a non-blocking encoder. Subscribe it to a publisher of original data and subscribe a consumer of the
+     * encoded data to it. <code>completeMetaMap</code> is populated as with {@link #getEncodeStream(OutputStream, Map)}
+     * and is also the result of {@link CodecProcessor#getMetadataFuture()}.
+     */
+    public CodecProcessor getEncodeProcessor(Map<String, String> completeMetaMap) {
+        CodecProcessor processor = new CodecProcessor(completeMetaMap, EncodeStage.getBufferSize(properties));
+        processor.setHead(getEncodeSink(processor.getTail(), completeMetaMap));
+        return processor;
+    }
+
+    /**
+     * Returns a non-blocking decoder (see {@link #getEncodeProcessor(Map)}).
+     */
+    public CodecProcessor getDecodeProcessor(Map<String, String> completeMetaMap) {
+        CodecProcessor processor = new CodecProcessor(completeMetaMap, EncodeStage.getBufferSize(properties));
+        processor.setHead(getDecodeSink(processor.getTail(), completeMetaMap));
+        return processor;
+    }
+
+    /**
+     * @return a meter for a pipeline through the given stages, or null if no {@link CodecMetrics} are configured
+     */
+    private PipelineMeter createMeter(boolean encode, boolean push, List<String> stageSpecs) {
+        CodecMetrics metrics = MetricsUtil.getMetrics(properties);
+        if (!MetricsUtil.isEnabled(metrics)) return null;
+        return new PipelineMeter(metrics, encode, push, stageSpecs, MetricsUtil.isCpuTime(properties));
+    }
+
+    /**
+     * @return the encode spec of each codec, in chain order (the order data flows when encoding)
+     */
+    private List<String> getEncodeSpecs() {
+        List<String> encodeSpecs = new ArrayList<String>();
+        for (AbstractCodec codec : codecs) {
+            String encodeSpec = specMap.get(codec);
+            encodeSpecs.add(encodeSpec == null ? codec.getDefaultEncodeSpec() : encodeSpec);
+        }
+        return encodeSpecs;
+    }
+
+    /**
+     * @return the specs of the codecs that apply to an object, in the order data flows when decoding (reverse chain
+     * order)
+     */
+    private List<String> getDecodeSpecs(List<EncodeMetadata> metadataList) {
+        List<String> decodeSpecs = new ArrayList<String>();
+        for (EncodeMetadata metadata : metadataList) {
+            if (metadata != null) decodeSpecs.add(metadata.getEncodeSpec());
+        }
+        Collections.reverse(decodeSpecs);
+        return decodeSpecs;
+    }
+
+    /**
+     * Matches the codecs in this chain to the encode specs in <code>completeMetaMap</code> and parses their metadata.
+     * The returned list is parallel to the codec list; it contains null for a codec that was not applied to the object
+     * at all (i.e. adaptive compression that was bypassed). Only compression codecs may be missing, only if the object
+     * has no compression spec left to match, and only if every other spec of the object is decoded by this chain.
+     */
     public List<EncodeMetadata> getEncodeMetadataList(Map<String, String> completeMetaMap) {
         String[] encodeSpecs = getEncodeSpecs(completeMetaMap);
-        List<EncodeMetadata> metadataList = new ArrayList<EncodeMetadata>();
+        if (encodeSpecs == null) encodeSpecs = new String[0];
+        EncodeMetadata[] metadataList = new EncodeMetadata[codecs.size()];
 
         // if we have X codecs, we can only decode the last X encode specs.
         // this may leave the object still encoded somehow, but perhaps that is a valid use-case
-        encodeSpecs = Arrays.copyOfRange(encodeSpecs, encodeSpecs.length - codecs.size(), encodeSpecs.length);
-
-        for (int i = 0; i < codecs.size(); i++) {
+        int specIndex = encodeSpecs.length - 1;
+        boolean bypassed = false;
+        for (int i = codecs.size() - 1; i >= 0; i--) {
             AbstractCodec codec = codecs.get(i);
-            String encodeSpec = encodeSpecs[i];
-            if (!codec.canDecode(encodeSpec))
+            if (specIndex >= 0 && codec.canDecode(encodeSpecs[specIndex])) {
+                String encodeSpec = encodeSpecs[specIndex--];
+                metadataList[i] = codec.createEncodeMetadata(encodeSpec, completeMetaMap);
+            } else if (isCompression(codec) && !containsType(encodeSpecs, specIndex, codec)) {
+                bypassed = true;
+            } else {
                 throw new RuntimeException("this codec chain cannot decode the following encode list:\n" + Arrays.toString(encodeSpecs));
-
-            EncodeMetadata metadata = codec.createEncodeMetadata(encodeSpec, completeMetaMap);
-            metadataList.add(metadata);
+            }
         }
 
-        return metadataList;
+        // a bypassed codec is indistinguishable from a chain that does not match the object, unless the rest matches
+        if (bypassed && specIndex >= 0)
+            throw new RuntimeException("this codec chain cannot decode the following encode list:\n" + Arrays.toString(encodeSpecs));
+
+        return Arrays.asList(metadataList);
+    }
+
+    private boolean isCompression(AbstractCodec<?> codec) {
+        return CompressionConstants.COMPRESSION_TYPE.equals(CodecUtil.getEncodeType(codec.getDefaultEncodeSpec()));
+    }
+
+    private boolean containsType(String[] encodeSpecs, int lastIndex, AbstractCodec<?> codec) {
+        String type = CodecUtil.getEncodeType(codec.getDefaultEncodeSpec());
+        for (int i = 0; i <= lastIndex; i++) {
+            if (type.equals(CodecUtil.getEncodeType(encodeSpecs[i]))) return true;
+        }
+        return false;
     }
 
     public class MetaAddingOutputStream extends FilterOutputStream {
@@ -249,6 +560,84 @@ public class CodecChain {
         }
     }
 
+    public class MetaAddingSink implements BufferSink {
+        private EncodeStage<?> firstStage;
+        private Map<String, String> metaMap;
+
+        /**
+         * wrap head of chain for stages
+         */
+        public MetaAddingSink(EncodeStage<?> firstStage, Map<String, String> metaMap) {
+            this.firstStage = firstStage;
+            this.metaMap = metaMap;
+            addEncodeMetadata(metaMap, firstStage, true);
+        }
+
+        @Override
+        public void write(ByteBuffer src) throws IOException {
+            firstStage.write(src);
+        }
+
+        @Override
+        public void close() throws IOException {
+            firstStage.close();
+            addEncodeMetadata(metaMap, firstStage, false);
+        }
+    }
+
+    /**
+     * Target of {@link #pump}. Once aborted, output is discarded, but closing still closes the underlying stream.
+     */
+    private static class AbortableOutputStream extends FilterOutputStream {
+        private boolean aborted = false;
+
+        AbortableOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        void abort() {
+            aborted = true;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (!aborted) out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (!aborted) out.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (!aborted) out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    private class DecodingRangeSource implements RangeSource {
+        private AbstractCodec codec;
+        private EncodeMetadata metadata;
+        private RangeSource encodedSource;
+
+        DecodingRangeSource(AbstractCodec codec, EncodeMetadata metadata, RangeSource encodedSource) {
+            this.codec = codec;
+            this.metadata = metadata;
+            this.encodedSource = encodedSource;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public InputStream getRange(long offset, long length) throws IOException {
+            return codec.getDecodingStream(encodedSource, metadata, offset, length, properties);
+        }
+    }
+
     protected void addEncodeMetadata(Map<String, String> metaMap, EncodeStream encodeStream, boolean addEncodeSpec) {
 
         // add all encode metadata to the meta map
@@ -259,23 +648,71 @@ public class CodecChain {
             if (!metadata.isComplete()) complete = false;
             metaMap.putAll(metadata.toMap());
             if (addEncodeSpec) addEncodeSpec(metaMap, metadata.getEncodeSpec());
+            else if (metadata.isBypassed()) removeBypassedSpec(metaMap, metadata.getEncodeSpec());
             encodeStream = encodeStream.getNext();
         } while (encodeStream != null);
 
         metaMap.put(META_TRANSFORM_COMPLETE, "" + complete); // this flag indicates whether the transform is complete
     }
 
+    /**
+     * Removes the spec of an encoder that ended up not transforming the data, wherever it is in the chain.
+     */
+    protected void removeBypassedSpec(Map<String, String> metaMap, String encodeSpec) {
+        String[] encodeSpecs = getEncodeSpecs(metaMap);
+        if (encodeSpecs == null) return;
+
+        StringBuilder specString = new StringBuilder();
+        boolean removed = false;
+        for (String spec : encodeSpecs) {
+            if (!removed && spec.equals(encodeSpec)) {
+                removed = true;
+                continue;
+            }
+            if (specString.length() > 0) specString.append(",");
+            specString.append(spec);
+        }
+
+        if (specString.length() == 0) metaMap.remove(META_TRANSFORM_MODE);
+        else metaMap.put(META_TRANSFORM_MODE, specString.toString());
+    }
+
     public void removeEncodeMetadata(Map<String, String> metaMap, List<EncodeMetadata> encodeMetaList) {
         // remove decoded specs from the chain spec and remove related metadata
         // must remove in reverse order (tail to head)
         for (int i = encodeMetaList.size() - 1; i >= 0; i--) {
             EncodeMetadata metadata = encodeMetaList.get(i);
+            if (metadata == null) continue;
             removeEncodeSpec(metaMap, metadata.getEncodeSpec()); // remove spec from end of chain
             metaMap.keySet().removeAll(metadata.toMap().keySet()); // remove encode metadata
             metaMap.remove(META_TRANSFORM_COMPLETE); // remove completion flag
         }
     }
 
+    /**
+     * Creates an immutable snapshot of this chain (codecs, encode specs and properties) that can be shared by any
+     * number of threads. Later changes to this chain or its property map do not affect the template.
+     */
+    public CodecChainTemplate toTemplate() {
+        return new CodecChainTemplate(getCodecs(), getSpecMap(), properties);
+    }
+
+    List<AbstractCodec<?>> getCodecs() {
+        List<AbstractCodec<?>> codecList = new ArrayList<AbstractCodec<?>>(codecs.size());
+        for (AbstractCodec<?> codec : codecs) {
+            codecList.add(codec);
+        }
+        return codecList;
+    }
+
+    Map<AbstractCodec<?>, String> getSpecMap() {
+        Map<AbstractCodec<?>, String> specs = new HashMap<AbstractCodec<?>, String>();
+        for (AbstractCodec<?> codec : specMap.keySet()) {
+            specs.put(codec, specMap.get(codec));
+        }
+        return specs;
+    }
+
     public Map<String, Object> getProperties() {
         return properties;
     }
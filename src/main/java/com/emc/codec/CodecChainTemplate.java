@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.*;
+
+/**
+ * An immutable, pre-validated codec chain that can be shared by any number of concurrent requests.
+ * <p>
+ * All setup work happens once, in the constructor: encode specs are resolved (codecs without an explicit spec get
+ * their default spec), each codec validates its spec and properties (i.e. compression levels, key provider) and the
+ * property map is copied and frozen, capturing the key provider and security provider it contains. The stream methods
+ * then only build the per-object streams.
+ * <p>
+ * Unlike {@link CodecChain}, a template cannot be modified after construction. Use {@link CodecChain#toTemplate()} to
+ * create one from a configured chain.
+ */
+public final class CodecChainTemplate {
+    private final List<AbstractCodec<?>> codecs;
+    private final List<String> encodeSpecs;
+    private final Map<String, Object> properties;
+    private final CodecChain chain;
+
+    /**
+     * Resolves the specified encode specs using the shared {@link CodecRegistry}.
+     */
+    public CodecChainTemplate(Map<String, Object> properties, String... encodeSpecs) {
+        this(new CodecChain(encodeSpecs), properties);
+    }
+
+    /**
+     * Codecs will be sorted by priority, just like in a {@link CodecChain}.
+     */
+    public CodecChainTemplate(Map<String, Object> properties, AbstractCodec<?>... codecs) {
+        this(new CodecChain(codecs), properties);
+    }
+
+    private CodecChainTemplate(CodecChain chain, Map<String, Object> properties) {
+        this(chain.getCodecs(), chain.getSpecMap(), properties);
+    }
+
+    CodecChainTemplate(List<AbstractCodec<?>> codecs, Map<AbstractCodec<?>, String> specMap,
+                       Map<String, Object> properties) {
+        Map<String, Object> frozenProperties = new HashMap<String, Object>();
+        if (properties != null) frozenProperties.putAll(properties);
+        this.properties = Collections.unmodifiableMap(frozenProperties);
+
+        List<AbstractCodec<?>> codecList = new ArrayList<AbstractCodec<?>>(codecs);
+        List<String> specList = new ArrayList<String>(codecs.size());
+        Map<AbstractCodec<?>, String> resolvedSpecs = new HashMap<AbstractCodec<?>, String>();
+        for (AbstractCodec<?> codec : codecList) {
+            String encodeSpec = specMap.get(codec);
+            if (encodeSpec == null) encodeSpec = codec.getDefaultEncodeSpec();
+            codec.validate(encodeSpec, this.properties);
+            specList.add(encodeSpec);
+            resolvedSpecs.put(codec, encodeSpec);
+        }
+        this.codecs = Collections.unmodifiableList(codecList);
+        this.encodeSpecs = Collections.unmodifiableList(specList);
+
+        // this chain is never exposed, so its state cannot change
+        this.chain = new CodecChain(this.codecs, Collections.unmodifiableMap(resolvedSpecs), this.properties);
+    }
+
+    public boolean isSizePredictable() {
+        return chain.isSizePredictable();
+    }
+
+    public long getEncodedSize(long originalSize) {
+        return chain.getEncodedSize(originalSize);
+    }
+
+    public OutputStream getEncodeStream(OutputStream targetStream, Map<String, String> completeMetaMap) {
+        return chain.getEncodeStream(targetStream, completeMetaMap);
+    }
+
+    public InputStream getEncodeStream(InputStream sourceStream, Map<String, String> completeMetaMap) {
+        return chain.getEncodeStream(sourceStream, completeMetaMap);
+    }
+
+    public OutputStream getDecodeStream(OutputStream targetStream, Map<String, String> completeMetaMap) {
+        return chain.getDecodeStream(targetStream, completeMetaMap);
+    }
+
+    public InputStream getDecodeStream(InputStream sourceStream, Map<String, String> completeMetaMap) {
+        return chain.getDecodeStream(sourceStream, completeMetaMap);
+    }
+
+    public long encode(InputStream source, OutputStream target, Map<String, String> completeMetaMap) throws IOException {
+        return chain.encode(source, target, completeMetaMap);
+    }
+
+    public long decode(InputStream source, OutputStream target, Map<String, String> completeMetaMap) throws IOException {
+        return chain.decode(source, target, completeMetaMap);
+    }
+
+    public InputStream getDecodeStream(RangeSource source, Map<String, String> completeMetaMap, long offset, long length)
+            throws IOException {
+        return chain.getDecodeStream(source, completeMetaMap, offset, length);
+    }
+
+    public CodecProcessor getEncodeProcessor(Map<String, String> completeMetaMap) {
+        return chain.getEncodeProcessor(completeMetaMap);
+    }
+
+    public CodecProcessor getDecodeProcessor(Map<String, String> completeMetaMap) {
+        return chain.getDecodeProcessor(completeMetaMap);
+    }
+
+    public BufferSink getEncodeSink(BufferSink target, Map<String, String> completeMetaMap) {
+        return chain.getEncodeSink(target, completeMetaMap);
+    }
+
+    public BufferSink getDecodeSink(BufferSink target, Map<String, String> completeMetaMap) {
+        return chain.getDecodeSink(target, completeMetaMap);
+    }
+
+    public WritableByteChannel getEncodeChannel(WritableByteChannel targetChannel, Map<String, String> completeMetaMap) {
+        return chain.getEncodeChannel(targetChannel, completeMetaMap);
+    }
+
+    public ReadableByteChannel getEncodeChannel(ReadableByteChannel sourceChannel, Map<String, String> completeMetaMap) {
+        return chain.getEncodeChannel(sourceChannel, completeMetaMap);
+    }
+
+    public WritableByteChannel getDecodeChannel(WritableByteChannel targetChannel, Map<String, String> completeMetaMap) {
+        return chain.getDecodeChannel(targetChannel, completeMetaMap);
+    }
+
+    public ReadableByteChannel getDecodeChannel(ReadableByteChannel sourceChannel, Map<String, String> completeMetaMap) {
+        return chain.getDecodeChannel(sourceChannel, completeMetaMap);
+    }
+
+    /**
+     * @return the resolved encode specs of this template, in chain order (unmodifiable)
+     */
+    public List<String> getEncodeSpecs() {
+        return encodeSpecs;
+    }
+
+    /**
+     * @return the frozen codec properties of this template (unmodifiable)
+     */
+    public Map<String, Object> getProperties() {
+        return properties;
+    }
+
+    public List<AbstractCodec<?>> getCodecs() {
+        return codecs;
+    }
+}
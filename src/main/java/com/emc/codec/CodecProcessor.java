@@ -0,0 +1,313 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking encoder/decoder. Subscribe it to a publisher of original (or encoded) buffers and subscribe a consumer
+ * to it; buffers are pulled from upstream only as fast as the downstream subscriber requests output, and no thread is
+ * ever parked waiting for data. When the data is complete, {@link #getMetadataFuture()} completes with the final
+ * metadata map (for an encode, this includes all encode metadata).
+ * <p>
+ * Each upstream buffer is run through the chain's stages on the thread that delivers it, and encoded output is
+ * re-chunked into buffers of the configured buffer size (see {@link EncodeStage#PROP_BUFFER_SIZE}). Codecs that
+ * don't support stages fall back to their stream implementation (see {@link CodecChain#getEncodeSink}).
+ * <p>
+ * Created by {@link CodecChain#getEncodeProcessor(Map)} and {@link CodecChain#getDecodeProcessor(Map)}.
+ */
+public class CodecProcessor implements BufferSubscriber, BufferPublisher {
+    private final Map<String, String> metaMap;
+    private final int chunkSize;
+    private final CompletableFuture<Map<String, String>> metadataFuture = new CompletableFuture<Map<String, String>>();
+    // filled by the tail without the processor lock (see getTail())
+    private final Queue<ByteBuffer> output = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final Object tailLock = new Object();
+    private final AtomicInteger wip = new AtomicInteger();
+
+    private BufferSink head;
+    private ByteBuffer chunk; // guarded by tailLock
+    private volatile boolean abandoned = false;
+    private BufferSubscription upstream;
+    private BufferSubscriber downstream;
+    private long demand = 0;
+    private boolean upstreamRequested = false;
+    private boolean upstreamDone = false;
+    private boolean chainClosed = false;
+    private boolean done = false;
+    private Throwable error;
+
+    CodecProcessor(Map<String, String> metaMap, int chunkSize) {
+        this.metaMap = metaMap;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * The tail of the stage chain; collects output for the downstream subscriber. A stream fallback may write to it
+     * from its own coder thread while the thread that called {@link #onNext} (holding the processor lock) waits on that
+     * coder, so the tail must never take the processor lock. It hands chunks off through a concurrent queue instead;
+     * they are emitted by the next drain (at the latest after the pending {@link #onNext} or {@link #onComplete}).
+     */
+    BufferSink getTail() {
+        return new BufferSink() {
+            @Override
+            public void write(ByteBuffer src) {
+                synchronized (tailLock) {
+                    if (abandoned) {
+                        src.position(src.limit()); // discard
+                        return;
+                    }
+                    while (src.hasRemaining()) {
+                        if (chunk == null) chunk = ByteBuffer.allocate(chunkSize);
+                        int count = Math.min(src.remaining(), chunk.remaining());
+                        ByteBuffer slice = src.duplicate();
+                        slice.limit(slice.position() + count);
+                        chunk.put(slice);
+                        src.position(slice.position());
+                        if (!chunk.hasRemaining()) flushChunk();
+                    }
+                }
+            }
+
+            @Override
+            public void close() {
+                synchronized (tailLock) {
+                    if (!abandoned && chunk != null && chunk.position() > 0) flushChunk();
+                }
+            }
+        };
+    }
+
+    void setHead(BufferSink head) {
+        this.head = head;
+    }
+
+    // must hold tailLock
+    private void flushChunk() {
+        chunk.flip();
+        output.add(chunk);
+        chunk = null;
+    }
+
+    /**
+     * @return a future that completes with the metadata map once all data has been processed, or exceptionally if
+     * processing fails or is cancelled
+     */
+    public CompletableFuture<Map<String, String>> getMetadataFuture() {
+        return metadataFuture;
+    }
+
+    // -- upstream (BufferSubscriber)
+
+    @Override
+    public void onSubscribe(BufferSubscription subscription) {
+        synchronized (this) {
+            if (upstream != null || done) {
+                subscription.cancel();
+                return;
+            }
+            upstream = subscription;
+        }
+        drain();
+    }
+
+    @Override
+    public void onNext(ByteBuffer buffer) {
+        synchronized (this) {
+            upstreamRequested = false;
+            if (done || error != null) return;
+            try {
+                head.write(buffer);
+            } catch (Throwable t) {
+                fail(t);
+            }
+        }
+        drain();
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        synchronized (this) {
+            upstreamDone = true;
+            if (error == null) fail(t);
+        }
+        drain();
+    }
+
+    @Override
+    public void onComplete() {
+        synchronized (this) {
+            upstreamDone = true;
+            if (done || error != null) return;
+            try {
+                head.close(); // flushes the chain (and populates encode metadata)
+                chainClosed = true;
+            } catch (Throwable t) {
+                fail(t);
+            }
+        }
+        drain();
+    }
+
+    // -- downstream (BufferPublisher)
+
+    @Override
+    public void subscribe(final BufferSubscriber subscriber) {
+        synchronized (this) {
+            if (downstream != null) {
+                subscriber.onSubscribe(new BufferSubscription() {
+                    @Override
+                    public void request(long n) {
+                    }
+
+                    @Override
+                    public void cancel() {
+                    }
+                });
+                subscriber.onError(new IllegalStateException("only one subscriber is supported"));
+                return;
+            }
+            downstream = subscriber;
+        }
+        subscriber.onSubscribe(new BufferSubscription() {
+            @Override
+            public void request(long n) {
+                synchronized (CodecProcessor.this) {
+                    if (n <= 0) {
+                        fail(new IllegalArgumentException("request must be positive (" + n + ")"));
+                    } else {
+                        demand += n;
+                        if (demand < 0) demand = Long.MAX_VALUE; // overflow means unbounded
+                    }
+                }
+                drain();
+            }
+
+            @Override
+            public void cancel() {
+                BufferSubscription toCancel;
+                synchronized (CodecProcessor.this) {
+                    if (done) return;
+                    done = true;
+                    abandoned = true;
+                    toCancel = upstream;
+                    output.clear();
+                    closeQuietly();
+                }
+                if (toCancel != null) toCancel.cancel();
+                metadataFuture.cancel(false);
+            }
+        });
+        drain();
+    }
+
+    // must hold lock
+    private void fail(Throwable t) {
+        error = t;
+        abandoned = true;
+        output.clear();
+        closeQuietly();
+    }
+
+    // must hold lock
+    private void closeQuietly() {
+        if (chainClosed) return;
+        chainClosed = true;
+        try {
+            head.close();
+        } catch (Throwable t) {
+            // ignore; the stream is being abandoned
+        }
+    }
+
+    /**
+     * Emits output and requests input until neither is possible. Only one thread drains at a time and downstream
+     * signals are sent outside the lock, so subscribers may call back into this processor from their signal handlers.
+     */
+    private void drain() {
+        if (wip.getAndIncrement() != 0) return;
+        int missed = 1;
+        do {
+            boolean progress = true;
+            while (progress) {
+                progress = drainOne();
+            }
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private boolean drainOne() {
+        ByteBuffer next = null;
+        Throwable err = null;
+        boolean complete = false;
+        BufferSubscription requestFrom = null, cancelFrom = null;
+        BufferSubscriber subscriber;
+
+        synchronized (this) {
+            subscriber = downstream;
+            if (subscriber == null || done) return false;
+
+            if (error != null) {
+                done = true;
+                err = error;
+                if (!upstreamDone) cancelFrom = upstream;
+            } else if (demand > 0 && !output.isEmpty()) {
+                next = output.poll();
+                if (demand != Long.MAX_VALUE) demand--;
+            } else if (output.isEmpty() && upstreamDone && chainClosed) {
+                done = true;
+                complete = true;
+            } else if (demand > 0 && upstream != null && !upstreamRequested && !upstreamDone) {
+                upstreamRequested = true;
+                requestFrom = upstream;
+            } else {
+                return false;
+            }
+        }
+
+        if (err != null) {
+            if (cancelFrom != null) cancelFrom.cancel();
+            metadataFuture.completeExceptionally(err);
+            subscriber.onError(err);
+        } else if (complete) {
+            metadataFuture.complete(metaMap); // before onComplete, so the subscriber can use the metadata
+            subscriber.onComplete();
+        } else if (next != null) {
+            subscriber.onNext(next);
+        } else {
+            requestFrom.request(1);
+        }
+        return true;
+    }
+}
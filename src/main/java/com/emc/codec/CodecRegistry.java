@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Process-wide, thread-safe registry of the codecs declared in
+ * <code>META-INF/services/com.emc.codec.AbstractCodec</code>.
+ * <p>
+ * The service entries are loaded exactly once and the result of resolving an encode spec to a codec is memoized
+ * (including the fact that no codec supports a spec), so building a {@link CodecChain} from encode specs does not
+ * repeat any provider lookups. Codec implementations are stateless, so the registered instances are shared by all
+ * chains.
+ */
+public final class CodecRegistry {
+    /**
+     * Upper bound on memoized spec resolutions. Encode specs come from object metadata, so we don't want a stream of
+     * bogus specs to grow the cache without limit.
+     */
+    public static final int MAX_CACHED_SPECS = 1024;
+
+    // marks specs that no registered codec can process
+    private static final Object UNSUPPORTED = new Object();
+
+    private static class InstanceHolder {
+        static final CodecRegistry INSTANCE = new CodecRegistry(CodecRegistry.class.getClassLoader());
+    }
+
+    public static CodecRegistry getInstance() {
+        return InstanceHolder.INSTANCE;
+    }
+
+    private final List<AbstractCodec<?>> codecs;
+    private final ConcurrentMap<String, Object> specCache = new ConcurrentHashMap<String, Object>();
+
+    /**
+     * Creates a registry of the codecs visible to the specified class loader. Most applications should use the shared
+     * {@link #getInstance()}.
+     */
+    public CodecRegistry(ClassLoader classLoader) {
+        List<AbstractCodec<?>> codecList = new ArrayList<AbstractCodec<?>>();
+        for (AbstractCodec<?> codec : ServiceLoader.load(AbstractCodec.class, classLoader)) {
+            codecList.add(codec);
+        }
+        this.codecs = Collections.unmodifiableList(codecList);
+    }
+
+    /**
+     * @return all registered codecs, in service declaration order
+     */
+    public List<AbstractCodec<?>> getCodecs() {
+        return codecs;
+    }
+
+    /**
+     * @return the registered codec that can decode <code>encodeSpec</code>, or null if there is none
+     */
+    public AbstractCodec<?> getCodec(String encodeSpec) {
+        Object codec = specCache.get(encodeSpec);
+        if (codec == null) {
+            codec = resolve(encodeSpec);
+            if (specCache.size() < MAX_CACHED_SPECS) specCache.putIfAbsent(encodeSpec, codec);
+        }
+        return codec == UNSUPPORTED ? null : (AbstractCodec<?>) codec;
+    }
+
+    public boolean isSupported(String encodeSpec) {
+        return getCodec(encodeSpec) != null;
+    }
+
+    private Object resolve(String encodeSpec) {
+        for (AbstractCodec<?> codec : codecs) {
+            if (codec.canDecode(encodeSpec)) return codec;
+        }
+        return UNSUPPORTED;
+    }
+}
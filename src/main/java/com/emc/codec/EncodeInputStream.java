@@ -28,6 +28,8 @@
 
 package com.emc.codec;
 
+import com.emc.codec.metrics.MeteredInputStream;
+
 import java.io.FilterInputStream;
 import java.io.InputStream;
 import java.util.ArrayList;
@@ -41,6 +43,7 @@ public abstract class EncodeInputStream<M extends EncodeMetadata> extends Filter
 
     public EncodeInputStream(InputStream in) {
         super(in);
+        if (in instanceof MeteredInputStream) in = ((MeteredInputStream) in).getDelegate(); // link through meters
         if (in instanceof EncodeInputStream) {
             prevEncodeStream = (EncodeStream) in;
             ((EncodeInputStream) in).nextEncodeStream = this;
@@ -45,6 +45,14 @@ public abstract class EncodeMetadata {
 
     public abstract Map<String, String> toMap();
 
+    /**
+     * Return true if the encoder decided not to transform the data after all (i.e. adaptive compression of data that
+     * is not compressible). The data is stored as is, and the encode spec is removed from the object metadata.
+     */
+    public boolean isBypassed() {
+        return false;
+    }
+
     public String getEncodeSpec() {
         return encodeSpec;
     }
@@ -28,6 +28,8 @@
 
 package com.emc.codec;
 
+import com.emc.codec.metrics.MeteredOutputStream;
+
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -42,6 +44,7 @@ public abstract class EncodeOutputStream<M extends EncodeMetadata> extends Filte
 
     public EncodeOutputStream(OutputStream out) {
         super(out);
+        if (out instanceof MeteredOutputStream) out = ((MeteredOutputStream) out).getDelegate(); // link through meters
         if (out instanceof EncodeOutputStream) {
             ((EncodeOutputStream) out).prevEncodeStream = this;
             this.nextEncodeStream = (EncodeStream) out;
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec;
+
+import com.emc.codec.metrics.MeteredSink;
+import com.emc.codec.util.CodecUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Buffer-based equivalent of {@link EncodeOutputStream}. A stage transforms the buffers written to it and pushes the
+ * result to the next {@link BufferSink}, which avoids copying between NIO buffers and heap arrays wherever the
+ * underlying engine supports <code>ByteBuffer</code>s.
+ * <p>
+ * Implementations must populate their metadata and call {@link #notifyListeners()} when closed.
+ */
+public abstract class EncodeStage<M extends EncodeMetadata> implements BufferSink, EncodeStream<M> {
+    public static final String PROP_BUFFER_SIZE = "com.emc.codec.EncodeStage.bufferSize";
+
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    public static int getBufferSize(Map<String, Object> codecProperties) {
+        return CodecUtil.getCodecProperty(PROP_BUFFER_SIZE, codecProperties, DEFAULT_BUFFER_SIZE);
+    }
+
+    public static void setBufferSize(Map<String, Object> codecProperties, int bufferSize) {
+        codecProperties.put(PROP_BUFFER_SIZE, bufferSize);
+    }
+
+    protected BufferSink next;
+    List<EncodeListener<M>> listeners = new ArrayList<EncodeListener<M>>();
+    EncodeStream<?> prevEncodeStream;
+    EncodeStream<?> nextEncodeStream;
+
+    public EncodeStage(BufferSink next) {
+        this.next = next;
+        if (next instanceof MeteredSink) next = ((MeteredSink) next).getDelegate(); // link through meters
+        if (next instanceof EncodeStage) {
+            ((EncodeStage<?>) next).prevEncodeStream = this;
+            this.nextEncodeStream = (EncodeStream<?>) next;
+        }
+    }
+
+    protected void notifyListeners() {
+        for (EncodeListener<M> listener : listeners) {
+            listener.encodeComplete(this);
+        }
+    }
+
+    @Override
+    public void addListener(EncodeListener<M> listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void removeListener(EncodeListener<M> listener) {
+        listeners.remove(listener);
+    }
+
+    @Override
+    public EncodeStream<?> getChainHead() {
+        return prevEncodeStream == null ? this : prevEncodeStream.getChainHead();
+    }
+
+    @Override
+    public EncodeStream<?> getNext() {
+        return nextEncodeStream;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.compression;
+
+import com.emc.codec.AbstractCodec;
+import com.emc.codec.EncodeInputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Map;
+
+/**
+ * Pull-based version of {@link AdaptiveCompressionOutputStream}. The sample is read from the source on the first read.
+ */
+public class AdaptiveCompressionInputStream extends EncodeInputStream<CompressionMetadata> {
+    private AbstractCodec<CompressionMetadata> codec;
+    private Map<String, Object> codecProperties;
+    private CompressionMetadata metadata;
+    private EncodeInputStream<CompressionMetadata> compressionStream;
+    private boolean decided = false;
+    private boolean closed = false;
+
+    public AdaptiveCompressionInputStream(InputStream in, String encodeSpec, AbstractCodec<CompressionMetadata> codec,
+                                          Map<String, Object> codecProperties) {
+        super(in);
+        this.codec = codec;
+        this.codecProperties = codecProperties;
+        this.metadata = new CompressionMetadata(encodeSpec);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int c = read(b, 0, 1);
+        return c == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b) throws IOException {
+        return read(b, 0, b.length);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (!decided) decide();
+        return in.read(b, off, len);
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (!decided) decide();
+        return in.skip(n);
+    }
+
+    @Override
+    public int available() throws IOException {
+        return decided ? in.available() : 0;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    private void decide() throws IOException {
+        decided = true;
+
+        byte[] sample = new byte[CompressionUtil.getSampleSize(codecProperties)];
+        int sampleCount = 0, c;
+        while (sampleCount < sample.length && (c = in.read(sample, sampleCount, sample.length - sampleCount)) != -1) {
+            sampleCount += c;
+        }
+
+        // the source isn't an EncodeInputStream any more, so the compression stream won't link itself into the chain
+        InputStream source = new SequenceInputStream(new ByteArrayInputStream(sample, 0, sampleCount), in);
+        if (CompressionUtil.isCompressible(sample, 0, sampleCount)) {
+            compressionStream = codec.getEncodingStream(source, metadata.getEncodeSpec(),
+                    CompressionUtil.withoutAdaptive(codecProperties));
+            in = compressionStream;
+        } else {
+            metadata.setBypassed(true);
+            in = source;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+
+        super.close();
+
+        notifyListeners();
+    }
+
+    @Override
+    public CompressionMetadata getEncodeMetadata() {
+        return compressionStream != null ? compressionStream.getEncodeMetadata() : metadata;
+    }
+}
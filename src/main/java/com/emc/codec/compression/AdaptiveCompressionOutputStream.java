@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.compression;
+
+import com.emc.codec.AbstractCodec;
+import com.emc.codec.EncodeOutputStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+
+/**
+ * Buffers the head of the stream until it has a full sample (or the stream is closed), then decides whether to
+ * compress (see {@link CompressionUtil#isCompressible(byte[], int, int)}). If so, everything is written through the
+ * codec's normal compression stream and the metadata is the same as without adaptive mode. If not, data is written to
+ * the target as is and the metadata is marked as bypassed.
+ */
+public class AdaptiveCompressionOutputStream extends EncodeOutputStream<CompressionMetadata> {
+    private AbstractCodec<CompressionMetadata> codec;
+    private Map<String, Object> codecProperties;
+    private CompressionMetadata metadata;
+    private EncodeOutputStream<CompressionMetadata> compressionStream;
+    private byte[] sample;
+    private int sampleCount = 0;
+    private boolean closed = false;
+
+    public AdaptiveCompressionOutputStream(OutputStream out, String encodeSpec, AbstractCodec<CompressionMetadata> codec,
+                                           Map<String, Object> codecProperties) {
+        super(out);
+        this.codec = codec;
+        this.codecProperties = codecProperties;
+        this.metadata = new CompressionMetadata(encodeSpec);
+        this.sample = new byte[CompressionUtil.getSampleSize(codecProperties)];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b) throws IOException {
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (sample != null) {
+            int count = Math.min(len, sample.length - sampleCount);
+            System.arraycopy(b, off, sample, sampleCount, count);
+            sampleCount += count;
+            off += count;
+            len -= count;
+            if (sampleCount < sample.length) return;
+            decide();
+        }
+        if (len > 0) out.write(b, off, len);
+    }
+
+    private void decide() throws IOException {
+        byte[] head = sample;
+        sample = null;
+
+        if (CompressionUtil.isCompressible(head, 0, sampleCount)) {
+            // don't hand our target to the compression stream directly, or it would link itself into the encode chain
+            compressionStream = codec.getEncodingStream(new PassThroughOutputStream(out), metadata.getEncodeSpec(),
+                    CompressionUtil.withoutAdaptive(codecProperties));
+            out = compressionStream;
+        } else {
+            metadata.setBypassed(true);
+        }
+        out.write(head, 0, sampleCount);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+
+        if (sample != null) decide();
+        super.close();
+
+        notifyListeners();
+    }
+
+    @Override
+    public CompressionMetadata getEncodeMetadata() {
+        return compressionStream != null ? compressionStream.getEncodeMetadata() : metadata;
+    }
+
+    private static class PassThroughOutputStream extends OutputStream {
+        private OutputStream out;
+
+        PassThroughOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.compression;
+
+import com.emc.codec.AbstractCodec;
+import com.emc.codec.BufferSink;
+import com.emc.codec.EncodeStage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * Stage version of {@link AdaptiveCompressionOutputStream}.
+ */
+public class AdaptiveCompressionStage extends EncodeStage<CompressionMetadata> {
+    private AbstractCodec<CompressionMetadata> codec;
+    private Map<String, Object> codecProperties;
+    private CompressionMetadata metadata;
+    private EncodeStage<CompressionMetadata> compressionStage;
+    private BufferSink target;
+    private ByteBuffer sample;
+    private boolean closed = false;
+
+    public AdaptiveCompressionStage(BufferSink next, String encodeSpec, AbstractCodec<CompressionMetadata> codec,
+                                    Map<String, Object> codecProperties) {
+        super(next);
+        this.codec = codec;
+        this.codecProperties = codecProperties;
+        this.metadata = new CompressionMetadata(encodeSpec);
+        this.sample = ByteBuffer.allocate(CompressionUtil.getSampleSize(codecProperties));
+    }
+
+    @Override
+    public void write(ByteBuffer src) throws IOException {
+        if (sample != null) {
+            int count = Math.min(src.remaining(), sample.remaining());
+            ByteBuffer slice = src.duplicate();
+            slice.limit(slice.position() + count);
+            sample.put(slice);
+            src.position(slice.position());
+            if (sample.hasRemaining()) return;
+            decide();
+        }
+        if (src.hasRemaining()) target.write(src);
+    }
+
+    private void decide() throws IOException {
+        ByteBuffer head = sample;
+        sample = null;
+        head.flip();
+
+        if (CompressionUtil.isCompressible(head.array(), 0, head.limit())) {
+            // don't hand our next stage to the compression stage directly, or it would link itself into the chain
+            compressionStage = codec.getEncodingStage(new BufferSink() {
+                @Override
+                public void write(ByteBuffer src) throws IOException {
+                    next.write(src);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    next.close();
+                }
+            }, metadata.getEncodeSpec(), CompressionUtil.withoutAdaptive(codecProperties));
+            target = compressionStage;
+        } else {
+            metadata.setBypassed(true);
+            target = next;
+        }
+        target.write(head);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+
+        if (sample != null) decide();
+        target.close();
+
+        notifyListeners();
+    }
+
+    @Override
+    public CompressionMetadata getEncodeMetadata() {
+        return compressionStage != null ? compressionStage.getEncodeMetadata() : metadata;
+    }
+}
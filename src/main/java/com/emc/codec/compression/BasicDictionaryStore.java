@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.compression;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory {@link DictionaryStore}. Retired dictionaries should be kept as long as objects compressed with them
+ * may still be read.
+ */
+public class BasicDictionaryStore implements DictionaryStore {
+    private volatile CompressionDictionary currentDictionary;
+    private Map<String, CompressionDictionary> dictionaries = new ConcurrentHashMap<String, CompressionDictionary>();
+
+    public BasicDictionaryStore() {
+    }
+
+    public BasicDictionaryStore(CompressionDictionary currentDictionary, CompressionDictionary... dictionaries) {
+        setCurrentDictionary(currentDictionary);
+        for (CompressionDictionary dictionary : dictionaries) {
+            addDictionary(dictionary);
+        }
+    }
+
+    @Override
+    public CompressionDictionary getCurrentDictionary() {
+        return currentDictionary;
+    }
+
+    /**
+     * Sets the dictionary used for new objects (also adding it to the store). Null turns dictionary compression off.
+     */
+    public void setCurrentDictionary(CompressionDictionary currentDictionary) {
+        if (currentDictionary != null) addDictionary(currentDictionary);
+        this.currentDictionary = currentDictionary;
+    }
+
+    @Override
+    public CompressionDictionary getDictionary(String id) {
+        return dictionaries.get(id);
+    }
+
+    public void addDictionary(CompressionDictionary dictionary) {
+        dictionaries.put(dictionary.getId(), dictionary);
+    }
+
+    public void removeDictionary(String id) {
+        dictionaries.remove(id);
+    }
+
+    public BasicDictionaryStore withCurrentDictionary(CompressionDictionary currentDictionary) {
+        setCurrentDictionary(currentDictionary);
+        return this;
+    }
+
+    public BasicDictionaryStore withDictionaries(CompressionDictionary... dictionaries) {
+        for (CompressionDictionary dictionary : dictionaries) addDictionary(dictionary);
+        return this;
+    }
+}
@@ -39,4 +39,6 @@ public class CompressionConstants {
     public static final String META_COMPRESSION_COMP_SIZE = META_COMPRESSION_PREFIX + "compressed-size";
     public static final String META_COMPRESSION_COMP_RATIO = META_COMPRESSION_PREFIX + "compression-ratio";
     public static final String META_COMPRESSION_UNCOMP_SHA1 = META_COMPRESSION_PREFIX + "uncompressed-sha1";
+    public static final String META_COMPRESSION_BLOCK_SIZE = META_COMPRESSION_PREFIX + "block-size";
+    public static final String META_COMPRESSION_DICTIONARY_ID = META_COMPRESSION_PREFIX + "dictionary-id";
 }
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.compression;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.util.regex.Pattern;
+
+/**
+ * A preset dictionary: content that is typical of the objects being compressed, used to prime the compressor so that
+ * even small objects find matches right away. Objects compressed with a dictionary record its ID in their metadata
+ * and can only be decompressed with the same dictionary.
+ *
+ * @see DictionaryTrainer
+ * @see DictionaryStore
+ */
+public class CompressionDictionary {
+    private static final Pattern ID_PATTERN = Pattern.compile("[A-Za-z0-9_.\\-]{1,64}");
+
+    /**
+     * @return an ID derived from the dictionary content (the first 64 bits of its SHA1 digest, in hex)
+     */
+    public static String contentId(byte[] data) {
+        return DigestUtils.sha1Hex(data).substring(0, 16);
+    }
+
+    public static void validateId(String id) {
+        if (id == null || !ID_PATTERN.matcher(id).matches())
+            throw new IllegalArgumentException("Invalid dictionary ID: " + id);
+    }
+
+    private String id;
+    private byte[] data;
+
+    public CompressionDictionary(byte[] data) {
+        this(contentId(data), data);
+    }
+
+    /**
+     * @param id   up to 64 letters, digits, '.', '_' or '-'
+     * @param data the dictionary content
+     */
+    public CompressionDictionary(String id, byte[] data) {
+        validateId(id);
+        if (data == null || data.length == 0) throw new IllegalArgumentException("Dictionary is empty");
+        this.id = id;
+        this.data = data;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return the dictionary content (not a copy; do not modify)
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    public int getSize() {
+        return data.length;
+    }
+}
@@ -30,6 +30,7 @@ package com.emc.codec.compression;
 
 import com.emc.codec.EncodeInputStream;
 import com.emc.codec.util.CountingInputStream;
+import com.emc.codec.util.JceEngineCache;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -59,7 +60,8 @@ public abstract class CompressionInputStream extends EncodeInputStream<Compressi
             // Construct the filter chain:
             // [user stream]->CountingInputStream->DigestInputStream->[compression input stream]->CountingInputStream
             uncompressedCounter = new CountingInputStream(originalStream);
-            digester = new DigestInputStream(uncompressedCounter, MessageDigest.getInstance("SHA1"));
+            digester = new DigestInputStream(uncompressedCounter,
+                    JceEngineCache.getInstance().borrowMessageDigest("SHA1", null));
             InputStream compressionStream = getCompressionStream(digester);
             compressedCounter = new CountingInputStream(compressionStream);
             in = compressedCounter;
@@ -80,7 +82,9 @@ public abstract class CompressionInputStream extends EncodeInputStream<Compressi
         // this should only be executed once
         metadata.setOriginalSize(uncompressedCounter.getByteCount());
         metadata.setCompressedSize(compressedCounter.getByteCount());
-        metadata.setOriginalDigest(digester.getMessageDigest().digest());
+        MessageDigest digest = digester.getMessageDigest();
+        metadata.setOriginalDigest(digest.digest());
+        JceEngineCache.getInstance().returnMessageDigest(digest, "SHA1", null);
 
         notifyListeners();
     }
@@ -42,6 +42,9 @@ public class CompressionMetadata extends EncodeMetadata {
     private long compressedSize;
     private double compressionRatio;
     private byte[] originalDigest;
+    private int blockSize;
+    private String dictionaryId;
+    private boolean bypassed;
 
     public CompressionMetadata(String encodeSpec) {
         super(encodeSpec);
@@ -68,21 +71,30 @@ public class CompressionMetadata extends EncodeMetadata {
         String originalDigestStr = metaMap.get(CompressionConstants.META_COMPRESSION_UNCOMP_SHA1);
         if (originalDigestStr == null) throw new EncryptionException("no SHA1 digest set on object.");
         originalDigest = DatatypeConverter.parseHexBinary(originalDigestStr);
+
+        // only present for block formats
+        String blockSizeStr = metaMap.get(CompressionConstants.META_COMPRESSION_BLOCK_SIZE);
+        if (blockSizeStr != null) blockSize = Integer.parseInt(blockSizeStr);
+
+        // only present if compressed with a preset dictionary
+        dictionaryId = metaMap.get(CompressionConstants.META_COMPRESSION_DICTIONARY_ID);
     }
 
     @Override
     public boolean isComplete() {
-        return originalDigest != null;
+        return bypassed || originalDigest != null;
     }
 
     @Override
     public Map<String, String> toMap() {
         Map<String, String> metaMap = new HashMap<String, String>();
-        if (isComplete()) {
+        if (isComplete() && !bypassed) {
             metaMap.put(CompressionConstants.META_COMPRESSION_UNCOMP_SIZE, "" + originalSize);
             metaMap.put(CompressionConstants.META_COMPRESSION_COMP_SIZE, "" + compressedSize);
             metaMap.put(CompressionConstants.META_COMPRESSION_COMP_RATIO, String.format("%.1f%%", compressionRatio));
             metaMap.put(CompressionConstants.META_COMPRESSION_UNCOMP_SHA1, EncryptionUtil.toHexPadded(originalDigest));
+            if (blockSize > 0) metaMap.put(CompressionConstants.META_COMPRESSION_BLOCK_SIZE, "" + blockSize);
+            if (dictionaryId != null) metaMap.put(CompressionConstants.META_COMPRESSION_DICTIONARY_ID, dictionaryId);
         }
         return metaMap;
     }
@@ -120,4 +132,36 @@ public class CompressionMetadata extends EncodeMetadata {
     public void setOriginalDigest(byte[] originalDigest) {
         this.originalDigest = originalDigest;
     }
+
+    /**
+     * @return the uncompressed size of each independently compressed block, or 0 if the data is a single stream
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public void setBlockSize(int blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * @return the ID of the preset dictionary the data was compressed with, or null if none was used
+     * @see DictionaryStore
+     */
+    public String getDictionaryId() {
+        return dictionaryId;
+    }
+
+    public void setDictionaryId(String dictionaryId) {
+        this.dictionaryId = dictionaryId;
+    }
+
+    @Override
+    public boolean isBypassed() {
+        return bypassed;
+    }
+
+    public void setBypassed(boolean bypassed) {
+        this.bypassed = bypassed;
+    }
 }
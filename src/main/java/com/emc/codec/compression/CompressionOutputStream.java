@@ -30,6 +30,7 @@ package com.emc.codec.compression;
 
 import com.emc.codec.EncodeOutputStream;
 import com.emc.codec.util.CountingOutputStream;
+import com.emc.codec.util.JceEngineCache;
 
 import java.io.IOException;
 import java.io.OutputStream;
@@ -61,7 +62,8 @@ public abstract class CompressionOutputStream extends EncodeOutputStream<Compres
             compressedCounter = new CountingOutputStream(originalStream);
             OutputStream compressionStream = getCompressionStream(compressedCounter);
             uncompressedCounter = new CountingOutputStream(compressionStream);
-            digester = new DigestOutputStream(uncompressedCounter, MessageDigest.getInstance("SHA1"));
+            digester = new DigestOutputStream(uncompressedCounter,
+                    JceEngineCache.getInstance().borrowMessageDigest("SHA1", null));
             out = digester;
         } catch (NoSuchAlgorithmException e) {
             throw new CompressionException("Unable to initialize digest", e);
@@ -82,7 +84,9 @@ public abstract class CompressionOutputStream extends EncodeOutputStream<Compres
         // this should only be executed once
         metadata.setOriginalSize(uncompressedCounter.getByteCount());
         metadata.setCompressedSize(compressedCounter.getByteCount());
-        metadata.setOriginalDigest(digester.getMessageDigest().digest());
+        MessageDigest digest = digester.getMessageDigest();
+        metadata.setOriginalDigest(digest.digest());
+        JceEngineCache.getInstance().returnMessageDigest(digest, "SHA1", null);
 
         notifyListeners();
     }
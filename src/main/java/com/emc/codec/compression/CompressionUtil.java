@@ -30,25 +30,184 @@ package com.emc.codec.compression;
 
 import com.emc.codec.util.CodecUtil;
 
+import java.util.HashMap;
+import java.util.Map;
+
 public class CompressionUtil {
+    public static final String PROP_ADAPTIVE = "com.emc.codec.compression.CompressionUtil.adaptive";
+    public static final String PROP_SAMPLE_SIZE = "com.emc.codec.compression.CompressionUtil.sampleSize";
+    public static final String PROP_DICTIONARY_STORE = "com.emc.codec.compression.CompressionUtil.dictionaryStore";
+
+    public static final int DEFAULT_SAMPLE_SIZE = 64 * 1024;
+
+    public static final int MIN_COMPRESSION_LEVEL = 0;
+    public static final int MAX_COMPRESSION_LEVEL = 9;
+
+    /**
+     * Samples with more entropy than this (in bits per byte) are considered incompressible. Text is usually well below
+     * 6; compressed or encrypted data is very close to 8.
+     */
+    public static final double MAX_COMPRESSIBLE_ENTROPY = 7.5;
+
+    // signatures of formats that are already compressed: {offset, signature bytes...}
+    private static final int[][] COMPRESSED_SIGNATURES = {
+            {0, 0xFF, 0xD8, 0xFF}, // JPEG
+            {0, 0x89, 0x50, 0x4E, 0x47}, // PNG
+            {0, 0x47, 0x49, 0x46, 0x38}, // GIF
+            {0, 0x50, 0x4B, 0x03, 0x04}, // ZIP (and JAR, DOCX, etc.)
+            {0, 0x1F, 0x8B}, // GZIP
+            {0, 0x42, 0x5A, 0x68}, // BZIP2
+            {0, 0xFD, 0x37, 0x7A, 0x58, 0x5A, 0x00}, // XZ
+            {0, 0x37, 0x7A, 0xBC, 0xAF, 0x27, 0x1C}, // 7-Zip
+            {0, 0x28, 0xB5, 0x2F, 0xFD}, // Zstandard
+            {0, 0x04, 0x22, 0x4D, 0x18}, // LZ4 frame
+            {0, 0x52, 0x61, 0x72, 0x21, 0x1A, 0x07}, // RAR
+            {4, 0x66, 0x74, 0x79, 0x70}, // MP4, MOV, HEIC, etc. ("ftyp" box)
+            {8, 0x57, 0x45, 0x42, 0x50}, // WebP (RIFF....WEBP)
+            {0, 0x1A, 0x45, 0xDF, 0xA3}, // Matroska/WebM
+            {0, 0x4F, 0x67, 0x67, 0x53}, // Ogg
+            {0, 0x49, 0x44, 0x33}, // MP3 (ID3 tag)
+            {0, 0x66, 0x4C, 0x61, 0x43} // FLAC
+    };
+
+    /**
+     * If true, compression codecs sample the head of each stream (see {@link #getSampleSize(Map)}) and store the data
+     * uncompressed if it does not look compressible. In that case the compression spec and metadata are left out of the
+     * object metadata, as if compression had never been applied. Defaults to false.
+     */
+    public static boolean isAdaptive(Map<String, Object> codecProperties) {
+        return CodecUtil.getCodecProperty(PROP_ADAPTIVE, codecProperties, Boolean.FALSE);
+    }
+
+    public static void setAdaptive(Map<String, Object> codecProperties, boolean adaptive) {
+        codecProperties.put(PROP_ADAPTIVE, adaptive);
+    }
+
+    public static int getSampleSize(Map<String, Object> codecProperties) {
+        return CodecUtil.getCodecProperty(PROP_SAMPLE_SIZE, codecProperties, DEFAULT_SAMPLE_SIZE);
+    }
+
+    public static void setSampleSize(Map<String, Object> codecProperties, int sampleSize) {
+        codecProperties.put(PROP_SAMPLE_SIZE, sampleSize);
+    }
+
+    /**
+     * The store that supplies preset dictionaries. When set, codecs that support dictionaries (currently Deflate)
+     * compress new objects with its current dictionary and decompress objects with the dictionary named in their
+     * metadata.
+     */
+    public static DictionaryStore getDictionaryStore(Map<String, Object> codecProperties) {
+        return CodecUtil.getCodecProperty(PROP_DICTIONARY_STORE, codecProperties, null);
+    }
+
+    public static void setDictionaryStore(Map<String, Object> codecProperties, DictionaryStore dictionaryStore) {
+        codecProperties.put(PROP_DICTIONARY_STORE, dictionaryStore);
+    }
+
+    /**
+     * @return the dictionary new objects should be compressed with, or null if there is none
+     */
+    public static CompressionDictionary getEncodeDictionary(Map<String, Object> codecProperties) {
+        DictionaryStore store = getDictionaryStore(codecProperties);
+        return store == null ? null : store.getCurrentDictionary();
+    }
+
+    /**
+     * @return the dictionary named in <code>metadata</code>, or null if the data was compressed without one
+     * @throws CompressionException if the dictionary is not available
+     */
+    public static CompressionDictionary getDecodeDictionary(CompressionMetadata metadata,
+                                                            Map<String, Object> codecProperties) {
+        String id = metadata.getDictionaryId();
+        if (id == null) return null;
+        DictionaryStore store = getDictionaryStore(codecProperties);
+        if (store == null)
+            throw new CompressionException("object requires dictionary " + id + " but no dictionary store is set");
+        CompressionDictionary dictionary = store.getDictionary(id);
+        if (dictionary == null) throw new CompressionException("dictionary " + id + " not found");
+        return dictionary;
+    }
+
+    /**
+     * @return a copy of <code>codecProperties</code> with adaptive mode turned off (used by the adaptive streams to
+     * create the actual compression stream)
+     */
+    public static Map<String, Object> withoutAdaptive(Map<String, Object> codecProperties) {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        if (codecProperties != null) properties.putAll(codecProperties);
+        properties.put(PROP_ADAPTIVE, Boolean.FALSE);
+        return properties;
+    }
+
+    /**
+     * Estimates whether data is worth compressing from a sample of its head: known compressed formats are recognized
+     * by their signature, and anything else is checked for byte entropy. Very small samples are always considered
+     * compressible.
+     */
+    public static boolean isCompressible(byte[] sample, int offset, int length) {
+        for (int[] signature : COMPRESSED_SIGNATURES) {
+            if (matches(sample, offset, length, signature)) return false;
+        }
+
+        if (length < 256) return true;
+
+        int[] counts = new int[256];
+        for (int i = offset; i < offset + length; i++) {
+            counts[sample[i] & 0xff]++;
+        }
+        double entropy = 0;
+        for (int count : counts) {
+            if (count == 0) continue;
+            double p = (double) count / length;
+            entropy -= p * Math.log(p);
+        }
+        entropy /= Math.log(2);
+
+        return entropy <= MAX_COMPRESSIBLE_ENTROPY;
+    }
+
+    private static boolean matches(byte[] sample, int offset, int length, int[] signature) {
+        int start = signature[0];
+        if (length < start + signature.length - 1) return false;
+        for (int i = 1; i < signature.length; i++) {
+            if ((sample[offset + start + i - 1] & 0xff) != signature[i]) return false;
+        }
+        return true;
+    }
+
     public static int getCompressionLevel(String encodeSpec, int defaultLevel) {
+        return getCompressionLevel(encodeSpec, defaultLevel, MIN_COMPRESSION_LEVEL, MAX_COMPRESSION_LEVEL);
+    }
+
+    /**
+     * For codecs whose levels don't fit the common 0-9 range.
+     */
+    public static int getCompressionLevel(String encodeSpec, int defaultLevel, int minLevel, int maxLevel) {
         int level = defaultLevel;
         String algorithm = CodecUtil.getEncodeAlgorithm(encodeSpec);
 
         if (algorithm != null && algorithm.contains("/"))
             level = Integer.parseInt(algorithm.substring(algorithm.indexOf("/") + 1));
 
-        validateCompressionLevel(level);
+        validateCompressionLevel(level, minLevel, maxLevel);
         return level;
     }
 
     public static String getEncodeSpec(String algorithm, int compressionLevel) {
-        validateCompressionLevel(compressionLevel);
+        return getEncodeSpec(algorithm, compressionLevel, MIN_COMPRESSION_LEVEL, MAX_COMPRESSION_LEVEL);
+    }
+
+    public static String getEncodeSpec(String algorithm, int compressionLevel, int minLevel, int maxLevel) {
+        validateCompressionLevel(compressionLevel, minLevel, maxLevel);
         return CodecUtil.getEncodeSpec(CompressionConstants.COMPRESSION_TYPE, algorithm + "/" + compressionLevel);
     }
 
     public static void validateCompressionLevel(int compressionLevel) {
-        if (compressionLevel > 9 || compressionLevel < 0)
+        validateCompressionLevel(compressionLevel, MIN_COMPRESSION_LEVEL, MAX_COMPRESSION_LEVEL);
+    }
+
+    public static void validateCompressionLevel(int compressionLevel, int minLevel, int maxLevel) {
+        if (compressionLevel > maxLevel || compressionLevel < minLevel)
             throw new IllegalArgumentException("Invalid compression level: " + compressionLevel);
     }
 }
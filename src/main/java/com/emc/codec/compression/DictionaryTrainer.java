@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.compression;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Builds a {@link CompressionDictionary} from a sample corpus of typical objects.
+ * <p>
+ * Every k-mer (run of {@link #KMER_LENGTH} bytes) is scored by the number of samples it appears in. The samples are
+ * split into epochs, and each round picks the segment of each epoch whose distinct k-mers score highest; the k-mers of
+ * a picked segment then stop counting, so later picks cover different content. Segments picked first end up at the
+ * end of the dictionary, where matches are cheapest to encode. Content that appears in only one sample is never
+ * picked.
+ * <p>
+ * Samples should be representative of the objects being stored (a few hundred or more is ideal) and together be many
+ * times larger than the dictionary.
+ */
+public class DictionaryTrainer {
+    /**
+     * The part of a preset dictionary Deflate can actually reference (its 32K window less the minimum lookahead).
+     */
+    public static final int DEFAULT_DICTIONARY_SIZE = 32 * 1024 - 262;
+    public static final int DEFAULT_SEGMENT_SIZE = 64;
+    public static final int KMER_LENGTH = 6;
+
+    private static final int HASH_BITS = 20;
+
+    private List<byte[]> samples = new ArrayList<byte[]>();
+    private long totalSize;
+    private int dictionarySize = DEFAULT_DICTIONARY_SIZE;
+    private int segmentSize = DEFAULT_SEGMENT_SIZE;
+
+    // per k-mer hash: number of samples it appears in (zeroed once covered), and occurrences in the current window
+    private int[] frequencies;
+    private int[] windowCounts;
+
+    public void addSample(byte[] sample) {
+        addSample(sample, 0, sample.length);
+    }
+
+    public void addSample(byte[] sample, int offset, int length) {
+        if (length < KMER_LENGTH) return;
+        samples.add(Arrays.copyOfRange(sample, offset, offset + length));
+        totalSize += length;
+    }
+
+    public int getSampleCount() {
+        return samples.size();
+    }
+
+    /**
+     * @throws CompressionException if the samples have no content in common
+     */
+    public CompressionDictionary train() {
+        if (samples.isEmpty()) throw new IllegalStateException("no samples");
+
+        frequencies = new int[1 << HASH_BITS];
+        windowCounts = new int[1 << HASH_BITS];
+        countFrequencies();
+
+        int epochs = Math.max(1, Math.min(dictionarySize / segmentSize / 4, samples.size()));
+        List<byte[]> segments = new ArrayList<byte[]>();
+        int size = 0;
+        boolean found = true;
+        while (size < dictionarySize && found) {
+            found = false;
+            for (int epoch = 0; epoch < epochs && size < dictionarySize; epoch++) {
+                byte[] segment = selectSegment(epoch * samples.size() / epochs, (epoch + 1) * samples.size() / epochs);
+                if (segment == null) continue;
+                if (size + segment.length > dictionarySize) // keep the tail, which is the better-matching end
+                    segment = Arrays.copyOfRange(segment, segment.length - (dictionarySize - size), segment.length);
+                segments.add(segment);
+                size += segment.length;
+                found = true;
+            }
+        }
+        frequencies = windowCounts = null;
+
+        if (size == 0) throw new CompressionException("samples have no content in common");
+
+        byte[] dictionary = new byte[size];
+        int position = size;
+        for (byte[] segment : segments) {
+            position -= segment.length;
+            System.arraycopy(segment, 0, dictionary, position, segment.length);
+        }
+        return new CompressionDictionary(dictionary);
+    }
+
+    private void countFrequencies() {
+        int[] lastSample = new int[1 << HASH_BITS];
+        Arrays.fill(lastSample, -1);
+        for (int s = 0; s < samples.size(); s++) {
+            byte[] sample = samples.get(s);
+            for (int i = 0; i + KMER_LENGTH <= sample.length; i++) {
+                int hash = hash(sample, i);
+                if (lastSample[hash] != s) {
+                    lastSample[hash] = s;
+                    frequencies[hash]++;
+                }
+            }
+        }
+        // a k-mer only seen once will not help compress anything else
+        for (int i = 0; i < frequencies.length; i++) {
+            if (frequencies[i] < 2) frequencies[i] = 0;
+        }
+    }
+
+    /**
+     * Finds the best segment in samples [from, to) and marks its k-mers as covered.
+     *
+     * @return the segment, or null if no segment in the epoch has a positive score
+     */
+    private byte[] selectSegment(int from, int to) {
+        int kmersPerSegment = segmentSize - KMER_LENGTH + 1;
+        long bestScore = 0;
+        byte[] bestSample = null;
+        int bestStart = 0, bestEnd = 0;
+
+        for (int s = from; s < to; s++) {
+            byte[] sample = samples.get(s);
+            int kmers = sample.length - KMER_LENGTH + 1;
+            int[] hashes = new int[kmers];
+            long score = 0;
+            int start = 0;
+            for (int i = 0; i < kmers; i++) {
+                int hash = hashes[i] = hash(sample, i);
+                if (windowCounts[hash]++ == 0) score += frequencies[hash];
+                if (i - start == kmersPerSegment) {
+                    if (--windowCounts[hashes[start]] == 0) score -= frequencies[hashes[start]];
+                    start++;
+                }
+                if (score > bestScore) {
+                    bestScore = score;
+                    bestSample = sample;
+                    bestStart = start;
+                    bestEnd = i;
+                }
+            }
+            for (int i = start; i < kmers; i++) {
+                windowCounts[hashes[i]]--;
+            }
+        }
+        if (bestSample == null) return null;
+
+        // trim k-mers that no longer count from both ends
+        while (frequencies[hash(bestSample, bestStart)] == 0) bestStart++;
+        while (frequencies[hash(bestSample, bestEnd)] == 0) bestEnd--;
+        for (int i = bestStart; i <= bestEnd; i++) {
+            frequencies[hash(bestSample, i)] = 0;
+        }
+        return Arrays.copyOfRange(bestSample, bestStart, bestEnd + KMER_LENGTH);
+    }
+
+    private int hash(byte[] data, int offset) {
+        long value = 0;
+        for (int i = KMER_LENGTH - 1; i >= 0; i--) {
+            value = (value << 8) | (data[offset + i] & 0xff);
+        }
+        return (int) ((value * 0xCF1BBCDCB7A56463L) >>> (64 - HASH_BITS));
+    }
+
+    public long getTotalSize() {
+        return totalSize;
+    }
+
+    public int getDictionarySize() {
+        return dictionarySize;
+    }
+
+    /**
+     * @param dictionarySize the largest dictionary to build (default {@link #DEFAULT_DICTIONARY_SIZE})
+     */
+    public void setDictionarySize(int dictionarySize) {
+        if (dictionarySize < KMER_LENGTH)
+            throw new IllegalArgumentException("Invalid dictionary size: " + dictionarySize);
+        this.dictionarySize = dictionarySize;
+    }
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * @param segmentSize the longest run of sample content copied into the dictionary at once (default
+     *                    {@link #DEFAULT_SEGMENT_SIZE})
+     */
+    public void setSegmentSize(int segmentSize) {
+        if (segmentSize < KMER_LENGTH) throw new IllegalArgumentException("Invalid segment size: " + segmentSize);
+        this.segmentSize = segmentSize;
+    }
+
+    public DictionaryTrainer withSamples(byte[]... samples) {
+        for (byte[] sample : samples) addSample(sample);
+        return this;
+    }
+
+    public DictionaryTrainer withDictionarySize(int dictionarySize) {
+        setDictionarySize(dictionarySize);
+        return this;
+    }
+
+    public DictionaryTrainer withSegmentSize(int segmentSize) {
+        setSegmentSize(segmentSize);
+        return this;
+    }
+}
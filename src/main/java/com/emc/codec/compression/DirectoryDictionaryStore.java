@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.compression;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * {@link DictionaryStore} backed by a local directory holding one <code>&lt;id&gt;.dict</code> file per dictionary.
+ * Dictionaries are loaded on first use and cached in memory, so decoding only touches the disk once per dictionary.
+ */
+public class DirectoryDictionaryStore extends BasicDictionaryStore {
+    public static final String FILE_SUFFIX = ".dict";
+
+    private File directory;
+
+    public DirectoryDictionaryStore(File directory) {
+        if (!directory.isDirectory()) throw new IllegalArgumentException(directory + " is not a directory");
+        this.directory = directory;
+    }
+
+    /**
+     * Loads the dictionary with the given ID and makes it current.
+     */
+    public DirectoryDictionaryStore withCurrentDictionary(String id) {
+        CompressionDictionary dictionary = getDictionary(id);
+        if (dictionary == null) throw new CompressionException("dictionary " + id + " not found in " + directory);
+        setCurrentDictionary(dictionary);
+        return this;
+    }
+
+    @Override
+    public CompressionDictionary getDictionary(String id) {
+        CompressionDictionary dictionary = super.getDictionary(id);
+        if (dictionary == null) {
+            CompressionDictionary.validateId(id);
+            File file = new File(directory, id + FILE_SUFFIX);
+            if (!file.isFile()) return null;
+            try {
+                dictionary = new CompressionDictionary(id, readFile(file));
+            } catch (IOException e) {
+                throw new CompressionException("could not read dictionary " + file, e);
+            }
+            addDictionary(dictionary);
+        }
+        return dictionary;
+    }
+
+    /**
+     * Writes a dictionary to the directory (replacing any file with the same ID) and adds it to the store.
+     */
+    public void saveDictionary(CompressionDictionary dictionary) throws IOException {
+        File file = new File(directory, dictionary.getId() + FILE_SUFFIX);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(dictionary.getData());
+        } finally {
+            out.close();
+        }
+        addDictionary(dictionary);
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    private byte[] readFile(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream data = new ByteArrayOutputStream((int) file.length());
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                data.write(buffer, 0, count);
+            }
+            return data.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
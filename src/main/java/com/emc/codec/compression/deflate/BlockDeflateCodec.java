@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.compression.deflate;
+
+import com.emc.codec.AbstractCodec;
+import com.emc.codec.EncodeInputStream;
+import com.emc.codec.EncodeOutputStream;
+import com.emc.codec.RangeSource;
+import com.emc.codec.compression.AdaptiveCompressionInputStream;
+import com.emc.codec.compression.AdaptiveCompressionOutputStream;
+import com.emc.codec.compression.CompressionConstants;
+import com.emc.codec.compression.CompressionException;
+import com.emc.codec.compression.CompressionMetadata;
+import com.emc.codec.compression.CompressionUtil;
+import com.emc.codec.util.BufferCollector;
+import com.emc.codec.util.CodecUtil;
+import com.emc.codec.util.PullChannel;
+import com.emc.codec.util.RangeInputStream;
+import com.emc.codec.util.SinkOutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Seekable Deflate. Data is compressed in independently decodable blocks of a fixed uncompressed size (see
+ * {@link BlockDeflaterOutputStream} for the format) and the block size is stored in the encode metadata, so any range
+ * of the original data can be decoded by fetching only the covering blocks and their entries in the trailer
+ * (see {@link #getDecodingStream(RangeSource, CompressionMetadata, long, long, Map)}).
+ */
+public class BlockDeflateCodec extends AbstractCodec<CompressionMetadata> {
+    public static final String SUBSPEC = "BlockDeflate";
+    public static final int PRIORITY = 100;
+
+    public static final String PROP_BLOCK_SIZE = "com.emc.codec.compression.deflate.BlockDeflateCodec.blockSize";
+
+    public static final String PROP_PARALLELISM = "com.emc.codec.compression.deflate.BlockDeflateCodec.parallelism";
+    public static final String PROP_EXECUTOR = "com.emc.codec.compression.deflate.BlockDeflateCodec.executor";
+
+    public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+    public static final int DEFAULT_PARALLELISM = 1;
+
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    public static String encodeSpec(int compressionLevel) {
+        return CompressionUtil.getEncodeSpec(SUBSPEC, compressionLevel);
+    }
+
+    public static int getBlockSize(Map<String, Object> codecProperties) {
+        return CodecUtil.getCodecProperty(PROP_BLOCK_SIZE, codecProperties, DEFAULT_BLOCK_SIZE);
+    }
+
+    public static void setBlockSize(Map<String, Object> codecProperties, int blockSize) {
+        codecProperties.put(PROP_BLOCK_SIZE, blockSize);
+    }
+
+    /**
+     * The maximum number of blocks compressed or decompressed concurrently. If greater than 1 and no executor is set,
+     * the common fork-join pool is used.
+     */
+    public static int getParallelism(Map<String, Object> codecProperties) {
+        return CodecUtil.getCodecProperty(PROP_PARALLELISM, codecProperties, DEFAULT_PARALLELISM);
+    }
+
+    public static void setParallelism(Map<String, Object> codecProperties, int parallelism) {
+        codecProperties.put(PROP_PARALLELISM, parallelism);
+    }
+
+    public static Executor getExecutor(Map<String, Object> codecProperties) {
+        return (Executor) CodecUtil.getCodecProperty(PROP_EXECUTOR, codecProperties, null);
+    }
+
+    /**
+     * Sets the executor to compress and decompress blocks on (the caller owns it). Use with
+     * {@link #setParallelism(Map, int)} to bound the number of blocks in flight (and so the memory used) per stream.
+     */
+    public static void setExecutor(Map<String, Object> codecProperties, Executor executor) {
+        codecProperties.put(PROP_EXECUTOR, executor);
+    }
+
+    /**
+     * @return the number of blocks in an object encoded with <code>metadata</code>
+     */
+    public static long getBlockCount(CompressionMetadata metadata) {
+        if (metadata.getBlockSize() <= 0) throw new CompressionException("no block size set on object");
+        return (metadata.getOriginalSize() + metadata.getBlockSize() - 1) / metadata.getBlockSize();
+    }
+
+    @Override
+    public boolean canProcess(String encodeSpec) {
+        String algorithm = CodecUtil.getEncodeAlgorithm(encodeSpec);
+        return CompressionConstants.COMPRESSION_TYPE.equals(CodecUtil.getEncodeType(encodeSpec))
+                && algorithm != null && algorithm.startsWith(SUBSPEC);
+    }
+
+    @Override
+    public void validate(String encodeSpec, Map<String, Object> codecProperties) {
+        super.validate(encodeSpec, codecProperties);
+        CompressionUtil.getCompressionLevel(encodeSpec, CompressionConstants.DEFAULT_COMPRESSION_LEVEL);
+        if (getBlockSize(codecProperties) <= 0)
+            throw new IllegalArgumentException("Invalid block size: " + getBlockSize(codecProperties));
+        if (getParallelism(codecProperties) <= 0)
+            throw new IllegalArgumentException("Invalid parallelism: " + getParallelism(codecProperties));
+    }
+
+    @Override
+    public String getDefaultEncodeSpec() {
+        return encodeSpec(CompressionConstants.DEFAULT_COMPRESSION_LEVEL);
+    }
+
+    @Override
+    public int getPriority() {
+        return PRIORITY;
+    }
+
+    @Override
+    public CompressionMetadata createEncodeMetadata(String encodeSpec, Map<String, String> metaMap) {
+        return new CompressionMetadata(encodeSpec, metaMap);
+    }
+
+    @Override
+    public long getDecodedSize(CompressionMetadata metadata) {
+        return metadata.getOriginalSize();
+    }
+
+    @Override
+    public OutputStream getDecodingStream(OutputStream originalStream, CompressionMetadata metadata,
+                                          Map<String, Object> codecProperties) {
+        return new BlockInflaterOutputStream(originalStream, getBlockCount(metadata));
+    }
+
+    @Override
+    public InputStream getDecodingStream(InputStream originalStream, CompressionMetadata metadata,
+                                         Map<String, Object> codecProperties) {
+        return inflateBlocks(originalStream, getBlockCount(metadata));
+    }
+
+    @Override
+    public boolean isRangeSupported(CompressionMetadata metadata) {
+        return metadata.isComplete() && metadata.getBlockSize() > 0;
+    }
+
+    /**
+     * Reads the trailer entries for the covering blocks (and the block before them, which gives the start offset), then
+     * fetches and decompresses only those blocks.
+     */
+    @Override
+    public InputStream getDecodingStream(RangeSource source, CompressionMetadata metadata, long offset, long length,
+                                         Map<String, Object> codecProperties) throws IOException {
+        if (!isRangeSupported(metadata))
+            throw new UnsupportedOperationException("ranged decoding requires a block size in the object metadata");
+
+        length = Math.max(0, Math.min(length, metadata.getOriginalSize() - offset));
+        if (length == 0) return new ByteArrayInputStream(new byte[0]);
+
+        int blockSize = metadata.getBlockSize();
+        long trailerStart = metadata.getCompressedSize() - getBlockCount(metadata) * BlockDeflaterOutputStream.OFFSET_SIZE;
+        long firstBlock = offset / blockSize, lastBlock = (offset + length - 1) / blockSize;
+        long firstEntry = Math.max(firstBlock - 1, 0);
+
+        byte[] entries = new byte[(int) (lastBlock - firstEntry + 1) * BlockDeflaterOutputStream.OFFSET_SIZE];
+        InputStream trailerStream = source.getRange(trailerStart + firstEntry * BlockDeflaterOutputStream.OFFSET_SIZE,
+                entries.length);
+        try {
+            for (int read = 0, c; read < entries.length; read += c) {
+                c = trailerStream.read(entries, read, entries.length - read);
+                if (c == -1) throw new EOFException("range source ended before the end of the block index");
+            }
+        } finally {
+            trailerStream.close();
+        }
+
+        long blocksStart = firstBlock == 0 ? 0 : BlockDeflaterOutputStream.getLong(entries, 0);
+        long blocksEnd = BlockDeflaterOutputStream.getLong(entries, entries.length - BlockDeflaterOutputStream.OFFSET_SIZE);
+        InputStream compressedStream = source.getRange(blocksStart, blocksEnd - blocksStart);
+
+        InputStream blockStream;
+        int blockCount = (int) (lastBlock - firstBlock + 1);
+        Executor executor = getEffectiveExecutor(codecProperties);
+        if (executor != null && blockCount > 1) {
+            // the index gives us every block boundary, so blocks can be inflated in parallel
+            long[] compressedLengths = new long[blockCount];
+            long blockStart = blocksStart;
+            for (int i = 0; i < blockCount; i++) {
+                int entry = (int) (firstBlock - firstEntry) + i;
+                long blockEnd = BlockDeflaterOutputStream.getLong(entries, entry * BlockDeflaterOutputStream.OFFSET_SIZE);
+                compressedLengths[i] = blockEnd - blockStart;
+                blockStart = blockEnd;
+            }
+            blockStream = new ParallelBlockInflaterInputStream(compressedStream, compressedLengths, blockSize, executor,
+                    getParallelism(codecProperties));
+        } else {
+            blockStream = inflateBlocks(compressedStream, blockCount);
+        }
+        return new RangeInputStream(blockStream, offset - firstBlock * blockSize, length);
+    }
+
+    @Override
+    public boolean isSizePredictable() {
+        return false;
+    }
+
+    @Override
+    public long getEncodedSize(long originalSize, String encodeSpec, Map<String, Object> codecProperties) {
+        throw new UnsupportedOperationException("compressed size is unpredictable");
+    }
+
+    @Override
+    public EncodeOutputStream<CompressionMetadata> getEncodingStream(OutputStream originalStream, String encodeSpec,
+                                                                     Map<String, Object> codecProperties) {
+        if (!canEncode(encodeSpec)) throw new IllegalArgumentException("cannot process " + encodeSpec);
+        if (CompressionUtil.isAdaptive(codecProperties))
+            return new AdaptiveCompressionOutputStream(originalStream, encodeSpec, this, codecProperties);
+        int compressionLevel = CompressionUtil.getCompressionLevel(encodeSpec, CompressionConstants.DEFAULT_COMPRESSION_LEVEL);
+        return new BlockDeflateOutputStream(originalStream, encodeSpec, compressionLevel, getBlockSize(codecProperties),
+                getEffectiveExecutor(codecProperties), getParallelism(codecProperties));
+    }
+
+    @Override
+    public EncodeInputStream<CompressionMetadata> getEncodingStream(InputStream originalStream, String encodeSpec,
+                                                                    Map<String, Object> codecProperties) {
+        if (!canEncode(encodeSpec)) throw new IllegalArgumentException("cannot process " + encodeSpec);
+        if (CompressionUtil.isAdaptive(codecProperties))
+            return new AdaptiveCompressionInputStream(originalStream, encodeSpec, this, codecProperties);
+        int compressionLevel = CompressionUtil.getCompressionLevel(encodeSpec, CompressionConstants.DEFAULT_COMPRESSION_LEVEL);
+        return new BlockDeflateInputStream(originalStream, encodeSpec, compressionLevel, getBlockSize(codecProperties),
+                getEffectiveExecutor(codecProperties), getParallelism(codecProperties));
+    }
+
+    /**
+     * @return the executor to process blocks on, or null if blocks should be processed sequentially
+     */
+    protected Executor getEffectiveExecutor(Map<String, Object> codecProperties) {
+        if (getParallelism(codecProperties) <= 1) return null;
+        Executor executor = getExecutor(codecProperties);
+        return executor != null ? executor : ForkJoinPool.commonPool();
+    }
+
+    protected InputStream inflateBlocks(InputStream compressedStream, long blockCount) {
+        BufferCollector collector = new BufferCollector(BUFFER_SIZE);
+        return PullChannel.newInputStream(compressedStream,
+                new BlockInflaterOutputStream(new SinkOutputStream(collector), blockCount), collector, BUFFER_SIZE);
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.compression.deflate;
+
+import com.emc.codec.compression.CompressionInputStream;
+import com.emc.codec.util.BufferCollector;
+import com.emc.codec.util.PullChannel;
+import com.emc.codec.util.SinkOutputStream;
+
+import java.io.InputStream;
+import java.util.concurrent.Executor;
+
+public class BlockDeflateInputStream extends CompressionInputStream {
+    private int compressionLevel;
+    private int blockSize;
+    private Executor executor;
+    private int parallelism;
+
+    public BlockDeflateInputStream(InputStream in, String encodeSpec, int compressionLevel, int blockSize) {
+        this(in, encodeSpec, compressionLevel, blockSize, null, 1);
+    }
+
+    public BlockDeflateInputStream(InputStream in, String encodeSpec, int compressionLevel, int blockSize,
+                                   Executor executor, int parallelism) {
+        super(in, encodeSpec);
+        this.compressionLevel = compressionLevel;
+        this.blockSize = blockSize;
+        this.executor = executor;
+        this.parallelism = parallelism;
+        getEncodeMetadata().setBlockSize(blockSize);
+        initStreams(in);
+    }
+
+    @Override
+    protected InputStream getCompressionStream(InputStream input) {
+        BufferCollector collector = new BufferCollector(BlockDeflateCodec.BUFFER_SIZE);
+        return PullChannel.newInputStream(input,
+                new BlockDeflaterOutputStream(new SinkOutputStream(collector), compressionLevel, blockSize,
+                        executor, parallelism), collector, BlockDeflateCodec.BUFFER_SIZE);
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.compression.deflate;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses data as a series of independent zlib streams ("blocks"), each holding <code>blockSize</code> bytes of
+ * uncompressed data (the last may hold fewer). After the last block, a trailer holds the compressed end offset of each
+ * block as a big-endian long. Since the number of blocks follows from the original size, a reader can locate the
+ * trailer, and any block through it, without decompressing anything else.
+ * <p>
+ * If an executor is provided, up to <code>parallelism</code> blocks are compressed concurrently and written in order.
+ * The output is identical either way.
+ */
+public class BlockDeflaterOutputStream extends FilterOutputStream {
+    public static final int OFFSET_SIZE = 8;
+
+    private int compressionLevel;
+    private int blockSize;
+    private byte[] buffer = new byte[8192];
+    private int blockInput = 0;
+    private long compressedSize = 0;
+    private long[] blockEnds = new long[16];
+    private int blockCount = 0;
+    private boolean closed = false;
+
+    // sequential mode
+    private Deflater deflater;
+
+    // parallel mode
+    private Executor executor;
+    private int parallelism;
+    private byte[] block;
+    private Deque<BlockTask> pending;
+    private Deque<byte[]> freeBlocks;
+
+    public BlockDeflaterOutputStream(OutputStream out, int compressionLevel, int blockSize) {
+        this(out, compressionLevel, blockSize, null, 1);
+    }
+
+    public BlockDeflaterOutputStream(OutputStream out, int compressionLevel, int blockSize, Executor executor,
+                                     int parallelism) {
+        super(out);
+        if (blockSize <= 0) throw new IllegalArgumentException("Invalid block size: " + blockSize);
+        if (parallelism <= 0) throw new IllegalArgumentException("Invalid parallelism: " + parallelism);
+        this.compressionLevel = compressionLevel;
+        this.blockSize = blockSize;
+        if (executor == null) {
+            this.deflater = ZlibPool.getInstance().borrowDeflater(compressionLevel);
+        } else {
+            this.executor = executor;
+            this.parallelism = parallelism;
+            this.pending = new ArrayDeque<BlockTask>(parallelism);
+            this.freeBlocks = new ArrayDeque<byte[]>(parallelism);
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) throw new IOException("stream closed");
+        while (len > 0) {
+            int count = Math.min(len, blockSize - blockInput);
+            if (executor == null) {
+                deflater.setInput(b, off, count);
+                while (!deflater.needsInput()) {
+                    writeOutput(deflater.deflate(buffer, 0, buffer.length));
+                }
+            } else {
+                if (block == null) block = freeBlocks.isEmpty() ? new byte[blockSize] : freeBlocks.poll();
+                System.arraycopy(b, off, block, blockInput, count);
+            }
+            blockInput += count;
+            off += count;
+            len -= count;
+            if (blockInput == blockSize) finishBlock();
+        }
+    }
+
+    private void finishBlock() throws IOException {
+        if (executor == null) {
+            deflater.finish();
+            while (!deflater.finished()) {
+                writeOutput(deflater.deflate(buffer, 0, buffer.length));
+            }
+            deflater.reset();
+            addBlockEnd();
+        } else {
+            BlockTask task = new BlockTask(block, blockInput, compressionLevel);
+            block = null;
+            executor.execute(task);
+            pending.add(task);
+            while (pending.size() >= parallelism) {
+                writeBlock(pending.poll());
+            }
+        }
+        blockInput = 0;
+    }
+
+    private void writeBlock(BlockTask task) throws IOException {
+        byte[] compressed;
+        try {
+            compressed = task.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted waiting for block compression");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException("block compression failed", e.getCause());
+        }
+        out.write(compressed);
+        compressedSize += compressed.length;
+        addBlockEnd();
+        freeBlocks.add(task.input);
+    }
+
+    private void addBlockEnd() {
+        if (blockCount == blockEnds.length) blockEnds = Arrays.copyOf(blockEnds, blockCount * 2);
+        blockEnds[blockCount++] = compressedSize;
+    }
+
+    private void writeOutput(int count) throws IOException {
+        if (count > 0) {
+            out.write(buffer, 0, count);
+            compressedSize += count;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+
+        try {
+            if (blockInput > 0) finishBlock();
+            while (executor != null && !pending.isEmpty()) {
+                writeBlock(pending.poll());
+            }
+
+            // write trailer
+            byte[] trailer = new byte[blockCount * OFFSET_SIZE];
+            for (int i = 0; i < blockCount; i++) {
+                putLong(trailer, i * OFFSET_SIZE, blockEnds[i]);
+            }
+            out.write(trailer);
+        } finally {
+            if (deflater != null) ZlibPool.getInstance().returnDeflater(deflater, compressionLevel);
+            if (pending != null) {
+                for (BlockTask task : pending) {
+                    task.cancel(false);
+                }
+            }
+            out.close();
+        }
+    }
+
+    static void putLong(byte[] b, int off, long value) {
+        for (int i = OFFSET_SIZE - 1; i >= 0; i--) {
+            b[off + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    static long getLong(byte[] b, int off) {
+        long value = 0;
+        for (int i = 0; i < OFFSET_SIZE; i++) {
+            value = (value << 8) | (b[off + i] & 0xff);
+        }
+        return value;
+    }
+
+    private static class BlockTask extends FutureTask<byte[]> {
+        byte[] input;
+
+        BlockTask(final byte[] input, final int length, final int compressionLevel) {
+            super(new Callable<byte[]>() {
+                @Override
+                public byte[] call() {
+                    Deflater deflater = ZlibPool.getInstance().borrowDeflater(compressionLevel);
+                    try {
+                        deflater.setInput(input, 0, length);
+                        deflater.finish();
+                        byte[] output = new byte[Math.max(length / 2, 64)];
+                        int count = 0;
+                        while (!deflater.finished()) {
+                            if (count == output.length) output = Arrays.copyOf(output, output.length * 2);
+                            count += deflater.deflate(output, count, output.length - count);
+                        }
+                        return Arrays.copyOf(output, count);
+                    } finally {
+                        ZlibPool.getInstance().returnDeflater(deflater, compressionLevel);
+                    }
+                }
+            });
+            this.input = input;
+        }
+    }
+}
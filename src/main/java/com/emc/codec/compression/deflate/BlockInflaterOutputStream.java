@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.compression.deflate;
+
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Decompresses <code>blockCount</code> consecutive blocks written by {@link BlockDeflaterOutputStream}. Anything written
+ * after the last block (i.e. the trailer) is ignored.
+ */
+public class BlockInflaterOutputStream extends FilterOutputStream {
+    private Inflater inflater = ZlibPool.getInstance().borrowInflater();
+    private long blockCount;
+    private long blocksDone = 0;
+    private byte[] buffer = new byte[8192];
+    private boolean closed = false;
+
+    public BlockInflaterOutputStream(OutputStream out, long blockCount) {
+        super(out);
+        this.blockCount = blockCount;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) throw new IOException("stream closed");
+        try {
+            while (len > 0 && blocksDone < blockCount) {
+                inflater.setInput(b, off, len);
+                while (!inflater.finished() && !inflater.needsInput()) {
+                    int count = inflater.inflate(buffer, 0, buffer.length);
+                    if (count == 0 && inflater.needsDictionary()) throw new ZipException("unexpected preset dictionary");
+                    if (count > 0) out.write(buffer, 0, count);
+                }
+
+                int consumed = len - inflater.getRemaining();
+                off += consumed;
+                len -= consumed;
+
+                if (inflater.finished()) { // the rest of the input belongs to the next block
+                    blocksDone++;
+                    inflater.reset();
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException(e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+
+        try {
+            if (blocksDone < blockCount)
+                throw new EOFException(String.format("compressed data ended after %d of %d blocks", blocksDone, blockCount));
+        } finally {
+            ZlibPool.getInstance().returnInflater(inflater);
+            out.close();
+        }
+    }
+}
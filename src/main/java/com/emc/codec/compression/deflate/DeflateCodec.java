@@ -29,9 +29,16 @@
 package com.emc.codec.compression.deflate;
 
 import com.emc.codec.AbstractCodec;
+import com.emc.codec.BufferSink;
+import com.emc.codec.EncodeStage;
 import com.emc.codec.EncodeInputStream;
 import com.emc.codec.EncodeOutputStream;
+import com.emc.codec.compression.AdaptiveCompressionInputStream;
+import com.emc.codec.compression.AdaptiveCompressionOutputStream;
+import com.emc.codec.compression.AdaptiveCompressionStage;
 import com.emc.codec.compression.CompressionConstants;
+import com.emc.codec.compression.CompressionDictionary;
+import com.emc.codec.compression.CompressionException;
 import com.emc.codec.compression.CompressionMetadata;
 import com.emc.codec.compression.CompressionUtil;
 import com.emc.codec.util.CodecUtil;
@@ -39,22 +46,36 @@ import com.emc.codec.util.CodecUtil;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Map;
-import java.util.zip.InflaterInputStream;
-import java.util.zip.InflaterOutputStream;
 
 public class DeflateCodec extends AbstractCodec<CompressionMetadata> {
     public static final String SUBSPEC = "Deflate";
+    /**
+     * Subspec recorded for objects compressed with a preset dictionary. It deliberately does not start with
+     * {@link #SUBSPEC}, so readers that do not support dictionaries fail with "no codec" instead of inflating without
+     * the dictionary.
+     */
+    public static final String DICTIONARY_SUBSPEC = "DictDeflate";
     public static final int PRIORITY = 100;
 
     public static String encodeSpec(int compressionLevel) {
         return CompressionUtil.getEncodeSpec(SUBSPEC, compressionLevel);
     }
 
+    public static String dictionaryEncodeSpec(int compressionLevel) {
+        return CompressionUtil.getEncodeSpec(DICTIONARY_SUBSPEC, compressionLevel);
+    }
+
     @Override
     public boolean canProcess(String encodeSpec) {
         String algorithm = CodecUtil.getEncodeAlgorithm(encodeSpec);
         return CompressionConstants.COMPRESSION_TYPE.equals(CodecUtil.getEncodeType(encodeSpec))
-                && algorithm != null && algorithm.startsWith(SUBSPEC);
+                && algorithm != null && (algorithm.startsWith(SUBSPEC) || algorithm.startsWith(DICTIONARY_SUBSPEC));
+    }
+
+    @Override
+    public void validate(String encodeSpec, Map<String, Object> codecProperties) {
+        super.validate(encodeSpec, codecProperties);
+        CompressionUtil.getCompressionLevel(encodeSpec, CompressionConstants.DEFAULT_COMPRESSION_LEVEL);
     }
 
     @Override
@@ -80,13 +101,40 @@ public class DeflateCodec extends AbstractCodec<CompressionMetadata> {
     @Override
     public OutputStream getDecodingStream(OutputStream originalStream, CompressionMetadata encodeInfo,
                                           Map<String, Object> codecProperties) {
-        return new InflaterOutputStream(originalStream);
+        return ZlibPool.getInstance().newInflaterOutputStream(originalStream,
+                dictionaryData(getDecodeDictionary(encodeInfo, codecProperties)));
     }
 
     @Override
     public InputStream getDecodingStream(InputStream originalStream, CompressionMetadata encodeInfo,
                                          Map<String, Object> codecProperties) {
-        return new InflaterInputStream(originalStream);
+        return ZlibPool.getInstance().newInflaterInputStream(originalStream,
+                dictionaryData(getDecodeDictionary(encodeInfo, codecProperties)));
+    }
+
+    @Override
+    public boolean isStageSupported() {
+        return true;
+    }
+
+    @Override
+    public EncodeStage<CompressionMetadata> getEncodingStage(BufferSink target, String encodeSpec,
+                                                             Map<String, Object> codecProperties) {
+        if (!canEncode(encodeSpec)) throw new IllegalArgumentException("cannot process " + encodeSpec);
+        CompressionDictionary dictionary = CompressionUtil.getEncodeDictionary(codecProperties);
+        encodeSpec = getEncodeSpec(encodeSpec, dictionary);
+        if (CompressionUtil.isAdaptive(codecProperties))
+            return new AdaptiveCompressionStage(target, encodeSpec, this, codecProperties);
+        int compressionLevel = CompressionUtil.getCompressionLevel(encodeSpec, CompressionConstants.DEFAULT_COMPRESSION_LEVEL);
+        return new DeflateStage(target, encodeSpec, compressionLevel, EncodeStage.getBufferSize(codecProperties),
+                dictionary);
+    }
+
+    @Override
+    public BufferSink getDecodingStage(BufferSink target, CompressionMetadata metadata,
+                                      Map<String, Object> codecProperties) {
+        return new InflateStage(target, EncodeStage.getBufferSize(codecProperties),
+                dictionaryData(getDecodeDictionary(metadata, codecProperties)));
     }
 
     @Override
@@ -103,15 +151,51 @@ public class DeflateCodec extends AbstractCodec<CompressionMetadata> {
     public EncodeOutputStream<CompressionMetadata> getEncodingStream(OutputStream originalStream, String encodeSpec,
                                                                      Map<String, Object> codecProperties) {
         if (!canEncode(encodeSpec)) throw new IllegalArgumentException("cannot process " + encodeSpec);
+        CompressionDictionary dictionary = CompressionUtil.getEncodeDictionary(codecProperties);
+        encodeSpec = getEncodeSpec(encodeSpec, dictionary);
+        if (CompressionUtil.isAdaptive(codecProperties))
+            return new AdaptiveCompressionOutputStream(originalStream, encodeSpec, this, codecProperties);
         int compressionLevel = CompressionUtil.getCompressionLevel(encodeSpec, CompressionConstants.DEFAULT_COMPRESSION_LEVEL);
-        return new DeflateOutputStream(originalStream, encodeSpec, compressionLevel);
+        return new DeflateOutputStream(originalStream, encodeSpec, compressionLevel,
+                dictionary);
     }
 
     @Override
     public EncodeInputStream<CompressionMetadata> getEncodingStream(InputStream originalStream, String encodeSpec,
                                                                     Map<String, Object> codecProperties) {
         if (!canEncode(encodeSpec)) throw new IllegalArgumentException("cannot process " + encodeSpec);
+        CompressionDictionary dictionary = CompressionUtil.getEncodeDictionary(codecProperties);
+        encodeSpec = getEncodeSpec(encodeSpec, dictionary);
+        if (CompressionUtil.isAdaptive(codecProperties))
+            return new AdaptiveCompressionInputStream(originalStream, encodeSpec, this, codecProperties);
         int compressionLevel = CompressionUtil.getCompressionLevel(encodeSpec, CompressionConstants.DEFAULT_COMPRESSION_LEVEL);
-        return new DeflateInputStream(originalStream, encodeSpec, compressionLevel);
+        return new DeflateInputStream(originalStream, encodeSpec, compressionLevel,
+                dictionary);
+    }
+
+    /**
+     * @return the spec to record for an object compressed with <code>dictionary</code> (the dictionary subspec if
+     * there is one, otherwise the plain subspec) at the level requested in <code>encodeSpec</code>
+     */
+    protected String getEncodeSpec(String encodeSpec, CompressionDictionary dictionary) {
+        if ((dictionary != null) == isDictionarySpec(encodeSpec)) return encodeSpec;
+        int compressionLevel = CompressionUtil.getCompressionLevel(encodeSpec, CompressionConstants.DEFAULT_COMPRESSION_LEVEL);
+        return dictionary == null ? encodeSpec(compressionLevel) : dictionaryEncodeSpec(compressionLevel);
+    }
+
+    protected CompressionDictionary getDecodeDictionary(CompressionMetadata metadata,
+                                                        Map<String, Object> codecProperties) {
+        if (isDictionarySpec(metadata.getEncodeSpec()) != (metadata.getDictionaryId() != null))
+            throw new CompressionException("dictionary ID does not match encode spec " + metadata.getEncodeSpec());
+        return CompressionUtil.getDecodeDictionary(metadata, codecProperties);
+    }
+
+    private boolean isDictionarySpec(String encodeSpec) {
+        String algorithm = CodecUtil.getEncodeAlgorithm(encodeSpec);
+        return algorithm != null && algorithm.startsWith(DICTIONARY_SUBSPEC);
+    }
+
+    private byte[] dictionaryData(CompressionDictionary dictionary) {
+        return dictionary == null ? null : dictionary.getData();
     }
 }
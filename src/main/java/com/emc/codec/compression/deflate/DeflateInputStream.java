@@ -28,23 +28,34 @@
 
 package com.emc.codec.compression.deflate;
 
+import com.emc.codec.compression.CompressionDictionary;
 import com.emc.codec.compression.CompressionInputStream;
 
 import java.io.InputStream;
-import java.util.zip.Deflater;
-import java.util.zip.DeflaterInputStream;
 
 public class DeflateInputStream extends CompressionInputStream {
     private int compressionLevel;
+    private CompressionDictionary dictionary;
 
     public DeflateInputStream(InputStream in, String encodeSpec, int compressionLevel) {
+        this(in, encodeSpec, compressionLevel, null);
+    }
+
+    /**
+     * @param dictionary preset dictionary to compress with (may be null). Its ID is recorded in the metadata.
+     */
+    public DeflateInputStream(InputStream in, String encodeSpec, int compressionLevel,
+                              CompressionDictionary dictionary) {
         super(in, encodeSpec);
         this.compressionLevel = compressionLevel;
+        this.dictionary = dictionary;
+        if (dictionary != null) getEncodeMetadata().setDictionaryId(dictionary.getId());
         initStreams(in);
     }
 
     @Override
     protected InputStream getCompressionStream(InputStream input) {
-        return new DeflaterInputStream(input, new Deflater(compressionLevel));
+        return ZlibPool.getInstance().newDeflaterInputStream(input, compressionLevel,
+                dictionary == null ? null : dictionary.getData());
     }
 }
\ No newline at end of file
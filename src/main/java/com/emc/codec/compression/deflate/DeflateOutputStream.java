@@ -28,24 +28,35 @@
 
 package com.emc.codec.compression.deflate;
 
+import com.emc.codec.compression.CompressionDictionary;
 import com.emc.codec.compression.CompressionOutputStream;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.zip.Deflater;
-import java.util.zip.DeflaterOutputStream;
 
 public class DeflateOutputStream extends CompressionOutputStream {
     private int compressionLevel;
+    private CompressionDictionary dictionary;
 
     public DeflateOutputStream(OutputStream out, String encodeSpec, int compressionLevel) {
+        this(out, encodeSpec, compressionLevel, null);
+    }
+
+    /**
+     * @param dictionary preset dictionary to compress with (may be null). Its ID is recorded in the metadata.
+     */
+    public DeflateOutputStream(OutputStream out, String encodeSpec, int compressionLevel,
+                               CompressionDictionary dictionary) {
         super(out, encodeSpec);
         this.compressionLevel = compressionLevel;
+        this.dictionary = dictionary;
+        if (dictionary != null) getEncodeMetadata().setDictionaryId(dictionary.getId());
         initStreams(out);
     }
 
     @Override
     protected OutputStream getCompressionStream(OutputStream output) throws IOException {
-        return new DeflaterOutputStream(output, new Deflater(compressionLevel));
+        return ZlibPool.getInstance().newDeflaterOutputStream(output, compressionLevel,
+                dictionary == null ? null : dictionary.getData());
     }
 }
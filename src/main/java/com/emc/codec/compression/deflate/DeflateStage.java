@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.compression.deflate;
+
+import com.emc.codec.BufferSink;
+import com.emc.codec.EncodeStage;
+import com.emc.codec.compression.CompressionDictionary;
+import com.emc.codec.compression.CompressionException;
+import com.emc.codec.compression.CompressionMetadata;
+import com.emc.codec.util.JceEngineCache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.Deflater;
+
+/**
+ * Buffer-based Deflate encoder. Produces the same bytes and metadata as {@link DeflateOutputStream}.
+ * <p>
+ * Counting and digesting happen in this stage, so there are no separate counting/digest layers. Heap buffers are fed
+ * to the deflater straight from their backing array; since <code>Deflater</code> only accepts arrays on Java 8, direct
+ * buffers are copied through a scratch array.
+ */
+public class DeflateStage extends EncodeStage<CompressionMetadata> {
+    private CompressionMetadata metadata;
+    private Deflater deflater;
+    private int compressionLevel;
+    private MessageDigest digest;
+    private byte[] outputBuffer;
+    private byte[] inputScratch;
+    private long originalSize = 0, compressedSize = 0;
+    private boolean closed = false;
+
+    public DeflateStage(BufferSink next, String encodeSpec, int compressionLevel, int bufferSize) {
+        this(next, encodeSpec, compressionLevel, bufferSize, null);
+    }
+
+    /**
+     * @param dictionary preset dictionary to compress with (may be null). Its ID is recorded in the metadata.
+     */
+    public DeflateStage(BufferSink next, String encodeSpec, int compressionLevel, int bufferSize,
+                        CompressionDictionary dictionary) {
+        super(next);
+        this.metadata = new CompressionMetadata(encodeSpec);
+        this.compressionLevel = compressionLevel;
+        this.deflater = ZlibPool.getInstance().borrowDeflater(compressionLevel);
+        if (dictionary != null) {
+            deflater.setDictionary(dictionary.getData());
+            metadata.setDictionaryId(dictionary.getId());
+        }
+        this.outputBuffer = new byte[bufferSize];
+        try {
+            this.digest = JceEngineCache.getInstance().borrowMessageDigest("SHA1", null);
+        } catch (NoSuchAlgorithmException e) {
+            throw new CompressionException("Unable to initialize digest", e);
+        }
+    }
+
+    @Override
+    public void write(ByteBuffer src) throws IOException {
+        if (closed) throw new IOException("stage closed");
+        originalSize += src.remaining();
+        digest.update(src.duplicate());
+
+        if (src.hasArray()) {
+            deflater.setInput(src.array(), src.arrayOffset() + src.position(), src.remaining());
+            src.position(src.limit());
+            deflate();
+        } else {
+            if (inputScratch == null) inputScratch = new byte[outputBuffer.length];
+            while (src.hasRemaining()) {
+                int count = Math.min(src.remaining(), inputScratch.length);
+                src.get(inputScratch, 0, count);
+                deflater.setInput(inputScratch, 0, count);
+                deflate();
+            }
+        }
+    }
+
+    private void deflate() throws IOException {
+        while (!deflater.needsInput()) {
+            writeOutput(deflater.deflate(outputBuffer, 0, outputBuffer.length));
+        }
+    }
+
+    private void writeOutput(int count) throws IOException {
+        if (count > 0) {
+            compressedSize += count;
+            next.write(ByteBuffer.wrap(outputBuffer, 0, count));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+
+        try {
+            deflater.finish();
+            while (!deflater.finished()) {
+                writeOutput(deflater.deflate(outputBuffer, 0, outputBuffer.length));
+            }
+        } finally {
+            ZlibPool.getInstance().returnDeflater(deflater, compressionLevel);
+        }
+        next.close();
+
+        metadata.setOriginalSize(originalSize);
+        metadata.setCompressedSize(compressedSize);
+        metadata.setOriginalDigest(digest.digest());
+        JceEngineCache.getInstance().returnMessageDigest(digest, "SHA1", null);
+
+        notifyListeners();
+    }
+
+    @Override
+    public CompressionMetadata getEncodeMetadata() {
+        return metadata;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.compression.deflate;
+
+import com.emc.codec.BufferSink;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Buffer-based Deflate decoder (the counterpart of {@link DeflateStage}).
+ */
+public class InflateStage implements BufferSink {
+    private BufferSink next;
+    private Inflater inflater = ZlibPool.getInstance().borrowInflater();
+    private byte[] outputBuffer;
+    private byte[] inputScratch;
+    private byte[] dictionary;
+    private boolean closed = false;
+
+    public InflateStage(BufferSink next, int bufferSize) {
+        this(next, bufferSize, null);
+    }
+
+    /**
+     * @param dictionary the preset dictionary the data was compressed with (may be null)
+     */
+    public InflateStage(BufferSink next, int bufferSize, byte[] dictionary) {
+        this.next = next;
+        this.outputBuffer = new byte[bufferSize];
+        this.dictionary = dictionary;
+    }
+
+    @Override
+    public void write(ByteBuffer src) throws IOException {
+        if (closed) throw new IOException("stage closed");
+        if (inflater.finished()) { // ignore anything after the end of the deflate stream
+            src.position(src.limit());
+            return;
+        }
+
+        if (src.hasArray()) {
+            inflater.setInput(src.array(), src.arrayOffset() + src.position(), src.remaining());
+            src.position(src.limit());
+            inflate();
+        } else {
+            if (inputScratch == null) inputScratch = new byte[outputBuffer.length];
+            while (src.hasRemaining() && !inflater.finished()) {
+                int count = Math.min(src.remaining(), inputScratch.length);
+                src.get(inputScratch, 0, count);
+                inflater.setInput(inputScratch, 0, count);
+                inflate();
+            }
+            src.position(src.limit());
+        }
+    }
+
+    private void inflate() throws IOException {
+        try {
+            while (true) {
+                int count = inflater.inflate(outputBuffer, 0, outputBuffer.length);
+                if (count > 0) next.write(ByteBuffer.wrap(outputBuffer, 0, count));
+                else if (inflater.needsDictionary()) setDictionary();
+                else if (inflater.finished() || inflater.needsInput()) break;
+            }
+        } catch (DataFormatException e) {
+            String message = e.getMessage();
+            throw new ZipException(message != null ? message : "Invalid ZLIB data format");
+        }
+    }
+
+    private void setDictionary() throws ZipException {
+        if (dictionary == null) throw new ZipException("preset dictionary required");
+        try {
+            inflater.setDictionary(dictionary);
+        } catch (IllegalArgumentException e) {
+            throw new ZipException("preset dictionary does not match");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+
+        try {
+            if (!inflater.finished()) throw new EOFException("Unexpected end of ZLIB input stream");
+        } finally {
+            ZlibPool.getInstance().returnInflater(inflater);
+            next.close();
+        }
+    }
+}
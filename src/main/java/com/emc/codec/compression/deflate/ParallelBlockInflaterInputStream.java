@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.compression.deflate;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Decompresses consecutive blocks written by {@link BlockDeflaterOutputStream} on an executor. The compressed length
+ * of each block must be known up front (it comes from the trailer), so the caller thread only has to slice the
+ * compressed stream into blocks; up to <code>parallelism</code> blocks are inflated concurrently and returned in order.
+ */
+public class ParallelBlockInflaterInputStream extends InputStream {
+    private InputStream in;
+    private long[] compressedLengths;
+    private int blockSize;
+    private Executor executor;
+    private int parallelism;
+    private int nextBlock = 0;
+    private Deque<FutureTask<byte[]>> pending;
+    private byte[] current;
+    private int currentPos = 0;
+    private boolean closed = false;
+
+    /**
+     * @param blockSize the maximum uncompressed size of a block
+     */
+    public ParallelBlockInflaterInputStream(InputStream in, long[] compressedLengths, int blockSize, Executor executor,
+                                            int parallelism) {
+        if (parallelism <= 0) throw new IllegalArgumentException("Invalid parallelism: " + parallelism);
+        this.in = in;
+        this.compressedLengths = compressedLengths;
+        this.blockSize = blockSize;
+        this.executor = executor;
+        this.parallelism = parallelism;
+        this.pending = new ArrayDeque<FutureTask<byte[]>>(parallelism);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int c = read(b, 0, 1);
+        return c == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (closed) throw new IOException("stream closed");
+        if (len == 0) return 0;
+        while (current == null || currentPos == current.length) {
+            while (pending.size() < parallelism && nextBlock < compressedLengths.length) {
+                submit(readBlock(compressedLengths[nextBlock++]));
+            }
+            if (pending.isEmpty()) return -1;
+            current = getResult(pending.poll());
+            currentPos = 0;
+        }
+        int count = Math.min(len, current.length - currentPos);
+        System.arraycopy(current, currentPos, b, off, count);
+        currentPos += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return current == null ? 0 : current.length - currentPos;
+    }
+
+    private byte[] readBlock(long length) throws IOException {
+        byte[] block = new byte[(int) length];
+        for (int read = 0, c; read < block.length; read += c) {
+            c = in.read(block, read, block.length - read);
+            if (c == -1) throw new EOFException("compressed data ended in the middle of a block");
+        }
+        return block;
+    }
+
+    private void submit(final byte[] compressed) {
+        FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                Inflater inflater = ZlibPool.getInstance().borrowInflater();
+                try {
+                    inflater.setInput(compressed);
+                    byte[] output = new byte[blockSize];
+                    int count = 0;
+                    while (!inflater.finished() && count < output.length) {
+                        int c = inflater.inflate(output, count, output.length - count);
+                        if (c == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                        count += c;
+                    }
+                    if (!inflater.finished()) throw new ZipException("invalid compressed block");
+                    if (count == output.length) return output;
+                    byte[] result = new byte[count];
+                    System.arraycopy(output, 0, result, 0, count);
+                    return result;
+                } catch (DataFormatException e) {
+                    throw new ZipException(e.getMessage());
+                } finally {
+                    ZlibPool.getInstance().returnInflater(inflater);
+                }
+            }
+        });
+        executor.execute(task);
+        pending.add(task);
+    }
+
+    private byte[] getResult(FutureTask<byte[]> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted waiting for block decompression");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException("block decompression failed", e.getCause());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        for (FutureTask<byte[]> task : pending) {
+            task.cancel(false);
+        }
+        in.close();
+    }
+}
@@ -0,0 +1,392 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.compression.deflate;
+
+import com.emc.codec.util.CodecUtil;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.InflaterOutputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Bounded pool of zlib {@link Deflater}s (one pool per compression level) and {@link Inflater}s. Each holds native
+ * memory that is otherwise only freed when the object is finalized, so every instance leaving this pool is either
+ * returned (and reset for reuse) or ended right away. Returning an instance when the pool is full ends it.
+ * <p>
+ * Borrowed instances must be returned exactly once and not used afterwards. The stream factory methods take care of
+ * this on close.
+ * <p>
+ * The stream factory methods optionally take a preset dictionary. Returned deflaters are reset, which drops their
+ * dictionary, so pooled instances can be shared between streams with and without one.
+ */
+public class ZlibPool {
+    public static final String PROP_MAX_IDLE = "com.emc.codec.compression.deflate.ZlibPool.maxIdle";
+
+    public static final int DEFAULT_MAX_IDLE = 2 * Runtime.getRuntime().availableProcessors();
+
+    private static final ZlibPool instance = new ZlibPool(
+            CodecUtil.getCodecProperty(PROP_MAX_IDLE, null, DEFAULT_MAX_IDLE));
+
+    /**
+     * The shared pool used by the Deflate codecs. Its size (per level) can be set with the system property
+     * {@link #PROP_MAX_IDLE}.
+     */
+    public static ZlibPool getInstance() {
+        return instance;
+    }
+
+    private List<BlockingQueue<Deflater>> deflaters;
+    private BlockingQueue<Inflater> inflaters;
+    private AtomicInteger borrowedDeflaters = new AtomicInteger();
+    private AtomicInteger borrowedInflaters = new AtomicInteger();
+    private AtomicLong createdCount = new AtomicLong();
+    private AtomicLong endedCount = new AtomicLong();
+
+    /**
+     * @param maxIdle the most instances kept for reuse per compression level (and for inflaters). 0 disables pooling.
+     */
+    public ZlibPool(int maxIdle) {
+        if (maxIdle < 0) throw new IllegalArgumentException("Invalid pool size: " + maxIdle);
+        deflaters = new ArrayList<BlockingQueue<Deflater>>(11); // levels -1 (default) to 9
+        for (int i = 0; i < 11; i++) {
+            deflaters.add(this.<Deflater>newQueue(maxIdle));
+        }
+        inflaters = newQueue(maxIdle);
+    }
+
+    private <T> BlockingQueue<T> newQueue(int maxIdle) {
+        // a synchronous queue never accepts an offer unless someone is waiting (nobody ever is)
+        return maxIdle == 0 ? new SynchronousQueue<T>() : new ArrayBlockingQueue<T>(maxIdle);
+    }
+
+    public Deflater borrowDeflater(int compressionLevel) {
+        Deflater deflater = deflaterQueue(compressionLevel).poll();
+        if (deflater == null) {
+            deflater = new Deflater(compressionLevel);
+            createdCount.incrementAndGet();
+        }
+        borrowedDeflaters.incrementAndGet();
+        return deflater;
+    }
+
+    /**
+     * @param compressionLevel must be the level the deflater was borrowed with
+     */
+    public void returnDeflater(Deflater deflater, int compressionLevel) {
+        borrowedDeflaters.decrementAndGet();
+        deflater.reset();
+        if (!deflaterQueue(compressionLevel).offer(deflater)) {
+            deflater.end();
+            endedCount.incrementAndGet();
+        }
+    }
+
+    public Inflater borrowInflater() {
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) {
+            inflater = new Inflater();
+            createdCount.incrementAndGet();
+        }
+        borrowedInflaters.incrementAndGet();
+        return inflater;
+    }
+
+    public void returnInflater(Inflater inflater) {
+        borrowedInflaters.decrementAndGet();
+        inflater.reset();
+        if (!inflaters.offer(inflater)) {
+            inflater.end();
+            endedCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Ends all idle instances.
+     */
+    public void clear() {
+        Deflater deflater;
+        for (BlockingQueue<Deflater> queue : deflaters) {
+            while ((deflater = queue.poll()) != null) {
+                deflater.end();
+                endedCount.incrementAndGet();
+            }
+        }
+        Inflater inflater;
+        while ((inflater = inflaters.poll()) != null) {
+            inflater.end();
+            endedCount.incrementAndGet();
+        }
+    }
+
+    public OutputStream newDeflaterOutputStream(OutputStream out, int compressionLevel) {
+        return newDeflaterOutputStream(out, compressionLevel, null);
+    }
+
+    /**
+     * @param dictionary preset dictionary to compress with (may be null)
+     */
+    public OutputStream newDeflaterOutputStream(OutputStream out, int compressionLevel, byte[] dictionary) {
+        return new PooledDeflaterOutputStream(out, compressionLevel, dictionary);
+    }
+
+    public InputStream newDeflaterInputStream(InputStream in, int compressionLevel) {
+        return newDeflaterInputStream(in, compressionLevel, null);
+    }
+
+    /**
+     * @param dictionary preset dictionary to compress with (may be null)
+     */
+    public InputStream newDeflaterInputStream(InputStream in, int compressionLevel, byte[] dictionary) {
+        return new PooledDeflaterInputStream(in, compressionLevel, dictionary);
+    }
+
+    public OutputStream newInflaterOutputStream(OutputStream out) {
+        return newInflaterOutputStream(out, null);
+    }
+
+    /**
+     * @param dictionary the preset dictionary the data was compressed with (may be null)
+     */
+    public OutputStream newInflaterOutputStream(OutputStream out, byte[] dictionary) {
+        return new PooledInflaterOutputStream(out, dictionary);
+    }
+
+    public InputStream newInflaterInputStream(InputStream in) {
+        return newInflaterInputStream(in, null);
+    }
+
+    /**
+     * @param dictionary the preset dictionary the data was compressed with (may be null)
+     */
+    public InputStream newInflaterInputStream(InputStream in, byte[] dictionary) {
+        return new PooledInflaterInputStream(in, dictionary);
+    }
+
+    public int getIdleDeflaters(int compressionLevel) {
+        return deflaterQueue(compressionLevel).size();
+    }
+
+    public int getIdleDeflaters() {
+        int total = 0;
+        for (BlockingQueue<Deflater> queue : deflaters) {
+            total += queue.size();
+        }
+        return total;
+    }
+
+    public int getIdleInflaters() {
+        return inflaters.size();
+    }
+
+    public int getBorrowedDeflaters() {
+        return borrowedDeflaters.get();
+    }
+
+    public int getBorrowedInflaters() {
+        return borrowedInflaters.get();
+    }
+
+    /**
+     * @return the number of deflaters and inflaters created because the pool was empty
+     */
+    public long getCreatedCount() {
+        return createdCount.get();
+    }
+
+    /**
+     * @return the number of deflaters and inflaters ended because the pool was full (or cleared)
+     */
+    public long getEndedCount() {
+        return endedCount.get();
+    }
+
+    private BlockingQueue<Deflater> deflaterQueue(int compressionLevel) {
+        if (compressionLevel < -1 || compressionLevel > 9)
+            throw new IllegalArgumentException("Invalid compression level: " + compressionLevel);
+        return deflaters.get(compressionLevel + 1);
+    }
+
+    private class PooledDeflaterOutputStream extends DeflaterOutputStream {
+        private int compressionLevel;
+        private boolean released = false;
+
+        PooledDeflaterOutputStream(OutputStream out, int compressionLevel, byte[] dictionary) {
+            super(out, borrowDeflater(compressionLevel));
+            this.compressionLevel = compressionLevel;
+            if (dictionary != null) def.setDictionary(dictionary);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (released) throw new IOException("Stream closed");
+            super.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (released) return;
+            try {
+                super.close();
+            } finally {
+                released = true;
+                returnDeflater(def, compressionLevel);
+            }
+        }
+    }
+
+    private class PooledDeflaterInputStream extends DeflaterInputStream {
+        private int compressionLevel;
+        private boolean released = false;
+
+        PooledDeflaterInputStream(InputStream in, int compressionLevel, byte[] dictionary) {
+            super(in, borrowDeflater(compressionLevel));
+            this.compressionLevel = compressionLevel;
+            if (dictionary != null) def.setDictionary(dictionary);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (released) throw new IOException("Stream closed");
+            return super.read(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (released) return;
+            try {
+                super.close();
+            } finally {
+                released = true;
+                returnDeflater(def, compressionLevel);
+            }
+        }
+    }
+
+    private static void setDictionary(Inflater inflater, byte[] dictionary) throws ZipException {
+        if (dictionary == null) throw new ZipException("ZLIB dictionary missing");
+        try {
+            inflater.setDictionary(dictionary);
+        } catch (IllegalArgumentException e) {
+            throw new ZipException("ZLIB dictionary does not match (Adler-32 " + inflater.getAdler() + ")");
+        }
+    }
+
+    private class PooledInflaterOutputStream extends InflaterOutputStream {
+        private byte[] dictionary;
+        private boolean released = false;
+
+        PooledInflaterOutputStream(OutputStream out, byte[] dictionary) {
+            super(out, borrowInflater());
+            this.dictionary = dictionary;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (released) throw new IOException("Stream closed");
+            if (dictionary == null) {
+                super.write(b, off, len);
+                return;
+            }
+
+            // InflaterOutputStream cannot set a dictionary, so this is its loop with that one addition
+            if (inf.finished() || len == 0) return;
+            try {
+                inf.setInput(b, off, len);
+                while (!inf.finished()) {
+                    int count = inf.inflate(buf, 0, buf.length);
+                    if (count > 0) out.write(buf, 0, count);
+                    else if (inf.needsDictionary()) setDictionary(inf, dictionary);
+                    else if (inf.needsInput()) break;
+                }
+            } catch (DataFormatException e) {
+                String message = e.getMessage();
+                throw new ZipException(message != null ? message : "Invalid ZLIB data format");
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (released) return;
+            try {
+                super.close();
+            } finally {
+                released = true;
+                returnInflater(inf);
+            }
+        }
+    }
+
+    private class PooledInflaterInputStream extends InflaterInputStream {
+        private byte[] dictionary;
+        private boolean released = false;
+
+        PooledInflaterInputStream(InputStream in, byte[] dictionary) {
+            super(in, borrowInflater());
+            this.dictionary = dictionary;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (released) throw new IOException("Stream closed");
+            int count = super.read(b, off, len);
+            // InflaterInputStream reports EOF when a dictionary is needed
+            if (count == -1 && inf.needsDictionary()) {
+                setDictionary(inf, dictionary);
+                count = super.read(b, off, len);
+            }
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (released) return;
+            try {
+                super.close();
+            } finally {
+                released = true;
+                returnInflater(inf);
+            }
+        }
+    }
+}
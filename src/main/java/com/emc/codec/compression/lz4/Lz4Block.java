@@ -0,0 +1,340 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.compression.lz4;
+
+import com.emc.codec.compression.CompressionException;
+
+import java.util.Arrays;
+
+/**
+ * Pure-Java LZ4 block compression (the LZ4 block format: sequences of a token, literals and a 2-byte match offset)
+ * and the framing used by the LZ4 streams. Framed, the data is a series of blocks, each compressed independently:
+ * <pre>
+ *     block: int header (payload length, high bit set if stored uncompressed), int original length, payload
+ *     end:   int 0
+ * </pre>
+ * (ints are big-endian). Blocks that do not compress are stored as-is, so incompressible data grows by only 8 bytes
+ * per block.
+ */
+public final class Lz4Block {
+    public static final int HEADER_SIZE = 8;
+    public static final int MAX_BLOCK_SIZE = 1 << 24;
+    public static final int HASH_TABLE_SIZE = 1 << 14;
+
+    private static final int STORED_FLAG = 0x80000000;
+
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MF_LIMIT = 12; // the last match must start this far from the end
+    private static final int MAX_DISTANCE = 65535;
+    private static final int HASH_LOG = 14;
+    private static final int SKIP_STRENGTH = 6;
+    private static final int ML_BITS = 4;
+    private static final int ML_MASK = (1 << ML_BITS) - 1;
+    private static final int RUN_MASK = ML_MASK;
+
+    private Lz4Block() {
+    }
+
+    /**
+     * @return the largest framed size of a block of <code>length</code> bytes (including its header)
+     */
+    public static int maxFramedLength(int length) {
+        return HEADER_SIZE + length + length / 255 + 16;
+    }
+
+    /**
+     * Maps a compression level to the match finder's acceleration (how quickly it skips ahead through data that is
+     * not matching). Levels 5 and up search every position.
+     */
+    public static int getAcceleration(int compressionLevel) {
+        return 1 + Math.max(0, 5 - compressionLevel);
+    }
+
+    /**
+     * Compresses one block and writes it framed (header first) to <code>dest</code>, which must have room for
+     * {@link #maxFramedLength(int)} bytes.
+     *
+     * @param hashTable scratch space of {@link #HASH_TABLE_SIZE} ints (reused across blocks)
+     * @return the framed length
+     */
+    public static int frame(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff, int[] hashTable,
+                            int acceleration) {
+        int compressedLength = compress(src, srcOff, srcLen, dest, destOff + HEADER_SIZE, hashTable, acceleration);
+        int header = compressedLength;
+        if (compressedLength >= srcLen) {
+            System.arraycopy(src, srcOff, dest, destOff + HEADER_SIZE, srcLen);
+            header = srcLen | STORED_FLAG;
+            compressedLength = srcLen;
+        }
+        writeInt(dest, destOff, header);
+        writeInt(dest, destOff + 4, srcLen);
+        return HEADER_SIZE + compressedLength;
+    }
+
+    /**
+     * @param header the first int of a framed block
+     * @return the payload length following the block header, or 0 for the end marker
+     */
+    public static int getPayloadLength(int header) {
+        int length = header & ~STORED_FLAG;
+        if (length > maxFramedLength(MAX_BLOCK_SIZE)) throw new CompressionException("LZ4 block is corrupt");
+        return length;
+    }
+
+    /**
+     * @param originalLength the second int of a framed block
+     * @throws CompressionException if the length is out of range
+     */
+    public static int checkOriginalLength(int originalLength) {
+        if (originalLength <= 0 || originalLength > MAX_BLOCK_SIZE)
+            throw new CompressionException("LZ4 block is corrupt");
+        return originalLength;
+    }
+
+    /**
+     * Decodes the payload of a framed block.
+     *
+     * @return the decoded length (always <code>originalLength</code>)
+     * @throws CompressionException if the block is corrupt
+     */
+    public static int unframe(int header, byte[] payload, int payloadOff, int payloadLen, byte[] dest, int destOff,
+                              int originalLength) {
+        if ((header & STORED_FLAG) != 0) {
+            if (payloadLen != originalLength) throw new CompressionException("LZ4 block is corrupt");
+            System.arraycopy(payload, payloadOff, dest, destOff, payloadLen);
+            return payloadLen;
+        }
+        int length = decompress(payload, payloadOff, payloadLen, dest, destOff, originalLength);
+        if (length != originalLength) throw new CompressionException("LZ4 block is corrupt");
+        return length;
+    }
+
+    /**
+     * Compresses <code>src</code> into an LZ4 block. <code>dest</code> must have room for
+     * <code>srcLen + srcLen / 255 + 16</code> bytes.
+     *
+     * @return the compressed length
+     */
+    public static int compress(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff, int[] hashTable,
+                               int acceleration) {
+        int srcEnd = srcOff + srcLen;
+        int destPos = destOff;
+        int anchor = srcOff;
+
+        if (srcLen > MF_LIMIT) {
+            Arrays.fill(hashTable, -1);
+            int mfLimit = srcEnd - MF_LIMIT;
+            int matchLimit = srcEnd - LAST_LITERALS;
+
+            int sOff = srcOff;
+            hashTable[hash(readInt(src, sOff))] = sOff;
+            sOff++;
+
+            outer:
+            while (true) {
+                // find a match
+                int forwardOff = sOff, ref, step = 1, searchMatchNb = acceleration << SKIP_STRENGTH;
+                do {
+                    sOff = forwardOff;
+                    forwardOff += step;
+                    step = searchMatchNb++ >>> SKIP_STRENGTH;
+                    if (forwardOff > mfLimit) break outer;
+
+                    int h = hash(readInt(src, sOff));
+                    ref = hashTable[h];
+                    hashTable[h] = sOff;
+                } while (ref < 0 || sOff - ref > MAX_DISTANCE || readInt(src, ref) != readInt(src, sOff));
+
+                // extend it backwards
+                while (sOff > anchor && ref > srcOff && src[sOff - 1] == src[ref - 1]) {
+                    sOff--;
+                    ref--;
+                }
+
+                // literals
+                int tokenOff = destPos++;
+                int runLength = sOff - anchor;
+                if (runLength >= RUN_MASK) {
+                    dest[tokenOff] = (byte) (RUN_MASK << ML_BITS);
+                    destPos = writeLength(runLength - RUN_MASK, dest, destPos);
+                } else {
+                    dest[tokenOff] = (byte) (runLength << ML_BITS);
+                }
+                System.arraycopy(src, anchor, dest, destPos, runLength);
+                destPos += runLength;
+
+                while (true) {
+                    // match offset and length
+                    int offset = sOff - ref;
+                    dest[destPos++] = (byte) offset;
+                    dest[destPos++] = (byte) (offset >>> 8);
+
+                    sOff += MIN_MATCH;
+                    int matchLength = commonBytes(src, ref + MIN_MATCH, sOff, matchLimit);
+                    sOff += matchLength;
+                    if (matchLength >= ML_MASK) {
+                        dest[tokenOff] |= ML_MASK;
+                        destPos = writeLength(matchLength - ML_MASK, dest, destPos);
+                    } else {
+                        dest[tokenOff] |= matchLength;
+                    }
+                    anchor = sOff;
+
+                    if (sOff >= mfLimit) break outer;
+
+                    hashTable[hash(readInt(src, sOff - 2))] = sOff - 2;
+
+                    // is there a match right here? then no literals
+                    int h = hash(readInt(src, sOff));
+                    ref = hashTable[h];
+                    hashTable[h] = sOff;
+                    if (ref < 0 || sOff - ref > MAX_DISTANCE || readInt(src, ref) != readInt(src, sOff)) break;
+
+                    tokenOff = destPos++;
+                    dest[tokenOff] = 0;
+                }
+                sOff++;
+            }
+        }
+
+        // last literals
+        int runLength = srcEnd - anchor;
+        if (runLength >= RUN_MASK) {
+            dest[destPos++] = (byte) (RUN_MASK << ML_BITS);
+            destPos = writeLength(runLength - RUN_MASK, dest, destPos);
+        } else {
+            dest[destPos++] = (byte) (runLength << ML_BITS);
+        }
+        System.arraycopy(src, anchor, dest, destPos, runLength);
+        destPos += runLength;
+
+        return destPos - destOff;
+    }
+
+    /**
+     * Decompresses an LZ4 block of <code>srcLen</code> bytes.
+     *
+     * @param destLen the most output to produce
+     * @return the decompressed length
+     * @throws CompressionException if the block is corrupt or decodes to more than <code>destLen</code> bytes
+     */
+    public static int decompress(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff, int destLen) {
+        int sOff = srcOff, srcEnd = srcOff + srcLen;
+        int dOff = destOff, destEnd = destOff + destLen;
+        while (true) {
+            if (sOff >= srcEnd) throw new CompressionException("LZ4 block is corrupt");
+            int token = src[sOff++] & 0xff;
+
+            // literals
+            int literalLength = token >>> ML_BITS;
+            if (literalLength == RUN_MASK) {
+                int b;
+                do {
+                    if (sOff >= srcEnd) throw new CompressionException("LZ4 block is corrupt");
+                    b = src[sOff++] & 0xff;
+                    literalLength += b;
+                } while (b == 255);
+            }
+            if (literalLength > srcEnd - sOff || literalLength > destEnd - dOff)
+                throw new CompressionException("LZ4 block is corrupt");
+            System.arraycopy(src, sOff, dest, dOff, literalLength);
+            sOff += literalLength;
+            dOff += literalLength;
+
+            // the last sequence has no match
+            if (sOff == srcEnd) break;
+
+            // match
+            if (srcEnd - sOff < 2) throw new CompressionException("LZ4 block is corrupt");
+            int offset = (src[sOff] & 0xff) | ((src[sOff + 1] & 0xff) << 8);
+            sOff += 2;
+            int ref = dOff - offset;
+            if (offset == 0 || ref < destOff) throw new CompressionException("LZ4 block is corrupt");
+
+            int matchLength = token & ML_MASK;
+            if (matchLength == ML_MASK) {
+                int b;
+                do {
+                    if (sOff >= srcEnd) throw new CompressionException("LZ4 block is corrupt");
+                    b = src[sOff++] & 0xff;
+                    matchLength += b;
+                } while (b == 255);
+            }
+            matchLength += MIN_MATCH;
+            if (matchLength > destEnd - dOff) throw new CompressionException("LZ4 block is corrupt");
+
+            if (offset >= matchLength) {
+                System.arraycopy(dest, ref, dest, dOff, matchLength);
+            } else {
+                // overlapping (repeating) match: copy the repeating part, doubling it each time
+                int copied = 0;
+                while (copied < matchLength) {
+                    int n = Math.min(matchLength - copied, offset + copied);
+                    System.arraycopy(dest, ref, dest, dOff + copied, n);
+                    copied += n;
+                }
+            }
+            dOff += matchLength;
+        }
+        return dOff - destOff;
+    }
+
+    public static int readInt(byte[] b, int off) {
+        return ((b[off] & 0xff) << 24) | ((b[off + 1] & 0xff) << 16) | ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+    }
+
+    public static void writeInt(byte[] b, int off, int value) {
+        b[off] = (byte) (value >>> 24);
+        b[off + 1] = (byte) (value >>> 16);
+        b[off + 2] = (byte) (value >>> 8);
+        b[off + 3] = (byte) value;
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_LOG);
+    }
+
+    private static int commonBytes(byte[] b, int ref, int off, int limit) {
+        int count = 0;
+        while (off < limit && b[ref++] == b[off++]) {
+            count++;
+        }
+        return count;
+    }
+
+    private static int writeLength(int length, byte[] dest, int destPos) {
+        while (length >= 255) {
+            dest[destPos++] = (byte) 255;
+            length -= 255;
+        }
+        dest[destPos++] = (byte) length;
+        return destPos;
+    }
+}
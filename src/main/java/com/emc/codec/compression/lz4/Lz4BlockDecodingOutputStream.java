@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.compression.lz4;
+
+import com.emc.codec.compression.CompressionException;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Decompresses framed LZ4 blocks (see {@link Lz4Block} for the format) as they are written, writing the original
+ * data to the wrapped stream.
+ */
+public class Lz4BlockDecodingOutputStream extends FilterOutputStream {
+    private byte[] header = new byte[Lz4Block.HEADER_SIZE];
+    private int headerCount = 0;
+    private int blockHeader, payloadLength, originalLength;
+    private byte[] payload = new byte[0];
+    private int payloadCount = 0;
+    private byte[] block = new byte[0];
+    private boolean finished = false, closed = false;
+
+    public Lz4BlockDecodingOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b) throws IOException {
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) throw new IOException("Stream closed");
+        while (len > 0) {
+            if (finished) throw new CompressionException("unexpected data after end of LZ4 stream");
+
+            if (headerCount < Lz4Block.HEADER_SIZE) {
+                int n = Math.min(len, (headerCount < 4 ? 4 : Lz4Block.HEADER_SIZE) - headerCount);
+                System.arraycopy(b, off, header, headerCount, n);
+                headerCount += n;
+                off += n;
+                len -= n;
+                if (headerCount == 4) {
+                    blockHeader = Lz4Block.readInt(header, 0);
+                    payloadLength = Lz4Block.getPayloadLength(blockHeader);
+                    if (payloadLength == 0) finished = true;
+                } else if (headerCount == Lz4Block.HEADER_SIZE) {
+                    originalLength = Lz4Block.checkOriginalLength(Lz4Block.readInt(header, 4));
+                    if (payload.length < payloadLength) payload = new byte[payloadLength];
+                    payloadCount = 0;
+                }
+                continue;
+            }
+
+            int n = Math.min(len, payloadLength - payloadCount);
+            System.arraycopy(b, off, payload, payloadCount, n);
+            payloadCount += n;
+            off += n;
+            len -= n;
+            if (payloadCount == payloadLength) {
+                if (block.length < originalLength) block = new byte[originalLength];
+                int length = Lz4Block.unframe(blockHeader, payload, 0, payloadLength, block, 0, originalLength);
+                out.write(block, 0, length);
+                headerCount = 0;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            if (!finished) throw new CompressionException("LZ4 stream is truncated");
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.compression.lz4;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Compresses data read from the source into framed LZ4 blocks (see {@link Lz4Block} for the format), one block at a
+ * time as the stream is read.
+ */
+public class Lz4BlockEncodingInputStream extends InputStream {
+    private InputStream in;
+    private byte[] block;
+    private byte[] framed;
+    private int pos = 0, limit = 0;
+    private int[] hashTable = new int[Lz4Block.HASH_TABLE_SIZE];
+    private int acceleration;
+    private boolean finished = false;
+
+    public Lz4BlockEncodingInputStream(InputStream in, int blockSize, int acceleration) {
+        if (blockSize <= 0 || blockSize > Lz4Block.MAX_BLOCK_SIZE)
+            throw new IllegalArgumentException("Invalid block size: " + blockSize);
+        this.in = in;
+        this.block = new byte[blockSize];
+        this.framed = new byte[Lz4Block.maxFramedLength(blockSize) + 4]; // room for the end marker
+        this.acceleration = acceleration;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (pos == limit && !nextBlock()) return -1;
+        return framed[pos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (pos == limit && !nextBlock()) return -1;
+        int n = Math.min(len, limit - pos);
+        System.arraycopy(framed, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return limit - pos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private boolean nextBlock() throws IOException {
+        if (finished) return false;
+
+        // fill a whole block (short reads would make short blocks)
+        int count = 0, c = 0;
+        while (count < block.length && (c = in.read(block, count, block.length - count)) != -1) {
+            count += c;
+        }
+
+        pos = 0;
+        if (count > 0) {
+            limit = Lz4Block.frame(block, 0, count, framed, 0, hashTable, acceleration);
+        } else {
+            limit = 0;
+        }
+        if (c == -1) {
+            // end marker
+            Lz4Block.writeInt(framed, limit, 0);
+            limit += 4;
+            finished = true;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.compression.lz4;
+
+import com.emc.codec.compression.CompressionException;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decompresses framed LZ4 blocks (see {@link Lz4Block} for the format) read from the source.
+ */
+public class Lz4BlockInputStream extends FilterInputStream {
+    private byte[] header = new byte[Lz4Block.HEADER_SIZE];
+    private byte[] payload = new byte[0];
+    private byte[] block = new byte[0];
+    private int pos = 0, limit = 0;
+    private boolean finished = false;
+
+    public Lz4BlockInputStream(InputStream in) {
+        super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (pos == limit && !nextBlock()) return -1;
+        return block[pos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b) throws IOException {
+        return read(b, 0, b.length);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (pos == limit && !nextBlock()) return -1;
+        int n = Math.min(len, limit - pos);
+        System.arraycopy(block, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n) {
+            if (pos == limit && !nextBlock()) break;
+            int s = (int) Math.min(n - skipped, limit - pos);
+            pos += s;
+            skipped += s;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return limit - pos;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    private boolean nextBlock() throws IOException {
+        if (finished) return false;
+
+        readFully(header, 0, 4);
+        int blockHeader = Lz4Block.readInt(header, 0);
+        int payloadLength = Lz4Block.getPayloadLength(blockHeader);
+        if (payloadLength == 0) {
+            finished = true;
+            return false;
+        }
+        readFully(header, 4, 4);
+        int originalLength = Lz4Block.checkOriginalLength(Lz4Block.readInt(header, 4));
+
+        if (payload.length < payloadLength) payload = new byte[payloadLength];
+        if (block.length < originalLength) block = new byte[originalLength];
+        readFully(payload, 0, payloadLength);
+        limit = Lz4Block.unframe(blockHeader, payload, 0, payloadLength, block, 0, originalLength);
+        pos = 0;
+        return true;
+    }
+
+    private void readFully(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int c = in.read(b, off, len);
+            if (c == -1) throw new CompressionException("LZ4 stream is truncated");
+            off += c;
+            len -= c;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.compression.lzma;
+
+import com.emc.codec.compression.CompressionException;
+import com.emc.codec.metrics.CodecMetrics;
+import com.emc.codec.metrics.NoOpCodecMetrics;
+import com.emc.codec.util.RingPipe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * One LZMA encode or decode run between an input and an output stream (one side of which is normally a pipe to the
+ * caller). Runs either on an executor or on its own daemon thread.
+ */
+public abstract class CoderTask implements Runnable {
+    private static final Logger log = LoggerFactory.getLogger(CoderTask.class);
+
+    protected InputStream input;
+    protected OutputStream output;
+    private ThreadGroup threadGroup;
+    private volatile boolean errorSet = false;
+    private volatile Throwable error;
+    private CodecMetrics metrics = NoOpCodecMetrics.INSTANCE;
+    private LzmaMemoryBudget.Reservation reservation;
+    private CountDownLatch done = new CountDownLatch(1);
+
+    protected CoderTask(ThreadGroup threadGroup, InputStream input, OutputStream output) {
+        this.threadGroup = threadGroup;
+        this.input = input;
+        this.output = output;
+    }
+
+    protected abstract void code() throws Exception;
+
+    @Override
+    public void run() {
+        metrics.threadStarted(threadGroup.getName());
+        try {
+            code();
+        } catch (Throwable t) {
+            log.error("error during " + threadGroup.getName(), t);
+            error = t;
+            errorSet = true;
+        } finally { // make sure we close any pipes to prevent deadlock (passing on any error to the other end)
+            try {
+                if (input instanceof RingPipe.PipeInputStream) {
+                    if (errorSet) ((RingPipe.PipeInputStream) input).getPipe().fail(error);
+                    input.close();
+                } else if (input instanceof PipedInputStream) input.close();
+            } catch (Throwable t) {
+                log.warn("could not close input stream", t);
+            }
+
+            try {
+                if (output instanceof RingPipe.PipeOutputStream) {
+                    if (errorSet) ((RingPipe.PipeOutputStream) output).getPipe().fail(error);
+                    output.close();
+                } else if (output instanceof PipedOutputStream) output.close();
+            } catch (Throwable t) {
+                log.warn("could not close output stream", t);
+            }
+            releaseMemory();
+            metrics.threadStopped(threadGroup.getName());
+            done.countDown();
+        }
+    }
+
+    /**
+     * Submits this task to <code>executor</code>, or starts it on a new daemon thread if <code>executor</code> is
+     * null. Throws {@link CompressionException} if the executor rejects the task.
+     */
+    public void start(Executor executor) {
+        if (executor == null) {
+            Thread thread = new Thread(threadGroup, this);
+            thread.setDaemon(true);
+            thread.start();
+        } else {
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                releaseMemory();
+                throw new CompressionException("could not start " + threadGroup.getName() + " task", e);
+            }
+        }
+    }
+
+    /**
+     * Waits for the task to finish (successfully or not).
+     */
+    public void join() throws InterruptedException {
+        done.await();
+    }
+
+    /**
+     * Must be called before the task is started.
+     */
+    public void setMetrics(CodecMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Sets the memory reservation held by this task. It is released when the task finishes (or is rejected).
+     */
+    protected void setReservation(LzmaMemoryBudget.Reservation reservation) {
+        this.reservation = reservation;
+    }
+
+    protected void releaseMemory() {
+        if (reservation != null) reservation.release();
+    }
+
+    public boolean isErrorSet() {
+        return errorSet;
+    }
+
+    public Throwable getError() {
+        return error;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.compression.lzma;
+
+import SevenZip.Compression.LZMA.Decoder;
+import com.emc.codec.compression.CompressionException;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+public class DecoderTask extends CoderTask {
+    public static final ThreadGroup THREAD_GROUP = new ThreadGroup("LZMA-Decompress");
+
+    private LzmaMemoryBudget budget;
+
+    public DecoderTask(InputStream input, OutputStream output) {
+        this(input, output, null);
+    }
+
+    /**
+     * @param budget memory for the decoder (sized from the stream header) is reserved against this budget before
+     *               decoding starts (may be null)
+     */
+    public DecoderTask(InputStream input, OutputStream output, LzmaMemoryBudget budget) {
+        super(THREAD_GROUP, input, output);
+        this.budget = budget;
+    }
+
+    @Override
+    protected void code() throws Exception {
+        // Read the compression settings from the stream
+        byte[] properties = new byte[5];
+        int c = input.read(properties);
+        if (c != properties.length)
+            throw new CompressionException("Unable to read compression settings from stream");
+
+        // reserve memory before the decoder allocates its window
+        setReservation(reserve(budget, properties));
+
+        Decoder decoder = LzmaCoderPool.getInstance().borrowDecoder(properties);
+
+        // only a decoder that reached the end marker is reused
+        if (decoder.Code(input, output, -1)) LzmaCoderPool.getInstance().returnDecoder(decoder, properties);
+    }
+
+    /**
+     * Reserves memory for a decoder with the given stream properties against <code>budget</code>.
+     *
+     * @return the reservation, or null if <code>budget</code> is null
+     * @throws CompressionException if the budget could not be reserved in time
+     */
+    static LzmaMemoryBudget.Reservation reserve(LzmaMemoryBudget budget, byte[] properties) throws CompressionException {
+        if (budget == null) return null;
+        long required = LzmaDecoder.memoryRequired(properties);
+        LzmaMemoryBudget.Reservation reservation;
+        try {
+            reservation = budget.reserve(required);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CompressionException("interrupted waiting for LZMA memory budget", e);
+        }
+        if (reservation == null)
+            throw new CompressionException("timed out waiting for " + required + " bytes of LZMA memory budget");
+        return reservation;
+    }
+}
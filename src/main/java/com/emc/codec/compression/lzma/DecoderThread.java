@@ -28,72 +28,42 @@
 
 package com.emc.codec.compression.lzma;
 
-import SevenZip.Compression.LZMA.Decoder;
-import com.emc.codec.compression.CompressionException;
+import com.emc.codec.metrics.CodecMetrics;
 
 import java.io.*;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
+/**
+ * @deprecated the LZMA streams now run {@link DecoderTask}s on an executor; start a {@link DecoderTask} directly
+ */
+@Deprecated
 public class DecoderThread extends Thread {
+    public static final ThreadGroup THREAD_GROUP = DecoderTask.THREAD_GROUP;
 
-    private static final Logger log = LoggerFactory.getLogger(DecoderThread.class);
-
-    public static final ThreadGroup THREAD_GROUP = new ThreadGroup("LZMA-Decompress");
-
-    private InputStream input;
-    private OutputStream output;
-    private boolean errorSet = false;
-    private Throwable error;
+    private DecoderTask task;
 
     public DecoderThread(InputStream input, OutputStream output) throws IOException {
         super(THREAD_GROUP, (Runnable) null);
         setDaemon(true);
-
-        this.input = input;
-        this.output = output;
+        task = new DecoderTask(input, output);
     }
 
     @Override
     public void run() {
-        try {
-            Decoder decoder = new Decoder();
-
-            // Read the compression settings from the stream
-            byte[] properties = new byte[5];
-            int c = input.read(properties);
-            if (c != properties.length)
-                throw new CompressionException("Unable to read compression settings from stream");
-
-            if (!decoder.SetDecoderProperties(properties))
-                throw new CompressionException("LZMA decoder rejected compression settings from stream");
-
-            decoder.Code(input, output, -1);
-        } catch (Throwable t) {
-            log.error("error during decompression", t);
-            error = t;
-            errorSet = true;
-        } finally { // make sure we close any piped streams to prevent deadlock
-            try {
-                if (input instanceof PipedInputStream) input.close();
-            } catch (Throwable t) {
-                log.warn("could not close input stream", t);
-            }
+        task.run();
+    }
 
-            try {
-                if (output instanceof PipedOutputStream) output.close();
-            } catch (Throwable t) {
-                log.warn("could not close output stream", t);
-            }
-        }
+    /**
+     * Must be called before the thread is started.
+     */
+    public void setMetrics(CodecMetrics metrics) {
+        task.setMetrics(metrics);
     }
 
     public boolean isErrorSet() {
-        return errorSet;
+        return task.isErrorSet();
     }
 
     public Throwable getError() {
-        return error;
+        return task.getError();
     }
 }
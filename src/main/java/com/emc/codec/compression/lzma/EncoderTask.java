@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.compression.lzma;
+
+import SevenZip.Compression.LZMA.Encoder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+public class EncoderTask extends CoderTask {
+    public static final ThreadGroup THREAD_GROUP = new ThreadGroup("LZMA-Compress");
+
+    private LzmaProfile profile;
+    private Encoder encoder;
+
+    public EncoderTask(LzmaProfile profile, InputStream input, OutputStream output) throws IOException {
+        this(profile, input, output, null);
+    }
+
+    /**
+     * @param reservation memory reserved for this encoder (may be null); released when the encoder finishes
+     */
+    public EncoderTask(LzmaProfile profile, InputStream input, OutputStream output,
+                       LzmaMemoryBudget.Reservation reservation) throws IOException {
+        super(THREAD_GROUP, input, output);
+        setReservation(reservation);
+
+        this.profile = profile;
+        encoder = LzmaCoderPool.getInstance().borrowEncoder(profile);
+
+        // Write the compression settings to the stream (this is read during
+        // decompression to configure the decoder)
+        try {
+            encoder.WriteCoderProperties(output);
+        } catch (IOException e) {
+            releaseMemory();
+            throw e;
+        }
+    }
+
+    @Override
+    protected void code() throws Exception {
+        try {
+            encoder.Code(input, output, -1, -1, null);
+            LzmaCoderPool.getInstance().returnEncoder(encoder, profile);
+        } finally {
+            encoder = null; // an encoder that failed mid-stream is not reused
+        }
+    }
+}
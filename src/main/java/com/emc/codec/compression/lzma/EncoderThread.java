@@ -28,72 +28,42 @@
 
 package com.emc.codec.compression.lzma;
 
-import SevenZip.Compression.LZMA.Encoder;
-
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import com.emc.codec.metrics.CodecMetrics;
 
 import java.io.*;
 
+/**
+ * @deprecated the LZMA streams now run {@link EncoderTask}s on an executor; start an {@link EncoderTask} directly
+ */
+@Deprecated
 public class EncoderThread extends Thread {
+    public static final ThreadGroup THREAD_GROUP = EncoderTask.THREAD_GROUP;
 
-    private static final Logger log = LoggerFactory.getLogger(EncoderThread.class);
-
-    public static final ThreadGroup THREAD_GROUP = new ThreadGroup("LZMA-Compress");
-
-    private Encoder encoder;
-    private InputStream input;
-    private OutputStream output;
-    private boolean errorSet = false;
-    private Throwable error;
+    private EncoderTask task;
 
     public EncoderThread(LzmaProfile profile, InputStream input, OutputStream output) throws IOException {
         super(THREAD_GROUP, (Runnable) null);
         setDaemon(true);
-
-        this.input = input;
-        this.output = output;
-
-        encoder = new Encoder();
-        encoder.SetDictionarySize(profile.dictionarySize);
-        encoder.SetNumFastBytes(profile.fastBytes);
-        encoder.SetMatchFinder(profile.matchFinder);
-        encoder.SetLcLpPb(profile.lc, profile.lp, profile.pb);
-        encoder.SetEndMarkerMode(true);
-
-        // Write the compression settings to the stream (this is read during
-        // decompression to configure the decoder)
-        encoder.WriteCoderProperties(output);
+        task = new EncoderTask(profile, input, output);
     }
 
     @Override
     public void run() {
-        try {
-            encoder.Code(input, output, -1, -1, null);
-        } catch (Throwable t) {
-            log.error("error during compression", t);
-            error = t;
-            errorSet = true;
-        } finally { // make sure we close any piped streams to prevent deadlock
-            try {
-                if (input instanceof PipedInputStream) input.close();
-            } catch (Throwable t) {
-                log.warn("could not close input stream", t);
-            }
+        task.run();
+    }
 
-            try {
-                if (output instanceof PipedOutputStream) output.close();
-            } catch (Throwable t) {
-                log.warn("could not close output stream", t);
-            }
-        }
+    /**
+     * Must be called before the thread is started.
+     */
+    public void setMetrics(CodecMetrics metrics) {
+        task.setMetrics(metrics);
     }
 
     public boolean isErrorSet() {
-        return errorSet;
+        return task.isErrorSet();
     }
 
     public Throwable getError() {
-        return error;
+        return task.getError();
     }
 }
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.compression.lzma;
+
+import com.emc.codec.compression.CompressionException;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * LZMA decoding input stream that runs the decoder ({@link LzmaDecoder}) on the caller's thread (no coder thread or
+ * pipe). Each read decodes just enough of the source to fill the caller's buffer.
+ */
+public class InlineLzmaDecodeInputStream extends FilterInputStream {
+    private LzmaMemoryBudget budget;
+    private LzmaMemoryBudget.Reservation reservation;
+    private LzmaDecoder decoder;
+    private byte[] properties;
+    private byte[] inBuffer;
+    private int inStart = 0, inEnd = 0;
+    private boolean eof = false, finished = false, closed = false;
+
+    /**
+     * @param budget decoder memory is reserved against this budget (may be null)
+     */
+    public InlineLzmaDecodeInputStream(InputStream originalStream, int bufferSize, LzmaMemoryBudget budget) {
+        super(originalStream);
+        this.budget = budget;
+        this.inBuffer = new byte[Math.max(bufferSize, LzmaDecoder.MAX_SYMBOL_INPUT * 2)];
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b) throws IOException {
+        return read(b, 0, b.length);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (closed) throw new IOException("Stream closed");
+        if (len == 0) return 0;
+        if (finished) return -1;
+        if (decoder == null) createDecoder();
+        while (!decoder.isFinished()) {
+            int count = decoder.decode(inBuffer, inStart, inEnd - inStart, eof, b, off, len);
+            inStart = decoder.getInputPosition();
+            if (count > 0) return count;
+            if (!decoder.isFinished()) fill();
+        }
+        finished = true;
+        release();
+        return -1;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        byte[] buffer = new byte[(int) Math.min(n, 8192)];
+        long total = 0;
+        while (total < n) {
+            int c = read(buffer, 0, (int) Math.min(n - total, buffer.length));
+            if (c == -1) break;
+            total += c;
+        }
+        return total;
+    }
+
+    @Override
+    public int available() {
+        return 0;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        release();
+        super.close();
+    }
+
+    private void createDecoder() throws IOException {
+        while (inEnd - inStart < LzmaDecoder.PROPERTIES_SIZE && !eof) fill();
+        if (inEnd - inStart < LzmaDecoder.PROPERTIES_SIZE)
+            throw new CompressionException("Unable to read compression settings from stream");
+
+        properties = new byte[LzmaDecoder.PROPERTIES_SIZE];
+        System.arraycopy(inBuffer, inStart, properties, 0, properties.length);
+        LzmaDecoder.validateProperties(properties);
+        inStart += properties.length;
+
+        reservation = DecoderTask.reserve(budget, properties);
+        decoder = LzmaCoderPool.getInstance().borrowInlineDecoder(properties);
+    }
+
+    // reads more of the source, keeping unconsumed input
+    private void fill() throws IOException {
+        if (eof) throw new CompressionException("LZMA stream is truncated");
+        if (inStart > 0) {
+            System.arraycopy(inBuffer, inStart, inBuffer, 0, inEnd - inStart);
+            inEnd -= inStart;
+            inStart = 0;
+        }
+        int c = in.read(inBuffer, inEnd, inBuffer.length - inEnd);
+        if (c == -1) eof = true;
+        else inEnd += c;
+    }
+
+    // a decoder that reached the end marker goes back to the pool
+    private void release() {
+        if (decoder != null && finished) LzmaCoderPool.getInstance().returnInlineDecoder(decoder, properties);
+        decoder = null;
+        if (reservation != null) reservation.release();
+    }
+}
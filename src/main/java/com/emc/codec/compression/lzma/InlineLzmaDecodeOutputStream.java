@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.compression.lzma;
+
+import com.emc.codec.compression.CompressionException;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * LZMA decoding output stream that runs the decoder ({@link LzmaDecoder}) on the caller's thread (no coder thread or
+ * pipe). Written data is buffered and decoded to the wrapped stream as it arrives.
+ */
+public class InlineLzmaDecodeOutputStream extends FilterOutputStream {
+    private LzmaMemoryBudget budget;
+    private LzmaMemoryBudget.Reservation reservation;
+    private LzmaDecoder decoder;
+    private byte[] properties;
+    private byte[] inBuffer, outBuffer;
+    private int inStart = 0, inEnd = 0;
+    private boolean finished = false, closed = false;
+
+    /**
+     * @param budget decoder memory is reserved against this budget (may be null)
+     */
+    public InlineLzmaDecodeOutputStream(OutputStream originalStream, int bufferSize, LzmaMemoryBudget budget) {
+        super(originalStream);
+        this.budget = budget;
+        bufferSize = Math.max(bufferSize, LzmaDecoder.MAX_SYMBOL_INPUT * 2);
+        this.inBuffer = new byte[bufferSize];
+        this.outBuffer = new byte[bufferSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b) throws IOException {
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) throw new IOException("Stream closed");
+        while (len > 0) {
+            if (inEnd == inBuffer.length) {
+                if (inStart == 0) throw new CompressionException("unexpected data after end of LZMA stream");
+                // compact unconsumed input
+                System.arraycopy(inBuffer, inStart, inBuffer, 0, inEnd - inStart);
+                inEnd -= inStart;
+                inStart = 0;
+            }
+            int count = Math.min(len, inBuffer.length - inEnd);
+            System.arraycopy(b, off, inBuffer, inEnd, count);
+            inEnd += count;
+            off += count;
+            len -= count;
+            decode(false);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            decode(true);
+            if (!finished)
+                throw new CompressionException("LZMA stream is truncated");
+            if (inStart < inEnd) throw new CompressionException("unexpected data after end of LZMA stream");
+        } finally {
+            release();
+            out.close();
+        }
+    }
+
+    private void decode(boolean inputComplete) throws IOException {
+        if (finished) return;
+        if (decoder == null) {
+            if (inEnd - inStart < LzmaDecoder.PROPERTIES_SIZE) {
+                if (inputComplete) throw new CompressionException("Unable to read compression settings from stream");
+                return;
+            }
+            properties = new byte[LzmaDecoder.PROPERTIES_SIZE];
+            System.arraycopy(inBuffer, inStart, properties, 0, properties.length);
+            LzmaDecoder.validateProperties(properties);
+            inStart += properties.length;
+
+            reservation = DecoderTask.reserve(budget, properties);
+            decoder = LzmaCoderPool.getInstance().borrowInlineDecoder(properties);
+        }
+        try {
+            while (!decoder.isFinished()) {
+                int count = decoder.decode(inBuffer, inStart, inEnd - inStart, inputComplete,
+                        outBuffer, 0, outBuffer.length);
+                inStart = decoder.getInputPosition();
+                if (count == 0) break;
+                out.write(outBuffer, 0, count);
+            }
+        } catch (RuntimeException e) {
+            release();
+            throw e;
+        }
+        if (decoder.isFinished()) {
+            finished = true;
+            release();
+        }
+    }
+
+    // a decoder that reached the end marker goes back to the pool
+    private void release() {
+        if (decoder != null && finished) LzmaCoderPool.getInstance().returnInlineDecoder(decoder, properties);
+        decoder = null;
+        if (reservation != null) reservation.release();
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.compression.lzma;
+
+import com.emc.codec.compression.CompressionInputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * LZMA encoding input stream that runs the encoder on the caller's thread (no coder thread or pipe). Each read encodes
+ * just enough blocks of the source to return some output.
+ */
+public class InlineLzmaEncodeInputStream extends CompressionInputStream {
+    private LzmaProfile compressionProfile;
+    private LzmaMemoryBudget.Reservation reservation;
+    private InputStream prePipeStream;
+    private OutputBuffer encoded;
+    private LzmaEncoder encoder;
+
+    /**
+     * @param reservation memory reserved for the encoder (may be null); released when the stream is finished or
+     *                    closed
+     */
+    public InlineLzmaEncodeInputStream(InputStream in, String encodeSpec, LzmaProfile compressionProfile,
+                                       int bufferSize, LzmaMemoryBudget.Reservation reservation) {
+        super(in, encodeSpec);
+        this.compressionProfile = compressionProfile;
+        this.reservation = reservation;
+        this.encoded = new OutputBuffer(bufferSize);
+        initStreams(in);
+    }
+
+    @Override
+    protected InputStream getCompressionStream(InputStream input) throws IOException {
+        this.prePipeStream = input;
+        encoder = new LzmaEncoder(compressionProfile, input, encoded);
+        return new EncoderStream();
+    }
+
+    @Override
+    public void close() throws IOException {
+        super.close();
+
+        // make sure we close the source stream (this doesn't happen anywhere else)
+        prePipeStream.close();
+    }
+
+    private void release() {
+        encoder.release();
+        if (reservation != null) reservation.release();
+    }
+
+    private class EncoderStream extends InputStream {
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            try {
+                while (encoded.remaining() == 0 && !encoder.isFinished()) {
+                    if (encoder.encodeBlock()) release();
+                }
+            } catch (IOException e) {
+                release();
+                throw e;
+            } catch (RuntimeException e) {
+                release();
+                throw e;
+            }
+            return encoded.read(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            return encoded.remaining();
+        }
+
+        @Override
+        public void close() {
+            release();
+        }
+    }
+
+    /**
+     * Encoder output waiting to be read.
+     */
+    private static class OutputBuffer extends ByteArrayOutputStream {
+        private int readPos = 0;
+
+        OutputBuffer(int size) {
+            super(size);
+        }
+
+        int remaining() {
+            return count - readPos;
+        }
+
+        int read(byte[] b, int off, int len) {
+            if (remaining() == 0) return -1;
+            int n = Math.min(len, remaining());
+            System.arraycopy(buf, readPos, b, off, n);
+            readPos += n;
+            if (readPos == count) {
+                reset();
+                readPos = 0;
+            }
+            return n;
+        }
+    }
+}
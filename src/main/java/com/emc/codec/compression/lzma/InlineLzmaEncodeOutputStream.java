@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.compression.lzma;
+
+import com.emc.codec.compression.CompressionOutputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+
+/**
+ * LZMA encoding output stream that runs the encoder on the caller's thread (no coder thread or pipe).
+ * <p>
+ * The SDK encoder pulls its input and reads up to a full window ahead, so written data is queued until more than
+ * a window's worth (see {@link LzmaEncoder#getWindowSize(LzmaProfile)}) is available, and the rest is encoded on
+ * close. This holds up to about 1.5 times the dictionary size of input in memory (see
+ * {@link #getQueueSize(LzmaProfile)}), in chunks that are recycled as the encoder consumes them.
+ */
+public class InlineLzmaEncodeOutputStream extends CompressionOutputStream {
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int MAX_FREE_CHUNKS = 4;
+
+    /**
+     * @return the most memory the queued input can take for <code>profile</code>, on top of the encoder's own
+     * ({@link LzmaProfile#memoryRequiredForLzma(LzmaProfile)})
+     */
+    public static long getQueueSize(LzmaProfile profile) {
+        // below the threshold plus one chunk written, spread over chunks that may be partly consumed or filled
+        return LzmaEncoder.getWindowSize(profile) + 4 * CHUNK_SIZE;
+    }
+
+    private LzmaProfile compressionProfile;
+    private int bufferSize;
+    private LzmaMemoryBudget.Reservation reservation;
+    private long threshold;
+    private InputQueue queue;
+    private OutputStream bufferedOutput;
+    private LzmaEncoder encoder;
+
+    /**
+     * @param reservation memory reserved for the encoder (may be null); released when the stream is closed
+     */
+    public InlineLzmaEncodeOutputStream(OutputStream out, String encodeSpec, LzmaProfile compressionProfile,
+                                        int bufferSize, LzmaMemoryBudget.Reservation reservation) {
+        super(out, encodeSpec);
+        this.compressionProfile = compressionProfile;
+        this.bufferSize = bufferSize;
+        this.reservation = reservation;
+        initStreams(out);
+    }
+
+    @Override
+    protected OutputStream getCompressionStream(OutputStream output) throws IOException {
+        // the range coder writes a byte at a time
+        bufferedOutput = new BufferedOutputStream(output, bufferSize);
+        queue = new InputQueue();
+        threshold = LzmaEncoder.getWindowSize(compressionProfile) + CHUNK_SIZE;
+        encoder = new LzmaEncoder(compressionProfile, queue, bufferedOutput);
+        return new EncoderStream();
+    }
+
+    private class EncoderStream extends OutputStream {
+        private boolean closed = false;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed) throw new IOException("Stream closed");
+            // queue a chunk at a time so large writes do not grow the queue past the threshold
+            while (len > 0) {
+                int count = Math.min(len, CHUNK_SIZE);
+                queue.add(b, off, count);
+                off += count;
+                len -= count;
+                while (queue.getQueued() >= threshold) {
+                    encoder.encodeBlock();
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            try {
+                queue.eof = true;
+                while (!encoder.encodeBlock()) {
+                    // keep going
+                }
+                bufferedOutput.close();
+            } finally {
+                encoder.release();
+                queue = null;
+                if (reservation != null) reservation.release();
+            }
+        }
+    }
+
+    /**
+     * Holds written data until the encoder pulls it. Never blocks: the encoder is only run while enough data is
+     * queued, so running dry before EOF is a bug.
+     */
+    private static class InputQueue extends InputStream {
+        private ArrayDeque<byte[]> chunks = new ArrayDeque<byte[]>();
+        private ArrayDeque<byte[]> freeChunks = new ArrayDeque<byte[]>(MAX_FREE_CHUNKS);
+        private int headPos = 0; // read position in the first chunk
+        private int tailPos = CHUNK_SIZE; // write position in the last chunk
+        private long available = 0;
+        private boolean eof = false;
+
+        void add(byte[] b, int off, int len) {
+            while (len > 0) {
+                if (tailPos == CHUNK_SIZE) {
+                    byte[] chunk = freeChunks.poll();
+                    chunks.addLast(chunk != null ? chunk : new byte[CHUNK_SIZE]);
+                    tailPos = 0;
+                }
+                int count = Math.min(len, CHUNK_SIZE - tailPos);
+                System.arraycopy(b, off, chunks.peekLast(), tailPos, count);
+                tailPos += count;
+                available += count;
+                off += count;
+                len -= count;
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (available == 0) {
+                if (eof) return -1;
+                throw new IllegalStateException("LZMA encoder read past queued input");
+            }
+            int total = 0;
+            while (len > 0 && available > 0) {
+                byte[] head = chunks.peekFirst();
+                int end = chunks.size() == 1 ? tailPos : CHUNK_SIZE;
+                int count = Math.min(len, end - headPos);
+                System.arraycopy(head, headPos, b, off, count);
+                headPos += count;
+                available -= count;
+                total += count;
+                off += count;
+                len -= count;
+                if (headPos == CHUNK_SIZE) {
+                    byte[] chunk = chunks.removeFirst();
+                    if (freeChunks.size() < MAX_FREE_CHUNKS) freeChunks.push(chunk);
+                    headPos = 0;
+                }
+            }
+            return total;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(available, Integer.MAX_VALUE);
+        }
+
+        long getQueued() {
+            return available;
+        }
+    }
+}
@@ -31,14 +31,19 @@ package com.emc.codec.compression.lzma;
 import com.emc.codec.AbstractCodec;
 import com.emc.codec.EncodeInputStream;
 import com.emc.codec.EncodeOutputStream;
+import com.emc.codec.compression.AdaptiveCompressionInputStream;
+import com.emc.codec.compression.AdaptiveCompressionOutputStream;
 import com.emc.codec.compression.CompressionConstants;
+import com.emc.codec.compression.CompressionException;
 import com.emc.codec.compression.CompressionMetadata;
 import com.emc.codec.compression.CompressionUtil;
+import com.emc.codec.metrics.MetricsUtil;
 import com.emc.codec.util.CodecUtil;
 
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Map;
+import java.util.concurrent.Executor;
 
 public class LzmaCodec extends AbstractCodec<CompressionMetadata> {
     public static final String SUBSPEC = "LZMA";
@@ -46,6 +51,10 @@ public class LzmaCodec extends AbstractCodec<CompressionMetadata> {
 
     public static final String PROP_PIPE_BUFFER_SIZE = "com.emc.codec.lzma.LzmaCodec.pipeBufferSize";
     public static final String PROP_CUSTOM_PROFILE = "com.emc.codec.lzma.LzmaCodec.customProfile";
+    public static final String PROP_EXECUTOR = "com.emc.codec.lzma.LzmaCodec.executor";
+    public static final String PROP_MEMORY_BUDGET = "com.emc.codec.lzma.LzmaCodec.memoryBudget";
+    public static final String PROP_PROFILE_FALLBACK = "com.emc.codec.lzma.LzmaCodec.profileFallback";
+    public static final String PROP_INLINE = "com.emc.codec.lzma.LzmaCodec.inline";
 
     public static final int DEFAULT_PIPE_BUFFER_SIZE = 64 * 1024;
 
@@ -69,6 +78,61 @@ public class LzmaCodec extends AbstractCodec<CompressionMetadata> {
         codecProperties.put(PROP_CUSTOM_PROFILE, customProfile);
     }
 
+    /**
+     * @return the executor LZMA coders run on; {@link LzmaExecutor#getInstance()} if none is set
+     */
+    public static Executor getExecutor(Map<String, Object> codecProperties) {
+        Executor executor = (Executor) CodecUtil.getCodecProperty(PROP_EXECUTOR, codecProperties, null);
+        return executor != null ? executor : LzmaExecutor.getInstance();
+    }
+
+    /**
+     * Sets the executor to run LZMA coders on (the caller owns it). Each open LZMA stream occupies one task on the
+     * executor until it is closed, so the executor must be able to run as many tasks concurrently as there are streams
+     * open at once (or queue them, as {@link LzmaExecutor} does). Never use a caller-runs policy.
+     */
+    public static void setExecutor(Map<String, Object> codecProperties, Executor executor) {
+        codecProperties.put(PROP_EXECUTOR, executor);
+    }
+
+    /**
+     * @return the budget LZMA coder memory is reserved against; {@link LzmaMemoryBudget#getInstance()} if none is set
+     */
+    public static LzmaMemoryBudget getMemoryBudget(Map<String, Object> codecProperties) {
+        LzmaMemoryBudget budget = CodecUtil.getCodecProperty(PROP_MEMORY_BUDGET, codecProperties, null);
+        return budget != null ? budget : LzmaMemoryBudget.getInstance();
+    }
+
+    public static void setMemoryBudget(Map<String, Object> codecProperties, LzmaMemoryBudget budget) {
+        codecProperties.put(PROP_MEMORY_BUDGET, budget);
+    }
+
+    /**
+     * If true and there is not enough memory budget free for an encoder at the requested compression level, the
+     * highest lower level that fits is used instead (and recorded in the encode spec) rather than waiting. Does not
+     * apply to custom profiles.
+     */
+    public static boolean isProfileFallback(Map<String, Object> codecProperties) {
+        return CodecUtil.getCodecProperty(PROP_PROFILE_FALLBACK, codecProperties, Boolean.FALSE);
+    }
+
+    public static void setProfileFallback(Map<String, Object> codecProperties, boolean profileFallback) {
+        codecProperties.put(PROP_PROFILE_FALLBACK, profileFallback);
+    }
+
+    /**
+     * If true (the default), LZMA coders run on the calling thread as the stream is read or written (see
+     * {@link InlineLzmaEncodeOutputStream} and friends). If false, each stream runs its coder as a task on the
+     * executor (see {@link #getExecutor(Map)}) connected by a pipe.
+     */
+    public static boolean isInline(Map<String, Object> codecProperties) {
+        return CodecUtil.getCodecProperty(PROP_INLINE, codecProperties, Boolean.TRUE);
+    }
+
+    public static void setInline(Map<String, Object> codecProperties, boolean inline) {
+        codecProperties.put(PROP_INLINE, inline);
+    }
+
     @Override
     public boolean canProcess(String encodeSpec) {
         String algorithm = CodecUtil.getEncodeAlgorithm(encodeSpec);
@@ -76,6 +140,12 @@ public class LzmaCodec extends AbstractCodec<CompressionMetadata> {
                 && algorithm != null && algorithm.startsWith(SUBSPEC);
     }
 
+    @Override
+    public void validate(String encodeSpec, Map<String, Object> codecProperties) {
+        super.validate(encodeSpec, codecProperties);
+        CompressionUtil.getCompressionLevel(encodeSpec, CompressionConstants.DEFAULT_COMPRESSION_LEVEL);
+    }
+
     @Override
     public String getDefaultEncodeSpec() {
         return encodeSpec(CompressionConstants.DEFAULT_COMPRESSION_LEVEL);
@@ -99,13 +169,23 @@ public class LzmaCodec extends AbstractCodec<CompressionMetadata> {
     @Override
     public OutputStream getDecodingStream(OutputStream originalStream, CompressionMetadata metadata,
                                           Map<String, Object> codecProperties) {
-        return new LzmaDecodeOutputStream(originalStream, getPipeBufferSize(codecProperties));
+        if (isInline(codecProperties))
+            return new InlineLzmaDecodeOutputStream(originalStream, getPipeBufferSize(codecProperties),
+                    getMemoryBudget(codecProperties));
+        return new LzmaDecodeOutputStream(originalStream, getPipeBufferSize(codecProperties), metadata.getEncodeSpec(),
+                MetricsUtil.getMetrics(codecProperties), getExecutor(codecProperties),
+                getMemoryBudget(codecProperties));
     }
 
     @Override
-    public InputStream getDecodingStream(InputStream originalStream, CompressionMetadata metadataetadata,
+    public InputStream getDecodingStream(InputStream originalStream, CompressionMetadata metadata,
                                          Map<String, Object> codecProperties) {
-        return new LzmaDecodeInputStream(originalStream, getPipeBufferSize(codecProperties));
+        if (isInline(codecProperties))
+            return new InlineLzmaDecodeInputStream(originalStream, getPipeBufferSize(codecProperties),
+                    getMemoryBudget(codecProperties));
+        return new LzmaDecodeInputStream(originalStream, getPipeBufferSize(codecProperties), metadata.getEncodeSpec(),
+                MetricsUtil.getMetrics(codecProperties), getExecutor(codecProperties),
+                getMemoryBudget(codecProperties));
     }
 
     @Override
@@ -122,23 +202,89 @@ public class LzmaCodec extends AbstractCodec<CompressionMetadata> {
     public EncodeOutputStream<CompressionMetadata> getEncodingStream(OutputStream originalStream, String encodeSpec,
                                                                      Map<String, Object> codecProperties) {
         if (!canProcess(encodeSpec)) throw new IllegalArgumentException("cannot process " + encodeSpec);
-        LzmaProfile profile = getCustomProfile(codecProperties);
-        if (profile == null) {
-            int compressionLevel = CompressionUtil.getCompressionLevel(encodeSpec, CompressionConstants.DEFAULT_COMPRESSION_LEVEL);
-            profile = LzmaProfile.fromCompressionLevel(compressionLevel);
-        }
-        return new LzmaEncodeOutputStream(originalStream, encodeSpec, profile, getPipeBufferSize(codecProperties));
+        if (CompressionUtil.isAdaptive(codecProperties))
+            return new AdaptiveCompressionOutputStream(originalStream, encodeSpec, this, codecProperties);
+        boolean inline = isInline(codecProperties) && LzmaEncoder.isSupported();
+        EncoderSettings settings = reserveEncoder(encodeSpec, codecProperties, inline);
+        if (inline)
+            return new InlineLzmaEncodeOutputStream(originalStream, settings.encodeSpec, settings.profile,
+                    getPipeBufferSize(codecProperties), settings.reservation);
+        return new LzmaEncodeOutputStream(originalStream, settings.encodeSpec, settings.profile,
+                getPipeBufferSize(codecProperties), MetricsUtil.getMetrics(codecProperties),
+                getExecutor(codecProperties), settings.reservation);
     }
 
     @Override
     public EncodeInputStream<CompressionMetadata> getEncodingStream(InputStream originalStream, String encodeSpec,
                                                                     Map<String, Object> codecProperties) {
         if (!canProcess(encodeSpec)) throw new IllegalArgumentException("cannot process " + encodeSpec);
+        if (CompressionUtil.isAdaptive(codecProperties))
+            return new AdaptiveCompressionInputStream(originalStream, encodeSpec, this, codecProperties);
+        EncoderSettings settings = reserveEncoder(encodeSpec, codecProperties, false);
+        if (isInline(codecProperties) && LzmaEncoder.isSupported())
+            return new InlineLzmaEncodeInputStream(originalStream, settings.encodeSpec, settings.profile,
+                    getPipeBufferSize(codecProperties), settings.reservation);
+        return new LzmaEncodeInputStream(originalStream, settings.encodeSpec, settings.profile,
+                getPipeBufferSize(codecProperties), MetricsUtil.getMetrics(codecProperties),
+                getExecutor(codecProperties), settings.reservation);
+    }
+
+    /**
+     * Picks the encoder profile for <code>encodeSpec</code> and reserves its memory against the budget, falling back
+     * to a lower compression level if enabled (see {@link #isProfileFallback(Map)}), otherwise waiting up to the
+     * budget's timeout.
+     *
+     * @param queuedInput whether the encoder's input is queued in memory as well (see
+     *                    {@link InlineLzmaEncodeOutputStream#getQueueSize(LzmaProfile)})
+     */
+    protected EncoderSettings reserveEncoder(String encodeSpec, Map<String, Object> codecProperties,
+                                             boolean queuedInput) {
+        LzmaMemoryBudget budget = getMemoryBudget(codecProperties);
         LzmaProfile profile = getCustomProfile(codecProperties);
+        int compressionLevel = -1;
         if (profile == null) {
-            int compressionLevel = CompressionUtil.getCompressionLevel(encodeSpec, CompressionConstants.DEFAULT_COMPRESSION_LEVEL);
+            compressionLevel = CompressionUtil.getCompressionLevel(encodeSpec, CompressionConstants.DEFAULT_COMPRESSION_LEVEL);
             profile = LzmaProfile.fromCompressionLevel(compressionLevel);
         }
-        return new LzmaEncodeInputStream(originalStream, encodeSpec, profile, getPipeBufferSize(codecProperties));
+
+        LzmaMemoryBudget.Reservation reservation = budget.tryReserve(memoryRequired(profile, queuedInput));
+        if (reservation != null) return new EncoderSettings(encodeSpec, profile, reservation);
+
+        if (compressionLevel > 0 && isProfileFallback(codecProperties)) {
+            for (int level = compressionLevel - 1; level >= 0; level--) {
+                LzmaProfile levelProfile = LzmaProfile.fromCompressionLevel(level);
+                reservation = budget.tryReserve(memoryRequired(levelProfile, queuedInput));
+                if (reservation != null) return new EncoderSettings(encodeSpec(level), levelProfile, reservation);
+            }
+        }
+
+        long required = memoryRequired(profile, queuedInput);
+        try {
+            reservation = budget.reserve(required);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CompressionException("interrupted while waiting for LZMA memory budget", e);
+        }
+        if (reservation == null)
+            throw new CompressionException("timed out waiting for " + required + " bytes of LZMA memory budget");
+        return new EncoderSettings(encodeSpec, profile, reservation);
+    }
+
+    private long memoryRequired(LzmaProfile profile, boolean queuedInput) {
+        long required = LzmaProfile.memoryRequiredForLzma(profile);
+        if (queuedInput) required += InlineLzmaEncodeOutputStream.getQueueSize(profile);
+        return required;
+    }
+
+    protected static class EncoderSettings {
+        String encodeSpec;
+        LzmaProfile profile;
+        LzmaMemoryBudget.Reservation reservation;
+
+        EncoderSettings(String encodeSpec, LzmaProfile profile, LzmaMemoryBudget.Reservation reservation) {
+            this.encodeSpec = encodeSpec;
+            this.profile = profile;
+            this.reservation = reservation;
+        }
     }
 }
@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.compression.lzma;
+
+import SevenZip.Compression.LZMA.Decoder;
+import SevenZip.Compression.LZMA.Encoder;
+import com.emc.codec.compression.CompressionException;
+import com.emc.codec.util.CodecUtil;
+
+import java.lang.ref.SoftReference;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of idle LZMA coders, so the large buffers they allocate (the encoder's match finder, the decoder's window) are
+ * reused across streams instead of reallocated for each one. Encoders are keyed by the profile settings that size
+ * their buffers; decoders by window size.
+ * <p>
+ * Idle coders are held by soft reference, so the garbage collector can reclaim them under memory pressure, and the
+ * total estimated size of idle coders is capped; when a returned coder would exceed the cap, the least recently
+ * returned coders are dropped. A borrowed coder must be returned at most once, and only after it has finished a
+ * stream cleanly (coders abandoned mid-stream should simply be dropped).
+ */
+public class LzmaCoderPool {
+    public static final String PROP_MAX_IDLE_BYTES = "com.emc.codec.compression.lzma.LzmaCoderPool.maxIdleBytes";
+
+    public static final long DEFAULT_MAX_IDLE_BYTES = Runtime.getRuntime().maxMemory() / 4;
+
+    private static final LzmaCoderPool instance = new LzmaCoderPool(
+            CodecUtil.getCodecProperty(PROP_MAX_IDLE_BYTES, null, DEFAULT_MAX_IDLE_BYTES));
+
+    /**
+     * The shared pool used by the LZMA streams. Its size can be set with the system property
+     * {@link #PROP_MAX_IDLE_BYTES}.
+     */
+    public static LzmaCoderPool getInstance() {
+        return instance;
+    }
+
+    private final long maxIdleBytes;
+    private final LinkedList<Entry> idle = new LinkedList<Entry>(); // least recently returned first
+    private long idleBytes = 0;
+    private AtomicLong createdCount = new AtomicLong();
+    private AtomicLong reusedCount = new AtomicLong();
+
+    /**
+     * @param maxIdleBytes the most (estimated) memory idle coders may hold. 0 disables pooling.
+     */
+    public LzmaCoderPool(long maxIdleBytes) {
+        if (maxIdleBytes < 0) throw new IllegalArgumentException("Invalid pool size: " + maxIdleBytes);
+        this.maxIdleBytes = maxIdleBytes;
+    }
+
+    /**
+     * @return an SDK encoder configured for <code>profile</code> (with end marker)
+     */
+    public Encoder borrowEncoder(LzmaProfile profile) {
+        Encoder encoder = (Encoder) poll(encoderKey(profile));
+        if (encoder == null) {
+            encoder = new Encoder();
+            encoder.SetDictionarySize(profile.dictionarySize);
+            encoder.SetNumFastBytes(profile.fastBytes);
+            encoder.SetMatchFinder(profile.matchFinder);
+            encoder.SetLcLpPb(profile.lc, profile.lp, profile.pb);
+            encoder.SetEndMarkerMode(true);
+            createdCount.incrementAndGet();
+        }
+        return encoder;
+    }
+
+    /**
+     * @param profile must be the profile the encoder was borrowed with
+     */
+    public void returnEncoder(Encoder encoder, LzmaProfile profile) {
+        offer(encoderKey(profile), encoder, LzmaProfile.memoryRequiredForLzma(profile));
+    }
+
+    /**
+     * @return an SDK decoder configured with <code>properties</code> (the stream header)
+     * @throws CompressionException if the decoder rejects the properties
+     */
+    public Decoder borrowDecoder(byte[] properties) {
+        Decoder decoder = (Decoder) poll(decoderKey(Decoder.class, properties));
+        if (decoder == null) {
+            decoder = new Decoder();
+            createdCount.incrementAndGet();
+        }
+        if (!decoder.SetDecoderProperties(properties))
+            throw new CompressionException("LZMA decoder rejected compression settings from stream");
+        return decoder;
+    }
+
+    /**
+     * @param properties must be the properties the decoder was borrowed with
+     */
+    public void returnDecoder(Decoder decoder, byte[] properties) {
+        offer(decoderKey(Decoder.class, properties), decoder, LzmaDecoder.memoryRequired(properties));
+    }
+
+    /**
+     * @return an inline decoder reset for <code>properties</code> (the stream header)
+     */
+    public LzmaDecoder borrowInlineDecoder(byte[] properties) {
+        LzmaDecoder.validateProperties(properties);
+        LzmaDecoder decoder = (LzmaDecoder) poll(decoderKey(LzmaDecoder.class, properties));
+        if (decoder == null) {
+            createdCount.incrementAndGet();
+            return new LzmaDecoder(properties);
+        }
+        decoder.reset(properties);
+        return decoder;
+    }
+
+    /**
+     * @param properties must be the properties the decoder was borrowed (or last reset) with
+     */
+    public void returnInlineDecoder(LzmaDecoder decoder, byte[] properties) {
+        offer(decoderKey(LzmaDecoder.class, properties), decoder, LzmaDecoder.memoryRequired(properties));
+    }
+
+    /**
+     * Drops all idle coders.
+     */
+    public synchronized void clear() {
+        idle.clear();
+        idleBytes = 0;
+    }
+
+    /**
+     * @return the estimated memory held by idle coders (including any the garbage collector has cleared but the pool
+     * has not yet noticed)
+     */
+    public synchronized long getIdleBytes() {
+        return idleBytes;
+    }
+
+    public synchronized int getIdleCount() {
+        return idle.size();
+    }
+
+    public long getMaxIdleBytes() {
+        return maxIdleBytes;
+    }
+
+    /**
+     * @return the number of coders created because no idle coder matched
+     */
+    public long getCreatedCount() {
+        return createdCount.get();
+    }
+
+    /**
+     * @return the number of borrows satisfied by an idle coder
+     */
+    public long getReusedCount() {
+        return reusedCount.get();
+    }
+
+    private synchronized Object poll(String key) {
+        // most recently returned first (most likely still softly reachable)
+        Iterator<Entry> i = idle.descendingIterator();
+        while (i.hasNext()) {
+            Entry entry = i.next();
+            Object coder = entry.coder.get();
+            if (coder == null) {
+                i.remove();
+                idleBytes -= entry.bytes;
+            } else if (entry.key.equals(key)) {
+                i.remove();
+                idleBytes -= entry.bytes;
+                reusedCount.incrementAndGet();
+                return coder;
+            }
+        }
+        return null;
+    }
+
+    private synchronized void offer(String key, Object coder, long bytes) {
+        if (bytes > maxIdleBytes) return;
+        idle.addLast(new Entry(key, coder, bytes));
+        idleBytes += bytes;
+        while (idleBytes > maxIdleBytes) {
+            idleBytes -= idle.removeFirst().bytes;
+        }
+    }
+
+    private String encoderKey(LzmaProfile profile) {
+        return "E/" + profile.dictionarySize + "/" + profile.fastBytes + "/" + profile.matchFinder
+                + "/" + profile.lc + "/" + profile.lp;
+    }
+
+    private String decoderKey(Class<?> type, byte[] properties) {
+        return type.getSimpleName() + "/" + LzmaDecoder.getWindowSize(properties)
+                + "/" + (LzmaDecoder.getLc(properties) + LzmaDecoder.getLp(properties));
+    }
+
+    private static class Entry {
+        String key;
+        SoftReference<Object> coder;
+        long bytes;
+
+        Entry(String key, Object coder, long bytes) {
+            this.key = key;
+            this.coder = new SoftReference<Object>(coder);
+            this.bytes = bytes;
+        }
+    }
+}
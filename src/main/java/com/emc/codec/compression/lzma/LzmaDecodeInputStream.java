@@ -29,30 +29,51 @@
 package com.emc.codec.compression.lzma;
 
 import com.emc.codec.compression.CompressionException;
+import com.emc.codec.metrics.ByteMeter;
+import com.emc.codec.metrics.CodecMetrics;
+import com.emc.codec.metrics.MeteredInputStream;
+import com.emc.codec.metrics.MetricsUtil;
+import com.emc.codec.metrics.NoOpCodecMetrics;
+import com.emc.codec.util.RingPipe;
 
 import java.io.*;
+import java.util.concurrent.Executor;
 
 public class LzmaDecodeInputStream extends FilterInputStream {
     private InputStream originalStream;
-    DecoderThread decoderThread;
+    DecoderTask decoderTask;
+    private String encodeSpec;
+    private CodecMetrics metrics;
+    private ByteMeter pipeMeter;
 
     public LzmaDecodeInputStream(InputStream originalStream, int bufferSize) {
+        this(originalStream, bufferSize, null, NoOpCodecMetrics.INSTANCE, null, null);
+    }
+
+    /**
+     * @param executor runs the decoder; if null, the decoder runs on its own thread
+     * @param budget   decoder memory is reserved against this budget (may be null)
+     */
+    public LzmaDecodeInputStream(InputStream originalStream, int bufferSize, String encodeSpec, CodecMetrics metrics,
+                                 Executor executor, LzmaMemoryBudget budget) {
         super(originalStream);
         this.originalStream = originalStream;
+        this.encodeSpec = encodeSpec;
+        this.metrics = metrics;
 
-        try {
-            // The LZMA Encoder reads from an input stream and writes to an output stream and
-            // thus does not make a good filter.  We need to create a pipe and and use an
-            // auxiliary thread to compress the data.
-            PipedInputStream inputPipe = new PipedInputStream(bufferSize);
-            PipedOutputStream outputPipe = new PipedOutputStream(inputPipe);
+        // The LZMA Encoder reads from an input stream and writes to an output stream and
+        // thus does not make a good filter.  We need to create a pipe and and use an
+        // auxiliary thread to compress the data.
+        RingPipe pipe = new RingPipe(bufferSize);
 
-            decoderThread = new DecoderThread(originalStream, outputPipe);
-            decoderThread.start();
+        decoderTask = new DecoderTask(originalStream, pipe.getOutputStream(), budget);
+        decoderTask.setMetrics(metrics);
+        decoderTask.start(executor);
 
-            this.in = inputPipe;
-        } catch (IOException e) {
-            throw new CompressionException("Could not create decompression stream", e);
+        this.in = pipe.getInputStream();
+        if (MetricsUtil.isEnabled(metrics)) {
+            pipeMeter = new ByteMeter(false);
+            this.in = new MeteredInputStream(pipe.getInputStream(), pipeMeter);
         }
     }
 
@@ -81,13 +102,15 @@ public class LzmaDecodeInputStream extends FilterInputStream {
         // make sure we close the stream attached to the pipe (this doesn't happen anywhere else)
         originalStream.close();
 
+        if (pipeMeter != null) metrics.pipeBlocked(encodeSpec, false, pipeMeter.getNanos());
+
         // Free the encoder
-        decoderThread = null;
+        decoderTask = null;
     }
 
     protected void checkForError() {
-        if (decoderThread != null && decoderThread.isErrorSet()) {
-            Throwable t = decoderThread.getError();
+        if (decoderTask != null && decoderTask.isErrorSet()) {
+            Throwable t = decoderTask.getError();
             if (t instanceof RuntimeException) throw (RuntimeException) t;
             throw new CompressionException("Compression error", t);
         }
@@ -29,31 +29,51 @@
 package com.emc.codec.compression.lzma;
 
 import com.emc.codec.compression.CompressionException;
+import com.emc.codec.metrics.ByteMeter;
+import com.emc.codec.metrics.CodecMetrics;
+import com.emc.codec.metrics.MeteredOutputStream;
+import com.emc.codec.metrics.MetricsUtil;
+import com.emc.codec.metrics.NoOpCodecMetrics;
+import com.emc.codec.util.RingPipe;
 
 import java.io.*;
+import java.util.concurrent.Executor;
 
 public class LzmaDecodeOutputStream extends FilterOutputStream {
     private OutputStream originalStream;
-    private PipedOutputStream outputPipe;
-    DecoderThread decoderThread;
+    DecoderTask decoderTask;
+    private String encodeSpec;
+    private CodecMetrics metrics;
+    private ByteMeter pipeMeter;
 
     public LzmaDecodeOutputStream(OutputStream originalStream, int bufferSize) {
+        this(originalStream, bufferSize, null, NoOpCodecMetrics.INSTANCE, null, null);
+    }
+
+    /**
+     * @param executor runs the decoder; if null, the decoder runs on its own thread
+     * @param budget   decoder memory is reserved against this budget (may be null)
+     */
+    public LzmaDecodeOutputStream(OutputStream originalStream, int bufferSize, String encodeSpec, CodecMetrics metrics,
+                                  Executor executor, LzmaMemoryBudget budget) {
         super(originalStream);
         this.originalStream = originalStream;
-
-        try {
-            // The LZMA Encoder reads from an input stream and writes to an output stream and
-            // thus does not make a good filter.  We need to create a pipe and and use an
-            // auxiliary thread to compress the data.
-            PipedInputStream inputPipe = new PipedInputStream(bufferSize);
-            outputPipe = new PipedOutputStream(inputPipe);
-
-            decoderThread = new DecoderThread(inputPipe, originalStream);
-            decoderThread.start();
-
-            this.out = outputPipe;
-        } catch (IOException e) {
-            throw new CompressionException("Could not create decompression stream", e);
+        this.encodeSpec = encodeSpec;
+        this.metrics = metrics;
+
+        // The LZMA Encoder reads from an input stream and writes to an output stream and
+        // thus does not make a good filter.  We need to create a pipe and and use an
+        // auxiliary thread to compress the data.
+        RingPipe pipe = new RingPipe(bufferSize);
+
+        decoderTask = new DecoderTask(pipe.getInputStream(), originalStream, budget);
+        decoderTask.setMetrics(metrics);
+        decoderTask.start(executor);
+
+        this.out = pipe.getOutputStream();
+        if (MetricsUtil.isEnabled(metrics)) {
+            pipeMeter = new ByteMeter(false);
+            this.out = new MeteredOutputStream(pipe.getOutputStream(), pipeMeter);
         }
     }
 
@@ -80,22 +100,28 @@ public class LzmaDecodeOutputStream extends FilterOutputStream {
         super.close();
 
         // make sure we flush the pipe
+        long start = System.nanoTime();
         try {
-            decoderThread.join();
+            decoderTask.join();
         } catch (InterruptedException e) {
-            throw new CompressionException("interrupted while waiting for encoder thread", e);
+            throw new CompressionException("interrupted while waiting for decoder", e);
+        }
+
+        if (pipeMeter != null) {
+            pipeMeter.add(0, start, 0);
+            metrics.pipeBlocked(encodeSpec, false, pipeMeter.getNanos());
         }
 
         // make sure we close the wrapped stream (this doesn't happen anywhere else)
         originalStream.close();
 
         // Free the decoder
-        decoderThread = null;
+        decoderTask = null;
     }
 
     protected void checkForError() {
-        if (decoderThread != null && decoderThread.isErrorSet()) {
-            Throwable t = decoderThread.getError();
+        if (decoderTask != null && decoderTask.isErrorSet()) {
+            Throwable t = decoderTask.getError();
             if (t instanceof RuntimeException) throw (RuntimeException) t;
             throw new CompressionException("Compression error", t);
         }
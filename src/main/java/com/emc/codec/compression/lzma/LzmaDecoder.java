@@ -0,0 +1,452 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.compression.lzma;
+
+import com.emc.codec.compression.CompressionException;
+
+/**
+ * An incremental LZMA decoder for the stream format written by the LZMA SDK encoder (with end marker) as used by
+ * {@link LzmaCodec}: a 5-byte properties header followed by range-coded data. Unlike the SDK decoder, it does not own
+ * a read/write loop; each call to {@link #decode(byte[], int, int, boolean, byte[], int, int)} decodes as much as the
+ * given input and output space allow, so it can run on the caller's thread.
+ * <p>
+ * Because a symbol cannot be partially decoded, input is only consumed while at least {@link #MAX_SYMBOL_INPUT} bytes
+ * are available, unless the caller says the input is complete.
+ */
+public class LzmaDecoder {
+    public static final int PROPERTIES_SIZE = 5;
+
+    /**
+     * More input than any single symbol (including the range decoder's initialization) can consume.
+     */
+    public static final int MAX_SYMBOL_INPUT = 32;
+
+    private static final int NUM_STATES = 12;
+    private static final int POS_STATES_MAX = 1 << 4;
+    private static final int LEN_TO_POS_STATES = 4;
+    private static final int END_POS_MODEL_INDEX = 14;
+    private static final int NUM_FULL_DISTANCES = 1 << (END_POS_MODEL_INDEX >>> 1);
+    private static final int NUM_ALIGN_BITS = 4;
+    private static final int MATCH_MIN_LEN = 2;
+    private static final int PROB_INIT = 1024;
+
+    /**
+     * Parses the properties header (see {@link #getDictionarySize(byte[])} etc.).
+     *
+     * @throws CompressionException if the properties are invalid
+     */
+    public static void validateProperties(byte[] properties) {
+        if (properties.length < PROPERTIES_SIZE)
+            throw new CompressionException("LZMA properties are too short");
+        if ((properties[0] & 0xff) >= 9 * 5 * 5)
+            throw new CompressionException("LZMA decoder rejected compression settings from stream");
+        if (getDictionarySize(properties) < 0)
+            throw new CompressionException("LZMA decoder rejected dictionary size from stream");
+    }
+
+    public static int getLc(byte[] properties) {
+        return (properties[0] & 0xff) % 9;
+    }
+
+    public static int getLp(byte[] properties) {
+        return (properties[0] & 0xff) / 9 % 5;
+    }
+
+    public static int getPb(byte[] properties) {
+        return (properties[0] & 0xff) / 45;
+    }
+
+    public static int getDictionarySize(byte[] properties) {
+        int dictionarySize = 0;
+        for (int i = 0; i < 4; i++) {
+            dictionarySize |= (properties[1 + i] & 0xff) << (i * 8);
+        }
+        return dictionarySize;
+    }
+
+    /**
+     * @return the memory needed by a decoder for these properties
+     */
+    public static long memoryRequired(byte[] properties) {
+        return LzmaProfile.memoryRequiredForDecoder(getDictionarySize(properties), getLc(properties), getLp(properties));
+    }
+
+    private int lc, lpMask, pbMask;
+    private int dictionarySize;
+
+    // dictionary (circular)
+    private byte[] window;
+    private int windowPos;
+    private long totalPos;
+
+    // range decoder
+    private int range;
+    private int code;
+    private boolean rangeInitialized;
+    private byte[] in;
+    private int inPos, inLimit;
+
+    // decoder state
+    private int state;
+    private int rep0, rep1, rep2, rep3;
+    private int pendingLength; // remainder of a match that didn't fit in the output
+    private boolean finished;
+
+    private final short[] isMatch = new short[NUM_STATES * POS_STATES_MAX];
+    private final short[] isRep = new short[NUM_STATES];
+    private final short[] isRepG0 = new short[NUM_STATES];
+    private final short[] isRepG1 = new short[NUM_STATES];
+    private final short[] isRepG2 = new short[NUM_STATES];
+    private final short[] isRep0Long = new short[NUM_STATES * POS_STATES_MAX];
+    private final short[][] posSlot = new short[LEN_TO_POS_STATES][1 << 6];
+    private final short[] posDecoders = new short[1 + NUM_FULL_DISTANCES - END_POS_MODEL_INDEX];
+    private final short[] align = new short[1 << NUM_ALIGN_BITS];
+    private final LengthDecoder lengthDecoder = new LengthDecoder();
+    private final LengthDecoder repLengthDecoder = new LengthDecoder();
+    private short[] literals;
+
+    /**
+     * @param properties the 5-byte header at the start of the stream
+     */
+    public LzmaDecoder(byte[] properties) {
+        reset(properties);
+    }
+
+    /**
+     * Prepares this decoder for a new stream, keeping its window (and literal tables) if they are the right size.
+     *
+     * @param properties the 5-byte header at the start of the stream
+     */
+    public void reset(byte[] properties) {
+        validateProperties(properties);
+        lc = getLc(properties);
+        lpMask = (1 << getLp(properties)) - 1;
+        pbMask = (1 << getPb(properties)) - 1;
+        dictionarySize = Math.max(getDictionarySize(properties), 1);
+        int windowSize = getWindowSize(properties);
+        if (window == null || window.length != windowSize) window = new byte[windowSize];
+        int literalsSize = 0x300 << (lc + getLp(properties));
+        if (literals == null || literals.length != literalsSize) literals = new short[literalsSize];
+
+        windowPos = 0;
+        totalPos = 0;
+        range = 0xffffffff;
+        code = 0;
+        rangeInitialized = false;
+        state = 0;
+        rep0 = rep1 = rep2 = rep3 = 0;
+        pendingLength = 0;
+        finished = false;
+
+        init(isMatch, isRep, isRepG0, isRepG1, isRepG2, isRep0Long, posDecoders, align, literals);
+        for (short[] probs : posSlot) init(probs);
+        lengthDecoder.reset();
+        repLengthDecoder.reset();
+    }
+
+    /**
+     * @return the size of the window a decoder allocates for these properties
+     */
+    public static int getWindowSize(byte[] properties) {
+        return Math.max(getDictionarySize(properties), 1 << 12);
+    }
+
+    /**
+     * Decodes from <code>input</code> into <code>output</code>. Returns when the output is full, the input runs short
+     * (less than {@link #MAX_SYMBOL_INPUT} bytes left and <code>inputComplete</code> is false) or the end marker is
+     * reached. Call {@link #getInputPosition()} afterward to see how much input was consumed.
+     *
+     * @param inputComplete true if no more input follows <code>input</code>
+     * @return the number of bytes written to <code>output</code>
+     * @throws CompressionException if the data is corrupt or truncated
+     */
+    public int decode(byte[] input, int inOffset, int inLength, boolean inputComplete,
+                      byte[] output, int outOffset, int outLength) {
+        in = input;
+        inPos = inOffset;
+        inLimit = inOffset + inLength;
+        int outPos = outOffset, outLimit = outOffset + outLength;
+        try {
+            if (!rangeInitialized) {
+                if (inLength < PROPERTIES_SIZE) {
+                    if (inputComplete) throw new CompressionException("LZMA stream is truncated");
+                    return 0;
+                }
+                if (in[inPos++] != 0) throw new CompressionException("LZMA stream is corrupt");
+                for (int i = 0; i < 4; i++) {
+                    code = (code << 8) | (in[inPos++] & 0xff);
+                }
+                rangeInitialized = true;
+            }
+
+            while (outPos < outLimit) {
+                // finish a match that didn't fit last time
+                if (pendingLength > 0) {
+                    int count = Math.min(pendingLength, outLimit - outPos);
+                    copyMatch(count, output, outPos);
+                    outPos += count;
+                    pendingLength -= count;
+                    continue;
+                }
+                if (finished) break;
+                if (inLimit - inPos < MAX_SYMBOL_INPUT) {
+                    if (!inputComplete) break;
+                    if (inPos >= inLimit) throw new CompressionException("LZMA stream is truncated");
+                }
+                outPos += decodeSymbol(output, outPos);
+            }
+            return outPos - outOffset;
+        } finally {
+            in = null;
+        }
+    }
+
+    /**
+     * @return the position in the last input array up to which input was consumed
+     */
+    public int getInputPosition() {
+        return inPos;
+    }
+
+    /**
+     * @return true when the end marker has been decoded and all output has been returned
+     */
+    public boolean isFinished() {
+        return finished && pendingLength == 0;
+    }
+
+    /**
+     * @return the number of bytes decoded so far
+     */
+    public long getDecodedSize() {
+        return totalPos - pendingLength;
+    }
+
+    // decodes one literal or match (a match may be left pending); returns the number of bytes written to output
+    private int decodeSymbol(byte[] output, int outPos) {
+        int posState = (int) totalPos & pbMask;
+
+        if (decodeBit(isMatch, (state << 4) + posState) == 0) {
+            int prevByte = totalPos == 0 ? 0 : window[(windowPos == 0 ? window.length : windowPos) - 1] & 0xff;
+            int base = 0x300 * ((((int) totalPos & lpMask) << lc) + (prevByte >>> (8 - lc)));
+            int symbol = 1;
+            if (state < 7) {
+                do {
+                    symbol = (symbol << 1) | decodeBit(literals, base + symbol);
+                } while (symbol < 0x100);
+            } else {
+                int matchByte = getByte(rep0);
+                do {
+                    int matchBit = (matchByte >>> 7) & 1;
+                    matchByte <<= 1;
+                    int bit = decodeBit(literals, base + ((1 + matchBit) << 8) + symbol);
+                    symbol = (symbol << 1) | bit;
+                    if (matchBit != bit) {
+                        while (symbol < 0x100) {
+                            symbol = (symbol << 1) | decodeBit(literals, base + symbol);
+                        }
+                        break;
+                    }
+                } while (symbol < 0x100);
+            }
+            putByte((byte) symbol, output, outPos);
+            state = state < 4 ? 0 : (state < 10 ? state - 3 : state - 6);
+            return 1;
+        }
+
+        int length;
+        if (decodeBit(isRep, state) == 1) {
+            if (totalPos == 0) throw new CompressionException("LZMA stream is corrupt");
+            if (decodeBit(isRepG0, state) == 0) {
+                if (decodeBit(isRep0Long, (state << 4) + posState) == 0) { // short rep
+                    state = state < 7 ? 9 : 11;
+                    putByte((byte) getByte(rep0), output, outPos);
+                    return 1;
+                }
+            } else {
+                int distance;
+                if (decodeBit(isRepG1, state) == 0) {
+                    distance = rep1;
+                } else {
+                    if (decodeBit(isRepG2, state) == 0) {
+                        distance = rep2;
+                    } else {
+                        distance = rep3;
+                        rep3 = rep2;
+                    }
+                    rep2 = rep1;
+                }
+                rep1 = rep0;
+                rep0 = distance;
+            }
+            length = repLengthDecoder.decode(posState);
+            state = state < 7 ? 8 : 11;
+        } else {
+            rep3 = rep2;
+            rep2 = rep1;
+            rep1 = rep0;
+            length = lengthDecoder.decode(posState);
+            state = state < 7 ? 7 : 10;
+            rep0 = decodeDistance(length);
+            if (rep0 == -1) { // end marker
+                finished = true;
+                return 0;
+            }
+            if (rep0 < 0 || rep0 >= totalPos || rep0 >= dictionarySize)
+                throw new CompressionException("LZMA stream is corrupt");
+        }
+
+        pendingLength = length + MATCH_MIN_LEN;
+        return 0; // the match is copied by the caller loop (so it can be split across outputs)
+    }
+
+    private int decodeDistance(int length) {
+        int lenState = Math.min(length, LEN_TO_POS_STATES - 1);
+        int slot = decodeTree(posSlot[lenState], 0, 6);
+        if (slot < 4) return slot;
+
+        int numDirectBits = (slot >>> 1) - 1;
+        int distance = (2 | (slot & 1)) << numDirectBits;
+        if (slot < END_POS_MODEL_INDEX) {
+            distance += decodeReverseTree(posDecoders, distance - slot - 1, numDirectBits);
+        } else {
+            distance += decodeDirectBits(numDirectBits - NUM_ALIGN_BITS) << NUM_ALIGN_BITS;
+            distance += decodeReverseTree(align, 0, NUM_ALIGN_BITS);
+        }
+        return distance;
+    }
+
+    private int getByte(int distance) {
+        int pos = windowPos - distance - 1;
+        if (pos < 0) pos += window.length;
+        return window[pos] & 0xff;
+    }
+
+    private void putByte(byte b, byte[] output, int outPos) {
+        window[windowPos++] = b;
+        if (windowPos == window.length) windowPos = 0;
+        totalPos++;
+        output[outPos] = b;
+    }
+
+    private void copyMatch(int count, byte[] output, int outPos) {
+        int from = windowPos - rep0 - 1;
+        if (from < 0) from += window.length;
+        for (int i = 0; i < count; i++) {
+            byte b = window[from++];
+            if (from == window.length) from = 0;
+            window[windowPos++] = b;
+            if (windowPos == window.length) windowPos = 0;
+            output[outPos + i] = b;
+        }
+        totalPos += count;
+    }
+
+    private void normalize() {
+        if ((range >>> 24) == 0) {
+            // only possible when the input is complete (but truncated); otherwise enough input is guaranteed
+            if (inPos >= inLimit) throw new CompressionException("LZMA stream is truncated");
+            code = (code << 8) | (in[inPos++] & 0xff);
+            range <<= 8;
+        }
+    }
+
+    private int decodeBit(short[] probs, int index) {
+        int prob = probs[index];
+        int bound = (range >>> 11) * prob;
+        int bit;
+        if ((code ^ 0x80000000) < (bound ^ 0x80000000)) {
+            range = bound;
+            probs[index] = (short) (prob + ((2048 - prob) >>> 5));
+            bit = 0;
+        } else {
+            range -= bound;
+            code -= bound;
+            probs[index] = (short) (prob - (prob >>> 5));
+            bit = 1;
+        }
+        normalize();
+        return bit;
+    }
+
+    private int decodeDirectBits(int numBits) {
+        int result = 0;
+        for (int i = numBits; i != 0; i--) {
+            range >>>= 1;
+            int t = (code - range) >>> 31;
+            code -= range & (t - 1);
+            result = (result << 1) | (1 - t);
+            normalize();
+        }
+        return result;
+    }
+
+    private int decodeTree(short[] probs, int offset, int numBits) {
+        int m = 1;
+        for (int i = 0; i < numBits; i++) {
+            m = (m << 1) + decodeBit(probs, offset + m);
+        }
+        return m - (1 << numBits);
+    }
+
+    private int decodeReverseTree(short[] probs, int offset, int numBits) {
+        int m = 1, symbol = 0;
+        for (int i = 0; i < numBits; i++) {
+            int bit = decodeBit(probs, offset + m);
+            m = (m << 1) + bit;
+            symbol |= bit << i;
+        }
+        return symbol;
+    }
+
+    private static void init(short[]... arrays) {
+        for (short[] probs : arrays) {
+            for (int i = 0; i < probs.length; i++) {
+                probs[i] = PROB_INIT;
+            }
+        }
+    }
+
+    private class LengthDecoder {
+        private final short[] choice = new short[2];
+        private final short[] low = new short[POS_STATES_MAX << 3];
+        private final short[] mid = new short[POS_STATES_MAX << 3];
+        private final short[] high = new short[1 << 8];
+
+        void reset() {
+            init(choice, low, mid, high);
+        }
+
+        int decode(int posState) {
+            if (decodeBit(choice, 0) == 0) return decodeTree(low, posState << 3, 3);
+            if (decodeBit(choice, 1) == 0) return 8 + decodeTree(mid, posState << 3, 3);
+            return 16 + decodeTree(high, 0, 8);
+        }
+    }
+}
@@ -30,22 +30,43 @@ package com.emc.codec.compression.lzma;
 
 import com.emc.codec.compression.CompressionException;
 import com.emc.codec.compression.CompressionInputStream;
+import com.emc.codec.metrics.ByteMeter;
+import com.emc.codec.metrics.CodecMetrics;
+import com.emc.codec.metrics.MeteredInputStream;
+import com.emc.codec.metrics.MetricsUtil;
+import com.emc.codec.metrics.NoOpCodecMetrics;
+import com.emc.codec.util.RingPipe;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
+import java.util.concurrent.Executor;
 
 public class LzmaEncodeInputStream extends CompressionInputStream {
     private InputStream prePipeStream;
     private LzmaProfile compressionProfile;
     private int pipeBufferSize;
-    private EncoderThread encoderThread;
+    private EncoderTask encoderTask;
+    private CodecMetrics metrics;
+    private Executor executor;
+    private LzmaMemoryBudget.Reservation reservation;
+    private ByteMeter pipeMeter;
 
     public LzmaEncodeInputStream(InputStream in, String encodeSpec, LzmaProfile compressionProfile, int pipeBufferSize) {
+        this(in, encodeSpec, compressionProfile, pipeBufferSize, NoOpCodecMetrics.INSTANCE, null, null);
+    }
+
+    /**
+     * @param executor    runs the encoder; if null, the encoder runs on its own thread
+     * @param reservation memory reserved for the encoder (may be null); released when the encoder finishes
+     */
+    public LzmaEncodeInputStream(InputStream in, String encodeSpec, LzmaProfile compressionProfile, int pipeBufferSize,
+                                 CodecMetrics metrics, Executor executor, LzmaMemoryBudget.Reservation reservation) {
         super(in, encodeSpec);
         this.compressionProfile = compressionProfile;
         this.pipeBufferSize = pipeBufferSize;
+        this.metrics = metrics;
+        this.executor = executor;
+        this.reservation = reservation;
         initStreams(in);
     }
 
@@ -56,13 +77,16 @@ public class LzmaEncodeInputStream extends CompressionInputStream {
         // The LZMA Encoder reads from an input stream and writes to an output stream and
         // thus does not make a good filter.  We need to create a pipe and and use an
         // auxiliary thread to compress the data.
-        PipedInputStream inputPipe = new PipedInputStream(pipeBufferSize);
-        PipedOutputStream outputPipe = new PipedOutputStream(inputPipe);
+        RingPipe pipe = new RingPipe(pipeBufferSize);
+        InputStream inputPipe = pipe.getInputStream();
 
-        encoderThread = new EncoderThread(compressionProfile, input, outputPipe);
-        encoderThread.start();
+        encoderTask = new EncoderTask(compressionProfile, input, pipe.getOutputStream(), reservation);
+        encoderTask.setMetrics(metrics);
+        encoderTask.start(executor);
 
-        return inputPipe;
+        if (!MetricsUtil.isEnabled(metrics)) return inputPipe;
+        pipeMeter = new ByteMeter(false);
+        return new MeteredInputStream(inputPipe, pipeMeter);
     }
 
     @Override
@@ -90,13 +114,15 @@ public class LzmaEncodeInputStream extends CompressionInputStream {
         // make sure we close the stream attached to the pipe (this doesn't happen anywhere else)
         prePipeStream.close();
 
+        if (pipeMeter != null) metrics.pipeBlocked(getEncodeMetadata().getEncodeSpec(), true, pipeMeter.getNanos());
+
         // Free the encoder
-        encoderThread = null;
+        encoderTask = null;
     }
 
     protected void checkForError() {
-        if (encoderThread != null && encoderThread.isErrorSet()) {
-            Throwable t = encoderThread.getError();
+        if (encoderTask != null && encoderTask.isErrorSet()) {
+            Throwable t = encoderTask.getError();
             if (t instanceof RuntimeException) throw (RuntimeException) t;
             throw new CompressionException("Compression error", t);
         }
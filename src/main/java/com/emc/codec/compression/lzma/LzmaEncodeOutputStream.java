@@ -30,23 +30,44 @@ package com.emc.codec.compression.lzma;
 
 import com.emc.codec.compression.CompressionException;
 import com.emc.codec.compression.CompressionOutputStream;
+import com.emc.codec.metrics.ByteMeter;
+import com.emc.codec.metrics.CodecMetrics;
+import com.emc.codec.metrics.MeteredOutputStream;
+import com.emc.codec.metrics.MetricsUtil;
+import com.emc.codec.metrics.NoOpCodecMetrics;
+import com.emc.codec.util.RingPipe;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
+import java.util.concurrent.Executor;
 
 public class LzmaEncodeOutputStream extends CompressionOutputStream {
     private OutputStream postPipeStream;
     private LzmaProfile compressionProfile;
     private int bufferSize;
-    private PipedOutputStream outputPipe;
-    private EncoderThread encoderThread;
+    private RingPipe.PipeOutputStream outputPipe;
+    private EncoderTask encoderTask;
+    private CodecMetrics metrics;
+    private Executor executor;
+    private LzmaMemoryBudget.Reservation reservation;
+    private ByteMeter pipeMeter;
 
     public LzmaEncodeOutputStream(OutputStream out, String encodeSpec, LzmaProfile compressionProfile, int bufferSize) {
+        this(out, encodeSpec, compressionProfile, bufferSize, NoOpCodecMetrics.INSTANCE, null, null);
+    }
+
+    /**
+     * @param executor    runs the encoder; if null, the encoder runs on its own thread
+     * @param reservation memory reserved for the encoder (may be null); released when the encoder finishes
+     */
+    public LzmaEncodeOutputStream(OutputStream out, String encodeSpec, LzmaProfile compressionProfile, int bufferSize,
+                                  CodecMetrics metrics, Executor executor, LzmaMemoryBudget.Reservation reservation) {
         super(out, encodeSpec);
         this.compressionProfile = compressionProfile;
         this.bufferSize = bufferSize;
+        this.metrics = metrics;
+        this.executor = executor;
+        this.reservation = reservation;
         initStreams(out);
     }
 
@@ -57,13 +78,16 @@ public class LzmaEncodeOutputStream extends CompressionOutputStream {
         // The LZMA Encoder reads from an input stream and writes to an output stream and
         // thus does not make a good filter.  We need to create a pipe and and use an
         // auxiliary thread to compress the data.
-        PipedInputStream inputPipe = new PipedInputStream(bufferSize);
-        outputPipe = new PipedOutputStream(inputPipe);
+        RingPipe pipe = new RingPipe(bufferSize);
+        outputPipe = pipe.getOutputStream();
 
-        encoderThread = new EncoderThread(compressionProfile, inputPipe, output);
-        encoderThread.start();
+        encoderTask = new EncoderTask(compressionProfile, pipe.getInputStream(), output, reservation);
+        encoderTask.setMetrics(metrics);
+        encoderTask.start(executor);
 
-        return outputPipe;
+        if (!MetricsUtil.isEnabled(metrics)) return outputPipe;
+        pipeMeter = new ByteMeter(false);
+        return new MeteredOutputStream(outputPipe, pipeMeter);
     }
 
     @Override
@@ -88,11 +112,17 @@ public class LzmaEncodeOutputStream extends CompressionOutputStream {
     public void close() throws IOException {
 
         // make sure we flush the pipe
+        long start = System.nanoTime();
         try {
             outputPipe.close();
-            encoderThread.join();
+            encoderTask.join();
         } catch (InterruptedException e) {
-            throw new CompressionException("interrupted while waiting for encoder thread", e);
+            throw new CompressionException("interrupted while waiting for encoder", e);
+        }
+
+        if (pipeMeter != null) {
+            pipeMeter.add(0, start, 0);
+            metrics.pipeBlocked(getEncodeMetadata().getEncodeSpec(), true, pipeMeter.getNanos());
         }
 
         super.close();
@@ -101,12 +131,12 @@ public class LzmaEncodeOutputStream extends CompressionOutputStream {
         postPipeStream.close();
 
         // Free the encoder
-        encoderThread = null;
+        encoderTask = null;
     }
 
     protected void checkForError() {
-        if (encoderThread != null && encoderThread.isErrorSet()) {
-            Throwable t = encoderThread.getError();
+        if (encoderTask != null && encoderTask.isErrorSet()) {
+            Throwable t = encoderTask.getError();
             if (t instanceof RuntimeException) throw (RuntimeException) t;
             throw new CompressionException("Compression error", t);
         }
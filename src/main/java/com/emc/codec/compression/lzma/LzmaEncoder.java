@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.compression.lzma;
+
+import SevenZip.Compression.LZMA.Encoder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Runs the LZMA SDK encoder one block at a time on the caller's thread. The SDK only exposes a run-to-completion
+ * <code>Code()</code> loop publicly; its per-block step (<code>CodeOneBlock()</code>) is public, but attaching the
+ * streams is not, so that is done reflectively. If that fails (i.e. a different SDK version), {@link #isSupported()}
+ * returns false and callers should fall back to {@link EncoderTask}.
+ * <p>
+ * The encoder pulls its input: each {@link #encodeBlock()} may read up to {@link #getWindowSize(LzmaProfile)} bytes
+ * ahead from the input stream (which must block rather than return 0) and writes whatever output it has produced.
+ */
+public class LzmaEncoder {
+    private static final Logger log = LoggerFactory.getLogger(LzmaEncoder.class);
+
+    // from the SDK encoder (kNumOpts, kMatchMaxLen)
+    private static final int NUM_OPTS = 1 << 12;
+    private static final int MATCH_MAX_LEN = 273;
+
+    private static final Method setStreams = findMethod("SetStreams",
+            InputStream.class, OutputStream.class, long.class, long.class);
+    private static final Method releaseStreams = findMethod("ReleaseStreams");
+
+    private static Method findMethod(String name, Class<?>... parameterTypes) {
+        try {
+            Method method = Encoder.class.getDeclaredMethod(name, parameterTypes);
+            method.setAccessible(true);
+            return method;
+        } catch (Exception e) {
+            log.warn("LZMA SDK encoder cannot be stepped; LZMA encoding will use coder threads", e);
+            return null;
+        }
+    }
+
+    public static boolean isSupported() {
+        return setStreams != null && releaseStreams != null;
+    }
+
+    /**
+     * @return the size of the encoder's input window; this is the most input it will read ahead of what it has encoded
+     */
+    public static long getWindowSize(LzmaProfile profile) {
+        long keepBefore = (long) profile.dictionarySize + NUM_OPTS;
+        long keepAfter = profile.fastBytes + MATCH_MAX_LEN + 1;
+        return keepBefore + keepAfter + (keepBefore + keepAfter) / 2 + 256;
+    }
+
+    private LzmaProfile profile;
+    private Encoder encoder;
+    private InputStream input;
+    private OutputStream output;
+    private boolean started = false;
+    private boolean finished = false;
+    private long[] inSize = new long[1];
+    private long[] outSize = new long[1];
+    private boolean[] blockFinished = new boolean[1];
+
+    /**
+     * Writes the properties header to <code>output</code>. No input is read until the first
+     * {@link #encodeBlock()}.
+     */
+    public LzmaEncoder(LzmaProfile profile, InputStream input, OutputStream output) throws IOException {
+        if (!isSupported()) throw new UnsupportedOperationException("LZMA SDK encoder cannot be stepped");
+        this.profile = profile;
+        this.input = input;
+        this.output = output;
+
+        encoder = LzmaCoderPool.getInstance().borrowEncoder(profile);
+
+        // Write the compression settings to the stream (this is read during
+        // decompression to configure the decoder)
+        encoder.WriteCoderProperties(output);
+    }
+
+    /**
+     * Encodes the next block (a few KB of input). When the input is exhausted, writes the end marker and flushes.
+     *
+     * @return true if the stream is finished
+     */
+    public boolean encodeBlock() throws IOException {
+        if (finished) return true;
+        if (encoder == null) throw new IllegalStateException("LZMA encoder was released");
+        if (!started) {
+            invoke(setStreams, input, output, -1L, -1L);
+            started = true;
+        }
+        encoder.CodeOneBlock(inSize, outSize, blockFinished);
+        if (blockFinished[0]) {
+            // detach the streams so the pooled encoder doesn't hold on to them
+            invoke(releaseStreams);
+            LzmaCoderPool.getInstance().returnEncoder(encoder, profile);
+            release();
+            finished = true;
+        }
+        return finished;
+    }
+
+    private void invoke(Method method, Object... args) throws IOException {
+        try {
+            method.invoke(encoder, args);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("could not call LZMA encoder", e);
+        } catch (InvocationTargetException e) {
+            Throwable t = e.getCause();
+            if (t instanceof IOException) throw (IOException) t;
+            if (t instanceof RuntimeException) throw (RuntimeException) t;
+            throw new IllegalStateException("could not call LZMA encoder", t);
+        }
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Drops the encoder (and its match finder) without finishing the stream. An unfinished encoder is not returned to
+     * the {@link LzmaCoderPool}.
+     */
+    public void release() {
+        encoder = null;
+        input = null;
+        output = null;
+    }
+}
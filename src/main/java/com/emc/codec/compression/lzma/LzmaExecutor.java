@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.compression.lzma;
+
+import com.emc.codec.util.CodecUtil;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded executor for LZMA coder tasks. At most <code>maxThreads</code> tasks run at once and at most
+ * <code>maxQueued</code> more wait in the queue; beyond that, {@link #execute(Runnable)} blocks the caller (for up to
+ * <code>timeoutMillis</code>) until a task finishes, and then rejects the task.
+ * <p>
+ * Note that every open LZMA stream occupies a worker until it is closed (its task is fed through a pipe by the caller).
+ * A stream whose task is queued simply blocks on its first read or write until a worker picks it up, so a thread that
+ * holds more than one LZMA stream open at once (i.e. LZMA stacked on LZMA) needs that many workers.
+ */
+public class LzmaExecutor implements Executor {
+    public static final String PROP_MAX_THREADS = "com.emc.codec.compression.lzma.LzmaExecutor.maxThreads";
+    public static final String PROP_MAX_QUEUED = "com.emc.codec.compression.lzma.LzmaExecutor.maxQueued";
+    public static final String PROP_TIMEOUT = "com.emc.codec.compression.lzma.LzmaExecutor.timeoutMillis";
+
+    public static final int DEFAULT_MAX_THREADS = 4 * Runtime.getRuntime().availableProcessors();
+    public static final int DEFAULT_MAX_QUEUED = 1024;
+    public static final long DEFAULT_TIMEOUT = 60000;
+
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    private static final LzmaExecutor instance = new LzmaExecutor(
+            CodecUtil.getCodecProperty(PROP_MAX_THREADS, null, DEFAULT_MAX_THREADS),
+            CodecUtil.getCodecProperty(PROP_MAX_QUEUED, null, DEFAULT_MAX_QUEUED),
+            CodecUtil.getCodecProperty(PROP_TIMEOUT, null, DEFAULT_TIMEOUT));
+
+    /**
+     * The shared executor used by {@link LzmaCodec} when no executor is set in the codec properties. It can be sized
+     * with the system properties {@link #PROP_MAX_THREADS}, {@link #PROP_MAX_QUEUED} and {@link #PROP_TIMEOUT}.
+     */
+    public static LzmaExecutor getInstance() {
+        return instance;
+    }
+
+    private ThreadPoolExecutor executor;
+    private Semaphore permits;
+    private long timeoutMillis;
+    private AtomicInteger waiting = new AtomicInteger();
+
+    public LzmaExecutor(int maxThreads, int maxQueued, long timeoutMillis) {
+        if (maxThreads < 1) throw new IllegalArgumentException("maxThreads must be at least 1");
+        if (maxQueued < 0) throw new IllegalArgumentException("maxQueued must not be negative");
+        this.timeoutMillis = timeoutMillis;
+        permits = new Semaphore(maxThreads + maxQueued, true);
+        executor = new ThreadPoolExecutor(maxThreads, maxThreads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new CoderThreadFactory());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void execute(final Runnable task) {
+        waiting.incrementAndGet();
+        try {
+            if (!permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS))
+                throw new RejectedExecutionException("timed out waiting for an LZMA worker ("
+                        + getActiveCount() + " active, " + getQueueDepth() + " queued)");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("interrupted while waiting for an LZMA worker", e);
+        } finally {
+            waiting.decrementAndGet();
+        }
+
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        permits.release();
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the number of tasks accepted but not yet started
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return the number of tasks currently running
+     */
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * @return the number of callers blocked in {@link #execute(Runnable)} because the queue is full
+     */
+    public int getWaitingCount() {
+        return waiting.get();
+    }
+
+    /**
+     * @return the number of worker threads (idle workers exit after a minute)
+     */
+    public int getPoolSize() {
+        return executor.getPoolSize();
+    }
+
+    /**
+     * Stops accepting tasks. Running and queued tasks are finished.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private static class CoderThreadFactory implements ThreadFactory {
+        private static final AtomicInteger poolCount = new AtomicInteger();
+
+        private int poolNumber = poolCount.incrementAndGet();
+        private AtomicInteger threadCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "LZMA-" + poolNumber + "-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
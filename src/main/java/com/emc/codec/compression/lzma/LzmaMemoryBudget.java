@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.compression.lzma;
+
+import com.emc.codec.util.CodecUtil;
+
+/**
+ * Process-wide memory budget for LZMA coders. Encoders reserve {@link LzmaProfile#memoryRequiredForLzma(LzmaProfile)}
+ * before they start (plus {@link InlineLzmaEncodeOutputStream#getQueueSize(LzmaProfile)} for inline push encoders) and
+ * decoders reserve {@link LzmaProfile#memoryRequiredForDecoder(int, int, int)} for the settings in the stream header;
+ * both release it when the coder finishes.
+ * <p>
+ * A reservation waits up to <code>timeoutMillis</code> for memory to free up. A single reservation larger than the
+ * whole budget is admitted only when nothing else is reserved (it takes the whole budget), so oversized coders run one
+ * at a time rather than failing.
+ */
+public class LzmaMemoryBudget {
+    public static final String PROP_MAX_BYTES = "com.emc.codec.compression.lzma.LzmaMemoryBudget.maxBytes";
+    public static final String PROP_TIMEOUT = "com.emc.codec.compression.lzma.LzmaMemoryBudget.timeoutMillis";
+
+    public static final long DEFAULT_MAX_BYTES = Runtime.getRuntime().maxMemory() / 2;
+    public static final long DEFAULT_TIMEOUT = 60000;
+
+    private static final LzmaMemoryBudget instance = new LzmaMemoryBudget(
+            CodecUtil.getCodecProperty(PROP_MAX_BYTES, null, DEFAULT_MAX_BYTES),
+            CodecUtil.getCodecProperty(PROP_TIMEOUT, null, DEFAULT_TIMEOUT));
+
+    /**
+     * The shared budget used by {@link LzmaCodec} when no budget is set in the codec properties. It can be sized with
+     * the system properties {@link #PROP_MAX_BYTES} and {@link #PROP_TIMEOUT}.
+     */
+    public static LzmaMemoryBudget getInstance() {
+        return instance;
+    }
+
+    private long maxBytes;
+    private long timeoutMillis;
+    private long reservedBytes = 0;
+    private int waitingCount = 0;
+
+    public LzmaMemoryBudget(long maxBytes, long timeoutMillis) {
+        if (maxBytes <= 0) throw new IllegalArgumentException("maxBytes must be positive");
+        this.maxBytes = maxBytes;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Reserves <code>bytes</code> if that much is free right now.
+     *
+     * @return the reservation, or null if there is not enough memory free
+     */
+    public synchronized Reservation tryReserve(long bytes) {
+        long charge = Math.min(bytes, maxBytes);
+        if (reservedBytes + charge > maxBytes) return null;
+        reservedBytes += charge;
+        return new Reservation(charge);
+    }
+
+    /**
+     * Reserves <code>bytes</code>, waiting up to the timeout for memory to be released.
+     *
+     * @return the reservation, or null if the timeout expired first
+     */
+    public synchronized Reservation reserve(long bytes) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        Reservation reservation = tryReserve(bytes);
+        if (reservation != null) return reservation;
+        waitingCount++;
+        try {
+            while (reservation == null) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) return null;
+                wait(remaining);
+                reservation = tryReserve(bytes);
+            }
+            return reservation;
+        } finally {
+            waitingCount--;
+        }
+    }
+
+    private synchronized void release(long charge) {
+        reservedBytes -= charge;
+        notifyAll();
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    public synchronized long getReservedBytes() {
+        return reservedBytes;
+    }
+
+    /**
+     * @return the number of coders waiting for memory
+     */
+    public synchronized int getWaitingCount() {
+        return waitingCount;
+    }
+
+    /**
+     * Memory held against the budget. Releasing more than once has no effect.
+     */
+    public class Reservation {
+        private long bytes;
+        private boolean released = false;
+
+        private Reservation(long bytes) {
+            this.bytes = bytes;
+        }
+
+        public synchronized void release() {
+            if (released) return;
+            released = true;
+            LzmaMemoryBudget.this.release(bytes);
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+    }
+}
@@ -59,6 +59,14 @@ public class LzmaProfile {
         return (long) (profile.dictionarySize * 12.5);
     }
 
+    /**
+     * @return the approximate memory needed to decode a stream written with the given settings (the decoder's window
+     * plus its literal tables)
+     */
+    public static long memoryRequiredForDecoder(int dictionarySize, int lc, int lp) {
+        return Math.max(dictionarySize, 4096) + (0x600L << (lc + lp)) + 16 * 1024;
+    }
+
     int dictionarySize;
     int fastBytes;
     int matchFinder;
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.compression.zstd;
+
+/**
+ * Reads a Zstandard backward bitstream: bits are read from the end of the stream toward its start, starting below the
+ * marker bit in the last byte. Reading past the start yields zeros; {@link #isOverflow()} reports it.
+ */
+final class BitReader {
+    private byte[] buffer;
+    private int start, end;
+    private int bitsRemaining;
+
+    BitReader(byte[] buffer, int offset, int length) {
+        if (length <= 0) throw Zstd.corrupt("empty bitstream");
+        int lastByte = buffer[offset + length - 1] & 0xff;
+        if (lastByte == 0) throw Zstd.corrupt("bitstream has no end mark");
+        this.buffer = buffer;
+        this.start = offset;
+        this.end = offset + length;
+        this.bitsRemaining = (length - 1) * 8 + Zstd.highBit(lastByte);
+    }
+
+    /**
+     * @param count 0 to 32 bits
+     */
+    int readBits(int count) {
+        if (count == 0) return 0;
+        bitsRemaining -= count;
+        int position = bitsRemaining;
+        if (position >= 0) return (int) (load(position) & ((1L << count) - 1));
+        if (position + count <= 0) return 0;
+        // partly before the start: those bits are zero
+        int available = position + count;
+        return (int) ((load(0) & ((1L << available) - 1)) << -position);
+    }
+
+    /**
+     * @return the next <code>count</code> bits without consuming them
+     */
+    int peekBits(int count) {
+        int position = bitsRemaining - count;
+        if (position >= 0) return (int) (load(position) & ((1L << count) - 1));
+        int available = bitsRemaining;
+        if (available <= 0) return 0;
+        return (int) ((load(0) & ((1L << available) - 1)) << -position);
+    }
+
+    void skipBits(int count) {
+        bitsRemaining -= count;
+    }
+
+    int getBitsRemaining() {
+        return bitsRemaining;
+    }
+
+    /**
+     * @return true if more bits were read than the stream holds
+     */
+    boolean isOverflow() {
+        return bitsRemaining < 0;
+    }
+
+    // the bits from position on (at least 57 of them, or up to the end)
+    private long load(int position) {
+        int index = start + (position >>> 3);
+        long value;
+        if (index + 8 <= end) {
+            value = Zstd.readLongLE(buffer, index);
+        } else {
+            value = 0;
+            for (int i = end - 1; i >= index; i--) {
+                value = (value << 8) | (buffer[i] & 0xff);
+            }
+        }
+        return value >>> (position & 7);
+    }
+}
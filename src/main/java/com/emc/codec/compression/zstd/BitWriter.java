@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.compression.zstd;
+
+/**
+ * Writes a Zstandard backward bitstream: bits are packed from the low end, and {@link #close()} adds the end mark, so
+ * a {@link BitReader} returns the last bits written first.
+ */
+final class BitWriter {
+    private byte[] buffer;
+    private int start, position;
+    private long container = 0;
+    private int bitCount = 0;
+
+    BitWriter(byte[] buffer, int offset) {
+        this.buffer = buffer;
+        this.start = offset;
+        this.position = offset;
+    }
+
+    /**
+     * @param count 0 to 32 bits
+     */
+    void addBits(int value, int count) {
+        container |= (value & ((1L << count) - 1)) << bitCount;
+        bitCount += count;
+        if (bitCount >= 32) flush();
+    }
+
+    private void flush() {
+        while (bitCount >= 8) {
+            buffer[position++] = (byte) container;
+            container >>>= 8;
+            bitCount -= 8;
+        }
+    }
+
+    /**
+     * Adds the end mark and flushes.
+     *
+     * @return the length of the stream
+     */
+    int close() {
+        addBits(1, 1);
+        flush();
+        if (bitCount > 0) buffer[position++] = (byte) container;
+        container = 0;
+        bitCount = 0;
+        return position - start;
+    }
+}
@@ -0,0 +1,382 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.compression.zstd;
+
+/**
+ * Finite State Entropy tables: reading and writing table descriptions, normalizing counts, and building the decoding
+ * and encoding tables.
+ */
+final class Fse {
+    private Fse() {
+    }
+
+    /**
+     * A decoding table. Each state holds a symbol, the number of bits to read for the next state and the baseline
+     * those bits are added to.
+     */
+    static final class DecodeTable {
+        int accuracyLog;
+        byte[] symbols;
+        byte[] bits;
+        int[] baselines;
+
+        DecodeTable(int maxAccuracyLog) {
+            int size = 1 << maxAccuracyLog;
+            symbols = new byte[size];
+            bits = new byte[size];
+            baselines = new int[size];
+        }
+
+        void build(short[] normalized, int maxSymbol, int accuracyLog) {
+            this.accuracyLog = accuracyLog;
+            int tableSize = 1 << accuracyLog;
+            int highThreshold = tableSize - 1;
+            int[] next = new int[maxSymbol + 1];
+            for (int s = 0; s <= maxSymbol; s++) {
+                if (normalized[s] == -1) {
+                    symbols[highThreshold--] = (byte) s;
+                    next[s] = 1;
+                } else {
+                    next[s] = normalized[s];
+                }
+            }
+            spread(normalized, maxSymbol, tableSize, highThreshold, symbols);
+            for (int u = 0; u < tableSize; u++) {
+                int s = symbols[u] & 0xff;
+                int nextState = next[s]++;
+                int nbBits = accuracyLog - Zstd.highBit(nextState);
+                bits[u] = (byte) nbBits;
+                baselines[u] = (nextState << nbBits) - tableSize;
+            }
+        }
+
+        void buildRle(int symbol) {
+            accuracyLog = 0;
+            symbols[0] = (byte) symbol;
+            bits[0] = 0;
+            baselines[0] = 0;
+        }
+    }
+
+    // the symbol spread shared by both tables
+    private static void spread(short[] normalized, int maxSymbol, int tableSize, int highThreshold, byte[] symbols) {
+        int mask = tableSize - 1;
+        int step = (tableSize >>> 1) + (tableSize >>> 3) + 3;
+        int position = 0;
+        for (int s = 0; s <= maxSymbol; s++) {
+            for (int i = 0; i < normalized[s]; i++) {
+                symbols[position] = (byte) s;
+                do {
+                    position = (position + step) & mask;
+                } while (position > highThreshold);
+            }
+        }
+        if (position != 0) throw Zstd.corrupt("invalid FSE distribution");
+    }
+
+    /**
+     * Reads a table description into <code>normalized</code>.
+     *
+     * @return the number of bytes read; the accuracy log is returned in <code>accuracyLog[0]</code>
+     */
+    static int readNCount(byte[] b, int offset, int length, short[] normalized, int maxSymbol, int maxAccuracyLog,
+                          int[] accuracyLog) {
+        ForwardBits in = new ForwardBits(b, offset, length);
+        int log = in.read(4) + 5;
+        if (log > maxAccuracyLog) throw Zstd.corrupt("FSE accuracy log too large");
+        int remaining = (1 << log) + 1;
+        int threshold = 1 << log;
+        int nbBits = log + 1;
+        int symbol = 0;
+        boolean previousZero = false;
+        while (remaining > 1 && symbol <= maxSymbol) {
+            if (previousZero) {
+                int repeat;
+                do {
+                    repeat = in.read(2);
+                    for (int i = 0; i < repeat; i++) {
+                        if (symbol > maxSymbol) throw Zstd.corrupt("FSE symbol out of range");
+                        normalized[symbol++] = 0;
+                    }
+                } while (repeat == 3);
+                if (symbol > maxSymbol) break;
+            }
+            int max = (2 * threshold - 1) - remaining;
+            int count;
+            int low = in.peek(nbBits - 1);
+            if (low < max) {
+                count = low;
+                in.skip(nbBits - 1);
+            } else {
+                count = in.peek(nbBits);
+                if (count >= threshold) count -= max;
+                in.skip(nbBits);
+            }
+            count--;
+            remaining -= count < 0 ? -count : count;
+            normalized[symbol++] = (short) count;
+            previousZero = count == 0;
+            while (remaining < threshold) {
+                nbBits--;
+                threshold >>>= 1;
+            }
+        }
+        if (remaining != 1 || in.isOverflow()) throw Zstd.corrupt("invalid FSE table description");
+        while (symbol <= maxSymbol) normalized[symbol++] = 0;
+        accuracyLog[0] = log;
+        return in.bytesRead();
+    }
+
+    /**
+     * Writes a table description.
+     *
+     * @return the number of bytes written
+     */
+    static int writeNCount(byte[] b, int offset, short[] normalized, int maxSymbol, int accuracyLog) {
+        int position = offset;
+        long bitStream = accuracyLog - 5;
+        int bitCount = 4;
+        int tableSize = 1 << accuracyLog;
+        int remaining = tableSize + 1;
+        int threshold = tableSize;
+        int nbBits = accuracyLog + 1;
+        int symbol = 0;
+        boolean previousZero = false;
+        while (symbol <= maxSymbol && remaining > 1) {
+            if (previousZero) {
+                int start = symbol;
+                while (normalized[symbol] == 0) symbol++;
+                while (symbol >= start + 3) {
+                    start += 3;
+                    bitStream |= 3L << bitCount;
+                    bitCount += 2;
+                    if (bitCount >= 32) {
+                        position = flush(b, position, bitStream, bitCount);
+                        bitStream >>>= bitCount & ~7;
+                        bitCount &= 7;
+                    }
+                }
+                bitStream |= (long) (symbol - start) << bitCount;
+                bitCount += 2;
+            }
+            int count = normalized[symbol++];
+            int max = (2 * threshold - 1) - remaining;
+            remaining -= count < 0 ? -count : count;
+            count++;
+            if (count >= threshold) count += max;
+            bitStream |= (long) count << bitCount;
+            bitCount += nbBits;
+            if (count < max) bitCount--;
+            previousZero = count == 1;
+            while (remaining < threshold) {
+                nbBits--;
+                threshold >>>= 1;
+            }
+            if (bitCount >= 32) {
+                position = flush(b, position, bitStream, bitCount);
+                bitStream >>>= bitCount & ~7;
+                bitCount &= 7;
+            }
+        }
+        position = flush(b, position, bitStream, bitCount + 7);
+        return position - offset;
+    }
+
+    private static int flush(byte[] b, int position, long bitStream, int bitCount) {
+        for (int i = 0; i < bitCount >>> 3; i++) {
+            b[position++] = (byte) (bitStream >>> (8 * i));
+        }
+        return position;
+    }
+
+    /**
+     * Picks an accuracy log for a distribution of <code>total</code> symbols.
+     */
+    static int optimalAccuracyLog(int maxAccuracyLog, int total, int maxSymbol) {
+        int log = maxAccuracyLog;
+        int maxBitsSource = Zstd.highBit(Math.max(total - 1, 1)) - 2;
+        if (maxBitsSource < log) log = maxBitsSource;
+        int minBits = Math.min(Zstd.highBit(Math.max(total, 1)) + 1, Zstd.highBit(Math.max(maxSymbol, 1)) + 2);
+        if (minBits > log) log = minBits;
+        return Math.max(5, Math.min(log, maxAccuracyLog));
+    }
+
+    /**
+     * Scales counts to a distribution summing to <code>1 &lt;&lt; accuracyLog</code>, giving every present symbol at
+     * least 1.
+     */
+    static void normalize(int[] counts, int maxSymbol, int total, int accuracyLog, short[] normalized) {
+        int tableSize = 1 << accuracyLog;
+        int distributed = 0;
+        int largest = 0;
+        for (int s = 0; s <= maxSymbol; s++) {
+            if (counts[s] == 0) {
+                normalized[s] = 0;
+                continue;
+            }
+            int p = (int) ((long) counts[s] * tableSize / total);
+            if (p < 1) p = 1;
+            normalized[s] = (short) p;
+            distributed += p;
+            if (counts[s] > counts[largest]) largest = s;
+        }
+        int rest = tableSize - distributed;
+        if (rest >= 0) {
+            normalized[largest] += rest;
+            return;
+        }
+        // over-allocated because of the minimum of 1: take back from the biggest entries
+        while (rest < 0) {
+            int biggest = 0;
+            for (int s = 1; s <= maxSymbol; s++) {
+                if (normalized[s] > normalized[biggest]) biggest = s;
+            }
+            int take = Math.min(-rest, Math.max(1, (normalized[biggest] - 1) / 4));
+            normalized[biggest] -= take;
+            rest += take;
+        }
+    }
+
+    /**
+     * An encoding table built from a normalized distribution.
+     */
+    static final class EncodeTable {
+        int accuracyLog;
+        int[] stateTable;
+        int[] deltaNbBits;
+        int[] deltaFindState;
+
+        EncodeTable(int maxAccuracyLog, int maxSymbol) {
+            stateTable = new int[1 << maxAccuracyLog];
+            deltaNbBits = new int[maxSymbol + 1];
+            deltaFindState = new int[maxSymbol + 1];
+        }
+
+        void build(short[] normalized, int maxSymbol, int accuracyLog) {
+            this.accuracyLog = accuracyLog;
+            int tableSize = 1 << accuracyLog;
+            int highThreshold = tableSize - 1;
+            byte[] symbols = new byte[tableSize];
+            int[] cumulative = new int[maxSymbol + 2];
+            for (int s = 0; s <= maxSymbol; s++) {
+                if (normalized[s] == -1) {
+                    cumulative[s + 1] = cumulative[s] + 1;
+                    symbols[highThreshold--] = (byte) s;
+                } else {
+                    cumulative[s + 1] = cumulative[s] + normalized[s];
+                }
+            }
+            spread(normalized, maxSymbol, tableSize, highThreshold, symbols);
+            for (int u = 0; u < tableSize; u++) {
+                int s = symbols[u] & 0xff;
+                stateTable[cumulative[s]++] = tableSize + u;
+            }
+            int total = 0;
+            for (int s = 0; s <= maxSymbol; s++) {
+                int n = normalized[s];
+                if (n == 0) {
+                    deltaNbBits[s] = ((accuracyLog + 1) << 16) - tableSize;
+                } else if (n == -1 || n == 1) {
+                    deltaNbBits[s] = (accuracyLog << 16) - tableSize;
+                    deltaFindState[s] = total - 1;
+                    total++;
+                } else {
+                    int maxBitsOut = accuracyLog - Zstd.highBit(n - 1);
+                    int minStatePlus = n << maxBitsOut;
+                    deltaNbBits[s] = (maxBitsOut << 16) - minStatePlus;
+                    deltaFindState[s] = total - n;
+                    total += n;
+                }
+            }
+        }
+
+        /**
+         * @return the initial state for the last symbol of a stream (which is the first one decoded)
+         */
+        int initState(int symbol) {
+            int nbBitsOut = (deltaNbBits[symbol] + (1 << 15)) >> 16;
+            int value = (nbBitsOut << 16) - deltaNbBits[symbol];
+            return stateTable[(value >> nbBitsOut) + deltaFindState[symbol]];
+        }
+
+        int encode(BitWriter out, int state, int symbol) {
+            int nbBitsOut = (state + deltaNbBits[symbol]) >> 16;
+            out.addBits(state, nbBitsOut);
+            return stateTable[(state >> nbBitsOut) + deltaFindState[symbol]];
+        }
+
+        void flush(BitWriter out, int state) {
+            out.addBits(state, accuracyLog);
+        }
+    }
+
+    /**
+     * The little-endian forward bit reader used by table descriptions.
+     */
+    static final class ForwardBits {
+        private byte[] b;
+        private int offset, length;
+        private int bitPosition = 0;
+
+        ForwardBits(byte[] b, int offset, int length) {
+            this.b = b;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        int peek(int count) {
+            int value = 0;
+            int byteIndex = bitPosition >>> 3;
+            int shift = -(bitPosition & 7);
+            for (int i = 0; shift < count; i++, shift += 8) {
+                int v = byteIndex + i < length ? b[offset + byteIndex + i] & 0xff : 0;
+                value |= shift >= 0 ? v << shift : v >>> -shift;
+            }
+            return value & ((1 << count) - 1);
+        }
+
+        void skip(int count) {
+            bitPosition += count;
+        }
+
+        int read(int count) {
+            int value = peek(count);
+            skip(count);
+            return value;
+        }
+
+        boolean isOverflow() {
+            return bitPosition > length * 8;
+        }
+
+        int bytesRead() {
+            return (bitPosition + 7) >>> 3;
+        }
+    }
+}
@@ -0,0 +1,345 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.compression.zstd;
+
+import java.util.Arrays;
+
+/**
+ * Huffman coding of literals: reading and writing tree descriptions, decoding streams and building length-limited
+ * codes.
+ */
+final class Huffman {
+    private Huffman() {
+    }
+
+    /**
+     * A single-symbol decoding table indexed by the next <code>tableLog</code> bits.
+     */
+    static final class DecodeTable {
+        int tableLog;
+        byte[] symbols = new byte[1 << Zstd.HUF_MAX_LOG];
+        byte[] lengths = new byte[1 << Zstd.HUF_MAX_LOG];
+        private int[] weights = new int[256];
+        private short[] normalized = new short[Zstd.HUF_MAX_LOG + 1];
+        private Fse.DecodeTable weightTable = new Fse.DecodeTable(Zstd.HUF_WEIGHTS_MAX_LOG);
+        private boolean initialized = false;
+
+        /**
+         * Reads a tree description.
+         *
+         * @return the number of bytes read
+         */
+        int read(byte[] b, int offset, int length) {
+            if (length < 1) throw Zstd.corrupt("missing Huffman tree description");
+            int header = b[offset] & 0xff;
+            int count, size;
+            if (header >= 128) {
+                count = header - 127;
+                size = (count + 1) / 2;
+                if (size + 1 > length) throw Zstd.corrupt("truncated Huffman tree description");
+                for (int i = 0; i < count; i++) {
+                    int v = b[offset + 1 + i / 2] & 0xff;
+                    weights[i] = (i & 1) == 0 ? v >>> 4 : v & 0xf;
+                }
+            } else {
+                size = header;
+                if (size + 1 > length) throw Zstd.corrupt("truncated Huffman tree description");
+                count = readFseWeights(b, offset + 1, size);
+            }
+            build(count);
+            return size + 1;
+        }
+
+        private int readFseWeights(byte[] b, int offset, int size) {
+            int[] log = new int[1];
+            int headerSize = Fse.readNCount(b, offset, size, normalized, Zstd.HUF_MAX_LOG, Zstd.HUF_WEIGHTS_MAX_LOG,
+                    log);
+            weightTable.build(normalized, Zstd.HUF_MAX_LOG, log[0]);
+            BitReader in = new BitReader(b, offset + headerSize, size - headerSize);
+            int state1 = in.readBits(log[0]), state2 = in.readBits(log[0]);
+            int count = 0;
+            while (true) {
+                if (count > 253) throw Zstd.corrupt("too many Huffman weights");
+                weights[count++] = weightTable.symbols[state1];
+                state1 = weightTable.baselines[state1] + in.readBits(weightTable.bits[state1]);
+                if (in.isOverflow()) {
+                    weights[count++] = weightTable.symbols[state2];
+                    break;
+                }
+                weights[count++] = weightTable.symbols[state2];
+                state2 = weightTable.baselines[state2] + in.readBits(weightTable.bits[state2]);
+                if (in.isOverflow()) {
+                    weights[count++] = weightTable.symbols[state1];
+                    break;
+                }
+            }
+            return count;
+        }
+
+        // builds the table from weights of symbols 0 to count - 1 (the last symbol's weight is implied)
+        private void build(int count) {
+            int total = 0;
+            for (int i = 0; i < count; i++) {
+                if (weights[i] > Zstd.HUF_MAX_LOG) throw Zstd.corrupt("invalid Huffman weight");
+                if (weights[i] > 0) total += 1 << (weights[i] - 1);
+            }
+            if (total == 0) throw Zstd.corrupt("invalid Huffman weights");
+            int log = Zstd.highBit(total) + 1;
+            if (log > Zstd.HUF_MAX_LOG) throw Zstd.corrupt("Huffman table too large");
+            int rest = (1 << log) - total;
+            if (Integer.bitCount(rest) != 1) throw Zstd.corrupt("invalid Huffman weights");
+            weights[count++] = Zstd.highBit(rest) + 1;
+            tableLog = log;
+
+            int[] rankStart = new int[Zstd.HUF_MAX_LOG + 2];
+            int[] rankCount = new int[Zstd.HUF_MAX_LOG + 2];
+            for (int i = 0; i < count; i++) rankCount[weights[i]]++;
+            int next = 0;
+            for (int w = 1; w <= log; w++) {
+                rankStart[w] = next;
+                next += rankCount[w] << (w - 1);
+            }
+            for (int s = 0; s < count; s++) {
+                int w = weights[s];
+                if (w == 0) continue;
+                int length = (1 << w) >>> 1;
+                int start = rankStart[w];
+                Arrays.fill(symbols, start, start + length, (byte) s);
+                Arrays.fill(lengths, start, start + length, (byte) (log + 1 - w));
+                rankStart[w] += length;
+            }
+            initialized = true;
+        }
+
+        boolean isInitialized() {
+            return initialized;
+        }
+
+        /**
+         * Decodes exactly <code>count</code> symbols from one stream.
+         */
+        void decodeStream(byte[] b, int offset, int length, byte[] out, int outOffset, int count) {
+            BitReader in = new BitReader(b, offset, length);
+            int log = tableLog;
+            for (int i = 0; i < count; i++) {
+                int index = in.peekBits(log);
+                out[outOffset + i] = symbols[index];
+                in.skipBits(lengths[index]);
+            }
+            if (in.getBitsRemaining() != 0) throw Zstd.corrupt("Huffman stream size mismatch");
+        }
+    }
+
+    /**
+     * An encoding table: code lengths and codes per symbol, plus the tree description.
+     */
+    static final class EncodeTable {
+        int maxSymbol;
+        int tableLog;
+        int[] lengths = new int[256];
+        int[] codes = new int[256];
+
+        /**
+         * Builds a code limited to {@link Zstd#HUF_MAX_LOG} bits. Needs at least two distinct symbols.
+         */
+        void build(int[] counts, int maxSymbol) {
+            this.maxSymbol = maxSymbol;
+            Arrays.fill(lengths, 0);
+            buildLengths(counts, maxSymbol, lengths);
+            limitLengths(counts, maxSymbol, lengths, Zstd.HUF_MAX_LOG);
+            int log = 0;
+            for (int s = 0; s <= maxSymbol; s++) log = Math.max(log, lengths[s]);
+            tableLog = log;
+
+            // assign codes the way the decoding table lays them out
+            int[] rankStart = new int[Zstd.HUF_MAX_LOG + 2];
+            int[] rankCount = new int[Zstd.HUF_MAX_LOG + 2];
+            for (int s = 0; s <= maxSymbol; s++) {
+                if (lengths[s] > 0) rankCount[log + 1 - lengths[s]]++;
+            }
+            int next = 0;
+            for (int w = 1; w <= log; w++) {
+                rankStart[w] = next;
+                next += rankCount[w] << (w - 1);
+            }
+            for (int s = 0; s <= maxSymbol; s++) {
+                if (lengths[s] == 0) continue;
+                int w = log + 1 - lengths[s];
+                codes[s] = rankStart[w] >>> (w - 1);
+                rankStart[w] += 1 << (w - 1);
+            }
+        }
+
+        int estimateSize(int[] counts) {
+            long bits = 0;
+            for (int s = 0; s <= maxSymbol; s++) bits += (long) counts[s] * lengths[s];
+            return (int) ((bits + 7) >>> 3);
+        }
+
+        /**
+         * Writes the tree description.
+         *
+         * @return the number of bytes written, or -1 if the weights can't be described
+         */
+        int write(byte[] b, int offset) {
+            int count = maxSymbol; // the last weight is implied
+            byte[] weights = new byte[count];
+            for (int s = 0; s < count; s++) {
+                weights[s] = (byte) (lengths[s] == 0 ? 0 : tableLog + 1 - lengths[s]);
+            }
+            int fseSize = writeFseWeights(weights, b, offset + 1);
+            if (fseSize > 1 && fseSize < 128 && (count > 128 || fseSize < (count + 1) / 2)) {
+                b[offset] = (byte) fseSize;
+                return fseSize + 1;
+            }
+            if (count > 128) return -1;
+            b[offset] = (byte) (127 + count);
+            for (int i = 0; i < count; i += 2) {
+                int high = weights[i], low = i + 1 < count ? weights[i + 1] : 0;
+                b[offset + 1 + i / 2] = (byte) ((high << 4) | low);
+            }
+            return (count + 1) / 2 + 1;
+        }
+
+        // returns -1 when FSE can't be used (fewer than two weights or a single distinct weight)
+        private static int writeFseWeights(byte[] weights, byte[] b, int offset) {
+            int count = weights.length;
+            if (count < 2) return -1;
+            int[] histogram = new int[Zstd.HUF_MAX_LOG + 1];
+            int maxWeight = 0;
+            for (byte w : weights) {
+                histogram[w]++;
+                maxWeight = Math.max(maxWeight, w);
+            }
+            for (int h : histogram) {
+                if (h == count) return -1;
+            }
+            int log = Fse.optimalAccuracyLog(Zstd.HUF_WEIGHTS_MAX_LOG, count, maxWeight);
+            short[] normalized = new short[maxWeight + 1];
+            Fse.normalize(histogram, maxWeight, count, log, normalized);
+            int position = offset + Fse.writeNCount(b, offset, normalized, maxWeight, log);
+            Fse.EncodeTable table = new Fse.EncodeTable(log, maxWeight);
+            table.build(normalized, maxWeight, log);
+
+            BitWriter out = new BitWriter(b, position);
+            int i = count, state1, state2;
+            if ((count & 1) != 0) {
+                state1 = table.initState(weights[--i]);
+                state2 = table.initState(weights[--i]);
+                state1 = table.encode(out, state1, weights[--i]);
+            } else {
+                state2 = table.initState(weights[--i]);
+                state1 = table.initState(weights[--i]);
+            }
+            while (i > 0) {
+                state2 = table.encode(out, state2, weights[--i]);
+                state1 = table.encode(out, state1, weights[--i]);
+            }
+            table.flush(out, state2);
+            table.flush(out, state1);
+            return position + out.close() - offset;
+        }
+
+        /**
+         * Encodes one stream.
+         *
+         * @return the number of bytes written
+         */
+        int encodeStream(byte[] src, int srcOffset, int count, byte[] b, int offset) {
+            BitWriter out = new BitWriter(b, offset);
+            for (int i = srcOffset + count - 1; i >= srcOffset; i--) {
+                int s = src[i] & 0xff;
+                out.addBits(codes[s], lengths[s]);
+            }
+            return out.close();
+        }
+    }
+
+    // plain Huffman code lengths (two-queue construction over the sorted counts)
+    private static void buildLengths(int[] counts, int maxSymbol, int[] lengths) {
+        int n = 0;
+        long[] leaves = new long[maxSymbol + 1];
+        for (int s = 0; s <= maxSymbol; s++) {
+            if (counts[s] > 0) leaves[n++] = ((long) counts[s] << 8) | s;
+        }
+        Arrays.sort(leaves, 0, n);
+        long[] weight = new long[2 * n];
+        int[] parent = new int[2 * n];
+        for (int i = 0; i < n; i++) weight[i] = leaves[i] >>> 8;
+        int leaf = 0, node = n, next = n;
+        while (next < 2 * n - 1) {
+            int[] pick = new int[2];
+            for (int k = 0; k < 2; k++) {
+                if (leaf < n && (node >= next || weight[leaf] <= weight[node])) pick[k] = leaf++;
+                else pick[k] = node++;
+            }
+            weight[next] = weight[pick[0]] + weight[pick[1]];
+            parent[pick[0]] = next;
+            parent[pick[1]] = next;
+            next++;
+        }
+        int root = 2 * n - 2;
+        int[] depth = new int[2 * n];
+        for (int i = root - 1; i >= 0; i--) depth[i] = depth[parent[i]] + 1;
+        for (int i = 0; i < n; i++) lengths[(int) (leaves[i] & 0xff)] = depth[i];
+    }
+
+    // clamps lengths to maxLength and restores a complete (Kraft sum exactly 1) code
+    private static void limitLengths(int[] counts, int maxSymbol, int[] lengths, int maxLength) {
+        long kraft = 0;
+        for (int s = 0; s <= maxSymbol; s++) {
+            if (lengths[s] == 0) continue;
+            if (lengths[s] > maxLength) lengths[s] = maxLength;
+            kraft += 1L << (maxLength - lengths[s]);
+        }
+        long full = 1L << maxLength;
+        // over-subscribed: lengthen the least frequent of the deepest codes that are still short of the limit
+        while (kraft > full) {
+            int pick = -1;
+            for (int s = 0; s <= maxSymbol; s++) {
+                if (lengths[s] == 0 || lengths[s] >= maxLength) continue;
+                if (pick < 0 || lengths[s] > lengths[pick]
+                        || (lengths[s] == lengths[pick] && counts[s] < counts[pick])) pick = s;
+            }
+            kraft -= 1L << (maxLength - lengths[pick] - 1);
+            lengths[pick]++;
+        }
+        // under-subscribed: shorten the most frequent of the deepest codes
+        while (kraft < full) {
+            int pick = -1;
+            for (int s = 0; s <= maxSymbol; s++) {
+                if (lengths[s] <= 1 || kraft + (1L << (maxLength - lengths[s])) > full) continue;
+                if (pick < 0 || lengths[s] > lengths[pick]
+                        || (lengths[s] == lengths[pick] && counts[s] > counts[pick])) pick = s;
+            }
+            kraft += 1L << (maxLength - lengths[pick]);
+            lengths[pick]--;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.compression.zstd;
+
+/**
+ * Streaming XXH64 (seed 0), used for the optional content checksum of Zstandard frames.
+ */
+final class XxHash64 {
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+    private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+    private long v1, v2, v3, v4;
+    private long totalLength;
+    private byte[] buffer = new byte[32];
+    private int bufferSize;
+
+    XxHash64() {
+        reset();
+    }
+
+    void reset() {
+        v1 = PRIME1 + PRIME2;
+        v2 = PRIME2;
+        v3 = 0;
+        v4 = -PRIME1;
+        totalLength = 0;
+        bufferSize = 0;
+    }
+
+    void update(byte[] b, int off, int len) {
+        totalLength += len;
+        if (bufferSize > 0) {
+            int n = Math.min(len, 32 - bufferSize);
+            System.arraycopy(b, off, buffer, bufferSize, n);
+            bufferSize += n;
+            off += n;
+            len -= n;
+            if (bufferSize < 32) return;
+            processStripe(buffer, 0);
+            bufferSize = 0;
+        }
+        int end = off + len;
+        for (; off + 32 <= end; off += 32) {
+            processStripe(b, off);
+        }
+        if (off < end) {
+            System.arraycopy(b, off, buffer, 0, end - off);
+            bufferSize = end - off;
+        }
+    }
+
+    private void processStripe(byte[] b, int off) {
+        v1 = round(v1, Zstd.readLongLE(b, off));
+        v2 = round(v2, Zstd.readLongLE(b, off + 8));
+        v3 = round(v3, Zstd.readLongLE(b, off + 16));
+        v4 = round(v4, Zstd.readLongLE(b, off + 24));
+    }
+
+    long getValue() {
+        long hash;
+        if (totalLength >= 32) {
+            hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            hash = mergeRound(hash, v1);
+            hash = mergeRound(hash, v2);
+            hash = mergeRound(hash, v3);
+            hash = mergeRound(hash, v4);
+        } else {
+            hash = PRIME5;
+        }
+        hash += totalLength;
+
+        int off = 0;
+        for (; off + 8 <= bufferSize; off += 8) {
+            hash ^= round(0, Zstd.readLongLE(buffer, off));
+            hash = Long.rotateLeft(hash, 27) * PRIME1 + PRIME4;
+        }
+        if (off + 4 <= bufferSize) {
+            hash ^= (Zstd.readIntLE(buffer, off) & 0xffffffffL) * PRIME1;
+            hash = Long.rotateLeft(hash, 23) * PRIME2 + PRIME3;
+            off += 4;
+        }
+        for (; off < bufferSize; off++) {
+            hash ^= (buffer[off] & 0xff) * PRIME5;
+            hash = Long.rotateLeft(hash, 11) * PRIME1;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= PRIME2;
+        hash ^= hash >>> 29;
+        hash *= PRIME3;
+        hash ^= hash >>> 32;
+        return hash;
+    }
+
+    private static long round(long acc, long input) {
+        acc += input * PRIME2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * PRIME1;
+    }
+
+    private static long mergeRound(long acc, long value) {
+        acc ^= round(0, value);
+        return acc * PRIME1 + PRIME4;
+    }
+}
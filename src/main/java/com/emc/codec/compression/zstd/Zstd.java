@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.compression.zstd;
+
+import com.emc.codec.compression.CompressionException;
+
+/**
+ * Constants and tables of the Zstandard format (RFC 8878) shared by the encoder and decoder.
+ */
+final class Zstd {
+    static final int MAGIC = 0xFD2FB528;
+    static final int SKIPPABLE_MAGIC_MASK = 0xFFFFFFF0;
+    static final int SKIPPABLE_MAGIC = 0x184D2A50;
+
+    static final int BLOCK_SIZE_MAX = 128 * 1024;
+    static final int WINDOW_LOG_MIN = 10;
+    static final int WINDOW_LOG_MAX = 31;
+
+    static final int BLOCK_RAW = 0;
+    static final int BLOCK_RLE = 1;
+    static final int BLOCK_COMPRESSED = 2;
+
+    static final int LITERALS_RAW = 0;
+    static final int LITERALS_RLE = 1;
+    static final int LITERALS_COMPRESSED = 2;
+    static final int LITERALS_TREELESS = 3;
+
+    static final int MODE_PREDEFINED = 0;
+    static final int MODE_RLE = 1;
+    static final int MODE_FSE = 2;
+    static final int MODE_REPEAT = 3;
+
+    static final int MIN_MATCH = 3;
+
+    static final int LL_MAX_LOG = 9;
+    static final int ML_MAX_LOG = 9;
+    static final int OF_MAX_LOG = 8;
+    static final int HUF_MAX_LOG = 11;
+    static final int HUF_WEIGHTS_MAX_LOG = 6;
+
+    static final int[] LL_BASE = {
+            0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15,
+            16, 18, 20, 22, 24, 28, 32, 40, 48, 64, 128, 256, 512, 1024, 2048, 4096,
+            8192, 16384, 32768, 65536};
+    static final int[] LL_BITS = {
+            0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+            1, 1, 1, 1, 2, 2, 3, 3, 4, 6, 7, 8, 9, 10, 11, 12,
+            13, 14, 15, 16};
+    static final int[] ML_BASE = {
+            3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18,
+            19, 20, 21, 22, 23, 24, 25, 26, 27, 28, 29, 30, 31, 32, 33, 34,
+            35, 37, 39, 41, 43, 47, 51, 59, 67, 83, 99, 131, 259, 515, 1027, 2051,
+            4099, 8195, 16387, 32771, 65539};
+    static final int[] ML_BITS = {
+            0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+            0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+            1, 1, 1, 1, 2, 2, 3, 3, 4, 4, 5, 7, 8, 9, 10, 11,
+            12, 13, 14, 15, 16};
+
+    static final short[] LL_DEFAULT = {
+            4, 3, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 1, 1, 1,
+            2, 2, 2, 2, 2, 2, 2, 2, 2, 3, 2, 1, 1, 1, 1, 1,
+            -1, -1, -1, -1};
+    static final int LL_DEFAULT_LOG = 6;
+    static final short[] ML_DEFAULT = {
+            1, 4, 3, 2, 2, 2, 2, 2, 2, 1, 1, 1, 1, 1, 1, 1,
+            1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1,
+            1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, -1, -1,
+            -1, -1, -1, -1, -1};
+    static final int ML_DEFAULT_LOG = 6;
+    static final short[] OF_DEFAULT = {
+            1, 1, 1, 1, 1, 1, 2, 2, 2, 1, 1, 1, 1, 1, 1, 1,
+            1, 1, 1, 1, 1, 1, 1, 1, -1, -1, -1, -1, -1};
+    static final int OF_DEFAULT_LOG = 5;
+
+    private Zstd() {
+    }
+
+    static int highBit(int value) {
+        return 31 - Integer.numberOfLeadingZeros(value);
+    }
+
+    static int literalLengthCode(int literalLength) {
+        return code(literalLength, LL_BASE);
+    }
+
+    static int matchLengthCode(int matchLength) {
+        return code(matchLength, ML_BASE);
+    }
+
+    // the largest code whose base is <= value
+    private static int code(int value, int[] base) {
+        int low = 0, high = base.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (base[mid] <= value) low = mid;
+            else high = mid - 1;
+        }
+        return low;
+    }
+
+    /**
+     * Resolves an offset value (as coded in a sequence) to an offset and updates the repeat offsets the way the
+     * decoder does.
+     *
+     * @param reps the three repeat offsets (most recent first)
+     * @return the match offset
+     */
+    static int resolveOffset(int offsetValue, int literalLength, int[] reps) {
+        if (offsetValue > 3) {
+            reps[2] = reps[1];
+            reps[1] = reps[0];
+            reps[0] = offsetValue - 3;
+            return reps[0];
+        }
+        int index = offsetValue - 1 + (literalLength == 0 ? 1 : 0);
+        if (index == 0) return reps[0];
+        int offset = index == 3 ? reps[0] - 1 : reps[index];
+        if (offset <= 0) throw new CompressionException("Zstandard stream is corrupt (invalid repeat offset)");
+        if (index != 1) reps[2] = reps[1];
+        reps[1] = reps[0];
+        reps[0] = offset;
+        return offset;
+    }
+
+    static int readShortLE(byte[] b, int off) {
+        return (b[off] & 0xff) | ((b[off + 1] & 0xff) << 8);
+    }
+
+    static int readIntLE(byte[] b, int off) {
+        return (b[off] & 0xff) | ((b[off + 1] & 0xff) << 8) | ((b[off + 2] & 0xff) << 16) | ((b[off + 3] & 0xff) << 24);
+    }
+
+    static long readLongLE(byte[] b, int off) {
+        return (readIntLE(b, off) & 0xffffffffL) | ((long) readIntLE(b, off + 4) << 32);
+    }
+
+    static void writeIntLE(byte[] b, int off, int value) {
+        b[off] = (byte) value;
+        b[off + 1] = (byte) (value >>> 8);
+        b[off + 2] = (byte) (value >>> 16);
+        b[off + 3] = (byte) (value >>> 24);
+    }
+
+    static CompressionException corrupt(String detail) {
+        return new CompressionException("Zstandard stream is corrupt (" + detail + ")");
+    }
+}
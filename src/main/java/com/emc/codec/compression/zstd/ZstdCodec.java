@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.compression.zstd;
+
+import com.emc.codec.AbstractCodec;
+import com.emc.codec.EncodeInputStream;
+import com.emc.codec.EncodeOutputStream;
+import com.emc.codec.compression.AdaptiveCompressionInputStream;
+import com.emc.codec.compression.AdaptiveCompressionOutputStream;
+import com.emc.codec.compression.CompressionConstants;
+import com.emc.codec.compression.CompressionMetadata;
+import com.emc.codec.compression.CompressionUtil;
+import com.emc.codec.util.CodecUtil;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+
+/**
+ * Zstandard (RFC 8878) compression in pure Java. The output is a standard Zstandard frame, readable by any Zstandard
+ * implementation, and any single-segment or multi-frame Zstandard stream without a dictionary can be decoded.
+ * Levels range from 1 to 22 (see {@link ZstdEncoder}): the default level compresses about as well as Deflate's
+ * default, level 5 and up better than Deflate's best, and decoding is much faster than LZMA at every level. Encoding
+ * and decoding both run on the calling thread.
+ */
+public class ZstdCodec extends AbstractCodec<CompressionMetadata> {
+    public static final String SUBSPEC = "ZSTD";
+    public static final int PRIORITY = 100;
+
+    public static final String PROP_LONG_DISTANCE = "com.emc.codec.compression.zstd.ZstdCodec.longDistance";
+    public static final String PROP_MAX_WINDOW_LOG = "com.emc.codec.compression.zstd.ZstdCodec.maxWindowLog";
+
+    public static final int MIN_COMPRESSION_LEVEL = ZstdEncoder.MIN_LEVEL;
+    public static final int MAX_COMPRESSION_LEVEL = ZstdEncoder.MAX_LEVEL;
+    public static final int DEFAULT_COMPRESSION_LEVEL = 3;
+    public static final int DEFAULT_MAX_WINDOW_LOG = ZstdEncoder.LONG_DISTANCE_WINDOW_LOG;
+
+    public static String encodeSpec(int compressionLevel) {
+        return CompressionUtil.getEncodeSpec(SUBSPEC, compressionLevel, MIN_COMPRESSION_LEVEL, MAX_COMPRESSION_LEVEL);
+    }
+
+    public static int getCompressionLevel(String encodeSpec) {
+        return CompressionUtil.getCompressionLevel(encodeSpec, DEFAULT_COMPRESSION_LEVEL, MIN_COMPRESSION_LEVEL,
+                MAX_COMPRESSION_LEVEL);
+    }
+
+    /**
+     * If true, the encoder uses a 128MB window and also looks for long matches across all of it, which pays off for
+     * large objects with repeats far apart (backups, VM images, archives of similar files). The encoder then holds
+     * up to 160MB of history and decoders need a window of that size. Defaults to false.
+     */
+    public static boolean isLongDistance(Map<String, Object> codecProperties) {
+        return CodecUtil.getCodecProperty(PROP_LONG_DISTANCE, codecProperties, Boolean.FALSE);
+    }
+
+    public static void setLongDistance(Map<String, Object> codecProperties, boolean longDistance) {
+        codecProperties.put(PROP_LONG_DISTANCE, longDistance);
+    }
+
+    /**
+     * The largest window (as a power of 2) a stream may require to be decoded; streams that declare more are
+     * rejected. This bounds decoding memory. Defaults to 27 (128MB), enough for anything this codec writes.
+     */
+    public static int getMaxWindowLog(Map<String, Object> codecProperties) {
+        return CodecUtil.getCodecProperty(PROP_MAX_WINDOW_LOG, codecProperties, DEFAULT_MAX_WINDOW_LOG);
+    }
+
+    public static void setMaxWindowLog(Map<String, Object> codecProperties, int maxWindowLog) {
+        codecProperties.put(PROP_MAX_WINDOW_LOG, maxWindowLog);
+    }
+
+    @Override
+    public boolean canProcess(String encodeSpec) {
+        String algorithm = CodecUtil.getEncodeAlgorithm(encodeSpec);
+        return CompressionConstants.COMPRESSION_TYPE.equals(CodecUtil.getEncodeType(encodeSpec))
+                && algorithm != null && algorithm.startsWith(SUBSPEC);
+    }
+
+    @Override
+    public void validate(String encodeSpec, Map<String, Object> codecProperties) {
+        super.validate(encodeSpec, codecProperties);
+        getCompressionLevel(encodeSpec);
+    }
+
+    @Override
+    public String getDefaultEncodeSpec() {
+        return encodeSpec(DEFAULT_COMPRESSION_LEVEL);
+    }
+
+    @Override
+    public int getPriority() {
+        return PRIORITY;
+    }
+
+    @Override
+    public CompressionMetadata createEncodeMetadata(String encodeSpec, Map<String, String> metaMap) {
+        return new CompressionMetadata(encodeSpec, metaMap);
+    }
+
+    @Override
+    public long getDecodedSize(CompressionMetadata metadata) {
+        return metadata.getOriginalSize();
+    }
+
+    @Override
+    public OutputStream getDecodingStream(OutputStream originalStream, CompressionMetadata metadata,
+                                          Map<String, Object> codecProperties) {
+        return new ZstdFrameDecodingOutputStream(originalStream, 1L << getMaxWindowLog(codecProperties));
+    }
+
+    @Override
+    public InputStream getDecodingStream(InputStream originalStream, CompressionMetadata metadata,
+                                         Map<String, Object> codecProperties) {
+        return new ZstdFrameInputStream(originalStream, 1L << getMaxWindowLog(codecProperties));
+    }
+
+    @Override
+    public boolean isSizePredictable() {
+        return false;
+    }
+
+    @Override
+    public long getEncodedSize(long originalSize, String encodeSpec, Map<String, Object> codecProperties) {
+        throw new UnsupportedOperationException("compressed size is unpredictable");
+    }
+
+    @Override
+    public EncodeOutputStream<CompressionMetadata> getEncodingStream(OutputStream originalStream, String encodeSpec,
+                                                                     Map<String, Object> codecProperties) {
+        if (!canEncode(encodeSpec)) throw new IllegalArgumentException("cannot process " + encodeSpec);
+        if (CompressionUtil.isAdaptive(codecProperties))
+            return new AdaptiveCompressionOutputStream(originalStream, encodeSpec, this, codecProperties);
+        return new ZstdOutputStream(originalStream, encodeSpec, getCompressionLevel(encodeSpec),
+                isLongDistance(codecProperties));
+    }
+
+    @Override
+    public EncodeInputStream<CompressionMetadata> getEncodingStream(InputStream originalStream, String encodeSpec,
+                                                                    Map<String, Object> codecProperties) {
+        if (!canEncode(encodeSpec)) throw new IllegalArgumentException("cannot process " + encodeSpec);
+        if (CompressionUtil.isAdaptive(codecProperties))
+            return new AdaptiveCompressionInputStream(originalStream, encodeSpec, this, codecProperties);
+        return new ZstdInputStream(originalStream, encodeSpec, getCompressionLevel(encodeSpec),
+                isLongDistance(codecProperties));
+    }
+}
@@ -0,0 +1,481 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.compression.zstd;
+
+import com.emc.codec.compression.CompressionException;
+
+import java.util.Arrays;
+
+/**
+ * An incremental Zstandard decoder that runs on the caller's thread. Compressed bytes are {@link #feed fed} in any
+ * chunk size; each block is decoded as soon as it is complete and its output must be drained (see
+ * {@link #getOutputLength()}) before more input is fed. Concatenated and skippable frames are supported; dictionaries
+ * are not.
+ */
+public class ZstdDecoder {
+    private static final int MAGIC = 0, FRAME_HEADER_DESCRIPTOR = 1, FRAME_HEADER = 2, BLOCK_HEADER = 3, BLOCK = 4,
+            CHECKSUM = 5, SKIPPABLE_SIZE = 6, SKIPPABLE = 7;
+
+    private static final Fse.DecodeTable LL_PREDEFINED = predefined(Zstd.LL_DEFAULT, Zstd.LL_DEFAULT_LOG);
+    private static final Fse.DecodeTable ML_PREDEFINED = predefined(Zstd.ML_DEFAULT, Zstd.ML_DEFAULT_LOG);
+    private static final Fse.DecodeTable OF_PREDEFINED = predefined(Zstd.OF_DEFAULT, Zstd.OF_DEFAULT_LOG);
+
+    private static Fse.DecodeTable predefined(short[] distribution, int log) {
+        Fse.DecodeTable table = new Fse.DecodeTable(log);
+        table.build(distribution, distribution.length - 1, log);
+        return table;
+    }
+
+    private long maxWindowSize;
+
+    // input unit being assembled
+    private int state = MAGIC;
+    private byte[] unit = new byte[Zstd.BLOCK_SIZE_MAX];
+    private int unitLength = 4, unitCount = 0;
+    private long skipRemaining;
+
+    // frame
+    private int frameHeaderDescriptor;
+    private long windowSize, contentSize, frameDecoded;
+    private int blockSizeMax;
+    private boolean hasChecksum, lastBlock;
+    private int blockType, blockSize;
+    private XxHash64 checksum = new XxHash64();
+    private int framesDecoded = 0;
+
+    // window and pending output
+    private byte[] window = new byte[0];
+    private int windowPosition, historyStart, outputPosition;
+
+    // entropy state carried between blocks
+    private byte[] literals = new byte[Zstd.BLOCK_SIZE_MAX];
+    private Huffman.DecodeTable huffman;
+    private Fse.DecodeTable llTable, ofTable, mlTable;
+    private Fse.DecodeTable llOwn = new Fse.DecodeTable(Zstd.LL_MAX_LOG), ofOwn = new Fse.DecodeTable(Zstd.OF_MAX_LOG),
+            mlOwn = new Fse.DecodeTable(Zstd.ML_MAX_LOG);
+    private short[] normalized = new short[Zstd.ML_BASE.length];
+    private int[] accuracyLog = new int[1];
+    private int[] reps = new int[3];
+
+    /**
+     * @param maxWindowSize the largest window a frame may declare (this bounds the decoder's memory)
+     */
+    public ZstdDecoder(long maxWindowSize) {
+        this.maxWindowSize = maxWindowSize;
+    }
+
+    /**
+     * Consumes compressed input. Must not be called while output is pending.
+     *
+     * @return the number of bytes consumed (less than <code>length</code> only when a block was decoded)
+     */
+    public int feed(byte[] b, int offset, int length) {
+        if (getOutputLength() > 0) throw new IllegalStateException("output must be drained before feeding input");
+        int consumed = 0;
+        while (consumed < length && getOutputLength() == 0) {
+            if (state == SKIPPABLE) {
+                int n = (int) Math.min(skipRemaining, length - consumed);
+                consumed += n;
+                skipRemaining -= n;
+                if (skipRemaining == 0) expect(MAGIC, 4);
+                continue;
+            }
+            int needed = unitLength - unitCount;
+            if (unitCount == 0 && length - consumed >= needed) {
+                // the whole unit is in the caller's buffer
+                consumed += needed;
+                process(b, offset + consumed - needed);
+            } else {
+                int n = Math.min(needed, length - consumed);
+                System.arraycopy(b, offset + consumed, unit, unitCount, n);
+                unitCount += n;
+                consumed += n;
+                if (unitCount == unitLength) {
+                    unitCount = 0;
+                    process(unit, 0);
+                }
+            }
+        }
+        return consumed;
+    }
+
+    /**
+     * @return true if at least one frame was decoded and no partial frame is pending
+     */
+    public boolean isFinished() {
+        return framesDecoded > 0 && state == MAGIC && unitCount == 0;
+    }
+
+    public byte[] getOutputBuffer() {
+        return window;
+    }
+
+    public int getOutputOffset() {
+        return outputPosition;
+    }
+
+    public int getOutputLength() {
+        return windowPosition - outputPosition;
+    }
+
+    public void skipOutput(int count) {
+        outputPosition += count;
+    }
+
+    private void expect(int state, int length) {
+        this.state = state;
+        this.unitLength = length;
+        this.unitCount = 0;
+    }
+
+    private void process(byte[] b, int off) {
+        switch (state) {
+            case MAGIC:
+                int magic = Zstd.readIntLE(b, off);
+                if (magic == Zstd.MAGIC) {
+                    expect(FRAME_HEADER_DESCRIPTOR, 1);
+                } else if ((magic & Zstd.SKIPPABLE_MAGIC_MASK) == Zstd.SKIPPABLE_MAGIC) {
+                    expect(SKIPPABLE_SIZE, 4);
+                } else {
+                    throw new CompressionException("not a Zstandard stream (bad magic number)");
+                }
+                break;
+            case FRAME_HEADER_DESCRIPTOR:
+                frameHeaderDescriptor = b[off] & 0xff;
+                if ((frameHeaderDescriptor & 0x08) != 0) throw Zstd.corrupt("reserved frame header bit is set");
+                int fcsFlag = frameHeaderDescriptor >>> 6;
+                boolean singleSegment = (frameHeaderDescriptor & 0x20) != 0;
+                int headerLength = (singleSegment ? 0 : 1) + new int[]{0, 1, 2, 4}[frameHeaderDescriptor & 3]
+                        + new int[]{singleSegment ? 1 : 0, 2, 4, 8}[fcsFlag];
+                expect(FRAME_HEADER, headerLength);
+                break;
+            case FRAME_HEADER:
+                startFrame(b, off);
+                expect(BLOCK_HEADER, 3);
+                break;
+            case BLOCK_HEADER:
+                int header = (b[off] & 0xff) | ((b[off + 1] & 0xff) << 8) | ((b[off + 2] & 0xff) << 16);
+                lastBlock = (header & 1) != 0;
+                blockType = (header >>> 1) & 3;
+                blockSize = header >>> 3;
+                if (blockType == 3) throw Zstd.corrupt("reserved block type");
+                if (blockType == Zstd.BLOCK_COMPRESSED && blockSize < 2) throw Zstd.corrupt("block too small");
+                if (blockSize > blockSizeMax) throw Zstd.corrupt("block too large");
+                if (blockType == Zstd.BLOCK_RLE) expect(BLOCK, 1);
+                else if (blockSize == 0) {
+                    expect(BLOCK, 0);
+                    process(b, off);
+                } else expect(BLOCK, blockSize);
+                break;
+            case BLOCK:
+                decodeBlock(b, off);
+                if (!lastBlock) expect(BLOCK_HEADER, 3);
+                else if (hasChecksum) expect(CHECKSUM, 4);
+                else endFrame();
+                break;
+            case CHECKSUM:
+                if (Zstd.readIntLE(b, off) != (int) checksum.getValue())
+                    throw new CompressionException("Zstandard content checksum mismatch");
+                endFrame();
+                break;
+            case SKIPPABLE_SIZE:
+                skipRemaining = Zstd.readIntLE(b, off) & 0xffffffffL;
+                if (skipRemaining == 0) expect(MAGIC, 4);
+                else expect(SKIPPABLE, 0);
+                break;
+            default:
+                throw new IllegalStateException("unexpected state " + state);
+        }
+    }
+
+    private void startFrame(byte[] b, int off) {
+        int descriptor = frameHeaderDescriptor;
+        boolean singleSegment = (descriptor & 0x20) != 0;
+        int p = off;
+        if (!singleSegment) {
+            int w = b[p++] & 0xff;
+            int exponent = w >>> 3, mantissa = w & 7;
+            long base = 1L << (Zstd.WINDOW_LOG_MIN + exponent);
+            windowSize = base + (base / 8) * mantissa;
+        }
+        int dictIdSize = new int[]{0, 1, 2, 4}[descriptor & 3];
+        long dictId = 0;
+        for (int i = 0; i < dictIdSize; i++) dictId |= (long) (b[p++] & 0xff) << (8 * i);
+        if (dictId != 0) throw new CompressionException("Zstandard dictionaries are not supported");
+        int fcsSize = new int[]{singleSegment ? 1 : 0, 2, 4, 8}[descriptor >>> 6];
+        contentSize = -1;
+        if (fcsSize > 0) {
+            contentSize = 0;
+            for (int i = 0; i < fcsSize; i++) contentSize |= (long) (b[p++] & 0xff) << (8 * i);
+            if (fcsSize == 2) contentSize += 256;
+        }
+        if (singleSegment) windowSize = contentSize;
+        if (windowSize > maxWindowSize || windowSize < 0)
+            throw new CompressionException("Zstandard window size " + windowSize + " exceeds the limit of " + maxWindowSize);
+        blockSizeMax = (int) Math.min(windowSize, Zstd.BLOCK_SIZE_MAX);
+        hasChecksum = (descriptor & 0x04) != 0;
+        checksum.reset();
+        frameDecoded = 0;
+
+        // no output is pending between frames, so the window starts over
+        windowPosition = outputPosition = historyStart = 0;
+        huffman = null;
+        llTable = ofTable = mlTable = null;
+        reps[0] = 1;
+        reps[1] = 4;
+        reps[2] = 8;
+    }
+
+    private void endFrame() {
+        if (contentSize >= 0 && frameDecoded != contentSize) throw Zstd.corrupt("frame content size mismatch");
+        framesDecoded++;
+        expect(MAGIC, 4);
+    }
+
+    private void ensureCapacity() {
+        if (windowPosition + blockSizeMax <= window.length) return;
+        long wanted = windowSize + 2L * blockSizeMax;
+        if (window.length < wanted) {
+            int length = (int) Math.min(wanted, Math.max(2L * window.length, windowPosition + 4L * blockSizeMax));
+            window = Arrays.copyOf(window, length);
+            if (windowPosition + blockSizeMax <= window.length) return;
+        }
+        // slide: keep the last window's worth of history
+        int keep = (int) Math.min(windowSize, windowPosition);
+        int shift = windowPosition - keep;
+        System.arraycopy(window, shift, window, 0, keep);
+        windowPosition -= shift;
+        outputPosition -= shift;
+        historyStart = Math.max(0, historyStart - shift);
+    }
+
+    private void decodeBlock(byte[] b, int off) {
+        ensureCapacity();
+        int blockStart = windowPosition;
+        outputPosition = blockStart;
+        if (blockType == Zstd.BLOCK_RAW) {
+            System.arraycopy(b, off, window, windowPosition, blockSize);
+            windowPosition += blockSize;
+        } else if (blockType == Zstd.BLOCK_RLE) {
+            Arrays.fill(window, windowPosition, windowPosition + blockSize, b[off]);
+            windowPosition += blockSize;
+        } else {
+            decodeCompressedBlock(b, off, off + blockSize);
+        }
+        int produced = windowPosition - blockStart;
+        frameDecoded += produced;
+        if (hasChecksum) checksum.update(window, blockStart, produced);
+    }
+
+    private void decodeCompressedBlock(byte[] b, int p, int end) {
+        // literals section
+        int h0 = b[p] & 0xff;
+        int literalsType = h0 & 3, sizeFormat = (h0 >>> 2) & 3;
+        byte[] lit;
+        int litOffset, litLength;
+        if (literalsType == Zstd.LITERALS_RAW || literalsType == Zstd.LITERALS_RLE) {
+            int headerSize = (sizeFormat & 1) == 0 ? 1 : sizeFormat == 1 ? 2 : 3;
+            if (p + headerSize + (literalsType == Zstd.LITERALS_RLE ? 1 : 0) > end)
+                throw Zstd.corrupt("literals exceed block");
+            if ((sizeFormat & 1) == 0) {
+                litLength = h0 >>> 3;
+            } else if (sizeFormat == 1) {
+                litLength = (h0 >>> 4) + ((b[p + 1] & 0xff) << 4);
+            } else {
+                litLength = (h0 >>> 4) + ((b[p + 1] & 0xff) << 4) + ((b[p + 2] & 0xff) << 12);
+            }
+            if (litLength > Zstd.BLOCK_SIZE_MAX) throw Zstd.corrupt("literals too large");
+            if (literalsType == Zstd.LITERALS_RAW) {
+                if (p + headerSize + litLength > end) throw Zstd.corrupt("literals exceed block");
+                lit = b;
+                litOffset = p + headerSize;
+                p += headerSize + litLength;
+            } else {
+                Arrays.fill(literals, 0, litLength, b[p + headerSize]);
+                lit = literals;
+                litOffset = 0;
+                p += headerSize + 1;
+            }
+        } else {
+            int headerSize = sizeFormat <= 1 ? 3 : sizeFormat + 2, compressedSize;
+            boolean singleStream = sizeFormat == 0;
+            if (p + headerSize > end) throw Zstd.corrupt("literals exceed block");
+            if (sizeFormat <= 1) {
+                int v = h0 | ((b[p + 1] & 0xff) << 8) | ((b[p + 2] & 0xff) << 16);
+                litLength = (v >>> 4) & 0x3ff;
+                compressedSize = (v >>> 14) & 0x3ff;
+            } else if (sizeFormat == 2) {
+                int v = Zstd.readIntLE(b, p);
+                litLength = (v >>> 4) & 0x3fff;
+                compressedSize = (v >>> 18) & 0x3fff;
+            } else {
+                long v = (Zstd.readIntLE(b, p) & 0xffffffffL) | ((long) (b[p + 4] & 0xff) << 32);
+                litLength = (int) ((v >>> 4) & 0x3ffff);
+                compressedSize = (int) ((v >>> 22) & 0x3ffff);
+            }
+            if (litLength > Zstd.BLOCK_SIZE_MAX) throw Zstd.corrupt("literals too large");
+            p += headerSize;
+            if (p + compressedSize > end) throw Zstd.corrupt("literals exceed block");
+            int streamsStart = p;
+            if (literalsType == Zstd.LITERALS_COMPRESSED) {
+                if (huffman == null) huffman = new Huffman.DecodeTable();
+                streamsStart += huffman.read(b, p, compressedSize);
+            } else if (huffman == null || !huffman.isInitialized()) {
+                throw Zstd.corrupt("treeless literals without a previous Huffman table");
+            }
+            int streamsSize = p + compressedSize - streamsStart;
+            if (singleStream) {
+                huffman.decodeStream(b, streamsStart, streamsSize, literals, 0, litLength);
+            } else {
+                if (streamsSize < 10 || litLength < 4) throw Zstd.corrupt("literal streams too small");
+                int size1 = Zstd.readShortLE(b, streamsStart), size2 = Zstd.readShortLE(b, streamsStart + 2),
+                        size3 = Zstd.readShortLE(b, streamsStart + 4);
+                int size4 = streamsSize - 6 - size1 - size2 - size3;
+                if (size4 < 1) throw Zstd.corrupt("invalid literal stream sizes");
+                int segment = (litLength + 3) / 4;
+                int s = streamsStart + 6;
+                huffman.decodeStream(b, s, size1, literals, 0, segment);
+                huffman.decodeStream(b, s += size1, size2, literals, segment, segment);
+                huffman.decodeStream(b, s += size2, size3, literals, 2 * segment, segment);
+                huffman.decodeStream(b, s + size3, size4, literals, 3 * segment, litLength - 3 * segment);
+            }
+            lit = literals;
+            litOffset = 0;
+            p += compressedSize;
+        }
+
+        // sequences section
+        if (p >= end) throw Zstd.corrupt("missing sequences section");
+        int sequenceCount = b[p++] & 0xff;
+        if (sequenceCount >= 128) {
+            if (sequenceCount == 255) {
+                if (p + 2 > end) throw Zstd.corrupt("truncated sequences header");
+                sequenceCount = Zstd.readShortLE(b, p) + 0x7f00;
+                p += 2;
+            } else {
+                if (p + 1 > end) throw Zstd.corrupt("truncated sequences header");
+                sequenceCount = ((sequenceCount - 128) << 8) + (b[p++] & 0xff);
+            }
+        }
+        if (sequenceCount == 0) {
+            System.arraycopy(lit, litOffset, window, windowPosition, litLength);
+            windowPosition += litLength;
+            return;
+        }
+        if (p >= end) throw Zstd.corrupt("truncated sequences header");
+        int modes = b[p++] & 0xff;
+        if ((modes & 3) != 0) throw Zstd.corrupt("reserved sequence mode bits are set");
+        p = readTable(b, p, end, modes >>> 6, 0);
+        p = readTable(b, p, end, (modes >>> 4) & 3, 1);
+        p = readTable(b, p, end, (modes >>> 2) & 3, 2);
+        executeSequences(b, p, end, sequenceCount, lit, litOffset, litLength);
+    }
+
+    // kind: 0 = literal lengths, 1 = offsets, 2 = match lengths
+    private int readTable(byte[] b, int p, int end, int mode, int kind) {
+        Fse.DecodeTable own = kind == 0 ? llOwn : kind == 1 ? ofOwn : mlOwn;
+        int maxSymbol = kind == 0 ? Zstd.LL_BASE.length - 1 : kind == 1 ? 31 : Zstd.ML_BASE.length - 1;
+        int maxLog = kind == 0 ? Zstd.LL_MAX_LOG : kind == 1 ? Zstd.OF_MAX_LOG : Zstd.ML_MAX_LOG;
+        Fse.DecodeTable table;
+        switch (mode) {
+            case Zstd.MODE_PREDEFINED:
+                table = kind == 0 ? LL_PREDEFINED : kind == 1 ? OF_PREDEFINED : ML_PREDEFINED;
+                break;
+            case Zstd.MODE_RLE:
+                if (p >= end) throw Zstd.corrupt("truncated sequence table");
+                int symbol = b[p++] & 0xff;
+                if (symbol > maxSymbol) throw Zstd.corrupt("invalid RLE sequence symbol");
+                own.buildRle(symbol);
+                table = own;
+                break;
+            case Zstd.MODE_FSE:
+                p += Fse.readNCount(b, p, end - p, normalized, maxSymbol, maxLog, accuracyLog);
+                own.build(normalized, maxSymbol, accuracyLog[0]);
+                table = own;
+                break;
+            default:
+                table = kind == 0 ? llTable : kind == 1 ? ofTable : mlTable;
+                if (table == null) throw Zstd.corrupt("repeat mode without a previous sequence table");
+        }
+        if (kind == 0) llTable = table;
+        else if (kind == 1) ofTable = table;
+        else mlTable = table;
+        return p;
+    }
+
+    private void executeSequences(byte[] b, int p, int end, int count, byte[] lit, int litOffset, int litLength) {
+        Fse.DecodeTable ll = llTable, of = ofTable, ml = mlTable;
+        BitReader in = new BitReader(b, p, end - p);
+        int llState = in.readBits(ll.accuracyLog);
+        int ofState = in.readBits(of.accuracyLog);
+        int mlState = in.readBits(ml.accuracyLog);
+        int litEnd = litOffset + litLength;
+        int blockEnd = windowPosition + blockSizeMax;
+        byte[] w = window;
+        int position = windowPosition;
+        for (int i = 0; i < count; i++) {
+            int ofCode = of.symbols[ofState], mlCode = ml.symbols[mlState], llCode = ll.symbols[llState];
+            if (ofCode > 30) throw Zstd.corrupt("offset code out of range");
+            int offsetValue = (1 << ofCode) + in.readBits(ofCode);
+            int matchLength = Zstd.ML_BASE[mlCode] + in.readBits(Zstd.ML_BITS[mlCode]);
+            int literalLength = Zstd.LL_BASE[llCode] + in.readBits(Zstd.LL_BITS[llCode]);
+            int offset = Zstd.resolveOffset(offsetValue, literalLength, reps);
+            if (i != count - 1) {
+                llState = ll.baselines[llState] + in.readBits(ll.bits[llState]);
+                mlState = ml.baselines[mlState] + in.readBits(ml.bits[mlState]);
+                ofState = of.baselines[ofState] + in.readBits(of.bits[ofState]);
+            }
+
+            if (literalLength > litEnd - litOffset) throw Zstd.corrupt("literals overrun");
+            if (literalLength + matchLength > blockEnd - position) throw Zstd.corrupt("block too large");
+            System.arraycopy(lit, litOffset, w, position, literalLength);
+            litOffset += literalLength;
+            position += literalLength;
+            if (offset > position - historyStart) throw Zstd.corrupt("offset beyond window");
+            int source = position - offset;
+            if (offset >= matchLength) {
+                System.arraycopy(w, source, w, position, matchLength);
+                position += matchLength;
+            } else {
+                int remaining = matchLength;
+                while (remaining > 0) {
+                    int n = Math.min(remaining, position - source);
+                    System.arraycopy(w, source, w, position, n);
+                    position += n;
+                    remaining -= n;
+                }
+            }
+        }
+        if (in.getBitsRemaining() != 0) throw Zstd.corrupt("sequence bitstream size mismatch");
+        int rest = litEnd - litOffset;
+        if (rest > blockEnd - position) throw Zstd.corrupt("block too large");
+        System.arraycopy(lit, litOffset, w, position, rest);
+        windowPosition = position + rest;
+    }
+}
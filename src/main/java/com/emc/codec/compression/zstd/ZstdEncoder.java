@@ -0,0 +1,604 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.compression.zstd;
+
+import java.util.Arrays;
+
+/**
+ * A Zstandard frame encoder that runs on the caller's thread. Input is {@link #addInput added} a block at a time and
+ * {@link #compressBlock compressed} into blocks of one frame; {@link #writeFrameHeader} and {@link #writeChecksum}
+ * frame them. Matches are found with hash chains and greedy or lazy parsing, literals are Huffman-coded and sequences
+ * FSE-coded. In long-distance mode the window is 128MB and a sparse table of long matches covers all of it.
+ */
+public class ZstdEncoder {
+    public static final int MIN_LEVEL = 1;
+    public static final int MAX_LEVEL = 22;
+    public static final int LONG_DISTANCE_WINDOW_LOG = 27;
+
+    /**
+     * The largest number of bytes {@link #compressBlock} writes.
+     */
+    public static final int MAX_BLOCK_LENGTH = 3 + Zstd.BLOCK_SIZE_MAX;
+    public static final int FRAME_HEADER_LENGTH = 6;
+    public static final int CHECKSUM_LENGTH = 4;
+
+    private static final int FAST = 0, GREEDY = 1, LAZY = 2, LAZY2 = 3;
+
+    // window log, hash log, chain log, search depth, min match, strategy, nice length
+    private static final int[][] LEVELS = {
+            {19, 14, 0, 1, 6, FAST, 16},
+            {20, 16, 0, 1, 5, FAST, 16},
+            {21, 17, 16, 2, 5, GREEDY, 16},
+            {21, 18, 18, 4, 5, GREEDY, 24},
+            {21, 18, 19, 8, 5, LAZY, 32},
+            {21, 19, 19, 8, 5, LAZY, 48},
+            {21, 19, 20, 16, 5, LAZY, 64},
+            {22, 20, 20, 16, 5, LAZY2, 64},
+            {22, 20, 21, 32, 5, LAZY2, 96},
+            {22, 20, 21, 48, 5, LAZY2, 128},
+            {22, 21, 22, 64, 5, LAZY2, 128},
+            {23, 21, 22, 96, 5, LAZY2, 160},
+            {23, 21, 22, 128, 4, LAZY2, 192},
+            {23, 22, 22, 192, 4, LAZY2, 256},
+            {23, 22, 23, 256, 4, LAZY2, 256},
+            {23, 22, 23, 384, 4, LAZY2, 384},
+            {23, 22, 23, 512, 4, LAZY2, 512},
+            {23, 22, 23, 768, 4, LAZY2, 768},
+            {23, 22, 24, 1024, 4, LAZY2, 1024},
+            {25, 22, 24, 1024, 4, LAZY2, 1024},
+            {26, 22, 24, 2048, 4, LAZY2, 2048},
+            {27, 22, 24, 4096, 4, LAZY2, 4096}};
+
+    private static final int LDM_HASH_LOG = 20;
+    private static final int LDM_STRIDE = 8;
+    private static final int LDM_MIN_MATCH = 64;
+
+    private static final Fse.EncodeTable LL_PREDEFINED = predefined(Zstd.LL_DEFAULT, Zstd.LL_DEFAULT_LOG);
+    private static final Fse.EncodeTable ML_PREDEFINED = predefined(Zstd.ML_DEFAULT, Zstd.ML_DEFAULT_LOG);
+    private static final Fse.EncodeTable OF_PREDEFINED = predefined(Zstd.OF_DEFAULT, Zstd.OF_DEFAULT_LOG);
+
+    private static Fse.EncodeTable predefined(short[] distribution, int log) {
+        Fse.EncodeTable table = new Fse.EncodeTable(log, distribution.length - 1);
+        table.build(distribution, distribution.length - 1, log);
+        return table;
+    }
+
+    public static int getWindowLog(int level, boolean longDistance) {
+        int windowLog = LEVELS[level - 1][0];
+        return longDistance ? Math.max(windowLog, LONG_DISTANCE_WINDOW_LOG) : windowLog;
+    }
+
+    private int windowLog, windowSize;
+    private int hashLog, chainLog, searchDepth, minMatch, strategy, niceLength;
+    private boolean longDistance;
+
+    // input history: positions in the tables are indexes into buffer
+    private byte[] buffer;
+    private int end, blockStart, nextToInsert;
+    private int chainBase; // keeps chain slots stable when the buffer slides
+    private int[] hashTable, chainTable, ldmTable;
+    private int[] reps = {1, 4, 8};
+    private XxHash64 checksum = new XxHash64();
+
+    // the block being encoded
+    private byte[] literals = new byte[Zstd.BLOCK_SIZE_MAX];
+    private int literalCount;
+    private int[] literalLengths = new int[Zstd.BLOCK_SIZE_MAX / Zstd.MIN_MATCH + 1];
+    private int[] matchLengths = new int[literalLengths.length];
+    private int[] offsetValues = new int[literalLengths.length];
+    private int sequenceCount;
+    private byte[] scratch = new byte[2 * Zstd.BLOCK_SIZE_MAX + 1024];
+    private byte[] llCodes = new byte[literalLengths.length], mlCodes = new byte[literalLengths.length],
+            ofCodes = new byte[literalLengths.length];
+    private Huffman.EncodeTable huffman = new Huffman.EncodeTable();
+    private Fse.EncodeTable llTable = new Fse.EncodeTable(Zstd.LL_MAX_LOG, Zstd.LL_BASE.length - 1);
+    private Fse.EncodeTable mlTable = new Fse.EncodeTable(Zstd.ML_MAX_LOG, Zstd.ML_BASE.length - 1);
+    private Fse.EncodeTable ofTable = new Fse.EncodeTable(Zstd.OF_MAX_LOG, 31);
+    private int[] histogram = new int[256];
+    private short[] normalized = new short[Zstd.ML_BASE.length];
+
+    public ZstdEncoder(int level, boolean longDistance) {
+        if (level < MIN_LEVEL || level > MAX_LEVEL)
+            throw new IllegalArgumentException("level must be between " + MIN_LEVEL + " and " + MAX_LEVEL);
+        int[] params = LEVELS[level - 1];
+        this.longDistance = longDistance;
+        windowLog = getWindowLog(level, longDistance);
+        windowSize = 1 << windowLog;
+        hashLog = params[1];
+        chainLog = Math.min(params[2], windowLog);
+        searchDepth = params[3];
+        minMatch = params[4];
+        strategy = params[5];
+        niceLength = params[6];
+        buffer = new byte[Math.min(windowSize, 1 << 20) + 2 * Zstd.BLOCK_SIZE_MAX];
+        hashTable = new int[1 << hashLog];
+        Arrays.fill(hashTable, -1);
+        if (chainLog > 0) chainTable = new int[1 << chainLog];
+        if (longDistance) {
+            ldmTable = new int[1 << LDM_HASH_LOG];
+            Arrays.fill(ldmTable, -1);
+        }
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    /**
+     * @return the number of bytes that can be added before a block must be compressed
+     */
+    public int getInputCapacity() {
+        return Zstd.BLOCK_SIZE_MAX - (end - blockStart);
+    }
+
+    public void addInput(byte[] b, int off, int len) {
+        if (len > getInputCapacity()) throw new IllegalArgumentException("block is full");
+        if (end + len > buffer.length) makeRoom();
+        System.arraycopy(b, off, buffer, end, len);
+        end += len;
+        checksum.update(b, off, len);
+    }
+
+    /**
+     * @return the number of bytes written (always {@link #FRAME_HEADER_LENGTH})
+     */
+    public int writeFrameHeader(byte[] dst, int off) {
+        Zstd.writeIntLE(dst, off, Zstd.MAGIC);
+        dst[off + 4] = 0x04; // content checksum, no content size, no dictionary
+        dst[off + 5] = (byte) ((windowLog - Zstd.WINDOW_LOG_MIN) << 3);
+        return FRAME_HEADER_LENGTH;
+    }
+
+    /**
+     * @return the number of bytes written (always {@link #CHECKSUM_LENGTH})
+     */
+    public int writeChecksum(byte[] dst, int off) {
+        Zstd.writeIntLE(dst, off, (int) checksum.getValue());
+        return CHECKSUM_LENGTH;
+    }
+
+    /**
+     * Compresses all added input into one block (which may be empty).
+     *
+     * @param dst must have room for {@link #MAX_BLOCK_LENGTH} bytes
+     * @return the number of bytes written
+     */
+    public int compressBlock(boolean last, byte[] dst, int off) {
+        int start = blockStart, length = end - blockStart;
+        int[] savedReps = reps.clone();
+        int compressedLength = -1;
+        if (length > 0) {
+            findSequences(start, end);
+            compressedLength = encodeBlock(scratch, 0);
+        }
+        blockStart = end;
+        int lastBit = last ? 1 : 0;
+        if (compressedLength > 0 && compressedLength < length) {
+            writeBlockHeader(dst, off, (compressedLength << 3) | (Zstd.BLOCK_COMPRESSED << 1) | lastBit);
+            System.arraycopy(scratch, 0, dst, off + 3, compressedLength);
+            return 3 + compressedLength;
+        }
+        // the decoder doesn't see sequences from a raw or RLE block
+        System.arraycopy(savedReps, 0, reps, 0, 3);
+        if (length > 1 && isRun(buffer, start, length)) {
+            writeBlockHeader(dst, off, (length << 3) | (Zstd.BLOCK_RLE << 1) | lastBit);
+            dst[off + 3] = buffer[start];
+            return 4;
+        }
+        writeBlockHeader(dst, off, (length << 3) | (Zstd.BLOCK_RAW << 1) | lastBit);
+        System.arraycopy(buffer, start, dst, off + 3, length);
+        return 3 + length;
+    }
+
+    private static boolean isRun(byte[] b, int off, int len) {
+        for (int i = off + 1; i < off + len; i++) {
+            if (b[i] != b[off]) return false;
+        }
+        return true;
+    }
+
+    private static void writeBlockHeader(byte[] dst, int off, int header) {
+        dst[off] = (byte) header;
+        dst[off + 1] = (byte) (header >>> 8);
+        dst[off + 2] = (byte) (header >>> 16);
+    }
+
+    // keeps at most a window of history and room for one more block
+    private void makeRoom() {
+        long wanted = (long) windowSize + Math.max(4 * Zstd.BLOCK_SIZE_MAX, windowSize / 4);
+        if (buffer.length < wanted) {
+            buffer = Arrays.copyOf(buffer, (int) Math.min(wanted, 2L * buffer.length));
+            if (end + Zstd.BLOCK_SIZE_MAX <= buffer.length) return;
+        }
+        int shift = end - windowSize;
+        System.arraycopy(buffer, shift, buffer, 0, end - shift);
+        end -= shift;
+        blockStart -= shift;
+        nextToInsert -= shift;
+        chainBase += shift;
+        rebase(hashTable, shift);
+        if (chainTable != null) rebase(chainTable, shift);
+        if (ldmTable != null) rebase(ldmTable, shift);
+    }
+
+    private static void rebase(int[] table, int shift) {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = table[i] < shift ? -1 : table[i] - shift;
+        }
+    }
+
+    // match finding
+
+    private int hash(int position) {
+        long value = Zstd.readLongLE(buffer, position);
+        if (minMatch < 8) value <<= 64 - 8 * minMatch;
+        return (int) ((value * 0xCF1BBCDCB7A56463L) >>> (64 - hashLog));
+    }
+
+    private int ldmHash(int position) {
+        return (int) ((Zstd.readLongLE(buffer, position) * 0x9E3779B97F4A7C15L) >>> (64 - LDM_HASH_LOG));
+    }
+
+    private void insertUpTo(int target) {
+        int chainMask = chainTable == null ? 0 : chainTable.length - 1;
+        for (int p = nextToInsert; p < target; p++) {
+            int h = hash(p);
+            if (chainTable != null) chainTable[(p + chainBase) & chainMask] = hashTable[h];
+            hashTable[h] = p;
+            if (ldmTable != null && ((p + chainBase) & (LDM_STRIDE - 1)) == 0) ldmTable[ldmHash(p)] = p;
+        }
+        if (target > nextToInsert) nextToInsert = target;
+    }
+
+    private static int matchLength(byte[] b, int candidate, int position, int limit) {
+        int start = position;
+        while (position + 8 <= limit) {
+            long diff = Zstd.readLongLE(b, candidate) ^ Zstd.readLongLE(b, position);
+            if (diff != 0) return position - start + (Long.numberOfTrailingZeros(diff) >>> 3);
+            position += 8;
+            candidate += 8;
+        }
+        while (position < limit && b[candidate] == b[position]) {
+            position++;
+            candidate++;
+        }
+        return position - start;
+    }
+
+    // the best match at position: returns the length, with the offset in matchOffset
+    private int matchOffset;
+
+    private int findMatch(int position, int limit, int literalLength) {
+        insertUpTo(position);
+        int lowest = Math.max(0, position - windowSize);
+        int bestLength = 0, bestOffset = 0;
+
+        // repeat offsets are cheapest to code; with no literals the first one isn't available
+        for (int r = literalLength == 0 ? 1 : 0; r < 3; r++) {
+            int offset = reps[r];
+            if (offset > position - lowest
+                    || Zstd.readIntLE(buffer, position - offset) != Zstd.readIntLE(buffer, position)) continue;
+            int length = matchLength(buffer, position - offset, position, limit);
+            if (length > bestLength) {
+                bestLength = length;
+                bestOffset = offset;
+            }
+        }
+        if (bestLength >= niceLength) {
+            matchOffset = bestOffset;
+            return bestLength;
+        }
+        int repLength = bestLength;
+
+        int chainMask = chainTable == null ? 0 : chainTable.length - 1;
+        int chainLowest = chainTable == null ? lowest : Math.max(lowest, position - chainTable.length + 1);
+        int candidate = hashTable[hash(position)];
+        for (int attempts = searchDepth; attempts > 0 && candidate >= lowest; attempts--) {
+            if (position + bestLength >= limit) break; // can't get any longer
+            if (buffer[candidate + bestLength] == buffer[position + bestLength]) {
+                int length = matchLength(buffer, candidate, position, limit);
+                // a new offset must be long enough to pay for itself over a repeat match
+                if (length > bestLength && (bestLength != repLength || length > repLength + 1)) {
+                    bestLength = length;
+                    bestOffset = position - candidate;
+                    if (length >= niceLength) break;
+                }
+            }
+            if (chainTable == null || candidate < chainLowest) break;
+            candidate = chainTable[(candidate + chainBase) & chainMask];
+        }
+
+        if (ldmTable != null && bestLength < LDM_MIN_MATCH) {
+            candidate = ldmTable[ldmHash(position)];
+            if (candidate >= lowest) {
+                int length = matchLength(buffer, candidate, position, limit);
+                if (length >= LDM_MIN_MATCH && length > bestLength) {
+                    bestLength = length;
+                    bestOffset = position - candidate;
+                }
+            }
+        }
+        matchOffset = bestOffset;
+        return bestLength >= minMatch || (bestLength >= Zstd.MIN_MATCH && bestLength == repLength) ? bestLength : 0;
+    }
+
+    private void findSequences(int start, int end) {
+        sequenceCount = 0;
+        literalCount = 0;
+        int anchor = start, position = start;
+        int limit = end - 8; // hashing reads 8 bytes
+        if (nextToInsert < start - windowSize) nextToInsert = Math.max(0, start - windowSize);
+        while (position < limit) {
+            int length = findMatch(position, end, position - anchor);
+            if (length == 0) {
+                // skip ahead faster through data that doesn't compress
+                position += 1 + ((position - anchor) >>> (strategy == FAST ? 6 : 8));
+                continue;
+            }
+            int offset = matchOffset;
+            if (strategy >= LAZY) {
+                // take a later match if it is better enough to be worth a literal
+                for (int step = 0; step < (strategy == LAZY2 ? 2 : 1) && position + 1 < limit; step++) {
+                    int nextLength = findMatch(position + 1, end, position + 1 - anchor);
+                    if (nextLength == 0) break;
+                    int gain = 4 * nextLength - Zstd.highBit(matchOffset + 1);
+                    int current = 4 * length - Zstd.highBit(offset + 1) + 4;
+                    if (gain <= current) break;
+                    position++;
+                    length = nextLength;
+                    offset = matchOffset;
+                }
+            }
+            // extend backward over literals
+            while (position > anchor && position - offset > 0 && buffer[position - 1] == buffer[position - offset - 1]) {
+                position--;
+                length++;
+            }
+            addSequence(anchor, position, offset, length);
+            position += length;
+            anchor = position;
+            if (strategy == FAST) nextToInsert = Math.max(nextToInsert, Math.min(position, limit) - 2);
+            else insertUpTo(Math.min(position, limit));
+        }
+        if (nextToInsert < limit) insertUpTo(limit);
+        int rest = end - anchor;
+        System.arraycopy(buffer, anchor, literals, literalCount, rest);
+        literalCount += rest;
+    }
+
+    private void addSequence(int anchor, int position, int offset, int length) {
+        int literalLength = position - anchor;
+        System.arraycopy(buffer, anchor, literals, literalCount, literalLength);
+        literalCount += literalLength;
+        int offsetValue = offset + 3;
+        if (literalLength > 0) {
+            if (offset == reps[0]) offsetValue = 1;
+            else if (offset == reps[1]) offsetValue = 2;
+            else if (offset == reps[2]) offsetValue = 3;
+        } else {
+            if (offset == reps[1]) offsetValue = 1;
+            else if (offset == reps[2]) offsetValue = 2;
+            else if (offset == reps[0] - 1) offsetValue = 3;
+        }
+        Zstd.resolveOffset(offsetValue, literalLength, reps);
+        literalLengths[sequenceCount] = literalLength;
+        matchLengths[sequenceCount] = length;
+        offsetValues[sequenceCount] = offsetValue;
+        sequenceCount++;
+    }
+
+    // entropy coding
+
+    private int encodeBlock(byte[] dst, int off) {
+        int p = off;
+        p += encodeLiterals(dst, p);
+        p += encodeSequences(dst, p);
+        return p - off;
+    }
+
+    private int encodeLiterals(byte[] dst, int off) {
+        int count = literalCount;
+        if (count >= 64) {
+            Arrays.fill(histogram, 0);
+            int maxSymbol = 0, distinct = 0;
+            for (int i = 0; i < count; i++) histogram[literals[i] & 0xff]++;
+            for (int s = 0; s < 256; s++) {
+                if (histogram[s] > 0) {
+                    maxSymbol = s;
+                    distinct++;
+                }
+            }
+            if (distinct == 1) {
+                int headerSize = writeRawLiteralsHeader(dst, off, Zstd.LITERALS_RLE, count);
+                dst[off + headerSize] = literals[0];
+                return headerSize + 1;
+            }
+            huffman.build(histogram, maxSymbol);
+            if (huffman.estimateSize(histogram) < count - count / 16) {
+                int length = writeHuffmanLiterals(dst, off, count);
+                if (length > 0) return length;
+            }
+        }
+        int headerSize = writeRawLiteralsHeader(dst, off, Zstd.LITERALS_RAW, count);
+        System.arraycopy(literals, 0, dst, off + headerSize, count);
+        return headerSize + count;
+    }
+
+    private static int writeRawLiteralsHeader(byte[] dst, int off, int type, int size) {
+        if (size < 32) {
+            dst[off] = (byte) (type | (size << 3));
+            return 1;
+        } else if (size < 4096) {
+            dst[off] = (byte) (type | (1 << 2) | (size << 4));
+            dst[off + 1] = (byte) (size >>> 4);
+            return 2;
+        }
+        dst[off] = (byte) (type | (3 << 2) | (size << 4));
+        dst[off + 1] = (byte) (size >>> 4);
+        dst[off + 2] = (byte) (size >>> 12);
+        return 3;
+    }
+
+    // returns -1 if Huffman coding doesn't pay off
+    private int writeHuffmanLiterals(byte[] dst, int off, int count) {
+        boolean singleStream = count < 256;
+        int headerSize = count < 1024 ? 3 : count < 16384 ? 4 : 5;
+        int p = off + headerSize;
+        int treeSize = huffman.write(dst, p);
+        if (treeSize < 0) return -1;
+        p += treeSize;
+        if (singleStream) {
+            p += huffman.encodeStream(literals, 0, count, dst, p);
+        } else {
+            int segment = (count + 3) / 4;
+            int jumpTable = p;
+            p += 6;
+            for (int i = 0; i < 4; i++) {
+                int size = huffman.encodeStream(literals, i * segment, Math.min(segment, count - i * segment), dst, p);
+                if (i < 3) {
+                    dst[jumpTable + 2 * i] = (byte) size;
+                    dst[jumpTable + 2 * i + 1] = (byte) (size >>> 8);
+                }
+                p += size;
+            }
+        }
+        int compressedSize = p - off - headerSize;
+        if (compressedSize >= count) return -1;
+        int format = singleStream ? 0 : headerSize - 2;
+        int bits = headerSize == 3 ? 10 : headerSize == 4 ? 14 : 18;
+        long header = Zstd.LITERALS_COMPRESSED | (format << 2) | ((long) count << 4)
+                | ((long) compressedSize << (4 + bits));
+        for (int i = 0; i < headerSize; i++) dst[off + i] = (byte) (header >>> (8 * i));
+        return p - off;
+    }
+
+    private int encodeSequences(byte[] dst, int off) {
+        int count = sequenceCount;
+        int p = off;
+        if (count < 128) {
+            dst[p++] = (byte) count;
+        } else if (count < 0x7f00) {
+            dst[p++] = (byte) ((count >>> 8) + 128);
+            dst[p++] = (byte) count;
+        } else {
+            dst[p++] = (byte) 255;
+            dst[p++] = (byte) (count - 0x7f00);
+            dst[p++] = (byte) ((count - 0x7f00) >>> 8);
+        }
+        if (count == 0) return p - off;
+
+        for (int i = 0; i < count; i++) {
+            llCodes[i] = (byte) Zstd.literalLengthCode(literalLengths[i]);
+            mlCodes[i] = (byte) Zstd.matchLengthCode(matchLengths[i]);
+            ofCodes[i] = (byte) Zstd.highBit(offsetValues[i]);
+        }
+        int modesPosition = p++;
+        int[] modes = new int[3];
+        Fse.EncodeTable[] tables = new Fse.EncodeTable[3];
+        p = selectTable(dst, p, llCodes, count, Zstd.LL_BASE.length - 1, Zstd.LL_MAX_LOG, Zstd.LL_DEFAULT,
+                Zstd.LL_DEFAULT_LOG, LL_PREDEFINED, llTable, modes, tables, 0);
+        p = selectTable(dst, p, ofCodes, count, 31, Zstd.OF_MAX_LOG, Zstd.OF_DEFAULT, Zstd.OF_DEFAULT_LOG,
+                OF_PREDEFINED, ofTable, modes, tables, 1);
+        p = selectTable(dst, p, mlCodes, count, Zstd.ML_BASE.length - 1, Zstd.ML_MAX_LOG, Zstd.ML_DEFAULT,
+                Zstd.ML_DEFAULT_LOG, ML_PREDEFINED, mlTable, modes, tables, 2);
+        dst[modesPosition] = (byte) ((modes[0] << 6) | (modes[1] << 4) | (modes[2] << 2));
+
+        Fse.EncodeTable ll = tables[0], of = tables[1], ml = tables[2];
+        BitWriter out = new BitWriter(dst, p);
+        int last = count - 1;
+        int mlState = ml == null ? 0 : ml.initState(mlCodes[last]);
+        int ofState = of == null ? 0 : of.initState(ofCodes[last]);
+        int llState = ll == null ? 0 : ll.initState(llCodes[last]);
+        addExtraBits(out, last);
+        for (int i = last - 1; i >= 0; i--) {
+            if (of != null) ofState = of.encode(out, ofState, ofCodes[i]);
+            if (ml != null) mlState = ml.encode(out, mlState, mlCodes[i]);
+            if (ll != null) llState = ll.encode(out, llState, llCodes[i]);
+            addExtraBits(out, i);
+        }
+        if (ml != null) ml.flush(out, mlState);
+        if (of != null) of.flush(out, ofState);
+        if (ll != null) ll.flush(out, llState);
+        p += out.close();
+        return p - off;
+    }
+
+    private void addExtraBits(BitWriter out, int i) {
+        int llCode = llCodes[i], mlCode = mlCodes[i], ofCode = ofCodes[i];
+        out.addBits(literalLengths[i] - Zstd.LL_BASE[llCode], Zstd.LL_BITS[llCode]);
+        out.addBits(matchLengths[i] - Zstd.ML_BASE[mlCode], Zstd.ML_BITS[mlCode]);
+        out.addBits(offsetValues[i] - (1 << ofCode), ofCode);
+    }
+
+    // picks RLE, predefined or a new FSE table; a null table means RLE (no state bits)
+    private int selectTable(byte[] dst, int p, byte[] codes, int count, int maxSymbol, int maxLog,
+                            short[] defaultDistribution, int defaultLog, Fse.EncodeTable predefinedTable,
+                            Fse.EncodeTable own, int[] modes, Fse.EncodeTable[] tables, int kind) {
+        Arrays.fill(histogram, 0, maxSymbol + 1, 0);
+        int max = 0, distinct = 0;
+        for (int i = 0; i < count; i++) histogram[codes[i]]++;
+        for (int s = 0; s <= maxSymbol; s++) {
+            if (histogram[s] > 0) {
+                max = s;
+                distinct++;
+            }
+        }
+        if (distinct == 1 && count > 2) {
+            modes[kind] = Zstd.MODE_RLE;
+            dst[p++] = (byte) max;
+            return p;
+        }
+        double predefinedCost = max < defaultDistribution.length
+                ? cost(histogram, max, defaultDistribution, defaultLog) : Double.MAX_VALUE;
+        int log = Fse.optimalAccuracyLog(maxLog, count, max);
+        Fse.normalize(histogram, max, count, log, normalized);
+        int headerSize = Fse.writeNCount(dst, p, normalized, max, log);
+        if (predefinedCost <= cost(histogram, max, normalized, log) + 8 * headerSize) {
+            modes[kind] = Zstd.MODE_PREDEFINED;
+            tables[kind] = predefinedTable;
+            return p;
+        }
+        own.build(normalized, max, log);
+        modes[kind] = Zstd.MODE_FSE;
+        tables[kind] = own;
+        return p + headerSize;
+    }
+
+    // estimated bits to code the histogram with a distribution
+    private static double cost(int[] histogram, int maxSymbol, short[] distribution, int log) {
+        double bits = 0;
+        for (int s = 0; s <= maxSymbol; s++) {
+            if (histogram[s] == 0) continue;
+            int n = distribution[s];
+            if (n == 0) return Double.MAX_VALUE;
+            bits += histogram[s] * (log - Math.log(n < 0 ? 1 : n) / Math.log(2));
+        }
+        return bits;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.compression.zstd;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Compresses data read from the source into a single Zstandard frame, one block at a time as the stream is read.
+ */
+public class ZstdFrameEncodingInputStream extends InputStream {
+    private InputStream in;
+    private ZstdEncoder encoder;
+    private byte[] input = new byte[8192];
+    private byte[] output = new byte[ZstdEncoder.FRAME_HEADER_LENGTH + ZstdEncoder.MAX_BLOCK_LENGTH
+            + ZstdEncoder.CHECKSUM_LENGTH];
+    private int pos = 0, limit = 0;
+    private boolean headerWritten = false, finished = false;
+
+    public ZstdFrameEncodingInputStream(InputStream in, int compressionLevel, boolean longDistance) {
+        this.in = in;
+        this.encoder = new ZstdEncoder(compressionLevel, longDistance);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (pos == limit && !nextBlock()) return -1;
+        return output[pos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (pos == limit && !nextBlock()) return -1;
+        int n = Math.min(len, limit - pos);
+        System.arraycopy(output, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return limit - pos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private boolean nextBlock() throws IOException {
+        if (finished) return false;
+        pos = limit = 0;
+        if (!headerWritten) {
+            limit += encoder.writeFrameHeader(output, limit);
+            headerWritten = true;
+        }
+
+        // fill a whole block (short reads would make short blocks)
+        int c = 0;
+        while (encoder.getInputCapacity() > 0
+                && (c = in.read(input, 0, Math.min(input.length, encoder.getInputCapacity()))) != -1) {
+            encoder.addInput(input, 0, c);
+        }
+
+        limit += encoder.compressBlock(c == -1, output, limit);
+        if (c == -1) {
+            limit += encoder.writeChecksum(output, limit);
+            finished = true;
+        }
+        return true;
+    }
+}
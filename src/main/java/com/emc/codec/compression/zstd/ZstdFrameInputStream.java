@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.compression.zstd;
+
+import com.emc.codec.compression.CompressionException;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decompresses a Zstandard stream as it is read. Decoding happens on the reading thread (see {@link ZstdDecoder}).
+ */
+public class ZstdFrameInputStream extends InputStream {
+    private InputStream in;
+    private ZstdDecoder decoder;
+    private byte[] input = new byte[64 * 1024];
+    private int inputPos = 0, inputLimit = 0;
+    private boolean eof = false;
+
+    /**
+     * @param maxWindowSize the largest window a frame may declare
+     */
+    public ZstdFrameInputStream(InputStream in, long maxWindowSize) {
+        this.in = in;
+        this.decoder = new ZstdDecoder(maxWindowSize);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) return -1;
+        int b = decoder.getOutputBuffer()[decoder.getOutputOffset()] & 0xff;
+        decoder.skipOutput(1);
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (!fill()) return -1;
+        int n = Math.min(len, decoder.getOutputLength());
+        System.arraycopy(decoder.getOutputBuffer(), decoder.getOutputOffset(), b, off, n);
+        decoder.skipOutput(n);
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return decoder.getOutputLength();
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    // feeds input until output is available; returns false at the end of the stream
+    private boolean fill() throws IOException {
+        while (decoder.getOutputLength() == 0) {
+            if (inputPos == inputLimit) {
+                if (eof) return false;
+                inputPos = 0;
+                inputLimit = in.read(input);
+                if (inputLimit == -1) {
+                    inputLimit = 0;
+                    eof = true;
+                    if (!decoder.isFinished()) throw new CompressionException("Zstandard stream is truncated");
+                    return false;
+                }
+            }
+            inputPos += decoder.feed(input, inputPos, inputLimit - inputPos);
+        }
+        return true;
+    }
+}
@@ -28,23 +28,41 @@
 
 package com.emc.codec.encryption;
 
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import java.security.GeneralSecurityException;
 import java.security.KeyPair;
 import java.security.Provider;
+import java.security.interfaces.RSAPrivateKey;
 import java.security.interfaces.RSAPublicKey;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class BasicKeyProvider implements KeyProvider {
+public class BasicKeyProvider implements KeyEncryptionKeyProvider {
 
     private static final Logger log = LoggerFactory.getLogger(BasicKeyProvider.class);
 
+    public static final long DEFAULT_KEK_LIFETIME = TimeUnit.DAYS.toMillis(1);
+    public static final int MAX_CACHED_KEKS = 1000;
+
     private KeyPair masterKey;
     private String masterKeyFingerprint;
     private Map<String, KeyPair> keyMap = new HashMap<String, KeyPair>();
     private Provider provider;
+    private long kekLifetime = DEFAULT_KEK_LIFETIME;
+    private KeyEncryptionKey currentKek;
+    private Map<String, KeyEncryptionKey> kekCache = new LinkedHashMap<String, KeyEncryptionKey>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, KeyEncryptionKey> eldest) {
+            return size() > MAX_CACHED_KEKS;
+        }
+    };
 
     public BasicKeyProvider() {
     }
@@ -105,6 +123,87 @@ public class BasicKeyProvider implements KeyProvider {
         return keyMap.get(keyFingerprint);
     }
 
+    /**
+     * Creates a new KEK when there is none yet, when the current one is older than the KEK lifetime, or when the
+     * master key has changed. Requires the private half of the master key to sign the KEK.
+     */
+    @Override
+    public synchronized KeyEncryptionKey getKeyEncryptionKey(Provider provider) {
+        if (masterKey == null) throw new EncryptionException("no master key set");
+        if (masterKey.getPrivate() == null)
+            throw new EncryptionException("master key has no private key to sign key encryption keys with");
+        if (currentKek == null || !currentKek.getMasterKeyFingerprint().equals(masterKeyFingerprint)
+                || System.currentTimeMillis() - currentKek.getCreateTime() >= kekLifetime) {
+            SecretKey key = generateKeyEncryptionKey(provider);
+            String wrappedKey = EncryptionUtil.encryptKey(key, provider, masterKey.getPublic());
+            String signature = KeyEncryptionKey.sign(wrappedKey, (RSAPrivateKey) masterKey.getPrivate(), provider);
+            currentKek = new KeyEncryptionKey(key, wrappedKey, signature, masterKeyFingerprint);
+            kekCache.put(currentKek.getId(), currentKek);
+        }
+        return currentKek;
+    }
+
+    @Override
+    public KeyEncryptionKey getKeyEncryptionKey(String id, String masterKeyFingerprint, String wrappedKey,
+                                                String signature, Provider provider) {
+        KeyEncryptionKey kek;
+        synchronized (this) {
+            kek = kekCache.get(id);
+        }
+        // cached KEKs have been verified, so the signature only needs checking once per KEK
+        if (kek != null && kek.getWrappedKey().equals(wrappedKey)
+                && kek.getMasterKeyFingerprint().equals(masterKeyFingerprint)
+                && kek.getSignature().equals(signature)) return kek;
+
+        if (!KeyEncryptionKey.getId(wrappedKey).equals(id))
+            throw new EncryptionException("key encryption key does not match its ID " + id);
+        KeyPair keyPair = getKey(masterKeyFingerprint);
+        if (keyPair == null) return null;
+        if (!KeyEncryptionKey.verify(wrappedKey, signature, keyPair.getPublic(), provider))
+            throw new EncryptionException("key encryption key signature does not match (ID " + id + ")");
+
+        // unwrapped outside the lock; concurrent misses for the same KEK are rare (once per KEK per process)
+        SecretKey key = EncryptionUtil.decryptKey(wrappedKey, "AES", provider, keyPair.getPrivate());
+        kek = new KeyEncryptionKey(key, wrappedKey, signature, masterKeyFingerprint);
+        synchronized (this) {
+            kekCache.put(id, kek);
+        }
+        return kek;
+    }
+
+    /**
+     * Forces a new KEK on the next call to {@link #getKeyEncryptionKey(Provider)}. Previous KEKs remain usable for
+     * decoding.
+     */
+    public synchronized void rotateKeyEncryptionKey() {
+        currentKek = null;
+    }
+
+    protected SecretKey generateKeyEncryptionKey(Provider provider) {
+        try {
+            KeyGenerator keygen = provider != null ? KeyGenerator.getInstance("AES", provider)
+                    : KeyGenerator.getInstance("AES");
+            keygen.init(Math.min(256, Cipher.getMaxAllowedKeyLength("AES")),
+                    RandomSource.getDefault().getSecureRandom(provider));
+            return keygen.generateKey();
+        } catch (GeneralSecurityException e) {
+            throw new EncryptionException("Could not generate key encryption key", e);
+        }
+    }
+
+    public long getKekLifetime() {
+        return kekLifetime;
+    }
+
+    /**
+     * @param kekLifetime how long (in milliseconds) a KEK is used for new objects before it is replaced. Defaults to
+     *                    one day
+     */
+    public void setKekLifetime(long kekLifetime) {
+        if (kekLifetime < 1) throw new IllegalArgumentException("Invalid KEK lifetime: " + kekLifetime);
+        this.kekLifetime = kekLifetime;
+    }
+
     public void addKey(KeyPair keyPair) {
         checkKey(keyPair);
         keyMap.put(getFingerprint(keyPair), keyPair);
@@ -137,4 +236,9 @@ public class BasicKeyProvider implements KeyProvider {
         setProvider(provider);
         return this;
     }
+
+    public BasicKeyProvider withKekLifetime(long kekLifetime) {
+        setKekLifetime(kekLifetime);
+        return this;
+    }
 }
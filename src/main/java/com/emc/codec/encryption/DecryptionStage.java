@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.encryption;
+
+import com.emc.codec.BufferSink;
+
+import javax.crypto.Cipher;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+/**
+ * Buffer-based decryption (the counterpart of {@link EncryptionStage}).
+ */
+public class DecryptionStage implements BufferSink {
+    private BufferSink next;
+    private Cipher cipher;
+    private int chunkSize;
+    private ByteBuffer outputBuffer;
+    private boolean closed = false;
+
+    public DecryptionStage(BufferSink next, Cipher cipher, int bufferSize) {
+        this.next = next;
+        this.cipher = cipher;
+        this.chunkSize = bufferSize;
+    }
+
+    @Override
+    public void write(ByteBuffer src) throws IOException {
+        if (outputBuffer == null) outputBuffer = CipherBuffers.allocateOutput(cipher, chunkSize, src.isDirect());
+
+        try {
+            while (src.hasRemaining()) {
+                int count = Math.min(src.remaining(), chunkSize);
+                ByteBuffer chunk = src.duplicate();
+                chunk.limit(chunk.position() + count);
+
+                outputBuffer.clear();
+                cipher.update(chunk, outputBuffer);
+                src.position(chunk.position());
+
+                outputBuffer.flip();
+                if (outputBuffer.hasRemaining()) next.write(outputBuffer);
+            }
+        } catch (GeneralSecurityException e) {
+            throw new EncryptionException("Error decrypting data", e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+
+        if (outputBuffer == null) outputBuffer = CipherBuffers.allocateOutput(cipher, chunkSize, false);
+        try {
+            outputBuffer.clear();
+            cipher.doFinal(CipherBuffers.EMPTY, outputBuffer);
+            outputBuffer.flip();
+            if (outputBuffer.hasRemaining()) next.write(outputBuffer);
+        } catch (GeneralSecurityException e) {
+            throw new EncryptionException("Error decrypting data", e);
+        } finally {
+            next.close();
+        }
+    }
+}
@@ -29,19 +29,32 @@
 package com.emc.codec.encryption;
 
 import com.emc.codec.*;
+import com.emc.codec.metrics.CodecMetrics;
+import com.emc.codec.metrics.MetricsUtil;
+import com.emc.codec.metrics.NoOpCodecMetrics;
 import com.emc.codec.util.CodecUtil;
+import com.emc.codec.util.JceEngineCache;
+import com.emc.codec.util.RangeInputStream;
 
 import javax.crypto.*;
 import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.security.*;
 import java.security.interfaces.RSAPrivateKey;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public class EncryptionCodec extends AbstractCodec<EncryptionMetadata> {
 
@@ -49,6 +62,7 @@ public class EncryptionCodec extends AbstractCodec<EncryptionMetadata> {
 
     public static final int PRIORITY = 1000;
 
+    // Per FIPS bulletin 2013-09, make sure we don't use Dual_EC_DRBG
     public static final String SECURE_RANDOM_INSTANCE = "SHA1PRNG";
 
     public static final String AES_CBC_PKCS5_CIPHER = "AES/CBC/PKCS5Padding";
@@ -56,9 +70,20 @@ public class EncryptionCodec extends AbstractCodec<EncryptionMetadata> {
     public static final String PROP_KEY_SIZE = "com.emc.codec.encryption.EncryptionCodec.keySize";
     public static final String PROP_KEY_PROVIDER = "com.emc.codec.encryption.EncryptionCodec.keyProvider";
     public static final String PROP_SECURITY_PROVIDER = "com.emc.codec.encryption.EncryptionCodec.securityProvider";
+    public static final String PROP_KEY_CACHE = "com.emc.codec.encryption.EncryptionCodec.keyCache";
+    public static final String PROP_VERIFY_SIGNATURE = "com.emc.codec.encryption.EncryptionCodec.verifySignature";
+    public static final String PROP_SIGNATURE_CACHE = "com.emc.codec.encryption.EncryptionCodec.signatureCache";
+    public static final String PROP_RANDOM_SOURCE = "com.emc.codec.encryption.EncryptionCodec.randomSource";
+    public static final String PROP_USE_KEY_ENCRYPTION_KEY =
+            "com.emc.codec.encryption.EncryptionCodec.useKeyEncryptionKey";
 
     public static final int DEFAULT_KEY_SIZE = 128;
 
+    // cipher specs come from object metadata, so bound the lookup cache
+    private static final int MAX_CACHED_CIPHERS = 256;
+    private static final int SCRUB_KEY_SIZE = 16; // AES-128; ciphers of other algorithms are dropped on release
+    private static final ConcurrentMap<String, Boolean> supportedCiphers = new ConcurrentHashMap<String, Boolean>();
+
     public static String encodeSpec(String cipherSpec) {
         return CodecUtil.getEncodeSpec(EncryptionConstants.ENCRYPTION_TYPE, cipherSpec);
     }
@@ -87,11 +112,86 @@ public class EncryptionCodec extends AbstractCodec<EncryptionMetadata> {
         codecProperties.put(PROP_SECURITY_PROVIDER, securityProvider);
     }
 
+    /**
+     * Cache of unwrapped object keys used when decoding. Not set (no caching) by default.
+     */
+    public static ObjectKeyCache getKeyCache(Map<String, Object> codecProperties) {
+        return CodecUtil.getCodecProperty(PROP_KEY_CACHE, codecProperties, null);
+    }
+
+    public static void setKeyCache(Map<String, Object> codecProperties, ObjectKeyCache keyCache) {
+        codecProperties.put(PROP_KEY_CACHE, keyCache);
+    }
+
+    /**
+     * Source of object keys and IVs. Defaults to {@link RandomSource#getDefault()}.
+     */
+    public static RandomSource getRandomSource(Map<String, Object> codecProperties) {
+        return CodecUtil.getCodecProperty(PROP_RANDOM_SOURCE, codecProperties, RandomSource.getDefault());
+    }
+
+    public static void setRandomSource(Map<String, Object> codecProperties, RandomSource randomSource) {
+        codecProperties.put(PROP_RANDOM_SOURCE, randomSource);
+    }
+
+    /**
+     * If true, new object keys are wrapped with the key provider's current key encryption key (AES key wrap) instead
+     * of the RSA master key, and the metadata is authenticated with a MAC instead of an RSA signature, so encoding and
+     * decoding need no RSA operation per object. The key provider must be a {@link KeyEncryptionKeyProvider}. Objects
+     * are decoded the right way regardless of this setting. Defaults to false.
+     *
+     * @see KeyEncryptionKey
+     */
+    public static boolean isUseKeyEncryptionKey(Map<String, Object> codecProperties) {
+        return CodecUtil.getCodecProperty(PROP_USE_KEY_ENCRYPTION_KEY, codecProperties, Boolean.FALSE);
+    }
+
+    public static void setUseKeyEncryptionKey(Map<String, Object> codecProperties, boolean useKeyEncryptionKey) {
+        codecProperties.put(PROP_USE_KEY_ENCRYPTION_KEY, useKeyEncryptionKey);
+    }
+
+    /**
+     * If true, the metadata signature (or MAC) of each object is verified before it is decoded. Defaults to false.
+     *
+     * @see #verifySignature(EncryptionMetadata, Map)
+     */
+    public static boolean isVerifySignature(Map<String, Object> codecProperties) {
+        return CodecUtil.getCodecProperty(PROP_VERIFY_SIGNATURE, codecProperties, Boolean.FALSE);
+    }
+
+    public static void setVerifySignature(Map<String, Object> codecProperties, boolean verifySignature) {
+        codecProperties.put(PROP_VERIFY_SIGNATURE, verifySignature);
+    }
+
+    /**
+     * Cache of verified signatures used by {@link #verifySignature(EncryptionMetadata, Map)}. Not set (no caching) by
+     * default.
+     */
+    public static SignatureCache getSignatureCache(Map<String, Object> codecProperties) {
+        return CodecUtil.getCodecProperty(PROP_SIGNATURE_CACHE, codecProperties, null);
+    }
+
+    public static void setSignatureCache(Map<String, Object> codecProperties, SignatureCache signatureCache) {
+        codecProperties.put(PROP_SIGNATURE_CACHE, signatureCache);
+    }
+
     @Override
     public boolean canProcess(String encodeSpec) {
         if (!EncryptionConstants.ENCRYPTION_TYPE.equals(CodecUtil.getEncodeType(encodeSpec))) return false;
 
         String cipherSpec = EncryptionUtil.getCipherSpec(encodeSpec);
+        if (cipherSpec == null) return false;
+
+        // this is called for every decode, so only look up each cipher once
+        Boolean supported = supportedCiphers.get(cipherSpec);
+        if (supported == null) {
+            supported = isCipherAvailable(cipherSpec);
+            if (supportedCiphers.size() < MAX_CACHED_CIPHERS) supportedCiphers.putIfAbsent(cipherSpec, supported);
+        }
+        return supported;
+    }
+
+    protected boolean isCipherAvailable(String cipherSpec) {
         try {
             Cipher.getInstance(cipherSpec);
             return true;
@@ -102,6 +202,13 @@ public class EncryptionCodec extends AbstractCodec<EncryptionMetadata> {
         return false;
     }
 
+    @Override
+    public void validate(String encodeSpec, Map<String, Object> codecProperties) {
+        super.validate(encodeSpec, codecProperties);
+        KeyProvider keyProvider = _getKeyProvider(codecProperties);
+        if (isUseKeyEncryptionKey(codecProperties)) _getKekProvider(keyProvider);
+    }
+
     @Override
     public String getDefaultEncodeSpec() {
         return encodeSpec(AES_CBC_PKCS5_CIPHER);
@@ -127,7 +234,11 @@ public class EncryptionCodec extends AbstractCodec<EncryptionMetadata> {
                                           Map<String, Object> codecProperties) {
         KeyProvider keyProvider = _getKeyProvider(codecProperties);
         Provider provider = getSecurityProvider(codecProperties);
-        return new CipherOutputStream(originalStream, initDecryptCipher(metadata, keyProvider, provider));
+        if (isVerifySignature(codecProperties)) verifySignature(metadata, codecProperties);
+        Cipher cipher = initDecryptCipher(metadata, keyProvider, provider, MetricsUtil.getMetrics(codecProperties),
+                getKeyCache(codecProperties));
+        return new ReleasingCipherOutputStream(originalStream, cipher,
+                EncryptionUtil.getCipherSpec(metadata.getEncodeSpec()), provider);
     }
 
     @Override
@@ -135,7 +246,11 @@ public class EncryptionCodec extends AbstractCodec<EncryptionMetadata> {
                                          Map<String, Object> codecProperties) {
         KeyProvider keyProvider = _getKeyProvider(codecProperties);
         Provider provider = getSecurityProvider(codecProperties);
-        return new CipherInputStream(originalStream, initDecryptCipher(metadata, keyProvider, provider));
+        if (isVerifySignature(codecProperties)) verifySignature(metadata, codecProperties);
+        Cipher cipher = initDecryptCipher(metadata, keyProvider, provider, MetricsUtil.getMetrics(codecProperties),
+                getKeyCache(codecProperties));
+        return new ReleasingCipherInputStream(originalStream, cipher,
+                EncryptionUtil.getCipherSpec(metadata.getEncodeSpec()), provider);
     }
 
     @Override
@@ -147,8 +262,9 @@ public class EncryptionCodec extends AbstractCodec<EncryptionMetadata> {
     public long getEncodedSize(long originalSize, String encodeSpec, Map<String, Object> codecProperties) {
         String cipherSpec = EncryptionUtil.getCipherSpec(encodeSpec);
         Provider provider = getSecurityProvider(codecProperties);
-        SecretKey key = generateKey(cipherSpec, getKeySize(codecProperties), provider);
-        Cipher cipher = initEncryptCipher(cipherSpec, key, provider);
+        RandomSource randomSource = getRandomSource(codecProperties);
+        SecretKey key = generateKey(cipherSpec, getKeySize(codecProperties), provider, randomSource);
+        Cipher cipher = initEncryptCipher(cipherSpec, key, provider, randomSource);
 
         long trailer = originalSize % cipher.getBlockSize();
         long trunc = originalSize - trailer;
@@ -156,6 +272,8 @@ public class EncryptionCodec extends AbstractCodec<EncryptionMetadata> {
             return trunc + cipher.doFinal(new byte[(int) trailer]).length;
         } catch (Exception e) {
             throw new UnsupportedOperationException("Cipher error", e);
+        } finally {
+            releaseCipher(cipher, cipherSpec, provider);
         }
     }
 
@@ -165,12 +283,17 @@ public class EncryptionCodec extends AbstractCodec<EncryptionMetadata> {
         String cipherSpec = EncryptionUtil.getCipherSpec(encodeSpec);
         Provider provider = getSecurityProvider(codecProperties);
         KeyProvider keyProvider = _getKeyProvider(codecProperties);
-        SecretKey key = generateKey(cipherSpec, getKeySize(codecProperties), provider);
-        Cipher cipher = initEncryptCipher(cipherSpec, key, provider);
-        String encryptedKey = encryptKey(key, keyProvider.getMasterKey(), provider);
+        RandomSource randomSource = getRandomSource(codecProperties);
+        SecretKey key = generateKey(cipherSpec, getKeySize(codecProperties), provider, randomSource);
+        Cipher cipher = initEncryptCipher(cipherSpec, key, provider, randomSource);
+        CodecMetrics metrics = MetricsUtil.getMetrics(codecProperties);
+        KeyEncryptionKey kek = getEncodeKek(keyProvider, provider, codecProperties);
+        String encryptedKey = wrapKey(key, keyProvider, kek, provider, metrics);
 
         EncryptionOutputStream eos = new EncryptionOutputStream(originalStream, encodeSpec, cipher, encryptedKey);
-        eos.addListener(new SigningEncodeMetadataListener(keyProvider, provider));
+        if (kek != null) eos.getEncodeMetadata().setKeyEncryptionKey(kek);
+        eos.addListener(new SigningEncodeMetadataListener(keyProvider, kek, provider, metrics));
+        eos.addListener(new CipherReleaseListener(cipher, cipherSpec, provider));
         return eos;
     }
 
@@ -180,15 +303,157 @@ public class EncryptionCodec extends AbstractCodec<EncryptionMetadata> {
         String cipherSpec = EncryptionUtil.getCipherSpec(encodeSpec);
         Provider provider = getSecurityProvider(codecProperties);
         KeyProvider keyProvider = _getKeyProvider(codecProperties);
-        SecretKey key = generateKey(cipherSpec, getKeySize(codecProperties), provider);
-        Cipher cipher = initEncryptCipher(cipherSpec, key, provider);
-        String encryptedKey = encryptKey(key, keyProvider.getMasterKey(), provider);
+        RandomSource randomSource = getRandomSource(codecProperties);
+        SecretKey key = generateKey(cipherSpec, getKeySize(codecProperties), provider, randomSource);
+        Cipher cipher = initEncryptCipher(cipherSpec, key, provider, randomSource);
+        CodecMetrics metrics = MetricsUtil.getMetrics(codecProperties);
+        KeyEncryptionKey kek = getEncodeKek(keyProvider, provider, codecProperties);
+        String encryptedKey = wrapKey(key, keyProvider, kek, provider, metrics);
 
         EncryptionInputStream eis = new EncryptionInputStream(originalStream, encodeSpec, cipher, encryptedKey);
-        eis.addListener(new SigningEncodeMetadataListener(keyProvider, provider));
+        if (kek != null) eis.getEncodeMetadata().setKeyEncryptionKey(kek);
+        eis.addListener(new SigningEncodeMetadataListener(keyProvider, kek, provider, metrics));
+        eis.addListener(new CipherReleaseListener(cipher, cipherSpec, provider));
         return eis;
     }
 
+    @Override
+    public boolean isStageSupported() {
+        return true;
+    }
+
+    @Override
+    public EncodeStage<EncryptionMetadata> getEncodingStage(BufferSink target, String encodeSpec,
+                                                            Map<String, Object> codecProperties) {
+        String cipherSpec = EncryptionUtil.getCipherSpec(encodeSpec);
+        Provider provider = getSecurityProvider(codecProperties);
+        KeyProvider keyProvider = _getKeyProvider(codecProperties);
+        RandomSource randomSource = getRandomSource(codecProperties);
+        SecretKey key = generateKey(cipherSpec, getKeySize(codecProperties), provider, randomSource);
+        Cipher cipher = initEncryptCipher(cipherSpec, key, provider, randomSource);
+        CodecMetrics metrics = MetricsUtil.getMetrics(codecProperties);
+        KeyEncryptionKey kek = getEncodeKek(keyProvider, provider, codecProperties);
+        String encryptedKey = wrapKey(key, keyProvider, kek, provider, metrics);
+
+        EncryptionStage stage = new EncryptionStage(target, encodeSpec, cipher, encryptedKey,
+                EncodeStage.getBufferSize(codecProperties));
+        if (kek != null) stage.getEncodeMetadata().setKeyEncryptionKey(kek);
+        stage.addListener(new SigningEncodeMetadataListener(keyProvider, kek, provider, metrics));
+        stage.addListener(new CipherReleaseListener(cipher, cipherSpec, provider));
+        return stage;
+    }
+
+    @Override
+    public BufferSink getDecodingStage(BufferSink target, EncryptionMetadata metadata,
+                                      Map<String, Object> codecProperties) {
+        KeyProvider keyProvider = _getKeyProvider(codecProperties);
+        Provider provider = getSecurityProvider(codecProperties);
+        if (isVerifySignature(codecProperties)) verifySignature(metadata, codecProperties);
+        Cipher cipher = initDecryptCipher(metadata, keyProvider, provider, MetricsUtil.getMetrics(codecProperties),
+                getKeyCache(codecProperties));
+        return new ReleasingDecryptionStage(target, cipher, EncodeStage.getBufferSize(codecProperties),
+                EncryptionUtil.getCipherSpec(metadata.getEncodeSpec()), provider);
+    }
+
+    /**
+     * Ranges can be decrypted for CBC ciphers, since each block only depends on the previous ciphertext block.
+     */
+    @Override
+    public boolean isRangeSupported(EncryptionMetadata metadata) {
+        String[] cipherParts = EncryptionUtil.getCipherSpec(metadata.getEncodeSpec()).split("/");
+        return cipherParts.length == 3 && "CBC".equalsIgnoreCase(cipherParts[1]) && metadata.isComplete();
+    }
+
+    /**
+     * Fetches only the cipher blocks that cover the requested range, plus the preceding block to use as the IV. Padding
+     * is never decrypted (the range is truncated at the original size), so the blocks are decrypted without padding.
+     */
+    @Override
+    public InputStream getDecodingStream(RangeSource source, EncryptionMetadata metadata, long offset, long length,
+                                         Map<String, Object> codecProperties) throws IOException {
+        if (!isRangeSupported(metadata))
+            throw new UnsupportedOperationException("ranged decryption is not supported for " + metadata.getEncodeSpec());
+
+        length = Math.max(0, Math.min(length, metadata.getOriginalSize() - offset));
+        if (length == 0) return new ByteArrayInputStream(new byte[0]);
+
+        KeyProvider keyProvider = _getKeyProvider(codecProperties);
+        Provider provider = getSecurityProvider(codecProperties);
+        if (isVerifySignature(codecProperties)) verifySignature(metadata, codecProperties);
+        String cipherSpec = EncryptionUtil.getBaseAlgorithm(EncryptionUtil.getCipherSpec(metadata.getEncodeSpec()))
+                + "/CBC/NoPadding";
+        Cipher cipher = createCipher(cipherSpec, provider);
+        InputStream encodedStream = null;
+        boolean initialized = false;
+        try {
+            int blockSize = cipher.getBlockSize();
+            long firstBlock = offset / blockSize, lastBlock = (offset + length - 1) / blockSize;
+            long fetchOffset = firstBlock == 0 ? 0 : (firstBlock - 1) * blockSize;
+            encodedStream = source.getRange(fetchOffset, (lastBlock + 1) * blockSize - fetchOffset);
+
+            byte[] iv = metadata.getInitVector();
+            if (firstBlock > 0) {
+                iv = new byte[blockSize];
+                for (int read = 0, c; read < iv.length; read += c) {
+                    c = encodedStream.read(iv, read, iv.length - read);
+                    if (c == -1) throw new EOFException("range source ended before the requested range");
+                }
+            }
+
+            SecretKey objectKey = unwrapKey(metadata, keyProvider, provider, MetricsUtil.getMetrics(codecProperties),
+                    getKeyCache(codecProperties));
+            cipher.init(Cipher.DECRYPT_MODE, objectKey, new IvParameterSpec(iv));
+            InputStream rangeStream = new RangeInputStream(
+                    new ReleasingCipherInputStream(encodedStream, cipher, cipherSpec, provider),
+                    offset - firstBlock * blockSize, length);
+            initialized = true;
+            return rangeStream;
+        } catch (GeneralSecurityException e) {
+            throw new EncryptionException("Error initializing cipher", e);
+        } finally {
+            if (!initialized) {
+                releaseCipher(cipher, cipherSpec, provider);
+                if (encodedStream != null) {
+                    try {
+                        encodedStream.close();
+                    } catch (IOException e) {
+                        log.warn("could not close range stream", e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Verifies the signature of the metadata with the public key of its master key (or its MAC with its key encryption
+     * key). An RSA signature only needs the public key, so the key provider may hold public-only key pairs. Successful
+     * verifications are remembered in the {@link #PROP_SIGNATURE_CACHE signature cache}, if set.
+     *
+     * @throws EncryptionException if the metadata is not signed or the signature does not match
+     */
+    public void verifySignature(EncryptionMetadata metadata, Map<String, Object> codecProperties) {
+        if (metadata.getSignature() == null) throw new EncryptionException("metadata is not signed");
+
+        SignatureCache signatureCache = getSignatureCache(codecProperties);
+        String cacheKey = null;
+        if (signatureCache != null) {
+            cacheKey = signatureCache.getKey(metadata);
+            if (signatureCache.isVerified(cacheKey)) return;
+        }
+
+        KeyProvider keyProvider = _getKeyProvider(codecProperties);
+        Provider provider = getSecurityProvider(codecProperties);
+        long start = System.nanoTime();
+        if (metadata.hasKeyEncryptionKey()) {
+            metadata.verifySignature(getKeyEncryptionKey(metadata, keyProvider, provider), provider);
+        } else {
+            metadata.verifySignature(getDecryptionKey(metadata, keyProvider).getPublic(), provider);
+        }
+        MetricsUtil.getMetrics(codecProperties).keyOperation(CodecMetrics.OP_VERIFY, System.nanoTime() - start);
+
+        if (signatureCache != null) signatureCache.setVerified(cacheKey);
+    }
+
     public void rekey(Map<String, String> metaMap, Map<String, Object> codecProperties) {
 
         // find the encryption spec in the metadata
@@ -221,6 +486,16 @@ public class EncryptionCodec extends AbstractCodec<EncryptionMetadata> {
             throw new EncryptionException(String.format("Master key with fingerprint %s not found",
                     metadata.getMasterKeyFingerprint()));
 
+        if (metadata.hasKeyEncryptionKey()) {
+            // re-wrap the object key with the current KEK (which is wrapped with the current master key)
+            SecretKey objectKey = metadata.getSecretKey(getKeyEncryptionKey(metadata, keyProvider, provider), provider);
+            KeyEncryptionKey kek = _getKekProvider(keyProvider).getKeyEncryptionKey(provider);
+            metadata.setSecretKey(objectKey, kek, provider);
+            metadata.setMasterKeyFingerprint(kek.getMasterKeyFingerprint());
+            metadata.sign(kek, provider);
+            return;
+        }
+
         // decrypt object key
         SecretKey objectKey = metadata.getSecretKey((RSAPrivateKey) oldKey.getPrivate(), provider);
 
@@ -232,54 +507,193 @@ public class EncryptionCodec extends AbstractCodec<EncryptionMetadata> {
         metadata.sign((RSAPrivateKey) keyProvider.getMasterKey().getPrivate(), provider);
     }
 
+    /**
+     * @deprecated no longer called by this codec, so overriding it has no effect; override
+     * {@link #initEncryptCipher(String, SecretKey, Provider, RandomSource)} instead
+     */
+    @Deprecated
     protected Cipher initEncryptCipher(String cipherSpec, SecretKey key, Provider provider) {
+        return initEncryptCipher(cipherSpec, key, provider, RandomSource.getDefault());
+    }
+
+    /**
+     * CBC IVs are taken from the random source's buffer; other modes get its <code>SecureRandom</code>. Called for
+     * every object this codec encrypts.
+     */
+    protected Cipher initEncryptCipher(String cipherSpec, SecretKey key, Provider provider,
+                                       RandomSource randomSource) {
+        Cipher cipher = createCipher(cipherSpec, provider);
         try {
-            Cipher cipher = createCipher(cipherSpec, provider);
-            cipher.init(Cipher.ENCRYPT_MODE, key, getSecureRandom(provider));
+            String[] cipherParts = cipherSpec.split("/");
+            if (cipherParts.length == 3 && "CBC".equalsIgnoreCase(cipherParts[1])) {
+                byte[] iv = randomSource.nextBytes(cipher.getBlockSize(), provider);
+                cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+            } else {
+                cipher.init(Cipher.ENCRYPT_MODE, key, randomSource.getSecureRandom(provider));
+            }
             return cipher;
         } catch (GeneralSecurityException e) {
+            releaseCipher(cipher, cipherSpec, provider);
             throw new EncryptionException("Error initializing cipher", e);
         }
     }
 
     protected Cipher initDecryptCipher(EncryptionMetadata metadata, KeyProvider keyProvider, Provider provider) {
-        try {
-            String cipherSpec = EncryptionUtil.getCipherSpec(metadata.getEncodeSpec());
-            Cipher cipher = createCipher(cipherSpec, provider);
-
-            KeyPair masterKey = keyProvider.getKey(metadata.getMasterKeyFingerprint());
-            if (masterKey == null)
-                throw new EncryptionException(String.format("Could not decrypt object. no master key with ID %s found",
-                        metadata.getMasterKeyFingerprint()));
+        return initDecryptCipher(metadata, keyProvider, provider, NoOpCodecMetrics.INSTANCE);
+    }
 
-            SecretKey key = metadata.getSecretKey((RSAPrivateKey) masterKey.getPrivate(), provider);
+    protected Cipher initDecryptCipher(EncryptionMetadata metadata, KeyProvider keyProvider, Provider provider,
+                                       CodecMetrics metrics) {
+        return initDecryptCipher(metadata, keyProvider, provider, metrics, null);
+    }
 
-            cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(metadata.getInitVector()));
+    /**
+     * @param keyCache cache of unwrapped object keys (may be null)
+     */
+    protected Cipher initDecryptCipher(EncryptionMetadata metadata, KeyProvider keyProvider, Provider provider,
+                                       CodecMetrics metrics, ObjectKeyCache keyCache) {
+        String cipherSpec = EncryptionUtil.getCipherSpec(metadata.getEncodeSpec());
+        Cipher cipher = createCipher(cipherSpec, provider);
+        boolean initialized = false;
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, unwrapKey(metadata, keyProvider, provider, metrics, keyCache),
+                    new IvParameterSpec(metadata.getInitVector()));
+            initialized = true;
             return cipher;
         } catch (GeneralSecurityException e) {
             throw new EncryptionException("Error initializing cipher", e);
+        } finally {
+            if (!initialized) releaseCipher(cipher, cipherSpec, provider);
         }
     }
 
+    protected SecretKey getObjectKey(EncryptionMetadata metadata, KeyProvider keyProvider, Provider provider) {
+        if (metadata.hasKeyEncryptionKey())
+            return metadata.getSecretKey(getKeyEncryptionKey(metadata, keyProvider, provider), provider);
+
+        KeyPair masterKey = getDecryptionKey(metadata, keyProvider);
+        return metadata.getSecretKey((RSAPrivateKey) masterKey.getPrivate(), provider);
+    }
+
+    protected KeyEncryptionKey getKeyEncryptionKey(EncryptionMetadata metadata, KeyProvider keyProvider,
+                                                   Provider provider) {
+        KeyEncryptionKey kek = _getKekProvider(keyProvider).getKeyEncryptionKey(metadata.getKekId(),
+                metadata.getMasterKeyFingerprint(), metadata.getEncryptedKek(), metadata.getKekSignature(), provider);
+        if (kek == null)
+            throw new EncryptionException(String.format("Could not decrypt object. no master key with ID %s found",
+                    metadata.getMasterKeyFingerprint()));
+        return kek;
+    }
+
+    /**
+     * @return the current KEK if new objects should use one (see {@link #PROP_USE_KEY_ENCRYPTION_KEY}), otherwise null
+     */
+    protected KeyEncryptionKey getEncodeKek(KeyProvider keyProvider, Provider provider,
+                                            Map<String, Object> codecProperties) {
+        if (!isUseKeyEncryptionKey(codecProperties)) return null;
+        return _getKekProvider(keyProvider).getKeyEncryptionKey(provider);
+    }
+
+    private KeyPair getDecryptionKey(EncryptionMetadata metadata, KeyProvider keyProvider) {
+        KeyPair masterKey = keyProvider.getKey(metadata.getMasterKeyFingerprint());
+        if (masterKey == null)
+            throw new EncryptionException(String.format("Could not decrypt object. no master key with ID %s found",
+                    metadata.getMasterKeyFingerprint()));
+        return masterKey;
+    }
+
+    private String wrapKey(SecretKey key, KeyProvider keyProvider, KeyEncryptionKey kek, Provider provider,
+                           CodecMetrics metrics) {
+        long start = System.nanoTime();
+        String encryptedKey = kek != null ? kek.wrap(key, provider)
+                : encryptKey(key, keyProvider.getMasterKey(), provider);
+        metrics.keyOperation(CodecMetrics.OP_WRAP_KEY, System.nanoTime() - start);
+        return encryptedKey;
+    }
+
+    private SecretKey unwrapKey(final EncryptionMetadata metadata, final KeyProvider keyProvider,
+                                final Provider provider, final CodecMetrics metrics, ObjectKeyCache keyCache) {
+        if (keyCache == null) return unwrapKey(metadata, keyProvider, provider, metrics);
+
+        // a cached key is only handed to callers that could unwrap it themselves
+        getDecryptionKey(metadata, keyProvider);
+        String algorithm = EncryptionUtil.getBaseAlgorithm(EncryptionUtil.getCipherSpec(metadata.getEncodeSpec()));
+        return keyCache.getKey(metadata.getMasterKeyFingerprint(), algorithm, metadata.getEncryptedKey(),
+                new Callable<SecretKey>() {
+                    @Override
+                    public SecretKey call() {
+                        return unwrapKey(metadata, keyProvider, provider, metrics);
+                    }
+                });
+    }
+
+    private SecretKey unwrapKey(EncryptionMetadata metadata, KeyProvider keyProvider, Provider provider,
+                                CodecMetrics metrics) {
+        long start = System.nanoTime();
+        SecretKey objectKey = getObjectKey(metadata, keyProvider, provider);
+        metrics.keyOperation(CodecMetrics.OP_UNWRAP_KEY, System.nanoTime() - start);
+        return objectKey;
+    }
+
+    /**
+     * Borrows the cipher from the calling thread's {@link JceEngineCache}. The codec returns it with
+     * {@link #releaseCipher(Cipher, String, Provider)} when the stream or stage using it is closed.
+     */
     protected Cipher createCipher(String cipherSpec, Provider provider) {
         try {
-            if (provider != null) {
-                return Cipher.getInstance(cipherSpec, provider);
-            } else {
-                return Cipher.getInstance(cipherSpec);
-            }
+            return JceEngineCache.getInstance().borrowCipher(cipherSpec, provider);
         } catch (GeneralSecurityException e) {
             throw new UnsupportedOperationException("Could not get cipher instance for algorithm " + cipherSpec, e);
         }
     }
 
+    /**
+     * Returns the cipher to the calling thread's {@link JceEngineCache}. So the cache does not keep the last object key
+     * alive, the cipher is first re-initialized with a zero key; this costs a key setup per object, which is still
+     * much cheaper than a new instance. Ciphers that cannot be re-initialized that way are dropped instead of cached.
+     */
+    protected void releaseCipher(Cipher cipher, String cipherSpec, Provider provider) {
+        try {
+            String algorithm = EncryptionUtil.getBaseAlgorithm(cipherSpec);
+            SecretKey scrubKey = new SecretKeySpec(new byte[SCRUB_KEY_SIZE], algorithm);
+            if (cipher.getIV() == null) cipher.init(Cipher.ENCRYPT_MODE, scrubKey);
+            else cipher.init(Cipher.ENCRYPT_MODE, scrubKey, new IvParameterSpec(new byte[cipher.getBlockSize()]));
+        } catch (GeneralSecurityException e) {
+            log.debug("dropping cipher " + cipherSpec + " that could not be re-initialized", e);
+            return;
+        }
+        JceEngineCache.getInstance().returnCipher(cipher, cipherSpec, provider);
+    }
+
+    /**
+     * @deprecated no longer called by this codec, so overriding it has no effect; override
+     * {@link #generateKey(String, int, Provider, RandomSource)} instead
+     */
+    @Deprecated
     protected SecretKey generateKey(String cipherSpec, int keySize, Provider provider) {
+        return generateKey(cipherSpec, keySize, provider, RandomSource.getDefault());
+    }
+
+    /**
+     * Without a security provider, AES keys are built directly from the random source's buffer. Otherwise the
+     * provider's <code>KeyGenerator</code> generates the key (FIPS modules must generate their own keys), seeded by the
+     * random source. Called for every object this codec encrypts.
+     */
+    protected SecretKey generateKey(String cipherSpec, int keySize, Provider provider, RandomSource randomSource) {
         String baseAlgorithm = EncryptionUtil.getBaseAlgorithm(cipherSpec);
         try {
             if (keySize > Cipher.getMaxAllowedKeyLength(cipherSpec))
                 throw new InvalidKeyException(String.format("Key size of %d bits is larger than the maximum allowed of %d",
                         keySize, Cipher.getMaxAllowedKeyLength(cipherSpec)));
 
+            if (provider == null && "AES".equalsIgnoreCase(baseAlgorithm)
+                    && (keySize == 128 || keySize == 192 || keySize == 256)) {
+                byte[] keyBytes = randomSource.nextBytes(keySize / 8, null);
+                SecretKey key = new SecretKeySpec(keyBytes, baseAlgorithm);
+                Arrays.fill(keyBytes, (byte) 0);
+                return key;
+            }
+
             KeyGenerator keygen;
             if (provider != null) {
                 keygen = KeyGenerator.getInstance(baseAlgorithm, provider);
@@ -287,7 +701,7 @@ public class EncryptionCodec extends AbstractCodec<EncryptionMetadata> {
                 keygen = KeyGenerator.getInstance(baseAlgorithm);
             }
 
-            keygen.init(keySize, getSecureRandom(provider));
+            keygen.init(keySize, randomSource.getSecureRandom(provider));
             return keygen.generateKey();
         } catch (GeneralSecurityException e) {
             throw new UnsupportedOperationException("Could not generate key for algorithm " + baseAlgorithm, e);
@@ -304,30 +718,154 @@ public class EncryptionCodec extends AbstractCodec<EncryptionMetadata> {
         return keyProvider;
     }
 
+    protected KeyEncryptionKeyProvider _getKekProvider(KeyProvider keyProvider) {
+        if (!(keyProvider instanceof KeyEncryptionKeyProvider))
+            throw new EncryptionException("key provider does not support key encryption keys");
+        return (KeyEncryptionKeyProvider) keyProvider;
+    }
+
+    /**
+     * @return this thread's instance from the default {@link RandomSource}
+     * @deprecated no longer called by this codec, so overriding it has no effect; keys and IVs come from the
+     * {@link #PROP_RANDOM_SOURCE random source} (subclass {@link RandomSource} to change where they come from)
+     */
+    @Deprecated
     protected SecureRandom getSecureRandom(Provider provider) {
-        try {
-            // Per FIPS bulletin 2013-09, make sure we don't use Dual_EC_DRBG
-            if (provider != null)
-                return SecureRandom.getInstance(SECURE_RANDOM_INSTANCE, provider);
-            else return SecureRandom.getInstance(SECURE_RANDOM_INSTANCE);
-        } catch (GeneralSecurityException e) {
-            throw new UnsupportedOperationException("Could not get secure random instance for " + SECURE_RANDOM_INSTANCE, e);
-        }
+        return RandomSource.getDefault().getSecureRandom(provider);
     }
 
     protected class SigningEncodeMetadataListener implements EncodeListener<EncryptionMetadata> {
         private KeyProvider keyProvider;
+        private KeyEncryptionKey kek;
         private Provider provider;
+        private CodecMetrics metrics;
 
         public SigningEncodeMetadataListener(KeyProvider keyProvider, Provider provider) {
+            this(keyProvider, provider, NoOpCodecMetrics.INSTANCE);
+        }
+
+        public SigningEncodeMetadataListener(KeyProvider keyProvider, Provider provider, CodecMetrics metrics) {
+            this(keyProvider, null, provider, metrics);
+        }
+
+        /**
+         * @param kek if not null, the metadata is authenticated with a MAC keyed by this KEK instead of signed
+         */
+        public SigningEncodeMetadataListener(KeyProvider keyProvider, KeyEncryptionKey kek, Provider provider,
+                                             CodecMetrics metrics) {
             this.keyProvider = keyProvider;
+            this.kek = kek;
+            this.provider = provider;
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void encodeComplete(EncodeStream<EncryptionMetadata> encodeStream) {
+            long start = System.nanoTime();
+            EncryptionMetadata metadata = encodeStream.getEncodeMetadata();
+            if (kek != null) {
+                metadata.setMasterKeyFingerprint(kek.getMasterKeyFingerprint());
+                metadata.sign(kek, provider);
+            } else {
+                metadata.setMasterKeyFingerprint(keyProvider.getMasterKeyFingerprint());
+                metadata.sign((RSAPrivateKey) keyProvider.getMasterKey().getPrivate(), provider);
+            }
+            metrics.keyOperation(CodecMetrics.OP_SIGN, System.nanoTime() - start);
+        }
+    }
+
+    protected class CipherReleaseListener implements EncodeListener<EncryptionMetadata> {
+        private Cipher cipher;
+        private String cipherSpec;
+        private Provider provider;
+
+        public CipherReleaseListener(Cipher cipher, String cipherSpec, Provider provider) {
+            this.cipher = cipher;
+            this.cipherSpec = cipherSpec;
             this.provider = provider;
         }
 
         @Override
         public void encodeComplete(EncodeStream<EncryptionMetadata> encodeStream) {
-            encodeStream.getEncodeMetadata().setMasterKeyFingerprint(keyProvider.getMasterKeyFingerprint());
-            encodeStream.getEncodeMetadata().sign((RSAPrivateKey) keyProvider.getMasterKey().getPrivate(), provider);
+            releaseCipher(cipher, cipherSpec, provider);
+        }
+    }
+
+    private class ReleasingCipherOutputStream extends CipherOutputStream {
+        private Cipher cipher;
+        private String cipherSpec;
+        private Provider provider;
+        private boolean released = false;
+
+        ReleasingCipherOutputStream(OutputStream out, Cipher cipher, String cipherSpec, Provider provider) {
+            super(out, cipher);
+            this.cipher = cipher;
+            this.cipherSpec = cipherSpec;
+            this.provider = provider;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (!released) {
+                    released = true;
+                    releaseCipher(cipher, cipherSpec, provider);
+                }
+            }
+        }
+    }
+
+    private class ReleasingCipherInputStream extends CipherInputStream {
+        private Cipher cipher;
+        private String cipherSpec;
+        private Provider provider;
+        private boolean released = false;
+
+        ReleasingCipherInputStream(InputStream in, Cipher cipher, String cipherSpec, Provider provider) {
+            super(in, cipher);
+            this.cipher = cipher;
+            this.cipherSpec = cipherSpec;
+            this.provider = provider;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (!released) {
+                    released = true;
+                    releaseCipher(cipher, cipherSpec, provider);
+                }
+            }
+        }
+    }
+
+    private class ReleasingDecryptionStage extends DecryptionStage {
+        private Cipher cipher;
+        private String cipherSpec;
+        private Provider provider;
+        private boolean released = false;
+
+        ReleasingDecryptionStage(BufferSink next, Cipher cipher, int bufferSize, String cipherSpec, Provider provider) {
+            super(next, cipher, bufferSize);
+            this.cipher = cipher;
+            this.cipherSpec = cipherSpec;
+            this.provider = provider;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (!released) {
+                    released = true;
+                    releaseCipher(cipher, cipherSpec, provider);
+                }
+            }
         }
     }
 }
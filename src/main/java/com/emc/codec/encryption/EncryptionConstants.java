@@ -33,6 +33,8 @@ public class EncryptionConstants {
 
     public static final String META_SIGNATURE_ALGORITHM = "SHA256withRSA";
     public static final String KEY_ENCRYPTION_CIPHER = "RSA/ECB/OAEPWithSHA-1AndMGF1Padding";
+    public static final String KEY_WRAP_CIPHER = "AESWrap"; // RFC 3394
+    public static final String META_MAC_ALGORITHM = "HmacSHA256";
 
     public static final String META_ENCRYPTION_PREFIX = "x-emc-enc-";
 
@@ -42,4 +44,7 @@ public class EncryptionConstants {
     public static final String META_ENCRYPTION_UNENC_SIZE = META_ENCRYPTION_PREFIX + "unencrypted-size";
     public static final String META_ENCRYPTION_UNENC_SHA1 = META_ENCRYPTION_PREFIX + "unencrypted-sha1";
     public static final String META_ENCRYPTION_META_SIG = META_ENCRYPTION_PREFIX + "metadata-signature";
+    public static final String META_ENCRYPTION_KEK_ID = META_ENCRYPTION_PREFIX + "kek-id";
+    public static final String META_ENCRYPTION_KEK = META_ENCRYPTION_PREFIX + "kek";
+    public static final String META_ENCRYPTION_KEK_SIG = META_ENCRYPTION_PREFIX + "kek-signature";
 }
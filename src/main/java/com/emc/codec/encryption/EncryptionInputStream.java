@@ -30,6 +30,7 @@ package com.emc.codec.encryption;
 
 import com.emc.codec.EncodeInputStream;
 import com.emc.codec.util.CountingInputStream;
+import com.emc.codec.util.JceEngineCache;
 
 import javax.crypto.Cipher;
 import javax.crypto.CipherInputStream;
@@ -55,7 +56,8 @@ public class EncryptionInputStream extends EncodeInputStream<EncryptionMetadata>
         // [user stream]->CountingInputStream->DigestInputStream->CipherInputStream
         try {
             counterStream = new CountingInputStream(originalStream);
-            digestStream = new DigestInputStream(counterStream, MessageDigest.getInstance("SHA1"));
+            digestStream = new DigestInputStream(counterStream,
+                    JceEngineCache.getInstance().borrowMessageDigest("SHA1", null));
             in = new CipherInputStream(digestStream, cipher);
         } catch (NoSuchAlgorithmException e) {
             throw new EncryptionException("Unable to initialize digest", e);
@@ -71,7 +73,9 @@ public class EncryptionInputStream extends EncodeInputStream<EncryptionMetadata>
 
         // this should only be executed once
         metadata.setOriginalSize(counterStream.getByteCount());
-        metadata.setOriginalDigest(digestStream.getMessageDigest().digest());
+        MessageDigest digest = digestStream.getMessageDigest();
+        metadata.setOriginalDigest(digest.digest());
+        JceEngineCache.getInstance().returnMessageDigest(digest, "SHA1", null);
 
         notifyListeners();
     }
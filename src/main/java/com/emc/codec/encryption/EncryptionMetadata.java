@@ -32,6 +32,7 @@ import com.emc.codec.EncodeMetadata;
 
 import javax.crypto.SecretKey;
 import javax.xml.bind.DatatypeConverter;
+import java.security.MessageDigest;
 import java.security.Provider;
 import java.security.PublicKey;
 import java.security.interfaces.RSAPrivateKey;
@@ -45,6 +46,9 @@ public class EncryptionMetadata extends EncodeMetadata {
     private String encryptedKey;
     private byte[] initVector;
     private String signature;
+    private String kekId;
+    private String encryptedKek;
+    private String kekSignature;
 
     public EncryptionMetadata(String encodeSpec) {
         super(encodeSpec);
@@ -72,6 +76,13 @@ public class EncryptionMetadata extends EncodeMetadata {
 
         signature = metaMap.get(EncryptionConstants.META_ENCRYPTION_META_SIG);
         if (signature == null) throw new EncryptionException("no signature set on object.");
+
+        // only present if the object key is wrapped with a key encryption key
+        kekId = metaMap.get(EncryptionConstants.META_ENCRYPTION_KEK_ID);
+        encryptedKek = metaMap.get(EncryptionConstants.META_ENCRYPTION_KEK);
+        kekSignature = metaMap.get(EncryptionConstants.META_ENCRYPTION_KEK_SIG);
+        if ((kekId == null) != (encryptedKek == null) || (kekId == null) != (kekSignature == null))
+            throw new EncryptionException("incomplete key encryption key set on object.");
     }
 
     @Override
@@ -85,18 +96,55 @@ public class EncryptionMetadata extends EncodeMetadata {
 
     @Override
     public Map<String, String> toMap() {
+        if (isComplete()) {
+            Map<String, String> metaMap = toSignedMap();
+            metaMap.put(EncryptionConstants.META_ENCRYPTION_META_SIG, signature);
+            return metaMap;
+        }
         Map<String, String> metaMap = new HashMap<String, String>();
         metaMap.put(EncryptionConstants.META_ENCRYPTION_IV, EncryptionUtil.urlSafeEncodeBase64(initVector));
         metaMap.put(EncryptionConstants.META_ENCRYPTION_OBJECT_KEY, encryptedKey);
-        if (isComplete()) {
-            metaMap.put(EncryptionConstants.META_ENCRYPTION_UNENC_SHA1, DatatypeConverter.printHexBinary(originalDigest).toLowerCase());
-            metaMap.put(EncryptionConstants.META_ENCRYPTION_UNENC_SIZE, "" + originalSize);
-            metaMap.put(EncryptionConstants.META_ENCRYPTION_KEY_ID, masterKeyFingerprint);
-            metaMap.put(EncryptionConstants.META_ENCRYPTION_META_SIG, signature);
+        if (kekId != null) {
+            metaMap.put(EncryptionConstants.META_ENCRYPTION_KEK_ID, kekId);
+            metaMap.put(EncryptionConstants.META_ENCRYPTION_KEK, encryptedKek);
+            metaMap.put(EncryptionConstants.META_ENCRYPTION_KEK_SIG, kekSignature);
         }
         return metaMap;
     }
 
+    /**
+     * @return all of the metadata but the signature itself. This is covered by the MAC in KEK mode and by the RSA
+     * signature of a re-keyed object. It must not depend on whether the signature is set yet, or signing and
+     * verifying would cover different fields
+     */
+    protected Map<String, String> toSignedMap() {
+        Map<String, String> metaMap = new HashMap<String, String>();
+        metaMap.put(EncryptionConstants.META_ENCRYPTION_IV, EncryptionUtil.urlSafeEncodeBase64(initVector));
+        metaMap.put(EncryptionConstants.META_ENCRYPTION_OBJECT_KEY, encryptedKey);
+        if (kekId != null) {
+            metaMap.put(EncryptionConstants.META_ENCRYPTION_KEK_ID, kekId);
+            metaMap.put(EncryptionConstants.META_ENCRYPTION_KEK, encryptedKek);
+            metaMap.put(EncryptionConstants.META_ENCRYPTION_KEK_SIG, kekSignature);
+        }
+        if (originalDigest != null)
+            metaMap.put(EncryptionConstants.META_ENCRYPTION_UNENC_SHA1, DatatypeConverter.printHexBinary(originalDigest).toLowerCase());
+        metaMap.put(EncryptionConstants.META_ENCRYPTION_UNENC_SIZE, "" + originalSize);
+        if (masterKeyFingerprint != null) metaMap.put(EncryptionConstants.META_ENCRYPTION_KEY_ID, masterKeyFingerprint);
+        return metaMap;
+    }
+
+    /**
+     * @return the metadata covered by the RSA signature of a newly encoded object: only the IV and object key, because
+     * the object is signed before the rest of its metadata is complete. Re-keyed objects are signed over
+     * {@link #toSignedMap()} instead. Both forms are the same as in earlier versions
+     */
+    protected Map<String, String> toInitialSignedMap() {
+        Map<String, String> metaMap = new HashMap<String, String>();
+        metaMap.put(EncryptionConstants.META_ENCRYPTION_IV, EncryptionUtil.urlSafeEncodeBase64(initVector));
+        metaMap.put(EncryptionConstants.META_ENCRYPTION_OBJECT_KEY, encryptedKey);
+        return metaMap;
+    }
+
     public SecretKey getSecretKey(RSAPrivateKey privateKey, Provider provider) {
         String cipherSpec = EncryptionUtil.getCipherSpec(getEncodeSpec());
         return EncryptionUtil.decryptKey(encryptedKey, EncryptionUtil.getBaseAlgorithm(cipherSpec), provider, privateKey);
@@ -104,6 +152,58 @@ public class EncryptionMetadata extends EncodeMetadata {
 
     public void setSecretKey(SecretKey key, PublicKey publicKey, Provider provider) {
         this.encryptedKey = EncryptionUtil.encryptKey(key, provider, publicKey);
+        this.kekId = null;
+        this.encryptedKek = null;
+        this.kekSignature = null;
+    }
+
+    /**
+     * @return true if the object key is wrapped with a key encryption key (and the metadata is authenticated with a
+     * MAC instead of a signature)
+     */
+    public boolean hasKeyEncryptionKey() {
+        return kekId != null;
+    }
+
+    public SecretKey getSecretKey(KeyEncryptionKey kek, Provider provider) {
+        if (!kek.getId().equals(kekId)) throw new EncryptionException("wrong key encryption key: " + kek.getId());
+        String cipherSpec = EncryptionUtil.getCipherSpec(getEncodeSpec());
+        return kek.unwrap(encryptedKey, EncryptionUtil.getBaseAlgorithm(cipherSpec), provider);
+    }
+
+    public void setSecretKey(SecretKey key, KeyEncryptionKey kek, Provider provider) {
+        this.encryptedKey = kek.wrap(key, provider);
+        setKeyEncryptionKey(kek);
+    }
+
+    /**
+     * Records the KEK the object key is wrapped with (its ID, RSA-wrapped form and signature).
+     */
+    public void setKeyEncryptionKey(KeyEncryptionKey kek) {
+        this.kekId = kek.getId();
+        this.encryptedKek = kek.getWrappedKey();
+        this.kekSignature = kek.getSignature();
+    }
+
+    /**
+     * Authenticates this encryption info with a MAC keyed by the KEK and assigns it to the signature property.
+     */
+    public void sign(KeyEncryptionKey kek, Provider provider) {
+        signature = generateMac(kek, provider);
+    }
+
+    /**
+     * Verifies the MAC in the signature property. If it does not match, EncryptionException is thrown.
+     */
+    public void verifySignature(KeyEncryptionKey kek, Provider provider) {
+        String generated = generateMac(kek, provider);
+        if (!MessageDigest.isEqual(signature.getBytes(), generated.getBytes()))
+            throw new EncryptionException("metadata MAC does not match");
+    }
+
+    protected String generateMac(KeyEncryptionKey kek, Provider provider) {
+        if (!kek.getId().equals(kekId)) throw new EncryptionException("wrong key encryption key: " + kek.getId());
+        return kek.mac(toSignedMap(), provider);
     }
 
     /**
@@ -114,16 +214,33 @@ public class EncryptionMetadata extends EncodeMetadata {
         signature = generateSignature(privateKey, provider);
     }
 
+    /**
+     * Call to verify the signature contained in this encryption info with the master key's public key (over the
+     * {@link #toSignedMap() full} or the {@link #toInitialSignedMap() initial} form). If neither matches,
+     * EncryptionException is thrown.
+     */
+    public void verifySignature(PublicKey publicKey, Provider provider) {
+        if (EncryptionUtil.verifyMetadataSignature(toSignedMap(), signature, publicKey, provider)) return;
+        if (kekId == null
+                && EncryptionUtil.verifyMetadataSignature(toInitialSignedMap(), signature, publicKey, provider)) return;
+        throw new EncryptionException("signature does not match");
+    }
+
     /**
      * Call to verify the signature contained in this encryption info. This will generate a new signature with the
-     * parameters provided and compare it with the signature property. If they do not match, EncryptionException is
-     * thrown.
+     * parameters provided (over the {@link #toSignedMap() full} and the {@link #toInitialSignedMap() initial} form) and
+     * compare it with the signature property. If neither matches, EncryptionException is thrown.
+     *
+     * @deprecated signing again is a private-key operation; use {@link #verifySignature(PublicKey, Provider)}
      */
+    @Deprecated
     public void verifySignature(RSAPrivateKey privateKey, Provider provider) {
         String generated = generateSignature(privateKey, provider);
-        if (!signature.equals(generated))
-            throw new EncryptionException(String.format("signature does not match (assigned=%s, generated=%s)",
-                    signature, generated));
+        if (signature.equals(generated)) return;
+        if (kekId == null && signature.equals(EncryptionUtil.signMetadata(toInitialSignedMap(), privateKey, provider)))
+            return;
+        throw new EncryptionException(String.format("signature does not match (assigned=%s, generated=%s)",
+                signature, generated));
     }
 
     protected String generateSignature(RSAPrivateKey privateKey, Provider provider) {
@@ -172,6 +289,18 @@ public class EncryptionMetadata extends EncodeMetadata {
         this.initVector = initVector;
     }
 
+    public String getKekId() {
+        return kekId;
+    }
+
+    public String getEncryptedKek() {
+        return encryptedKek;
+    }
+
+    public String getKekSignature() {
+        return kekSignature;
+    }
+
     public String getSignature() {
         return signature;
     }
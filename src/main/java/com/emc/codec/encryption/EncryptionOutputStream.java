@@ -30,6 +30,7 @@ package com.emc.codec.encryption;
 
 import com.emc.codec.EncodeOutputStream;
 import com.emc.codec.util.CountingOutputStream;
+import com.emc.codec.util.JceEngineCache;
 
 import javax.crypto.Cipher;
 import javax.crypto.CipherOutputStream;
@@ -55,7 +56,8 @@ public class EncryptionOutputStream extends EncodeOutputStream<EncryptionMetadat
         // CountingOutputStream->DigestOutputStream->CipherOutputStream->[user stream].
         try {
             CipherOutputStream cipherStream = new CipherOutputStream(originalStream, cipher);
-            digestStream = new DigestOutputStream(cipherStream, MessageDigest.getInstance("SHA1"));
+            digestStream = new DigestOutputStream(cipherStream,
+                    JceEngineCache.getInstance().borrowMessageDigest("SHA1", null));
             counterStream = new CountingOutputStream(digestStream);
             out = counterStream;
         } catch (NoSuchAlgorithmException e) {
@@ -72,7 +74,9 @@ public class EncryptionOutputStream extends EncodeOutputStream<EncryptionMetadat
 
         // this should only be executed once
         metadata.setOriginalSize(counterStream.getByteCount());
-        metadata.setOriginalDigest(digestStream.getMessageDigest().digest());
+        MessageDigest digest = digestStream.getMessageDigest();
+        metadata.setOriginalDigest(digest.digest());
+        JceEngineCache.getInstance().returnMessageDigest(digest, "SHA1", null);
 
         notifyListeners();
     }
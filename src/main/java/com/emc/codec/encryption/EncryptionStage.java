@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.encryption;
+
+import com.emc.codec.BufferSink;
+import com.emc.codec.EncodeStage;
+import com.emc.codec.util.JceEngineCache;
+
+import javax.crypto.Cipher;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Buffer-based encryption. Produces the same bytes and metadata as {@link EncryptionOutputStream}.
+ * <p>
+ * Input is passed to {@link Cipher#update(ByteBuffer, ByteBuffer)} as is, and the output buffer is direct whenever the
+ * input is, so direct buffers never have to be copied to the heap.
+ */
+public class EncryptionStage extends EncodeStage<EncryptionMetadata> {
+    private EncryptionMetadata metadata;
+    private Cipher cipher;
+    private MessageDigest digest;
+    private int chunkSize;
+    private ByteBuffer outputBuffer;
+    private long originalSize = 0;
+    private boolean closed = false;
+
+    public EncryptionStage(BufferSink next, String encodeSpec, Cipher cipher, String encryptedKey, int bufferSize) {
+        super(next);
+        metadata = new EncryptionMetadata(encodeSpec);
+        metadata.setEncryptedKey(encryptedKey);
+        metadata.setInitVector(cipher.getIV());
+
+        this.cipher = cipher;
+        this.chunkSize = bufferSize;
+        try {
+            this.digest = JceEngineCache.getInstance().borrowMessageDigest("SHA1", null);
+        } catch (NoSuchAlgorithmException e) {
+            throw new EncryptionException("Unable to initialize digest", e);
+        }
+    }
+
+    @Override
+    public void write(ByteBuffer src) throws IOException {
+        originalSize += src.remaining();
+        digest.update(src.duplicate());
+
+        if (outputBuffer == null) outputBuffer = CipherBuffers.allocateOutput(cipher, chunkSize, src.isDirect());
+
+        try {
+            while (src.hasRemaining()) {
+                int count = Math.min(src.remaining(), chunkSize);
+                ByteBuffer chunk = src.duplicate();
+                chunk.limit(chunk.position() + count);
+
+                outputBuffer.clear();
+                cipher.update(chunk, outputBuffer);
+                src.position(chunk.position());
+
+                outputBuffer.flip();
+                if (outputBuffer.hasRemaining()) next.write(outputBuffer);
+            }
+        } catch (GeneralSecurityException e) {
+            throw new EncryptionException("Error encrypting data", e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+
+        if (outputBuffer == null) outputBuffer = CipherBuffers.allocateOutput(cipher, chunkSize, false);
+        try {
+            outputBuffer.clear();
+            cipher.doFinal(CipherBuffers.EMPTY, outputBuffer);
+            outputBuffer.flip();
+            if (outputBuffer.hasRemaining()) next.write(outputBuffer);
+        } catch (GeneralSecurityException e) {
+            throw new EncryptionException("Error encrypting data", e);
+        }
+        next.close();
+
+        metadata.setOriginalSize(originalSize);
+        metadata.setOriginalDigest(digest.digest());
+        JceEngineCache.getInstance().returnMessageDigest(digest, "SHA1", null);
+
+        notifyListeners();
+    }
+
+    @Override
+    public EncryptionMetadata getEncodeMetadata() {
+        return metadata;
+    }
+}
@@ -29,12 +29,14 @@
 package com.emc.codec.encryption;
 
 import com.emc.codec.util.CodecUtil;
+import com.emc.codec.util.JceEngineCache;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.crypto.Cipher;
+import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.UnsupportedEncodingException;
@@ -166,9 +168,13 @@ public class EncryptionUtil {
             
             PublicKey pubKey;
             PrivateKey privKey;
-            KeyFactory keyFactory = KeyFactory.getInstance("RSA");
-            pubKey = keyFactory.generatePublic(pubKeySpec);
-            privKey = keyFactory.generatePrivate(privKeySpec);
+            KeyFactory keyFactory = JceEngineCache.getInstance().borrowKeyFactory("RSA", null);
+            try {
+                pubKey = keyFactory.generatePublic(pubKeySpec);
+                privKey = keyFactory.generatePrivate(privKeySpec);
+            } finally {
+                JceEngineCache.getInstance().returnKeyFactory(keyFactory, "RSA", null);
+            }
             
             return new KeyPair(pubKey, privKey);
         } catch (UnsupportedEncodingException e) {
@@ -179,20 +185,19 @@ public class EncryptionUtil {
     
     public static SecretKey decryptKey(String encodedKey, String algorithm, Provider provider, PrivateKey privateKey) {
         try {
-            Cipher cipher;
-            if(provider != null) {
-                cipher = Cipher.getInstance(EncryptionConstants.KEY_ENCRYPTION_CIPHER, provider);
-            } else {
-                cipher = Cipher.getInstance(EncryptionConstants.KEY_ENCRYPTION_CIPHER);
+            Cipher cipher = JceEngineCache.getInstance()
+                    .borrowCipher(EncryptionConstants.KEY_ENCRYPTION_CIPHER, provider);
+            try {
+                cipher.init(Cipher.DECRYPT_MODE, privateKey);
+
+                byte[] keyData = urlSafeDecodeBase64(encodedKey);
+
+                byte[] decryptedKey = cipher.doFinal(keyData);
+
+                return new SecretKeySpec(decryptedKey, algorithm);
+            } finally {
+                JceEngineCache.getInstance().returnCipher(cipher, EncryptionConstants.KEY_ENCRYPTION_CIPHER, provider);
             }
-            
-            cipher.init(Cipher.DECRYPT_MODE, privateKey);
-            
-            byte[] keyData = urlSafeDecodeBase64(encodedKey);
-            
-            byte[] decryptedKey = cipher.doFinal(keyData);
-            
-            return new SecretKeySpec(decryptedKey, algorithm);
         } catch(GeneralSecurityException e) {
             throw new RuntimeException("error decrypting object key: " + e, e);
         }
@@ -200,18 +205,17 @@ public class EncryptionUtil {
 
     public static String encryptKey(SecretKey key, Provider provider, PublicKey publicKey) {
         try {
-            Cipher cipher;
-            if (provider != null) {
-                cipher = Cipher.getInstance(EncryptionConstants.KEY_ENCRYPTION_CIPHER, provider);
-            } else {
-                cipher = Cipher.getInstance(EncryptionConstants.KEY_ENCRYPTION_CIPHER);
-            }
-
-            cipher.init(Cipher.ENCRYPT_MODE, publicKey);
+            Cipher cipher = JceEngineCache.getInstance()
+                    .borrowCipher(EncryptionConstants.KEY_ENCRYPTION_CIPHER, provider);
+            try {
+                cipher.init(Cipher.ENCRYPT_MODE, publicKey);
 
-            byte[] encryptedKey = cipher.doFinal(key.getEncoded());
+                byte[] encryptedKey = cipher.doFinal(key.getEncoded());
 
-            return urlSafeEncodeBase64(encryptedKey);
+                return urlSafeEncodeBase64(encryptedKey);
+            } finally {
+                JceEngineCache.getInstance().returnCipher(cipher, EncryptionConstants.KEY_ENCRYPTION_CIPHER, provider);
+            }
         } catch (GeneralSecurityException e) {
             throw new RuntimeException("error encrypting object key: " + e, e);
         }
@@ -260,6 +264,65 @@ public class EncryptionUtil {
     }
 
     public static String signMetadata(Map<String, String> metadata, RSAPrivateKey privateKey, Provider provider) {
+        byte[] bytes = getCanonicalMetadata(metadata);
+
+        Signature sig;
+        try {
+            sig = JceEngineCache.getInstance().borrowSignature(EncryptionConstants.META_SIGNATURE_ALGORITHM, provider);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Could not initialize signature algorithm: " + e, e);
+        }
+        try {
+            try {
+                sig.initSign(privateKey);
+            } catch (InvalidKeyException e) {
+                throw new RuntimeException("Could not initialize signature algorithm: " + e, e);
+            }
+
+            // Sign it!
+            try {
+                sig.update(bytes);
+                byte[] signature = sig.sign();
+
+                return urlSafeEncodeBase64(signature);
+            } catch (SignatureException e) {
+                throw new RuntimeException("Could not compute metadata signature: " + e);
+            }
+        } finally {
+            JceEngineCache.getInstance().returnSignature(sig, EncryptionConstants.META_SIGNATURE_ALGORITHM, provider);
+        }
+    }
+
+    /**
+     * Verifies a signature created by {@link #signMetadata(Map, RSAPrivateKey, Provider)} with the public key.
+     *
+     * @return true if the signature matches the metadata
+     */
+    public static boolean verifyMetadataSignature(Map<String, String> metadata, String signature, PublicKey publicKey,
+                                                  Provider provider) {
+        try {
+            Signature sig = JceEngineCache.getInstance()
+                    .borrowSignature(EncryptionConstants.META_SIGNATURE_ALGORITHM, provider);
+            try {
+                sig.initVerify(publicKey);
+                sig.update(getCanonicalMetadata(metadata));
+                return sig.verify(urlSafeDecodeBase64(signature));
+            } finally {
+                JceEngineCache.getInstance()
+                        .returnSignature(sig, EncryptionConstants.META_SIGNATURE_ALGORITHM, provider);
+            }
+        } catch (SignatureException e) {
+            return false; // malformed signature
+        } catch (GeneralSecurityException e) {
+            throw new EncryptionException("Could not verify metadata signature: " + e, e);
+        }
+    }
+
+    /**
+     * Renders the encryption metadata (the keys starting with {@link EncryptionConstants#META_ENCRYPTION_PREFIX}) in
+     * the canonical form that is signed: one <code>key:value</code> line per entry, sorted by lowercase key.
+     */
+    public static byte[] getCanonicalMetadata(Map<String, String> metadata) {
         // Get the set of keys to sign and sort them.
         List<String> keys = new ArrayList<String>();
 
@@ -296,29 +359,57 @@ public class EncryptionUtil {
             // Should never happen since UTF-8 is required.
             throw new RuntimeException("Could not render string to bytes");
         }
+        return bytes;
+    }
 
-        Signature sig;
+    /**
+     * Authenticates the encryption metadata with a MAC over its canonical form (see
+     * {@link #getCanonicalMetadata(Map)}). Used instead of a signature when object keys are wrapped with a key
+     * encryption key.
+     */
+    public static String macMetadata(Map<String, String> metadata, SecretKey macKey, Provider provider) {
         try {
-            if (provider != null) {
-                sig = Signature.getInstance(EncryptionConstants.META_SIGNATURE_ALGORITHM, provider);
-            } else {
-                sig = Signature.getInstance(EncryptionConstants.META_SIGNATURE_ALGORITHM);
+            Mac mac = JceEngineCache.getInstance().borrowMac(EncryptionConstants.META_MAC_ALGORITHM, provider);
+            try {
+                mac.init(macKey);
+                return urlSafeEncodeBase64(mac.doFinal(getCanonicalMetadata(metadata)));
+            } finally {
+                JceEngineCache.getInstance().returnMac(mac, EncryptionConstants.META_MAC_ALGORITHM, provider);
             }
-            sig.initSign(privateKey);
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException("Could not initialize signature algorithm: " + e, e);
-        } catch (InvalidKeyException e) {
-            throw new RuntimeException("Could not initialize signature algorithm: " + e, e);
+        } catch (GeneralSecurityException e) {
+            throw new EncryptionException("Could not compute metadata MAC: " + e, e);
         }
-        
-        // Sign it!
+    }
+
+    /**
+     * Wraps an object key with an AES key encryption key (RFC 3394 key wrap).
+     */
+    public static String wrapKey(SecretKey key, SecretKey keyEncryptionKey, Provider provider) {
         try {
-            sig.update(bytes);
-            byte[] signature = sig.sign();
-            
-            return urlSafeEncodeBase64(signature);
-        } catch (SignatureException e) {
-            throw new RuntimeException("Could not compute metadata signature: " + e);
+            Cipher cipher = JceEngineCache.getInstance().borrowCipher(EncryptionConstants.KEY_WRAP_CIPHER, provider);
+            try {
+                cipher.init(Cipher.WRAP_MODE, keyEncryptionKey);
+                return urlSafeEncodeBase64(cipher.wrap(key));
+            } finally {
+                JceEngineCache.getInstance().returnCipher(cipher, EncryptionConstants.KEY_WRAP_CIPHER, provider);
+            }
+        } catch (GeneralSecurityException e) {
+            throw new EncryptionException("error wrapping object key: " + e, e);
+        }
+    }
+
+    public static SecretKey unwrapKey(String wrappedKey, String algorithm, SecretKey keyEncryptionKey,
+                                      Provider provider) {
+        try {
+            Cipher cipher = JceEngineCache.getInstance().borrowCipher(EncryptionConstants.KEY_WRAP_CIPHER, provider);
+            try {
+                cipher.init(Cipher.UNWRAP_MODE, keyEncryptionKey);
+                return (SecretKey) cipher.unwrap(urlSafeDecodeBase64(wrappedKey), algorithm, Cipher.SECRET_KEY);
+            } finally {
+                JceEngineCache.getInstance().returnCipher(cipher, EncryptionConstants.KEY_WRAP_CIPHER, provider);
+            }
+        } catch (GeneralSecurityException e) {
+            throw new EncryptionException("error unwrapping object key: " + e, e);
         }
     }
 
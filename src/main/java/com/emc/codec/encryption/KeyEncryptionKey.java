@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.encryption;
+
+import com.emc.codec.util.JceEngineCache;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.Provider;
+import java.security.PublicKey;
+import java.security.interfaces.RSAPrivateKey;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * An intermediate AES key encryption key (KEK). The KEK is wrapped once with an RSA master key and the wrapped form is
+ * stored with every object it protects, so any holder of the master key can recover it. Object keys are wrapped with
+ * the KEK (RFC 3394 AES key wrap) and object metadata is authenticated with an HMAC key derived from it, so no RSA
+ * operation is needed per object.
+ * <p>
+ * The ID of a KEK is the SHA1 digest of its wrapped form, which lets a cached KEK be found by ID while making sure a
+ * different wrapped key is never mistaken for it.
+ * <p>
+ * Wrapping only takes the master public key, so the wrapped form is also signed with the master private key (see
+ * {@link #sign(String, RSAPrivateKey, Provider)}). A KEK must not be trusted until its signature is verified;
+ * otherwise anyone holding the public key could mint a KEK and authenticate metadata with it.
+ *
+ * @see KeyEncryptionKeyProvider
+ */
+public class KeyEncryptionKey {
+    private static final byte[] MAC_KEY_LABEL = "x-emc-enc metadata MAC key".getBytes();
+
+    public static String getId(String wrappedKey) {
+        return DigestUtils.sha1Hex(wrappedKey);
+    }
+
+    /**
+     * @return the signature of <code>wrappedKey</code> with the master private key
+     */
+    public static String sign(String wrappedKey, RSAPrivateKey masterKey, Provider provider) {
+        return EncryptionUtil.signMetadata(getSignedMap(wrappedKey), masterKey, provider);
+    }
+
+    /**
+     * @return true if <code>signature</code> was created for <code>wrappedKey</code> with the master private key
+     */
+    public static boolean verify(String wrappedKey, String signature, PublicKey masterKey, Provider provider) {
+        return signature != null
+                && EncryptionUtil.verifyMetadataSignature(getSignedMap(wrappedKey), signature, masterKey, provider);
+    }
+
+    private static Map<String, String> getSignedMap(String wrappedKey) {
+        return Collections.singletonMap(EncryptionConstants.META_ENCRYPTION_KEK, wrappedKey);
+    }
+
+    private String id;
+    private String masterKeyFingerprint;
+    private String wrappedKey;
+    private String signature;
+    private SecretKey key;
+    private long createTime = System.currentTimeMillis();
+    private volatile SecretKey macKey;
+
+    /**
+     * @param key                  the AES key
+     * @param wrappedKey           <code>key</code> encrypted with the master key (see
+     *                             {@link EncryptionUtil#encryptKey(SecretKey, Provider, java.security.PublicKey)})
+     * @param signature            <code>wrappedKey</code> signed with the master private key (see
+     *                             {@link #sign(String, RSAPrivateKey, Provider)})
+     * @param masterKeyFingerprint the fingerprint of the master key
+     */
+    public KeyEncryptionKey(SecretKey key, String wrappedKey, String signature, String masterKeyFingerprint) {
+        this.id = getId(wrappedKey);
+        this.key = key;
+        this.wrappedKey = wrappedKey;
+        this.signature = signature;
+        this.masterKeyFingerprint = masterKeyFingerprint;
+    }
+
+    public String wrap(SecretKey objectKey, Provider provider) {
+        return EncryptionUtil.wrapKey(objectKey, key, provider);
+    }
+
+    public SecretKey unwrap(String wrappedObjectKey, String algorithm, Provider provider) {
+        return EncryptionUtil.unwrapKey(wrappedObjectKey, algorithm, key, provider);
+    }
+
+    /**
+     * @return a MAC of the encryption metadata (see {@link EncryptionUtil#macMetadata(Map, SecretKey, Provider)})
+     */
+    public String mac(Map<String, String> metadata, Provider provider) {
+        return EncryptionUtil.macMetadata(metadata, getMacKey(provider), provider);
+    }
+
+    // the MAC key is derived from the KEK rather than using the KEK itself for two purposes
+    private SecretKey getMacKey(Provider provider) {
+        SecretKey macKey = this.macKey;
+        if (macKey == null) {
+            try {
+                Mac mac = JceEngineCache.getInstance().borrowMac(EncryptionConstants.META_MAC_ALGORITHM, provider);
+                try {
+                    mac.init(new SecretKeySpec(key.getEncoded(), EncryptionConstants.META_MAC_ALGORITHM));
+                    macKey = new SecretKeySpec(mac.doFinal(MAC_KEY_LABEL), EncryptionConstants.META_MAC_ALGORITHM);
+                } finally {
+                    JceEngineCache.getInstance().returnMac(mac, EncryptionConstants.META_MAC_ALGORITHM, provider);
+                }
+            } catch (GeneralSecurityException e) {
+                throw new EncryptionException("Could not derive metadata MAC key", e);
+            }
+            this.macKey = macKey;
+        }
+        return macKey;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getMasterKeyFingerprint() {
+        return masterKeyFingerprint;
+    }
+
+    public String getWrappedKey() {
+        return wrappedKey;
+    }
+
+    public String getSignature() {
+        return signature;
+    }
+
+    public SecretKey getKey() {
+        return key;
+    }
+
+    public long getCreateTime() {
+        return createTime;
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.encryption;
+
+import java.security.Provider;
+
+/**
+ * A {@link KeyProvider} that also manages key encryption keys (see {@link KeyEncryptionKey}). Required to encode with
+ * {@link EncryptionCodec#PROP_USE_KEY_ENCRYPTION_KEY} and to decode objects encoded that way.
+ */
+public interface KeyEncryptionKeyProvider extends KeyProvider {
+    /**
+     * @return the KEK to wrap new object keys with. It is wrapped with the current master key, signed with its private
+     * key and replaced periodically
+     */
+    KeyEncryptionKey getKeyEncryptionKey(Provider provider);
+
+    /**
+     * Looks up a KEK by ID, verifying its signature and unwrapping it with the master key identified by
+     * <code>masterKeyFingerprint</code> if it is not cached.
+     *
+     * @param wrappedKey the wrapped KEK as stored with the object
+     * @param signature  the signature of the wrapped KEK as stored with the object
+     * @return the KEK, or null if the master key is not available
+     * @throws EncryptionException if <code>id</code> does not match <code>wrappedKey</code> or the signature does not
+     *                             match
+     */
+    KeyEncryptionKey getKeyEncryptionKey(String id, String masterKeyFingerprint, String wrappedKey, String signature,
+                                         Provider provider);
+}
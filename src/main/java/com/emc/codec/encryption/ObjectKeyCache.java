@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.encryption;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of unwrapped object keys, so that reading the same object again skips the RSA private-key operation.
+ * Entries are keyed by master key fingerprint, key algorithm and encrypted key, expire a fixed time after they are
+ * cached, and the least recently used entry is evicted when the cache is full. Concurrent misses for the same key wait
+ * for a single unwrap.
+ * <p>
+ * The cache holds its own copy of each key's bytes and zeroes it when the entry is evicted, expires or is cleared.
+ * Callers get a new <code>SecretKey</code> per hit (which the JCE copies again on <code>Cipher.init</code>), so key
+ * material handed out is not covered.
+ * <p>
+ * Opt-in: set an instance with {@link EncryptionCodec#PROP_KEY_CACHE}. The codec still requires the key provider to
+ * hold the master key before it consults the cache.
+ */
+public class ObjectKeyCache {
+    public static final int DEFAULT_MAX_SIZE = 10000;
+    public static final long DEFAULT_TTL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private int maxSize;
+    private long ttlNanos;
+    private Map<String, CachedKey> entries;
+    private ConcurrentMap<String, FutureTask<SecretKey>> unwrapping =
+            new ConcurrentHashMap<String, FutureTask<SecretKey>>();
+    private long lastSweep = System.nanoTime();
+    private AtomicLong hitCount = new AtomicLong();
+    private AtomicLong missCount = new AtomicLong();
+    private AtomicLong evictionCount = new AtomicLong();
+
+    public ObjectKeyCache() {
+        this(DEFAULT_MAX_SIZE, DEFAULT_TTL_MILLIS);
+    }
+
+    /**
+     * @param maxSize   the most keys held at once
+     * @param ttlMillis how long a key is cached after it is unwrapped
+     */
+    public ObjectKeyCache(final int maxSize, long ttlMillis) {
+        if (maxSize < 1) throw new IllegalArgumentException("Invalid cache size: " + maxSize);
+        if (ttlMillis < 1) throw new IllegalArgumentException("Invalid TTL: " + ttlMillis);
+        this.maxSize = maxSize;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.entries = new LinkedHashMap<String, CachedKey>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedKey> eldest) {
+                if (size() <= maxSize) return false;
+                eldest.getValue().destroy();
+                evictionCount.incrementAndGet();
+                return true;
+            }
+        };
+    }
+
+    /**
+     * @param unwrapper called (by only one thread at a time per key) when the key is not cached
+     * @return the cached key, or the key returned by <code>unwrapper</code>
+     */
+    public SecretKey getKey(String masterKeyFingerprint, String algorithm, String encryptedKey,
+                            Callable<SecretKey> unwrapper) {
+        String cacheKey = masterKeyFingerprint + '\n' + algorithm + '\n' + encryptedKey;
+
+        SecretKey key = getCached(cacheKey);
+        if (key != null) {
+            hitCount.incrementAndGet();
+            return key;
+        }
+
+        FutureTask<SecretKey> task = new FutureTask<SecretKey>(unwrapper);
+        FutureTask<SecretKey> existing = unwrapping.putIfAbsent(cacheKey, task);
+        if (existing == null) {
+            missCount.incrementAndGet();
+            try {
+                task.run();
+                if (!task.isCancelled()) put(cacheKey, getResult(task));
+            } finally {
+                unwrapping.remove(cacheKey, task);
+            }
+        } else {
+            task = existing;
+        }
+        return getResult(task);
+    }
+
+    /**
+     * Removes (and zeroes) all cached keys.
+     */
+    public synchronized void clear() {
+        for (CachedKey entry : entries.values()) {
+            entry.destroy();
+        }
+        entries.clear();
+    }
+
+    public synchronized int getSize() {
+        return entries.size();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getTtlMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(ttlNanos);
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return the number of keys actually unwrapped (requests that waited on another thread's unwrap are neither hits
+     * nor misses)
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * @return the number of keys evicted to make room (not counting expired keys)
+     */
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    private synchronized SecretKey getCached(String cacheKey) {
+        CachedKey entry = entries.get(cacheKey);
+        if (entry == null) return null;
+        if (entry.isExpired(System.nanoTime())) {
+            entries.remove(cacheKey);
+            entry.destroy();
+            return null;
+        }
+        return new SecretKeySpec(entry.keyBytes, entry.algorithm);
+    }
+
+    private synchronized void put(String cacheKey, SecretKey key) {
+        byte[] keyBytes = key.getEncoded();
+        if (keyBytes == null) return; // not extractable (e.g. a token key); cannot be cached
+
+        long now = System.nanoTime();
+        if (now - lastSweep > ttlNanos) {
+            for (Iterator<CachedKey> i = entries.values().iterator(); i.hasNext(); ) {
+                CachedKey entry = i.next();
+                if (entry.isExpired(now)) {
+                    entry.destroy();
+                    i.remove();
+                }
+            }
+            lastSweep = now;
+        }
+
+        CachedKey previous = entries.put(cacheKey, new CachedKey(keyBytes, key.getAlgorithm(), now + ttlNanos));
+        if (previous != null) previous.destroy();
+    }
+
+    private SecretKey getResult(FutureTask<SecretKey> task) {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EncryptionException("Interrupted waiting for object key", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new EncryptionException("Could not decrypt object key", cause);
+        }
+    }
+
+    private static class CachedKey {
+        private byte[] keyBytes;
+        private String algorithm;
+        private long expiresAt;
+
+        CachedKey(byte[] keyBytes, String algorithm, long expiresAt) {
+            this.keyBytes = keyBytes;
+            this.algorithm = algorithm;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isExpired(long now) {
+            return now - expiresAt >= 0;
+        }
+
+        void destroy() {
+            Arrays.fill(keyBytes, (byte) 0);
+        }
+    }
+}
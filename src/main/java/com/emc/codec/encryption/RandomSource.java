@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.encryption;
+
+import java.security.GeneralSecurityException;
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Source of randomness for object keys and IVs. Each thread gets its own <code>SecureRandom</code> per security
+ * provider instance, so instances are created and seeded once instead of per object and are never contended. New instances
+ * are seeded from a shared system <code>SecureRandom</code> (which does not block) instead of seeding themselves, and
+ * are reseeded the same way every <code>reseedInterval</code> requests.
+ * <p>
+ * Small requests (IVs and keys) are served from a per-instance buffer that is filled with one call to the underlying
+ * generator and zeroed as it is used.
+ * <p>
+ * Instances come from the configured security provider when there is one (a FIPS provider supplies its own approved
+ * DRBG); the default algorithm is {@link #DEFAULT_ALGORITHM}. Set an instance with
+ * {@link EncryptionCodec#PROP_RANDOM_SOURCE}; codecs share {@link #getDefault()} otherwise.
+ */
+public class RandomSource {
+    public static final String DEFAULT_ALGORITHM = EncryptionCodec.SECURE_RANDOM_INSTANCE;
+    public static final long DEFAULT_RESEED_INTERVAL = 100000;
+    public static final int DEFAULT_BUFFER_SIZE = 1024;
+
+    private static final int SEED_SIZE = 32;
+    private static final SecureRandom seedSource = new SecureRandom();
+
+    private static final RandomSource defaultSource = new RandomSource();
+
+    /**
+     * @return the instance shared by codecs that have no random source configured
+     */
+    public static RandomSource getDefault() {
+        return defaultSource;
+    }
+
+    private String algorithm;
+    private long reseedInterval;
+    private int bufferSize;
+    private ThreadLocal<Map<Provider, Generator>> generators = new ThreadLocal<Map<Provider, Generator>>() {
+        @Override
+        protected Map<Provider, Generator> initialValue() {
+            return new IdentityHashMap<Provider, Generator>();
+        }
+    };
+
+    public RandomSource() {
+        this(DEFAULT_ALGORITHM, DEFAULT_RESEED_INTERVAL, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param algorithm      the <code>SecureRandom</code> algorithm (e.g. "DRBG" on newer JVMs)
+     * @param reseedInterval the number of requests each instance serves before it is reseeded
+     * @param bufferSize     the number of bytes each instance generates at once for small requests (0 disables
+     *                       buffering)
+     */
+    public RandomSource(String algorithm, long reseedInterval, int bufferSize) {
+        if (reseedInterval < 1) throw new IllegalArgumentException("Invalid reseed interval: " + reseedInterval);
+        if (bufferSize < 0) throw new IllegalArgumentException("Invalid buffer size: " + bufferSize);
+        this.algorithm = algorithm;
+        this.reseedInterval = reseedInterval;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * @return this thread's instance for the provider (null for the default providers). It must not be shared with
+     * other threads
+     */
+    public SecureRandom getSecureRandom(Provider provider) {
+        Generator generator = getGenerator(provider);
+        generator.request();
+        return generator.random;
+    }
+
+    /**
+     * Fills <code>bytes</code> from this thread's instance for the provider (null for the default providers).
+     */
+    public void nextBytes(byte[] bytes, Provider provider) {
+        getGenerator(provider).nextBytes(bytes);
+    }
+
+    public byte[] nextBytes(int length, Provider provider) {
+        byte[] bytes = new byte[length];
+        nextBytes(bytes, provider);
+        return bytes;
+    }
+
+    private Generator getGenerator(Provider provider) {
+        Map<Provider, Generator> threadGenerators = generators.get();
+        Generator generator = threadGenerators.get(provider);
+        if (generator == null) {
+            generator = new Generator(createSecureRandom(provider));
+            threadGenerators.put(provider, generator);
+        }
+        return generator;
+    }
+
+    protected SecureRandom createSecureRandom(Provider provider) {
+        try {
+            if (provider != null) return SecureRandom.getInstance(algorithm, provider);
+            else return SecureRandom.getInstance(algorithm);
+        } catch (GeneralSecurityException e) {
+            throw new UnsupportedOperationException("Could not get secure random instance for " + algorithm, e);
+        }
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    public long getReseedInterval() {
+        return reseedInterval;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    private class Generator {
+        private SecureRandom random;
+        private byte[] buffer;
+        private int position;
+        private long requests;
+
+        Generator(SecureRandom random) {
+            this.random = random;
+            reseed();
+            buffer = new byte[bufferSize];
+            position = buffer.length;
+        }
+
+        void request() {
+            if (++requests >= reseedInterval) {
+                reseed();
+                requests = 0;
+            }
+        }
+
+        void nextBytes(byte[] bytes) {
+            if (bytes.length > buffer.length) {
+                request();
+                random.nextBytes(bytes);
+                return;
+            }
+            if (buffer.length - position < bytes.length) {
+                request();
+                random.nextBytes(buffer);
+                position = 0;
+            }
+            System.arraycopy(buffer, position, bytes, 0, bytes.length);
+            Arrays.fill(buffer, position, position + bytes.length, (byte) 0);
+            position += bytes.length;
+        }
+
+        // for SHA1PRNG, seeding before the first use replaces self-seeding (which may block on entropy); other
+        // algorithms mix the seed into their state
+        private void reseed() {
+            byte[] seed = new byte[SEED_SIZE];
+            seedSource.nextBytes(seed);
+            random.setSeed(seed);
+            Arrays.fill(seed, (byte) 0);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.encryption;
+
+import com.emc.codec.util.JceEngineCache;
+import org.apache.commons.codec.binary.Hex;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of metadata signatures (or MACs) that have already been verified, so that reading the same object
+ * again does not repeat the public-key operation. An entry is the SHA-256 digest of the signed metadata in canonical
+ * form plus the signature, so any change to either is a miss. Only successful verifications are cached.
+ * <p>
+ * Entries do not expire; call {@link #clear()} after removing a master key from the key provider. Set an instance
+ * with {@link EncryptionCodec#PROP_SIGNATURE_CACHE}.
+ */
+public class SignatureCache {
+    public static final int DEFAULT_MAX_SIZE = 10000;
+
+    private int maxSize;
+    private Map<String, Boolean> verified;
+    private long hitCount;
+    private long missCount;
+
+    public SignatureCache() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    public SignatureCache(final int maxSize) {
+        if (maxSize < 1) throw new IllegalArgumentException("Invalid cache size: " + maxSize);
+        this.maxSize = maxSize;
+        this.verified = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @return the cache key for the metadata's current content and signature
+     */
+    public String getKey(EncryptionMetadata metadata) {
+        try {
+            MessageDigest digest = JceEngineCache.getInstance().borrowMessageDigest("SHA-256", null);
+            try {
+                digest.update(EncryptionUtil.getCanonicalMetadata(metadata.toSignedMap()));
+                digest.update((byte) '\n');
+                digest.update(metadata.getSignature().getBytes("US-ASCII"));
+                return Hex.encodeHexString(digest.digest());
+            } finally {
+                JceEngineCache.getInstance().returnMessageDigest(digest, "SHA-256", null);
+            }
+        } catch (NoSuchAlgorithmException e) {
+            throw new EncryptionException("Unable to initialize digest", e);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException("US-ASCII encoding not supported", e);
+        }
+    }
+
+    public synchronized boolean isVerified(String key) {
+        if (verified.get(key) != null) {
+            hitCount++;
+            return true;
+        }
+        missCount++;
+        return false;
+    }
+
+    public synchronized void setVerified(String key) {
+        verified.put(key, Boolean.TRUE);
+    }
+
+    public synchronized void clear() {
+        verified.clear();
+    }
+
+    public synchronized int getSize() {
+        return verified.size();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.metrics;
+
+/**
+ * Accumulates the bytes passed through one point of a stream chain and the time spent passing them. Not thread-safe;
+ * a meter belongs to a single stream, which is only used by one thread at a time.
+ */
+public class ByteMeter {
+    private boolean cpuTime;
+    private long bytes;
+    private long nanos;
+    private long cpuNanos;
+
+    public ByteMeter(boolean cpuTime) {
+        this.cpuTime = cpuTime;
+    }
+
+    /**
+     * @return the current thread CPU time to pass to {@link #add(long, long, long)}, or 0 if CPU time is not measured
+     */
+    public long cpuStart() {
+        return cpuTime ? MetricsUtil.currentThreadCpuTime() : 0;
+    }
+
+    /**
+     * Adds an operation that started at <code>startNanos</code> ({@link System#nanoTime()}) and <code>cpuStart</code>
+     * ({@link #cpuStart()}) and just finished. Negative byte counts (EOF) are ignored.
+     */
+    public void add(long bytes, long startNanos, long cpuStart) {
+        nanos += System.nanoTime() - startNanos;
+        if (cpuTime) cpuNanos += MetricsUtil.currentThreadCpuTime() - cpuStart;
+        if (bytes > 0) this.bytes += bytes;
+    }
+
+    public boolean isCpuTime() {
+        return cpuTime;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getNanos() {
+        return nanos;
+    }
+
+    public long getCpuNanos() {
+        return cpuNanos;
+    }
+}
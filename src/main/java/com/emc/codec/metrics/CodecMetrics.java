@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.metrics;
+
+/**
+ * Receives performance data from codec chains and codecs. Set an implementation with
+ * {@link MetricsUtil#setMetrics(java.util.Map, CodecMetrics)}; the default is {@link NoOpCodecMetrics}, in which case
+ * chains are not metered at all. Implementations must be thread-safe and should return quickly, since they are called
+ * on the encode/decode path (once per stage per object, not per buffer).
+ */
+public interface CodecMetrics {
+    String OP_WRAP_KEY = "wrapKey";
+    String OP_UNWRAP_KEY = "unwrapKey";
+    String OP_SIGN = "sign";
+    String OP_VERIFY = "verify";
+
+    /**
+     * Called when one codec of a chain has finished processing an object.
+     *
+     * @param encodeSpec the spec of the codec
+     * @param encode     true for encoding, false for decoding
+     * @param bytesIn    bytes consumed by the codec
+     * @param bytesOut   bytes produced by the codec
+     * @param wallNanos  time spent in the codec itself (excluding the stages before and after it) on the calling
+     *                   thread
+     * @param cpuNanos   CPU time of the same, or -1 if CPU time is not measured (see
+     *                   {@link MetricsUtil#PROP_CPU_TIME})
+     */
+    void stageComplete(String encodeSpec, boolean encode, long bytesIn, long bytesOut, long wallNanos, long cpuNanos);
+
+    /**
+     * Called when a codec that hands data to a background thread (LZMA) is closed, with the total time the calling
+     * thread spent writing to or reading from the pipe (i.e. waiting on the background thread).
+     */
+    void pipeBlocked(String encodeSpec, boolean encode, long nanos);
+
+    /**
+     * Called after each key operation (one of the <code>OP_*</code> constants).
+     */
+    void keyOperation(String operation, long nanos);
+
+    /**
+     * Called by background threads owned by a codec when they start.
+     */
+    void threadStarted(String name);
+
+    /**
+     * Called by background threads owned by a codec when they end.
+     */
+    void threadStopped(String name);
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-memory {@link CodecMetrics} that keeps a {@link Histogram} per measurement. Histograms are named
+ * <code>[encode|decode].[encode spec].[measure]</code> for stages and pipes (see {@link #stageName(String, boolean,
+ * String)}) and <code>key.[operation].nanos</code> for key operations. Active background threads are tracked per
+ * thread name.
+ */
+public class HistogramCodecMetrics implements CodecMetrics {
+    public static final String MEASURE_BYTES_IN = "bytesIn";
+    public static final String MEASURE_BYTES_OUT = "bytesOut";
+    public static final String MEASURE_WALL_NANOS = "wallNanos";
+    public static final String MEASURE_CPU_NANOS = "cpuNanos";
+    public static final String MEASURE_PIPE_BLOCKED_NANOS = "pipeBlockedNanos";
+
+    public static String stageName(String encodeSpec, boolean encode, String measure) {
+        return (encode ? "encode." : "decode.") + encodeSpec + "." + measure;
+    }
+
+    public static String keyOperationName(String operation) {
+        return "key." + operation + ".nanos";
+    }
+
+    private ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+    private ConcurrentMap<String, AtomicInteger> activeThreads = new ConcurrentHashMap<String, AtomicInteger>();
+
+    @Override
+    public void stageComplete(String encodeSpec, boolean encode, long bytesIn, long bytesOut, long wallNanos,
+                              long cpuNanos) {
+        histogram(stageName(encodeSpec, encode, MEASURE_BYTES_IN)).record(bytesIn);
+        histogram(stageName(encodeSpec, encode, MEASURE_BYTES_OUT)).record(bytesOut);
+        histogram(stageName(encodeSpec, encode, MEASURE_WALL_NANOS)).record(wallNanos);
+        if (cpuNanos >= 0) histogram(stageName(encodeSpec, encode, MEASURE_CPU_NANOS)).record(cpuNanos);
+    }
+
+    @Override
+    public void pipeBlocked(String encodeSpec, boolean encode, long nanos) {
+        histogram(stageName(encodeSpec, encode, MEASURE_PIPE_BLOCKED_NANOS)).record(nanos);
+    }
+
+    @Override
+    public void keyOperation(String operation, long nanos) {
+        histogram(keyOperationName(operation)).record(nanos);
+    }
+
+    @Override
+    public void threadStarted(String name) {
+        threadCounter(name).incrementAndGet();
+    }
+
+    @Override
+    public void threadStopped(String name) {
+        threadCounter(name).decrementAndGet();
+    }
+
+    /**
+     * @return the named histogram, or null if nothing has been recorded under that name
+     */
+    public Histogram getHistogram(String name) {
+        return histograms.get(name);
+    }
+
+    /**
+     * @return a sorted snapshot of all histograms
+     */
+    public SortedMap<String, Histogram> getHistograms() {
+        return Collections.unmodifiableSortedMap(new TreeMap<String, Histogram>(histograms));
+    }
+
+    public int getActiveThreads(String name) {
+        AtomicInteger counter = activeThreads.get(name);
+        return counter == null ? 0 : counter.get();
+    }
+
+    public int getActiveThreads() {
+        int total = 0;
+        for (AtomicInteger counter : activeThreads.values()) {
+            total += counter.get();
+        }
+        return total;
+    }
+
+    /**
+     * Clears all histograms (active thread counts are kept, since those threads are still running).
+     */
+    public void reset() {
+        histograms.clear();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder();
+        for (Map.Entry<String, Histogram> entry : getHistograms().entrySet()) {
+            result.append(entry.getKey()).append(": ").append(entry.getValue()).append("\n");
+        }
+        result.append("active threads: ").append(getActiveThreads());
+        return result.toString();
+    }
+
+    private Histogram histogram(String name) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            histogram = new Histogram();
+            Histogram existing = histograms.putIfAbsent(name, histogram);
+            if (existing != null) histogram = existing;
+        }
+        return histogram;
+    }
+
+    private AtomicInteger threadCounter(String name) {
+        AtomicInteger counter = activeThreads.get(name);
+        if (counter == null) {
+            counter = new AtomicInteger();
+            AtomicInteger existing = activeThreads.putIfAbsent(name, counter);
+            if (existing != null) counter = existing;
+        }
+        return counter;
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.metrics;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Times every call to the wrapped stream. Encode streams look through this wrapper when linking themselves into a
+ * chain (see {@link #getDelegate()}).
+ */
+public class MeteredOutputStream extends FilterOutputStream {
+    private ByteMeter meter;
+
+    public MeteredOutputStream(OutputStream out, ByteMeter meter) {
+        super(out);
+        this.meter = meter;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        long start = System.nanoTime(), cpuStart = meter.cpuStart();
+        out.write(b);
+        meter.add(1, start, cpuStart);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        long start = System.nanoTime(), cpuStart = meter.cpuStart();
+        out.write(b, off, len);
+        meter.add(len, start, cpuStart);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        long start = System.nanoTime(), cpuStart = meter.cpuStart();
+        out.flush();
+        meter.add(0, start, cpuStart);
+    }
+
+    @Override
+    public void close() throws IOException {
+        long start = System.nanoTime(), cpuStart = meter.cpuStart();
+        try {
+            out.close();
+        } finally {
+            meter.add(0, start, cpuStart);
+        }
+    }
+
+    public OutputStream getDelegate() {
+        return out;
+    }
+
+    public ByteMeter getMeter() {
+        return meter;
+    }
+}
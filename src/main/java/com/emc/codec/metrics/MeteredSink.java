@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.metrics;
+
+import com.emc.codec.BufferSink;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Times every call to the wrapped sink. Encode stages look through this wrapper when linking themselves into a chain
+ * (see {@link #getDelegate()}).
+ */
+public class MeteredSink implements BufferSink {
+    private BufferSink delegate;
+    private ByteMeter meter;
+
+    public MeteredSink(BufferSink delegate, ByteMeter meter) {
+        this.delegate = delegate;
+        this.meter = meter;
+    }
+
+    @Override
+    public void write(ByteBuffer src) throws IOException {
+        int count = src.remaining();
+        long start = System.nanoTime(), cpuStart = meter.cpuStart();
+        delegate.write(src);
+        meter.add(count, start, cpuStart);
+    }
+
+    @Override
+    public void close() throws IOException {
+        long start = System.nanoTime(), cpuStart = meter.cpuStart();
+        try {
+            delegate.close();
+        } finally {
+            meter.add(0, start, cpuStart);
+        }
+    }
+
+    public BufferSink getDelegate() {
+        return delegate;
+    }
+
+    public ByteMeter getMeter() {
+        return meter;
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.metrics;
+
+import com.emc.codec.util.CodecUtil;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+
+public final class MetricsUtil {
+    public static final String PROP_METRICS = "com.emc.codec.metrics.MetricsUtil.metrics";
+    public static final String PROP_CPU_TIME = "com.emc.codec.metrics.MetricsUtil.cpuTime";
+
+    private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+    public static CodecMetrics getMetrics(Map<String, Object> codecProperties) {
+        return CodecUtil.getCodecProperty(PROP_METRICS, codecProperties, (CodecMetrics) NoOpCodecMetrics.INSTANCE);
+    }
+
+    public static void setMetrics(Map<String, Object> codecProperties, CodecMetrics metrics) {
+        codecProperties.put(PROP_METRICS, metrics);
+    }
+
+    /**
+     * If true, metered stages also measure thread CPU time. This costs two extra system calls per buffer per stage,
+     * so it is off by default.
+     */
+    public static boolean isCpuTime(Map<String, Object> codecProperties) {
+        return CodecUtil.getCodecProperty(PROP_CPU_TIME, codecProperties, Boolean.FALSE)
+                && threadBean.isCurrentThreadCpuTimeSupported();
+    }
+
+    public static void setCpuTime(Map<String, Object> codecProperties, boolean cpuTime) {
+        codecProperties.put(PROP_CPU_TIME, cpuTime);
+    }
+
+    public static boolean isEnabled(CodecMetrics metrics) {
+        return metrics != null && !(metrics instanceof NoOpCodecMetrics);
+    }
+
+    static long currentThreadCpuTime() {
+        return threadBean.getCurrentThreadCpuTime();
+    }
+
+    private MetricsUtil() {
+    }
+}
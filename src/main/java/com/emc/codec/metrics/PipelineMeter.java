@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.metrics;
+
+import com.emc.codec.BufferSink;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Meters one encode or decode pipeline and reports per-stage figures to {@link CodecMetrics} when it is closed.
+ * <p>
+ * Boundaries are numbered in the direction data flows: boundary <code>i</code> is the input of stage <code>i</code> and
+ * the last boundary is the output of the last stage. Each boundary is timed inclusively, so in a push pipeline it
+ * includes every stage after it and in a pull pipeline every stage before it; the time spent in a stage is the
+ * difference between the boundaries on either side of it.
+ */
+public class PipelineMeter {
+    private CodecMetrics metrics;
+    private boolean encode;
+    private boolean push;
+    private List<String> encodeSpecs;
+    private ByteMeter[] boundaries;
+    private boolean complete = false;
+
+    /**
+     * @param encodeSpecs the spec of each stage, in the order data flows through them
+     */
+    public PipelineMeter(CodecMetrics metrics, boolean encode, boolean push, List<String> encodeSpecs, boolean cpuTime) {
+        this.metrics = metrics;
+        this.encode = encode;
+        this.push = push;
+        this.encodeSpecs = encodeSpecs;
+        this.boundaries = new ByteMeter[encodeSpecs.size() + 1];
+        for (int i = 0; i < boundaries.length; i++) {
+            boundaries[i] = new ByteMeter(cpuTime);
+        }
+    }
+
+    public int getLastBoundary() {
+        return boundaries.length - 1;
+    }
+
+    public OutputStream wrap(OutputStream out, int boundary) {
+        return new MeteredOutputStream(out, boundaries[boundary]);
+    }
+
+    public InputStream wrap(InputStream in, int boundary) {
+        return new MeteredInputStream(in, boundaries[boundary]);
+    }
+
+    public BufferSink wrap(BufferSink sink, int boundary) {
+        return new MeteredSink(sink, boundaries[boundary]);
+    }
+
+    /**
+     * Wraps the stream the caller writes to (boundary 0); closing it completes the pipeline.
+     */
+    public OutputStream wrapHead(OutputStream out) {
+        return new MeteredOutputStream(out, boundaries[0]) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    complete();
+                }
+            }
+        };
+    }
+
+    /**
+     * Wraps the sink the caller writes to (boundary 0); closing it completes the pipeline.
+     */
+    public BufferSink wrapHead(BufferSink sink) {
+        return new MeteredSink(sink, boundaries[0]) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    complete();
+                }
+            }
+        };
+    }
+
+    /**
+     * Wraps the stream the caller reads from (the last boundary); closing it completes the pipeline.
+     */
+    public InputStream wrapTail(InputStream in) {
+        return new MeteredInputStream(in, boundaries[getLastBoundary()]) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    complete();
+                }
+            }
+        };
+    }
+
+    /**
+     * Reports each stage to {@link CodecMetrics}. Only the first call has any effect.
+     */
+    public void complete() {
+        if (complete) return;
+        complete = true;
+
+        for (int i = 0; i < encodeSpecs.size(); i++) {
+            ByteMeter input = boundaries[i], output = boundaries[i + 1];
+            ByteMeter outer = push ? input : output, inner = push ? output : input;
+            long wallNanos = outer.getNanos() - inner.getNanos();
+            long cpuNanos = outer.isCpuTime() ? outer.getCpuNanos() - inner.getCpuNanos() : -1;
+            metrics.stageComplete(encodeSpecs.get(i), encode, input.getBytes(), output.getBytes(), wallNanos, cpuNanos);
+        }
+    }
+}
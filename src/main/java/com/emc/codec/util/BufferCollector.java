@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.util;
+
+import com.emc.codec.BufferSink;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Collects stage output in a growable buffer so that it can be pulled out by a reader (see {@link PullChannel}).
+ */
+public class BufferCollector implements BufferSink {
+    private ByteBuffer buffer; // always in "write" mode
+    private boolean closed = false;
+
+    public BufferCollector(int initialSize) {
+        buffer = ByteBuffer.allocate(initialSize);
+    }
+
+    @Override
+    public void write(ByteBuffer src) {
+        if (buffer.remaining() < src.remaining()) {
+            int required = buffer.position() + src.remaining();
+            ByteBuffer newBuffer = ByteBuffer.allocate(Math.max(required, buffer.capacity() * 2));
+            buffer.flip();
+            newBuffer.put(buffer);
+            buffer = newBuffer;
+        }
+        buffer.put(src);
+    }
+
+    public boolean hasRemaining() {
+        return buffer.position() > 0;
+    }
+
+    /**
+     * Moves as many collected bytes as will fit into <code>dst</code>.
+     *
+     * @return the number of bytes transferred
+     */
+    public int drainTo(ByteBuffer dst) {
+        buffer.flip();
+        int count = Math.min(buffer.remaining(), dst.remaining());
+        if (count == buffer.remaining()) {
+            dst.put(buffer);
+        } else {
+            ByteBuffer slice = buffer.duplicate();
+            slice.limit(slice.position() + count);
+            dst.put(slice);
+            buffer.position(buffer.position() + count);
+        }
+        buffer.compact();
+        return count;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+}
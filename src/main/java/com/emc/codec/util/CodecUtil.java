@@ -50,7 +50,8 @@ public final class CodecUtil {
     }
 
     /**
-     * Note: you can only search system properties if defaultValue is one of [String, Integer, Long, Float, Double]
+     * Note: you can only search system properties if defaultValue is one of [String, Integer, Long, Float, Double,
+     * Boolean]
      */
     @SuppressWarnings("unchecked")
     public static <T> T getCodecProperty(String propertyName, Map<String, Object> codecProperties, T defaultValue) {
@@ -64,6 +65,7 @@ public final class CodecUtil {
             else if (defaultValue.getClass() == Long.class) return (T) Long.valueOf(systemValue);
             else if (defaultValue.getClass() == Float.class) return (T) Float.valueOf(systemValue);
             else if (defaultValue.getClass() == Double.class) return (T) Double.valueOf(systemValue);
+            else if (defaultValue.getClass() == Boolean.class) return (T) Boolean.valueOf(systemValue);
         }
 
         return defaultValue;
@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.util;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.Signature;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-thread cache of JCE engines (<code>Cipher</code>, <code>MessageDigest</code>, <code>Signature</code>,
+ * <code>Mac</code> and <code>KeyFactory</code>), keyed by algorithm and security provider instance (several
+ * instances may share a name, e.g. PKCS#11 providers for different slots). Each
+ * <code>getInstance</code> call looks up the provider's service, which is expensive with some providers (notably
+ * PKCS#11/NSS in FIPS mode), so instances are borrowed from the calling thread's idle list and returned for reuse.
+ * <p>
+ * Borrowed instances must be returned at most once and not used afterwards (instances that are never returned are
+ * simply garbage collected). An instance may be returned by a different thread than the one that borrowed it; it then
+ * joins that thread's idle list. Digests and MACs are reset when returned; ciphers and signatures must be initialized
+ * by each borrower (which resets them), so a returned cipher keeps a reference to its last key until then. Callers
+ * holding short-lived secret keys should re-initialize the cipher with a throwaway key before returning it, or not
+ * return it (<code>EncryptionCodec</code> does this for object keys).
+ */
+public class JceEngineCache {
+    public static final String PROP_MAX_IDLE = "com.emc.codec.util.JceEngineCache.maxIdle";
+
+    public static final int DEFAULT_MAX_IDLE = 4;
+
+    private static final JceEngineCache instance = new JceEngineCache(
+            CodecUtil.getCodecProperty(PROP_MAX_IDLE, null, DEFAULT_MAX_IDLE));
+
+    /**
+     * The shared cache used by the codecs. Its size (per thread and engine type/algorithm/provider) can be set with the
+     * system property {@link #PROP_MAX_IDLE}.
+     */
+    public static JceEngineCache getInstance() {
+        return instance;
+    }
+
+    private int maxIdle;
+    private ThreadLocal<Map<Provider, Map<String, Deque<Object>>>> idleEngines =
+            new ThreadLocal<Map<Provider, Map<String, Deque<Object>>>>() {
+                @Override
+                protected Map<Provider, Map<String, Deque<Object>>> initialValue() {
+                    return new IdentityHashMap<Provider, Map<String, Deque<Object>>>();
+                }
+            };
+    private AtomicLong createdCount = new AtomicLong();
+    private AtomicLong reusedCount = new AtomicLong();
+
+    /**
+     * @param maxIdle the most instances each thread keeps for reuse per engine type, algorithm and provider. 0
+     *                disables caching.
+     */
+    public JceEngineCache(int maxIdle) {
+        if (maxIdle < 0) throw new IllegalArgumentException("Invalid cache size: " + maxIdle);
+        this.maxIdle = maxIdle;
+    }
+
+    public Cipher borrowCipher(String transformation, Provider provider) throws GeneralSecurityException {
+        Cipher cipher = (Cipher) poll("Cipher", transformation, provider);
+        if (cipher != null) return cipher;
+        createdCount.incrementAndGet();
+        return provider != null ? Cipher.getInstance(transformation, provider) : Cipher.getInstance(transformation);
+    }
+
+    /**
+     * @param transformation must be the transformation the cipher was borrowed with (same for provider)
+     */
+    public void returnCipher(Cipher cipher, String transformation, Provider provider) {
+        offer("Cipher", transformation, provider, cipher);
+    }
+
+    public MessageDigest borrowMessageDigest(String algorithm, Provider provider) throws NoSuchAlgorithmException {
+        MessageDigest digest = (MessageDigest) poll("MessageDigest", algorithm, provider);
+        if (digest != null) return digest;
+        createdCount.incrementAndGet();
+        return provider != null ? MessageDigest.getInstance(algorithm, provider) : MessageDigest.getInstance(algorithm);
+    }
+
+    public void returnMessageDigest(MessageDigest digest, String algorithm, Provider provider) {
+        digest.reset();
+        offer("MessageDigest", algorithm, provider, digest);
+    }
+
+    public Signature borrowSignature(String algorithm, Provider provider) throws NoSuchAlgorithmException {
+        Signature signature = (Signature) poll("Signature", algorithm, provider);
+        if (signature != null) return signature;
+        createdCount.incrementAndGet();
+        return provider != null ? Signature.getInstance(algorithm, provider) : Signature.getInstance(algorithm);
+    }
+
+    public void returnSignature(Signature signature, String algorithm, Provider provider) {
+        offer("Signature", algorithm, provider, signature);
+    }
+
+    public Mac borrowMac(String algorithm, Provider provider) throws NoSuchAlgorithmException {
+        Mac mac = (Mac) poll("Mac", algorithm, provider);
+        if (mac != null) return mac;
+        createdCount.incrementAndGet();
+        return provider != null ? Mac.getInstance(algorithm, provider) : Mac.getInstance(algorithm);
+    }
+
+    public void returnMac(Mac mac, String algorithm, Provider provider) {
+        mac.reset();
+        offer("Mac", algorithm, provider, mac);
+    }
+
+    public KeyFactory borrowKeyFactory(String algorithm, Provider provider) throws NoSuchAlgorithmException {
+        KeyFactory keyFactory = (KeyFactory) poll("KeyFactory", algorithm, provider);
+        if (keyFactory != null) return keyFactory;
+        createdCount.incrementAndGet();
+        return provider != null ? KeyFactory.getInstance(algorithm, provider) : KeyFactory.getInstance(algorithm);
+    }
+
+    public void returnKeyFactory(KeyFactory keyFactory, String algorithm, Provider provider) {
+        offer("KeyFactory", algorithm, provider, keyFactory);
+    }
+
+    /**
+     * Drops the calling thread's idle instances.
+     */
+    public void clear() {
+        idleEngines.remove();
+    }
+
+    public int getMaxIdle() {
+        return maxIdle;
+    }
+
+    /**
+     * @return the number of instances created with <code>getInstance</code>
+     */
+    public long getCreatedCount() {
+        return createdCount.get();
+    }
+
+    /**
+     * @return the number of borrows served by an idle instance
+     */
+    public long getReusedCount() {
+        return reusedCount.get();
+    }
+
+    private Object poll(String type, String algorithm, Provider provider) {
+        if (maxIdle == 0) return null;
+        Map<String, Deque<Object>> providerEngines = idleEngines.get().get(provider);
+        Deque<Object> idle = providerEngines == null ? null : providerEngines.get(type + "/" + algorithm);
+        Object engine = idle == null ? null : idle.poll();
+        if (engine != null) reusedCount.incrementAndGet();
+        return engine;
+    }
+
+    private void offer(String type, String algorithm, Provider provider, Object engine) {
+        if (maxIdle == 0) return;
+        Map<Provider, Map<String, Deque<Object>>> threadEngines = idleEngines.get();
+        Map<String, Deque<Object>> providerEngines = threadEngines.get(provider);
+        if (providerEngines == null) {
+            providerEngines = new HashMap<String, Deque<Object>>();
+            threadEngines.put(provider, providerEngines);
+        }
+        String key = type + "/" + algorithm;
+        Deque<Object> idle = providerEngines.get(key);
+        if (idle == null) {
+            idle = new ArrayDeque<Object>(maxIdle);
+            providerEngines.put(key, idle);
+        }
+        if (idle.size() < maxIdle) idle.push(engine);
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.util;
+
+import com.emc.codec.BufferSink;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Exposes a push-style stage chain as a readable channel. Data is read from the source channel into a (direct) buffer,
+ * pushed through the chain and collected at the tail until the reader asks for it. If the source channel is
+ * non-blocking and has no data available, {@link #read(ByteBuffer)} returns 0.
+ */
+public class PullChannel implements ReadableByteChannel {
+    /**
+     * Turns a push-style output stream filter into an input stream: data read from <code>source</code> is written to
+     * <code>filter</code>, which must write (directly or indirectly) to <code>collector</code>.
+     */
+    public static InputStream newInputStream(InputStream source, OutputStream filter, BufferCollector collector,
+                                             int bufferSize) {
+        return Channels.newInputStream(new PullChannel(Channels.newChannel(source), new OutputStreamSink(filter),
+                collector, bufferSize));
+    }
+
+    private ReadableByteChannel source;
+    private BufferSink head;
+    private BufferCollector collector;
+    private ByteBuffer readBuffer;
+    private boolean eof = false;
+    private boolean open = true;
+
+    /**
+     * @param head      the head of a stage chain that ends with <code>collector</code>
+     * @param collector the tail of the stage chain
+     */
+    public PullChannel(ReadableByteChannel source, BufferSink head, BufferCollector collector, int bufferSize) {
+        this.source = source;
+        this.head = head;
+        this.collector = collector;
+        this.readBuffer = ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!open) throw new ClosedChannelException();
+        while (!collector.hasRemaining()) {
+            if (eof) return -1;
+            readBuffer.clear();
+            int count = source.read(readBuffer);
+            if (count < 0) {
+                eof = true;
+                head.close(); // flushes the chain into the collector
+            } else if (count == 0) {
+                return 0;
+            } else {
+                readBuffer.flip();
+                head.write(readBuffer);
+            }
+        }
+        return collector.drainTo(dst);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!open) return;
+        open = false;
+        try {
+            // the reader is abandoning the rest of the data, so errors from the (incomplete) chain are irrelevant
+            if (!eof) head.close();
+        } catch (IOException e) {
+            // ignore
+        } finally {
+            source.close();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.util;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Discards the first <code>skip</code> bytes of a stream and then returns at most <code>length</code> bytes.
+ * Skipped bytes are read rather than passed to {@link InputStream#skip(long)}, since filter streams such as
+ * <code>CipherInputStream</code> may skip less than requested.
+ */
+public class RangeInputStream extends FilterInputStream {
+    private long skip;
+    private long remaining;
+
+    public RangeInputStream(InputStream in, long skip, long length) {
+        super(in);
+        this.skip = skip;
+        this.remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int c = read(b, 0, 1);
+        return c == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        skipLeading();
+        if (remaining <= 0) return -1;
+        int c = in.read(b, off, (int) Math.min(len, remaining));
+        if (c > 0) remaining -= c;
+        return c;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        skipLeading();
+        long skipped = 0;
+        byte[] buffer = new byte[(int) Math.min(4096, Math.max(n, 1))];
+        while (skipped < n) {
+            int c = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+            if (c == -1) break;
+            skipped += c;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        if (skip > 0) return 0;
+        return (int) Math.min(in.available(), remaining);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    private void skipLeading() throws IOException {
+        if (skip <= 0) return;
+        byte[] buffer = new byte[(int) Math.min(4096, skip)];
+        while (skip > 0) {
+            int c = in.read(buffer, 0, (int) Math.min(buffer.length, skip));
+            if (c == -1) throw new EOFException("stream ended before the start of the range");
+            skip -= c;
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A single-producer/single-consumer byte pipe over a ring buffer. Exactly one thread may write to
+ * {@link #getOutputStream()} and one thread read from {@link #getInputStream()} at a time. Transfers are bulk array
+ * copies; the only synchronization is a volatile position per side, and a side that has to wait parks until the other
+ * side makes progress (no polling).
+ * <p>
+ * Closing the output stream ends the stream for the reader once it has drained the buffer. Closing the input stream
+ * makes further writes fail. {@link #fail(Throwable)} makes all further reads and writes on either side fail with the
+ * given cause, so an error on one side of the pipe is seen right away on the other.
+ */
+public class RingPipe {
+    private final byte[] buffer;
+    private final int mask;
+
+    // each position is only written by its own side
+    private volatile long writePosition = 0;
+    private volatile long readPosition = 0;
+
+    private volatile boolean writerClosed = false;
+    private volatile boolean readerClosed = false;
+    private volatile Throwable error;
+
+    private volatile Thread waitingReader;
+    private volatile Thread waitingWriter;
+
+    private final PipeInputStream inputStream = new PipeInputStream();
+    private final PipeOutputStream outputStream = new PipeOutputStream();
+
+    /**
+     * @param capacity the buffer size (rounded up to a power of two)
+     */
+    public RingPipe(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("capacity must be positive");
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) size <<= 1;
+        buffer = new byte[size];
+        mask = size - 1;
+    }
+
+    public PipeInputStream getInputStream() {
+        return inputStream;
+    }
+
+    public PipeOutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    /**
+     * Fails the pipe; blocked and subsequent reads and writes throw an IOException caused by <code>error</code>.
+     */
+    public void fail(Throwable error) {
+        if (this.error == null) this.error = error;
+        wake(waitingReader);
+        wake(waitingWriter);
+    }
+
+    public int getCapacity() {
+        return buffer.length;
+    }
+
+    private void checkError() throws IOException {
+        Throwable t = error;
+        if (t != null) {
+            if (t instanceof IOException) throw new IOException(t.getMessage(), t);
+            throw new IOException("pipe failed", t);
+        }
+    }
+
+    private void await() throws IOException {
+        LockSupport.park(this);
+        if (Thread.interrupted()) throw new InterruptedIOException("interrupted while waiting on pipe");
+    }
+
+    private static void wake(Thread thread) {
+        if (thread != null) LockSupport.unpark(thread);
+    }
+
+    public class PipeInputStream extends InputStream {
+        private final byte[] single = new byte[1];
+
+        @Override
+        public int read() throws IOException {
+            int c = read(single, 0, 1);
+            return c == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || len > b.length - off) throw new IndexOutOfBoundsException();
+            if (readerClosed) throw new IOException("Pipe closed");
+            if (len == 0) return 0;
+
+            long available;
+            while (true) {
+                checkError();
+                boolean closed = writerClosed; // read before the position, so no data is missed
+                available = writePosition - readPosition;
+                if (available > 0) break;
+                if (closed) return -1;
+
+                waitingReader = Thread.currentThread();
+                try {
+                    if (writePosition == readPosition && !writerClosed && error == null) await();
+                } finally {
+                    waitingReader = null;
+                }
+            }
+
+            int count = (int) Math.min(available, len);
+            int start = (int) (readPosition & mask);
+            int first = Math.min(count, buffer.length - start);
+            System.arraycopy(buffer, start, b, off, first);
+            if (first < count) System.arraycopy(buffer, 0, b, off + first, count - first);
+            readPosition += count;
+
+            wake(waitingWriter);
+            return count;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) (writePosition - readPosition);
+        }
+
+        @Override
+        public void close() {
+            readerClosed = true;
+            wake(waitingWriter);
+        }
+
+        public RingPipe getPipe() {
+            return RingPipe.this;
+        }
+    }
+
+    public class PipeOutputStream extends OutputStream {
+        private final byte[] single = new byte[1];
+
+        @Override
+        public void write(int b) throws IOException {
+            single[0] = (byte) b;
+            write(single, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || len > b.length - off) throw new IndexOutOfBoundsException();
+            if (writerClosed) throw new IOException("Pipe closed");
+
+            while (len > 0) {
+                long free;
+                while (true) {
+                    checkError();
+                    if (readerClosed) throw new IOException("Pipe closed");
+                    free = buffer.length - (writePosition - readPosition);
+                    if (free > 0) break;
+
+                    waitingWriter = Thread.currentThread();
+                    try {
+                        if (writePosition - readPosition == buffer.length && !readerClosed && error == null) await();
+                    } finally {
+                        waitingWriter = null;
+                    }
+                }
+
+                int count = (int) Math.min(free, len);
+                int start = (int) (writePosition & mask);
+                int first = Math.min(count, buffer.length - start);
+                System.arraycopy(b, off, buffer, start, first);
+                if (first < count) System.arraycopy(b, off + first, buffer, 0, count - first);
+                writePosition += count;
+
+                wake(waitingReader);
+                off += count;
+                len -= count;
+            }
+        }
+
+        @Override
+        public void close() {
+            writerClosed = true;
+            wake(waitingReader);
+        }
+
+        public RingPipe getPipe() {
+            return RingPipe.this;
+        }
+    }
+}
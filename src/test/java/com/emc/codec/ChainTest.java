@@ -31,10 +31,12 @@ package com.emc.codec;
 import SevenZip.Compression.LZMA.Encoder;
 import com.emc.codec.compression.CompressionConstants;
 import com.emc.codec.compression.deflate.DeflateCodec;
+import com.emc.codec.compression.deflate.ZlibPool;
 import com.emc.codec.compression.lzma.LzmaCodec;
 import com.emc.codec.compression.lzma.LzmaProfile;
 import com.emc.codec.encryption.EncryptionCodec;
 import com.emc.codec.encryption.EncryptionConstants;
+import com.emc.codec.encryption.EncryptionException;
 import com.emc.codec.encryption.KeyProvider;
 import com.emc.codec.encryption.KeystoreKeyProvider;
 import org.apache.commons.codec.digest.DigestUtils;
@@ -44,10 +46,14 @@ import org.junit.Test;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.InputStream;
 import java.security.KeyStore;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
 
@@ -280,6 +286,144 @@ public class ChainTest {
         });
     }
 
+    @Test
+    public void testTemplate() throws Exception {
+        KeyProvider keyProvider = new KeystoreKeyProvider(getKeystore(), "viprviprvipr".toCharArray(), "masterkey");
+
+        CodecChain chain = new CodecChain(new EncryptionCodec(), new DeflateCodec())
+                .withProperty(EncryptionCodec.PROP_KEY_PROVIDER, keyProvider);
+        final CodecChainTemplate template = chain.toTemplate();
+
+        // changes to the chain must not affect the template
+        chain.getProperties().remove(EncryptionCodec.PROP_KEY_PROVIDER);
+        assertSame(keyProvider, template.getProperties().get(EncryptionCodec.PROP_KEY_PROVIDER));
+        assertEquals(Arrays.asList("COMP:Deflate/5", "ENC:AES/CBC/PKCS5Padding"), template.getEncodeSpecs());
+        try {
+            template.getProperties().put("foo", "bar");
+            fail("template properties should be immutable");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+
+        // share the template across threads
+        final byte[] originalData = TestUtil.getOriginalData();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>();
+            for (int i = 0; i < 16; i++) {
+                futures.add(executor.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws Exception {
+                        Map<String, String> metadata = new HashMap<String, String>();
+                        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+                        TestUtil.copyStream(new ByteArrayInputStream(originalData),
+                                template.getEncodeStream(encoded, metadata), true);
+                        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+                        TestUtil.copyStream(template.getDecodeStream(new ByteArrayInputStream(encoded.toByteArray()),
+                                metadata), decoded, true);
+                        return decoded.toByteArray();
+                    }
+                }));
+            }
+            for (Future<byte[]> future : futures) {
+                assertArrayEquals(originalData, future.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testTemplateValidation() throws Exception {
+        try {
+            new CodecChainTemplate(null, new EncryptionCodec());
+            fail("encryption template without a key provider should be rejected");
+        } catch (EncryptionException e) {
+            // expected
+        }
+
+        try {
+            new CodecChainTemplate(null, "COMP:Deflate/12");
+            fail("invalid compression level should be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        // the caller's list should not be reordered
+        List<AbstractCodec> codecs = new ArrayList<AbstractCodec>();
+        codecs.add(new EncryptionCodec());
+        codecs.add(new LzmaCodec());
+        new CodecChain(codecs, null);
+        assertTrue(codecs.get(0) instanceof EncryptionCodec);
+    }
+
+    @Test
+    public void testRangedDecryption() throws Exception {
+        KeyProvider keyProvider = new KeystoreKeyProvider(getKeystore(), "viprviprvipr".toCharArray(), "masterkey");
+        CodecChain chain = new CodecChain(new EncryptionCodec()).withProperty(EncryptionCodec.PROP_KEY_PROVIDER, keyProvider);
+
+        final byte[] originalData = TestUtil.getOriginalData();
+        Map<String, String> metadata = new HashMap<String, String>();
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        chain.encode(new ByteArrayInputStream(originalData), encoded, metadata);
+        final byte[] encodedData = encoded.toByteArray();
+
+        final long[] fetched = new long[1];
+        RangeSource source = new RangeSource() {
+            @Override
+            public InputStream getRange(long offset, long length) {
+                fetched[0] += length;
+                return new ByteArrayInputStream(encodedData, (int) offset, (int) length);
+            }
+        };
+
+        int size = originalData.length;
+        long[][] ranges = {{0, 4096}, {1, 15}, {16, 16}, {17, 1}, {100000, 4096}, {size - 10, 100}, {size - 1, 1},
+                {5, 0}, {size + 5, 10}, {0, size}};
+        for (long[] range : ranges) {
+            fetched[0] = 0;
+            InputStream rangeStream = chain.getDecodeStream(source, new HashMap<String, String>(metadata), range[0], range[1]);
+            ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+            TestUtil.copyStream(rangeStream, decoded, true);
+
+            int from = (int) Math.min(range[0], size), to = (int) Math.min(range[0] + range[1], size);
+            assertArrayEquals("range " + Arrays.toString(range), Arrays.copyOfRange(originalData, from, to), decoded.toByteArray());
+            assertTrue("fetched too much for " + Arrays.toString(range), fetched[0] <= range[1] + 48);
+        }
+
+        // a source that ends before the IV block is closed
+        final boolean[] closed = new boolean[1];
+        RangeSource truncated = new RangeSource() {
+            @Override
+            public InputStream getRange(long offset, long length) {
+                return new ByteArrayInputStream(new byte[8]) {
+                    @Override
+                    public void close() {
+                        closed[0] = true;
+                    }
+                };
+            }
+        };
+        try {
+            chain.getDecodeStream(truncated, new HashMap<String, String>(metadata), 100000, 4096);
+            fail("truncated range source should fail");
+        } catch (EOFException e) {
+            // expected
+        }
+        assertTrue(closed[0]);
+
+        // stream compression cannot be decoded from the middle
+        chain = new CodecChain(new DeflateCodec(), new EncryptionCodec()).withProperty(EncryptionCodec.PROP_KEY_PROVIDER, keyProvider);
+        metadata = new HashMap<String, String>();
+        chain.encode(new ByteArrayInputStream(originalData), new ByteArrayOutputStream(), metadata);
+        try {
+            chain.getDecodeStream(source, metadata, 0, 10);
+            fail("ranged decode of deflated data should not be supported");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
     protected void testStreams(CodecChain chain, Map<String, String> metadata, EncodeVerifier verifier) throws Exception {
         byte[] originalData = TestUtil.getOriginalData();
         Map<String, String> originalMeta = new HashMap<String, String>();
@@ -330,6 +474,57 @@ public class ChainTest {
         // VERIFY INTEGRITY
         Assert.assertEquals(originalMeta, metadata);
         Assert.assertArrayEquals(originalData, decodedData);
+
+        // TEST SINGLE PASS
+
+        // ENCODE
+        bufferStream = new ByteArrayOutputStream();
+        Assert.assertEquals(originalData.length, chain.encode(TestUtil.getOriginalStream(), bufferStream, metadata));
+
+        encodedData = bufferStream.toByteArray();
+
+        // VERIFY ENCODE
+        verifier.verify(encodedData, metadata);
+
+        // DECODE
+        bufferStream = new ByteArrayOutputStream();
+        Assert.assertEquals(encodedData.length, chain.decode(new ByteArrayInputStream(encodedData), bufferStream, metadata));
+
+        decodedData = bufferStream.toByteArray();
+
+        // VERIFY INTEGRITY
+        Assert.assertEquals(originalMeta, metadata);
+        Assert.assertArrayEquals(originalData, decodedData);
+    }
+
+    @Test
+    public void testSinglePassFailure() throws Exception {
+        ZlibPool.getInstance().clear();
+        final byte[] originalData = TestUtil.getOriginalData();
+        final int failAt = originalData.length / 2;
+        final ByteArrayOutputStream target = new ByteArrayOutputStream();
+        final int[] sizeAtFailure = new int[1];
+        InputStream source = new ByteArrayInputStream(originalData) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                if (pos >= failAt) {
+                    sizeAtFailure[0] = target.size();
+                    throw new RuntimeException("source failed");
+                }
+                return super.read(b, off, Math.min(len, failAt - pos));
+            }
+        };
+
+        try {
+            new CodecChain(DeflateCodec.encodeSpec(7)).encode(source, target, new HashMap<String, String>());
+            fail("the source failure should propagate");
+        } catch (RuntimeException e) {
+            assertEquals("source failed", e.getMessage());
+        }
+
+        // the deflater went back to the pool, but no trailer was written after the partial object
+        assertEquals(1, ZlibPool.getInstance().getIdleDeflaters(7));
+        assertEquals(sizeAtFailure[0], target.size());
     }
 
     protected KeyStore getKeystore() throws Exception {
@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec;
+
+import com.emc.codec.compression.CompressionConstants;
+import com.emc.codec.compression.deflate.DeflateCodec;
+import com.emc.codec.compression.lzma.LzmaCodec;
+import com.emc.codec.encryption.EncryptionCodec;
+import com.emc.codec.encryption.EncryptionConstants;
+import com.emc.codec.encryption.KeyProvider;
+import com.emc.codec.encryption.KeystoreKeyProvider;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.KeyStore;
+import java.util.HashMap;
+import java.util.Map;
+
+public class ChannelTest {
+    @Test
+    public void testDeflate() throws Exception {
+        CodecChain chain = new CodecChain(new DeflateCodec());
+        Assert.assertTrue(chain.isStageSupported());
+
+        byte[] streamEncoded = testChannels(chain);
+
+        // the stage must produce exactly the same bytes as the stream
+        Map<String, String> metadata = new HashMap<String, String>();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        TestUtil.copyStream(TestUtil.getOriginalStream(), chain.getEncodeStream(baos, metadata), true);
+        Assert.assertArrayEquals(baos.toByteArray(), streamEncoded);
+        Assert.assertEquals("223548", metadata.get(CompressionConstants.META_COMPRESSION_COMP_SIZE));
+    }
+
+    @Test
+    public void testEncryption() throws Exception {
+        CodecChain chain = new CodecChain(new EncryptionCodec())
+                .withProperty(EncryptionCodec.PROP_KEY_PROVIDER, getKeyProvider());
+        Assert.assertTrue(chain.isStageSupported());
+
+        Assert.assertEquals(2516128, testChannels(chain).length);
+    }
+
+    @Test
+    public void testDeflateEncryption() throws Exception {
+        CodecChain chain = new CodecChain(new DeflateCodec(), new EncryptionCodec())
+                .withProperty(EncryptionCodec.PROP_KEY_PROVIDER, getKeyProvider());
+        chain.addProperty(EncodeStage.PROP_BUFFER_SIZE, 1000); // force odd chunk boundaries
+        Assert.assertTrue(chain.isStageSupported());
+
+        Assert.assertEquals(223552, testChannels(chain).length);
+    }
+
+    @Test
+    public void testLzmaFallback() throws Exception {
+        CodecChain chain = new CodecChain(LzmaCodec.encodeSpec(2));
+        Assert.assertFalse(chain.isStageSupported());
+
+        Assert.assertEquals(124271, testChannels(chain).length);
+    }
+
+    /**
+     * Encodes with a writable channel of direct buffers, decodes with a readable channel and cross-checks both
+     * directions against the stream API.
+     *
+     * @return the encoded data
+     */
+    protected byte[] testChannels(CodecChain chain) throws Exception {
+        byte[] originalData = TestUtil.getOriginalData();
+
+        // PUSH ENCODE (direct buffers)
+        Map<String, String> metadata = new HashMap<String, String>();
+        ByteArrayOutputStream encodedOut = new ByteArrayOutputStream();
+        WritableByteChannel encodeChannel = chain.getEncodeChannel(Channels.newChannel(encodedOut), metadata);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(7777);
+        for (int offset = 0; offset < originalData.length; offset += buffer.capacity()) {
+            buffer.clear();
+            buffer.put(originalData, offset, Math.min(buffer.capacity(), originalData.length - offset));
+            buffer.flip();
+            Assert.assertEquals(buffer.remaining(), encodeChannel.write(buffer));
+        }
+        encodeChannel.close();
+        byte[] encodedData = encodedOut.toByteArray();
+        Assert.assertEquals("true", metadata.get(CodecChain.META_TRANSFORM_COMPLETE));
+        verifyMetadata(metadata);
+
+        // PULL DECODE
+        Map<String, String> decodeMeta = new HashMap<String, String>(metadata);
+        ReadableByteChannel decodeChannel = chain.getDecodeChannel(
+                Channels.newChannel(new ByteArrayInputStream(encodedData)), decodeMeta);
+        Assert.assertArrayEquals(originalData, readFully(decodeChannel));
+        Assert.assertNull(decodeMeta.get(CodecChain.META_TRANSFORM_MODE));
+
+        // stream decode of channel-encoded data
+        decodeMeta = new HashMap<String, String>(metadata);
+        ByteArrayOutputStream decodedOut = new ByteArrayOutputStream();
+        TestUtil.copyStream(chain.getDecodeStream(new ByteArrayInputStream(encodedData), decodeMeta), decodedOut, true);
+        Assert.assertArrayEquals(originalData, decodedOut.toByteArray());
+
+        // PULL ENCODE
+        metadata = new HashMap<String, String>();
+        ReadableByteChannel encodeIn = chain.getEncodeChannel(Channels.newChannel(TestUtil.getOriginalStream()), metadata);
+        byte[] pulledData = readFully(encodeIn);
+        Assert.assertEquals(encodedData.length, pulledData.length);
+        verifyMetadata(metadata);
+
+        // PUSH DECODE
+        decodedOut = new ByteArrayOutputStream();
+        WritableByteChannel decodeOut = chain.getDecodeChannel(Channels.newChannel(decodedOut), metadata);
+        decodeOut.write(ByteBuffer.wrap(pulledData));
+        decodeOut.close();
+        Assert.assertArrayEquals(originalData, decodedOut.toByteArray());
+
+        return encodedData;
+    }
+
+    private void verifyMetadata(Map<String, String> metadata) {
+        String digest = metadata.get(CompressionConstants.META_COMPRESSION_UNCOMP_SHA1);
+        if (digest == null) digest = metadata.get(EncryptionConstants.META_ENCRYPTION_UNENC_SHA1);
+        Assert.assertEquals("027e997e6b1dfc97b93eb28dc9a6804096d85873", digest);
+        if (metadata.containsKey(EncryptionConstants.META_ENCRYPTION_IV))
+            Assert.assertNotNull(metadata.get(EncryptionConstants.META_ENCRYPTION_META_SIG));
+    }
+
+    private byte[] readFully(ReadableByteChannel channel) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ByteBuffer buffer = ByteBuffer.allocate(5000);
+        while (channel.read(buffer) != -1) {
+            buffer.flip();
+            baos.write(buffer.array(), 0, buffer.limit());
+            buffer.clear();
+        }
+        channel.close();
+        return baos.toByteArray();
+    }
+
+    private KeyProvider getKeyProvider() throws Exception {
+        KeyStore keystore = KeyStore.getInstance("jks");
+        InputStream in = this.getClass().getClassLoader().getResourceAsStream("keystore.jks");
+        Assume.assumeNotNull(in);
+        keystore.load(in, "viprviprvipr".toCharArray());
+        return new KeystoreKeyProvider(keystore, "viprviprvipr".toCharArray(), "masterkey");
+    }
+}
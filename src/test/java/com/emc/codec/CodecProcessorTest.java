@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec;
+
+import com.emc.codec.compression.deflate.DeflateCodec;
+import com.emc.codec.compression.lzma.LzmaCodec;
+import com.emc.codec.encryption.EncryptionCodec;
+import com.emc.codec.encryption.KeystoreKeyProvider;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.KeyStore;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class CodecProcessorTest {
+    @Test
+    public void testDeflateEncryption() throws Exception {
+        KeyStore keystore = KeyStore.getInstance("jks");
+        InputStream in = this.getClass().getClassLoader().getResourceAsStream("keystore.jks");
+        Assume.assumeNotNull(in);
+        keystore.load(in, "viprviprvipr".toCharArray());
+
+        testRoundTrip(new CodecChain(new DeflateCodec(), new EncryptionCodec()).withProperty(
+                EncryptionCodec.PROP_KEY_PROVIDER, new KeystoreKeyProvider(keystore, "viprviprvipr".toCharArray(), "masterkey")));
+    }
+
+    @Test
+    public void testLzmaFallback() throws Exception {
+        testRoundTrip(new CodecChain(LzmaCodec.encodeSpec(2)));
+    }
+
+    @Test
+    public void testThreadedLzmaFallback() throws Exception {
+        // the coder threads write to the processor's tail while the caller waits on them
+        testRoundTrip(new CodecChain(LzmaCodec.encodeSpec(2)).withProperty(LzmaCodec.PROP_INLINE, false));
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        CodecProcessor processor = new CodecChain(new DeflateCodec()).getEncodeProcessor(new HashMap<String, String>());
+        ArrayPublisher publisher = new ArrayPublisher(TestUtil.getOriginalData(), 1000, null);
+        publisher.subscribe(processor);
+        CollectingSubscriber subscriber = new CollectingSubscriber(1, false);
+        processor.subscribe(subscriber);
+
+        assertEquals(1, subscriber.received);
+        subscriber.subscription.cancel();
+        assertTrue(publisher.cancelled);
+        assertTrue(processor.getMetadataFuture().isCancelled());
+    }
+
+    @Test
+    public void testOffThreadTailWrite() throws Exception {
+        final CodecProcessor processor = new CodecProcessor(new HashMap<String, String>(), 100);
+        CollectingSubscriber subscriber = new CollectingSubscriber(Long.MAX_VALUE, false);
+        processor.subscribe(subscriber);
+
+        // a stream fallback writes from its own thread while the caller holds the processor lock (inside onNext)
+        final byte[] data = TestUtil.getOriginalData();
+        final Throwable[] coderError = new Throwable[1];
+        Thread coder = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    BufferSink tail = processor.getTail();
+                    for (int offset = 0; offset < data.length; offset += 333) {
+                        tail.write(ByteBuffer.wrap(data, offset, Math.min(333, data.length - offset)));
+                    }
+                    tail.close();
+                } catch (Throwable t) {
+                    coderError[0] = t;
+                }
+            }
+        };
+        synchronized (processor) {
+            coder.start();
+            coder.join(30000);
+            assertFalse("the tail must not wait for the processor lock", coder.isAlive());
+        }
+        assertNull(coderError[0]);
+
+        // the output is emitted by the next drain
+        subscriber.subscription.request(1);
+        assertNull(subscriber.error);
+        assertEquals((data.length + 99) / 100, subscriber.received);
+        assertArrayEquals(data, subscriber.data.toByteArray());
+    }
+
+    private void testRoundTrip(CodecChain chain) throws Exception {
+        byte[] originalData = TestUtil.getOriginalData();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // ENCODE (upstream delivers on another thread)
+            Map<String, String> metadata = new HashMap<String, String>();
+            CodecProcessor encoder = chain.getEncodeProcessor(metadata);
+            new ArrayPublisher(originalData, 7777, executor).subscribe(encoder);
+            CollectingSubscriber encoded = new CollectingSubscriber(Long.MAX_VALUE, false);
+            encoder.subscribe(encoded);
+
+            assertSame(metadata, encoder.getMetadataFuture().get(30, TimeUnit.SECONDS));
+            encoded.await();
+            assertNull(encoded.error);
+            assertEquals("true", metadata.get(CodecChain.META_TRANSFORM_COMPLETE));
+
+            // must match the stream API
+            ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+            TestUtil.copyStream(chain.getDecodeStream(new ByteArrayInputStream(encoded.data.toByteArray()),
+                    new HashMap<String, String>(metadata)), decoded, true);
+            assertArrayEquals(originalData, decoded.toByteArray());
+
+            // DECODE (downstream requests one buffer at a time)
+            CodecProcessor decoder = chain.getDecodeProcessor(metadata);
+            new ArrayPublisher(encoded.data.toByteArray(), 5000, executor).subscribe(decoder);
+            CollectingSubscriber decodedSubscriber = new CollectingSubscriber(1, true);
+            decoder.subscribe(decodedSubscriber);
+
+            decoder.getMetadataFuture().get(30, TimeUnit.SECONDS);
+            decodedSubscriber.await();
+            assertNull(decodedSubscriber.error);
+            assertArrayEquals(originalData, decodedSubscriber.data.toByteArray());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Publishes slices of an array on request (on <code>executor</code> if one is set).
+     */
+    private static class ArrayPublisher implements BufferPublisher {
+        private byte[] data;
+        private int sliceSize;
+        private Executor executor;
+        private int position = 0;
+        volatile boolean cancelled = false;
+
+        ArrayPublisher(byte[] data, int sliceSize, Executor executor) {
+            this.data = data;
+            this.sliceSize = sliceSize;
+            this.executor = executor;
+        }
+
+        @Override
+        public void subscribe(final BufferSubscriber subscriber) {
+            subscriber.onSubscribe(new BufferSubscription() {
+                @Override
+                public void request(final long n) {
+                    Runnable emit = new Runnable() {
+                        @Override
+                        public void run() {
+                            for (long i = 0; i < n && !cancelled; i++) {
+                                if (position >= data.length) {
+                                    subscriber.onComplete();
+                                    return;
+                                }
+                                int count = Math.min(sliceSize, data.length - position);
+                                ByteBuffer buffer = ByteBuffer.wrap(data, position, count);
+                                position += count;
+                                subscriber.onNext(buffer);
+                            }
+                        }
+                    };
+                    if (executor == null) emit.run();
+                    else executor.execute(emit);
+                }
+
+                @Override
+                public void cancel() {
+                    cancelled = true;
+                }
+            });
+        }
+    }
+
+    /**
+     * Requests <code>batch</code> buffers at a time (only the first batch unless <code>more</code> is set).
+     */
+    private static class CollectingSubscriber implements BufferSubscriber {
+        private long batch;
+        private boolean more;
+        private long outstanding;
+        BufferSubscription subscription;
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        int received = 0;
+        volatile Throwable error;
+        private CountDownLatch latch = new CountDownLatch(1);
+
+        CollectingSubscriber(long batch, boolean more) {
+            this.batch = batch;
+            this.more = more;
+        }
+
+        @Override
+        public void onSubscribe(BufferSubscription subscription) {
+            this.subscription = subscription;
+            outstanding = batch;
+            subscription.request(batch);
+        }
+
+        @Override
+        public void onNext(ByteBuffer buffer) {
+            received++;
+            data.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            if (--outstanding == 0 && more) {
+                outstanding = batch;
+                subscription.request(batch);
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            error = t;
+            latch.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            latch.countDown();
+        }
+
+        void await() throws InterruptedException {
+            assertTrue("timed out", latch.await(30, TimeUnit.SECONDS));
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec;
+
+import com.emc.codec.compression.deflate.BlockDeflateCodec;
+import com.emc.codec.compression.deflate.DeflateCodec;
+import com.emc.codec.compression.lz4.Lz4Codec;
+import com.emc.codec.compression.zstd.ZstdCodec;
+import com.emc.codec.compression.lzma.LzmaCodec;
+import com.emc.codec.encryption.EncryptionCodec;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CodecRegistryTest {
+    @Test
+    public void testResolve() {
+        CodecRegistry registry = CodecRegistry.getInstance();
+        Assert.assertEquals(6, registry.getCodecs().size());
+
+        Assert.assertTrue(registry.getCodec(DeflateCodec.encodeSpec(5)) instanceof DeflateCodec);
+        Assert.assertTrue(registry.getCodec(BlockDeflateCodec.encodeSpec(5)) instanceof BlockDeflateCodec);
+        Assert.assertTrue(registry.getCodec(LzmaCodec.encodeSpec(9)) instanceof LzmaCodec);
+        Assert.assertTrue(registry.getCodec(Lz4Codec.encodeSpec(5)) instanceof Lz4Codec);
+        Assert.assertTrue(registry.getCodec(ZstdCodec.encodeSpec(19)) instanceof ZstdCodec);
+        Assert.assertTrue(registry.getCodec(new EncryptionCodec().getDefaultEncodeSpec()) instanceof EncryptionCodec);
+
+        // resolution is memoized, so the same (shared) instance is returned every time
+        Assert.assertSame(registry.getCodec("COMP:Deflate/5"), registry.getCodec("COMP:Deflate/5"));
+        Assert.assertSame(registry.getCodec("COMP:Deflate/5"), registry.getCodec("COMP:Deflate/9"));
+    }
+
+    @Test
+    public void testUnsupported() {
+        CodecRegistry registry = CodecRegistry.getInstance();
+        Assert.assertNull(registry.getCodec("COMP:BZip2/2"));
+        Assert.assertNull(registry.getCodec("ENC:Foo/Bar/Baz"));
+        Assert.assertNull(registry.getCodec("SomethingCrazy"));
+        // negative results are cached too
+        Assert.assertFalse(registry.isSupported("ENC:Foo/Bar/Baz"));
+
+        try {
+            new CodecChain("COMP:BZip2/2");
+            Assert.fail("unsupported spec should be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testChainFromSpecs() {
+        CodecChain chain = new CodecChain("COMP:Deflate/3", "ENC:AES/CBC/PKCS5Padding");
+        Assert.assertFalse(chain.isSizePredictable());
+
+        chain = new CodecChain(new CodecRegistry(getClass().getClassLoader()), "ENC:AES/CBC/PKCS5Padding");
+        Assert.assertTrue(chain.isSizePredictable());
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package com.emc.codec;
+
+import com.emc.codec.encryption.BasicKeyProvider;
+import com.emc.codec.encryption.EncryptionCodec;
+import com.emc.codec.encryption.EncryptionUtil;
+import com.emc.codec.util.JceEngineCache;
+import org.junit.Test;
+
+import javax.crypto.Cipher;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.MessageDigestSpi;
+import java.security.Provider;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class JceEngineCacheTest {
+    @Test
+    public void testReuse() throws Exception {
+        final JceEngineCache cache = new JceEngineCache(2);
+        Cipher cipher = cache.borrowCipher("AES/CBC/PKCS5Padding", null);
+        Cipher cipher2 = cache.borrowCipher("AES/CBC/PKCS5Padding", null);
+        assertNotSame(cipher, cipher2);
+        cache.returnCipher(cipher, "AES/CBC/PKCS5Padding", null);
+        cache.returnCipher(cipher2, "AES/CBC/PKCS5Padding", null);
+        assertEquals(2, cache.getCreatedCount());
+
+        // other algorithms don't share instances
+        Cipher ecbCipher = cache.borrowCipher("AES/ECB/PKCS5Padding", null);
+        assertNotSame(cipher, ecbCipher);
+        assertNotSame(cipher2, ecbCipher);
+
+        Cipher reused = cache.borrowCipher("AES/CBC/PKCS5Padding", null);
+        assertTrue(reused == cipher || reused == cipher2);
+        assertEquals(1, cache.getReusedCount());
+
+        // other threads have their own idle instances
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Cipher otherCipher = executor.submit(new Callable<Cipher>() {
+                @Override
+                public Cipher call() throws Exception {
+                    return cache.borrowCipher("AES/CBC/PKCS5Padding", null);
+                }
+            }).get();
+            assertNotSame(cipher, otherCipher);
+            assertNotSame(cipher2, otherCipher);
+        } finally {
+            executor.shutdown();
+        }
+
+        // returned digests are reset
+        MessageDigest digest = cache.borrowMessageDigest("SHA1", null);
+        digest.update("garbage".getBytes("UTF-8"));
+        cache.returnMessageDigest(digest, "SHA1", null);
+        digest = cache.borrowMessageDigest("SHA1", null);
+        assertArrayEquals(MessageDigest.getInstance("SHA1").digest(), digest.digest());
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        JceEngineCache cache = new JceEngineCache(0);
+        MessageDigest digest = cache.borrowMessageDigest("SHA1", null);
+        cache.returnMessageDigest(digest, "SHA1", null);
+        assertNotSame(digest, cache.borrowMessageDigest("SHA1", null));
+        assertEquals(0, cache.getReusedCount());
+    }
+
+    @Test
+    public void testProviderInstances() throws Exception {
+        // e.g. PKCS#11 providers for different slots have the same name
+        JceEngineCache cache = new JceEngineCache(2);
+        Provider provider1 = new TestProvider(), provider2 = new TestProvider();
+        MessageDigest digest = cache.borrowMessageDigest("Test", provider1);
+        assertSame(provider1, digest.getProvider());
+        cache.returnMessageDigest(digest, "Test", provider1);
+
+        MessageDigest digest2 = cache.borrowMessageDigest("Test", provider2);
+        assertNotSame(digest, digest2);
+        assertSame(provider2, digest2.getProvider());
+        assertSame(digest, cache.borrowMessageDigest("Test", provider1));
+    }
+
+    @Test
+    public void testCodecReuse() throws Exception {
+        Properties keyprops = new Properties();
+        keyprops.load(getClass().getClassLoader().getResourceAsStream("keys.properties"));
+        KeyPair masterKey = EncryptionUtil.rsaKeyPairFromBase64(keyprops.getProperty("masterkey.public"),
+                keyprops.getProperty("masterkey.private"));
+        CodecChain chain = new CodecChain("COMP:Deflate/5", new EncryptionCodec().getDefaultEncodeSpec())
+                .withProperty(EncryptionCodec.PROP_KEY_PROVIDER, new BasicKeyProvider(masterKey));
+        byte[] data = "The quick brown fox jumps over the lazy dog".getBytes("UTF-8");
+
+        roundTrip(chain, data); // warm up this thread's engines
+        long created = JceEngineCache.getInstance().getCreatedCount();
+        for (int i = 0; i < 5; i++) {
+            assertArrayEquals(data, roundTrip(chain, data));
+        }
+        assertEquals(created, JceEngineCache.getInstance().getCreatedCount());
+    }
+
+    private byte[] roundTrip(CodecChain chain, byte[] data) throws Exception {
+        Map<String, String> metadata = new HashMap<String, String>();
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        OutputStream encodeStream = chain.getEncodeStream(encoded, metadata);
+        encodeStream.write(data);
+        encodeStream.close();
+
+        InputStream decodeStream = chain.getDecodeStream(new ByteArrayInputStream(encoded.toByteArray()), metadata);
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        TestUtil.copyStream(decodeStream, decoded, true);
+        return decoded.toByteArray();
+    }
+
+    public static class TestProvider extends Provider {
+        public TestProvider() {
+            super("Test", 1.0, "test provider");
+            put("MessageDigest.Test", TestDigest.class.getName());
+        }
+    }
+
+    public static class TestDigest extends MessageDigestSpi {
+        @Override
+        protected void engineUpdate(byte input) {
+        }
+
+        @Override
+        protected void engineUpdate(byte[] input, int offset, int len) {
+        }
+
+        @Override
+        protected byte[] engineDigest() {
+            return new byte[0];
+        }
+
+        @Override
+        protected void engineReset() {
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec;
+
+import com.emc.codec.util.RingPipe;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class RingPipeTest {
+    @Test
+    public void testTransfer() throws Exception {
+        final byte[] data = new byte[1024 * 1024 + 17];
+        new Random(42).nextBytes(data);
+        final RingPipe pipe = new RingPipe(1000); // rounded to 1024, so transfers wrap around
+        Assert.assertEquals(1024, pipe.getCapacity());
+
+        final AtomicReference<Throwable> writeError = new AtomicReference<Throwable>();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    OutputStream out = pipe.getOutputStream();
+                    Random random = new Random();
+                    int offset = 0;
+                    while (offset < data.length) {
+                        int len = Math.min(random.nextInt(3000), data.length - offset);
+                        if (len == 1) out.write(data[offset]);
+                        else out.write(data, offset, len);
+                        offset += len;
+                    }
+                    out.close();
+                } catch (Throwable t) {
+                    writeError.set(t);
+                }
+            }
+        });
+        writer.start();
+
+        InputStream in = pipe.getInputStream();
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        byte[] buffer = new byte[777];
+        int c;
+        while ((c = in.read(buffer)) != -1) {
+            received.write(buffer, 0, c);
+            int b = in.read();
+            if (b == -1) break;
+            received.write(b);
+        }
+        writer.join();
+
+        Assert.assertNull(writeError.get());
+        Assert.assertArrayEquals(data, received.toByteArray());
+        Assert.assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void testReaderClose() throws Exception {
+        RingPipe pipe = new RingPipe(16);
+        pipe.getOutputStream().write(new byte[16]);
+        pipe.getInputStream().close();
+        try {
+            pipe.getOutputStream().write(1);
+            Assert.fail("write to a pipe closed by the reader should fail");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testFailWakesReader() throws Exception {
+        final RingPipe pipe = new RingPipe(16);
+        final Exception error = new Exception("coder failed");
+        Thread failer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                pipe.fail(error);
+            }
+        });
+        failer.start();
+
+        long start = System.nanoTime();
+        try {
+            pipe.getInputStream().read();
+            Assert.fail("read from a failed pipe should fail");
+        } catch (IOException e) {
+            Assert.assertSame(error, e.getCause());
+        }
+        // woken right away, not on a polling interval
+        Assert.assertTrue(System.nanoTime() - start < 500000000L);
+        failer.join();
+    }
+}
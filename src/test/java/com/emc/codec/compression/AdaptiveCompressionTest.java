@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.compression;
+
+import com.emc.codec.CodecChain;
+import com.emc.codec.TestUtil;
+import com.emc.codec.compression.deflate.DeflateCodec;
+import com.emc.codec.compression.lzma.LzmaCodec;
+import com.emc.codec.encryption.EncryptionCodec;
+import com.emc.codec.encryption.KeystoreKeyProvider;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class AdaptiveCompressionTest {
+    private static byte[] randomData(int size) {
+        byte[] data = new byte[size];
+        new Random(42).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void testIsCompressible() throws Exception {
+        byte[] text = TestUtil.getOriginalData();
+        assertTrue(CompressionUtil.isCompressible(text, 0, 64 * 1024));
+
+        byte[] random = randomData(64 * 1024);
+        assertFalse(CompressionUtil.isCompressible(random, 0, random.length));
+
+        // JPEG magic with otherwise compressible content
+        byte[] jpeg = text.clone();
+        jpeg[0] = (byte) 0xff;
+        jpeg[1] = (byte) 0xd8;
+        jpeg[2] = (byte) 0xff;
+        assertFalse(CompressionUtil.isCompressible(jpeg, 0, 64 * 1024));
+
+        // too small to judge
+        assertTrue(CompressionUtil.isCompressible(random, 0, 100));
+    }
+
+    @Test
+    public void testBypass() throws Exception {
+        testBypass(new CodecChain(new DeflateCodec()));
+        testBypass(new CodecChain(new LzmaCodec()));
+    }
+
+    private void testBypass(CodecChain chain) throws Exception {
+        chain.addProperty(CompressionUtil.PROP_ADAPTIVE, true);
+        byte[] originalData = randomData(300000);
+
+        // push
+        Map<String, String> metadata = new HashMap<String, String>();
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        TestUtil.copyStream(new ByteArrayInputStream(originalData), chain.getEncodeStream(encoded, metadata), true);
+        assertArrayEquals(originalData, encoded.toByteArray());
+        assertNull(metadata.get(CodecChain.META_TRANSFORM_MODE));
+        assertNull(metadata.get(CompressionConstants.META_COMPRESSION_UNCOMP_SHA1));
+        assertEquals("true", metadata.get(CodecChain.META_TRANSFORM_COMPLETE));
+
+        // pull
+        Map<String, String> pullMetadata = new HashMap<String, String>();
+        encoded = new ByteArrayOutputStream();
+        TestUtil.copyStream(chain.getEncodeStream(new ByteArrayInputStream(originalData), pullMetadata), encoded, true);
+        assertArrayEquals(originalData, encoded.toByteArray());
+        assertEquals(metadata, pullMetadata);
+
+        // decoding is a no-op
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        TestUtil.copyStream(chain.getDecodeStream(new ByteArrayInputStream(originalData), metadata), decoded, true);
+        assertArrayEquals(originalData, decoded.toByteArray());
+    }
+
+    @Test
+    public void testCompressible() throws Exception {
+        byte[] originalData = TestUtil.getOriginalData();
+        CodecChain plain = new CodecChain(new DeflateCodec());
+        CodecChain adaptive = new CodecChain(new DeflateCodec()).withProperty(CompressionUtil.PROP_ADAPTIVE, true);
+
+        Map<String, String> metadata = new HashMap<String, String>();
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        plain.encode(new ByteArrayInputStream(originalData), encoded, metadata);
+        byte[] encodedData = encoded.toByteArray();
+
+        // output and metadata are identical to non-adaptive compression (single-pass, push and pull)
+        Map<String, String> adaptiveMeta = new HashMap<String, String>();
+        encoded = new ByteArrayOutputStream();
+        adaptive.encode(new ByteArrayInputStream(originalData), encoded, adaptiveMeta);
+        assertArrayEquals(encodedData, encoded.toByteArray());
+        assertEquals(metadata, adaptiveMeta);
+
+        adaptiveMeta = new HashMap<String, String>();
+        encoded = new ByteArrayOutputStream();
+        TestUtil.copyStream(new ByteArrayInputStream(originalData), adaptive.getEncodeStream(encoded, adaptiveMeta), true);
+        assertArrayEquals(encodedData, encoded.toByteArray());
+        assertEquals(metadata, adaptiveMeta);
+
+        adaptiveMeta = new HashMap<String, String>();
+        encoded = new ByteArrayOutputStream();
+        TestUtil.copyStream(adaptive.getEncodeStream(new ByteArrayInputStream(originalData), adaptiveMeta), encoded, true);
+        assertArrayEquals(encodedData, encoded.toByteArray());
+        assertEquals(metadata, adaptiveMeta);
+    }
+
+    @Test
+    public void testBypassWithEncryption() throws Exception {
+        KeyStore keystore = KeyStore.getInstance("jks");
+        InputStream in = this.getClass().getClassLoader().getResourceAsStream("keystore.jks");
+        Assume.assumeNotNull(in);
+        keystore.load(in, "viprviprvipr".toCharArray());
+
+        CodecChain chain = new CodecChain(new DeflateCodec(), new EncryptionCodec())
+                .withProperty(EncryptionCodec.PROP_KEY_PROVIDER,
+                        new KeystoreKeyProvider(keystore, "viprviprvipr".toCharArray(), "masterkey"))
+                .withProperty(CompressionUtil.PROP_ADAPTIVE, true);
+
+        byte[] originalData = randomData(300000);
+        Map<String, String> metadata = new HashMap<String, String>();
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        chain.encode(new ByteArrayInputStream(originalData), encoded, metadata);
+        assertEquals("ENC:AES/CBC/PKCS5Padding", metadata.get(CodecChain.META_TRANSFORM_MODE));
+        assertNull(metadata.get(CompressionConstants.META_COMPRESSION_UNCOMP_SHA1));
+
+        // the full chain can still decode it
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        TestUtil.copyStream(chain.getDecodeStream(new ByteArrayInputStream(encoded.toByteArray()), metadata), decoded, true);
+        assertArrayEquals(originalData, decoded.toByteArray());
+    }
+
+    @Test
+    public void testMismatchedChain() throws Exception {
+        KeyStore keystore = KeyStore.getInstance("jks");
+        InputStream in = this.getClass().getClassLoader().getResourceAsStream("keystore.jks");
+        Assume.assumeNotNull(in);
+        keystore.load(in, "viprviprvipr".toCharArray());
+        KeystoreKeyProvider keyProvider = new KeystoreKeyProvider(keystore, "viprviprvipr".toCharArray(), "masterkey");
+        byte[] originalData = randomData(300000);
+
+        // a compression-only chain must not skip over encryption
+        Map<String, String> encryptedMeta = new HashMap<String, String>();
+        new CodecChain(new EncryptionCodec()).withProperty(EncryptionCodec.PROP_KEY_PROVIDER, keyProvider)
+                .encode(new ByteArrayInputStream(originalData), new ByteArrayOutputStream(), encryptedMeta);
+        try {
+            new CodecChain(new DeflateCodec()).withProperty(CompressionUtil.PROP_ADAPTIVE, true)
+                    .getDecodeStream(new ByteArrayInputStream(new byte[0]), encryptedMeta);
+            fail("a [Deflate] chain should not decode an encrypted object");
+        } catch (RuntimeException e) {
+            // expected
+        }
+
+        // encryption is never optional, even next to a bypassed compression codec
+        Map<String, String> plainMeta = new HashMap<String, String>();
+        new CodecChain(new DeflateCodec()).withProperty(CompressionUtil.PROP_ADAPTIVE, true)
+                .encode(new ByteArrayInputStream(originalData), new ByteArrayOutputStream(), plainMeta);
+        assertNull(plainMeta.get(CodecChain.META_TRANSFORM_MODE));
+        CodecChain fullChain = new CodecChain(new DeflateCodec(), new EncryptionCodec())
+                .withProperty(EncryptionCodec.PROP_KEY_PROVIDER, keyProvider)
+                .withProperty(CompressionUtil.PROP_ADAPTIVE, true);
+        try {
+            fullChain.getDecodeStream(new ByteArrayInputStream(originalData), plainMeta);
+            fail("a [Deflate, AES] chain should not decode an unencrypted object");
+        } catch (RuntimeException e) {
+            // expected
+        }
+
+        // same for a compressed, unencrypted object
+        Map<String, String> compressedMeta = new HashMap<String, String>();
+        new CodecChain(new DeflateCodec())
+                .encode(new ByteArrayInputStream(originalData), new ByteArrayOutputStream(), compressedMeta);
+        try {
+            fullChain.getDecodeStream(new ByteArrayInputStream(new byte[0]), compressedMeta);
+            fail("a [Deflate, AES] chain should not decode an unencrypted object");
+        } catch (RuntimeException e) {
+            // expected
+        }
+    }
+}
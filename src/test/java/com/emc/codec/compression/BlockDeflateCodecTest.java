@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.compression;
+
+import com.emc.codec.CodecChain;
+import com.emc.codec.RangeSource;
+import com.emc.codec.TestUtil;
+import com.emc.codec.compression.deflate.BlockDeflateCodec;
+import com.emc.codec.encryption.EncryptionCodec;
+import com.emc.codec.encryption.KeystoreKeyProvider;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class BlockDeflateCodecTest {
+    @Test
+    public void testEncodeDecode() throws Exception {
+        byte[] originalData = TestUtil.getOriginalData();
+        CodecChain chain = new CodecChain(BlockDeflateCodec.encodeSpec(5))
+                .withProperty(BlockDeflateCodec.PROP_BLOCK_SIZE, 100000);
+
+        // push
+        Map<String, String> metadata = new HashMap<String, String>();
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        TestUtil.copyStream(new ByteArrayInputStream(originalData), chain.getEncodeStream(encoded, metadata), true);
+        byte[] encodedData = encoded.toByteArray();
+
+        assertEquals("COMP:BlockDeflate/5", metadata.get(CodecChain.META_TRANSFORM_MODE));
+        assertEquals("100000", metadata.get(CompressionConstants.META_COMPRESSION_BLOCK_SIZE));
+        assertEquals("027e997e6b1dfc97b93eb28dc9a6804096d85873",
+                metadata.get(CompressionConstants.META_COMPRESSION_UNCOMP_SHA1));
+        assertEquals(originalData.length, Long.parseLong(metadata.get(CompressionConstants.META_COMPRESSION_UNCOMP_SIZE)));
+        assertEquals(encodedData.length, Long.parseLong(metadata.get(CompressionConstants.META_COMPRESSION_COMP_SIZE)));
+
+        // pull
+        Map<String, String> pullMetadata = new HashMap<String, String>();
+        encoded = new ByteArrayOutputStream();
+        TestUtil.copyStream(chain.getEncodeStream(new ByteArrayInputStream(originalData), pullMetadata), encoded, true);
+        assertArrayEquals(encodedData, encoded.toByteArray());
+        assertEquals(metadata, pullMetadata);
+
+        // decode both ways
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        TestUtil.copyStream(chain.getDecodeStream(new ByteArrayInputStream(encodedData),
+                new HashMap<String, String>(metadata)), decoded, true);
+        assertArrayEquals(originalData, decoded.toByteArray());
+
+        decoded = new ByteArrayOutputStream();
+        TestUtil.copyStream(new ByteArrayInputStream(encodedData),
+                chain.getDecodeStream(decoded, new HashMap<String, String>(metadata)), true);
+        assertArrayEquals(originalData, decoded.toByteArray());
+
+        // truncated data
+        OutputStream decodeStream = chain.getDecodeStream(new ByteArrayOutputStream(), new HashMap<String, String>(metadata));
+        decodeStream.write(encodedData, 0, encodedData.length / 2);
+        try {
+            decodeStream.close();
+            fail("truncated data should fail to decode");
+        } catch (EOFException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testParallel() throws Exception {
+        byte[] originalData = TestUtil.getOriginalData();
+        CodecChain sequential = new CodecChain(BlockDeflateCodec.encodeSpec(5))
+                .withProperty(BlockDeflateCodec.PROP_BLOCK_SIZE, 50000);
+        Map<String, String> metadata = new HashMap<String, String>();
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        sequential.encode(new ByteArrayInputStream(originalData), encoded, metadata);
+        final byte[] encodedData = encoded.toByteArray();
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            CodecChain parallel = new CodecChain(BlockDeflateCodec.encodeSpec(5))
+                    .withProperty(BlockDeflateCodec.PROP_BLOCK_SIZE, 50000)
+                    .withProperty(BlockDeflateCodec.PROP_EXECUTOR, executor)
+                    .withProperty(BlockDeflateCodec.PROP_PARALLELISM, 4);
+
+            // output must be identical to sequential compression (push and pull)
+            Map<String, String> parallelMeta = new HashMap<String, String>();
+            encoded = new ByteArrayOutputStream();
+            TestUtil.copyStream(new ByteArrayInputStream(originalData), parallel.getEncodeStream(encoded, parallelMeta), true);
+            assertArrayEquals(encodedData, encoded.toByteArray());
+            assertEquals(metadata, parallelMeta);
+
+            parallelMeta = new HashMap<String, String>();
+            encoded = new ByteArrayOutputStream();
+            TestUtil.copyStream(parallel.getEncodeStream(new ByteArrayInputStream(originalData), parallelMeta), encoded, true);
+            assertArrayEquals(encodedData, encoded.toByteArray());
+            assertEquals(metadata, parallelMeta);
+
+            // parallel decode of the whole object and of a multi-block range
+            RangeSource source = new RangeSource() {
+                @Override
+                public InputStream getRange(long offset, long length) {
+                    return new ByteArrayInputStream(encodedData, (int) offset, (int) length);
+                }
+            };
+            ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+            TestUtil.copyStream(parallel.getDecodeStream(source, new HashMap<String, String>(metadata), 0, originalData.length),
+                    decoded, true);
+            assertArrayEquals(originalData, decoded.toByteArray());
+
+            decoded = new ByteArrayOutputStream();
+            TestUtil.copyStream(parallel.getDecodeStream(source, new HashMap<String, String>(metadata), 123456, 500000),
+                    decoded, true);
+            assertArrayEquals(Arrays.copyOfRange(originalData, 123456, 623456), decoded.toByteArray());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        CodecChain chain = new CodecChain(BlockDeflateCodec.encodeSpec(5));
+        Map<String, String> metadata = new HashMap<String, String>();
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        chain.getEncodeStream(encoded, metadata).close();
+        assertEquals(0, encoded.size());
+
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        TestUtil.copyStream(chain.getDecodeStream(new ByteArrayInputStream(new byte[0]), metadata), decoded, true);
+        assertEquals(0, decoded.size());
+    }
+
+    @Test
+    public void testRanges() throws Exception {
+        testRanges(new CodecChain(BlockDeflateCodec.encodeSpec(5)));
+    }
+
+    @Test
+    public void testRangesWithEncryption() throws Exception {
+        KeyStore keystore = KeyStore.getInstance("jks");
+        InputStream in = this.getClass().getClassLoader().getResourceAsStream("keystore.jks");
+        Assume.assumeNotNull(in);
+        keystore.load(in, "viprviprvipr".toCharArray());
+
+        testRanges(new CodecChain(new BlockDeflateCodec(), new EncryptionCodec()).withProperty(
+                EncryptionCodec.PROP_KEY_PROVIDER,
+                new KeystoreKeyProvider(keystore, "viprviprvipr".toCharArray(), "masterkey")));
+    }
+
+    private void testRanges(CodecChain chain) throws Exception {
+        chain.addProperty(BlockDeflateCodec.PROP_BLOCK_SIZE, 64 * 1024);
+
+        byte[] originalData = TestUtil.getOriginalData();
+        Map<String, String> metadata = new HashMap<String, String>();
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        chain.encode(new ByteArrayInputStream(originalData), encoded, metadata);
+        final byte[] encodedData = encoded.toByteArray();
+
+        final long[] fetched = new long[1];
+        RangeSource source = new RangeSource() {
+            @Override
+            public InputStream getRange(long offset, long length) {
+                fetched[0] += length;
+                return new ByteArrayInputStream(encodedData, (int) offset, (int) length);
+            }
+        };
+
+        int size = originalData.length, block = 64 * 1024;
+        long[][] ranges = {{0, 4096}, {block - 1, 2}, {block, block}, {1000000, 4096}, {size - 10, 100}, {size - 1, 1},
+                {5, 0}, {size + 5, 10}, {0, size}};
+        for (long[] range : ranges) {
+            fetched[0] = 0;
+            ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+            TestUtil.copyStream(chain.getDecodeStream(source, new HashMap<String, String>(metadata), range[0], range[1]),
+                    decoded, true);
+
+            int from = (int) Math.min(range[0], size), to = (int) Math.min(range[0] + range[1], size);
+            assertArrayEquals("range " + Arrays.toString(range), Arrays.copyOfRange(originalData, from, to),
+                    decoded.toByteArray());
+            if (range[1] <= 4096) // small ranges should only touch one or two blocks
+                assertTrue("fetched " + fetched[0] + " for " + Arrays.toString(range), fetched[0] < encodedData.length / 4);
+        }
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package com.emc.codec.compression;
+
+import com.emc.codec.CodecChain;
+import com.emc.codec.TestUtil;
+import com.emc.codec.compression.deflate.DeflateCodec;
+import com.emc.codec.util.CodecUtil;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class DictionaryCompressionTest {
+    private static final String[] NAMES = {"alice", "bob", "carol", "dave", "erin", "frank", "grace", "heidi"};
+    private static final String[] STATES = {"PENDING", "ACTIVE", "SUSPENDED", "CLOSED"};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testSmallObjects() throws Exception {
+        Random random = new Random(1);
+        DictionaryTrainer trainer = new DictionaryTrainer();
+        for (int i = 0; i < 300; i++) {
+            trainer.addSample(document(random));
+        }
+        CompressionDictionary dictionary = trainer.train();
+        assertTrue(dictionary.getSize() <= DictionaryTrainer.DEFAULT_DICTIONARY_SIZE);
+        assertEquals(CompressionDictionary.contentId(dictionary.getData()), dictionary.getId());
+
+        CodecChain plainChain = new CodecChain(DeflateCodec.encodeSpec(5));
+        CodecChain dictionaryChain = new CodecChain(DeflateCodec.encodeSpec(5))
+                .withProperty(CompressionUtil.PROP_DICTIONARY_STORE, new BasicDictionaryStore(dictionary));
+
+        long plainSize = 0, dictionarySize = 0;
+        for (int i = 0; i < 50; i++) {
+            byte[] document = document(random);
+            Map<String, String> metadata = new HashMap<String, String>();
+            plainSize += encode(plainChain, document, metadata).length;
+            assertNull(metadata.get(CompressionConstants.META_COMPRESSION_DICTIONARY_ID));
+
+            metadata = new HashMap<String, String>();
+            byte[] encoded = encode(dictionaryChain, document, metadata);
+            dictionarySize += encoded.length;
+            assertEquals(dictionary.getId(), metadata.get(CompressionConstants.META_COMPRESSION_DICTIONARY_ID));
+            assertEquals(DeflateCodec.dictionaryEncodeSpec(5), metadata.get(CodecChain.META_TRANSFORM_MODE));
+
+            // push decode
+            ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+            TestUtil.copyStream(new ByteArrayInputStream(encoded),
+                    dictionaryChain.getDecodeStream(decoded, new HashMap<String, String>(metadata)), true);
+            assertArrayEquals(document, decoded.toByteArray());
+
+            // pull decode
+            decoded = new ByteArrayOutputStream();
+            TestUtil.copyStream(dictionaryChain.getDecodeStream(new ByteArrayInputStream(encoded),
+                    new HashMap<String, String>(metadata)), decoded, true);
+            assertArrayEquals(document, decoded.toByteArray());
+        }
+        assertTrue("dictionary should help: " + dictionarySize + " vs " + plainSize, dictionarySize < plainSize * 0.6);
+    }
+
+    @Test
+    public void testStages() throws Exception {
+        Random random = new Random(2);
+        CompressionDictionary dictionary = new DictionaryTrainer().withSamples(documents(random, 100)).train();
+        CodecChain chain = new CodecChain(DeflateCodec.encodeSpec(5))
+                .withProperty(CompressionUtil.PROP_DICTIONARY_STORE, new BasicDictionaryStore(dictionary));
+        byte[] document = document(random);
+
+        // pull encode matches push encode
+        Map<String, String> metadata = new HashMap<String, String>();
+        byte[] encoded = encode(chain, document, metadata);
+        ByteArrayOutputStream pulled = new ByteArrayOutputStream();
+        TestUtil.copyStream(chain.getEncodeStream(new ByteArrayInputStream(document), new HashMap<String, String>()),
+                pulled, true);
+        assertArrayEquals(encoded, pulled.toByteArray());
+
+        // stage encode matches the streams
+        Map<String, String> stageMetadata = new HashMap<String, String>();
+        ByteArrayOutputStream stageEncoded = new ByteArrayOutputStream();
+        WritableByteChannel encodeChannel = chain.getEncodeChannel(Channels.newChannel(stageEncoded), stageMetadata);
+        encodeChannel.write(ByteBuffer.wrap(document));
+        encodeChannel.close();
+        assertArrayEquals(encoded, stageEncoded.toByteArray());
+        assertEquals(dictionary.getId(), stageMetadata.get(CompressionConstants.META_COMPRESSION_DICTIONARY_ID));
+
+        // stage decode
+        ReadableByteChannel decodeChannel = chain.getDecodeChannel(
+                Channels.newChannel(new ByteArrayInputStream(encoded)), metadata);
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        TestUtil.copyStream(Channels.newInputStream(decodeChannel), decoded, true);
+        assertArrayEquals(document, decoded.toByteArray());
+    }
+
+    @Test
+    public void testMissingDictionary() throws Exception {
+        Random random = new Random(3);
+        CompressionDictionary dictionary = new DictionaryTrainer().withSamples(documents(random, 100)).train();
+        CodecChain chain = new CodecChain(DeflateCodec.encodeSpec(5))
+                .withProperty(CompressionUtil.PROP_DICTIONARY_STORE, new BasicDictionaryStore(dictionary));
+        byte[] document = document(random);
+        Map<String, String> metadata = new HashMap<String, String>();
+        byte[] encoded = encode(chain, document, metadata);
+
+        // no store
+        try {
+            new CodecChain(DeflateCodec.encodeSpec(5)).getDecodeStream(new ByteArrayInputStream(encoded),
+                    new HashMap<String, String>(metadata));
+            fail("decoding without a dictionary store should fail");
+        } catch (CompressionException e) {
+            // expected
+        }
+
+        // unknown dictionary
+        try {
+            new CodecChain(DeflateCodec.encodeSpec(5))
+                    .withProperty(CompressionUtil.PROP_DICTIONARY_STORE, new BasicDictionaryStore())
+                    .getDecodeStream(new ByteArrayInputStream(encoded), new HashMap<String, String>(metadata));
+            fail("decoding without the dictionary should fail");
+        } catch (CompressionException e) {
+            // expected
+        }
+
+        // readers that only know the plain subspec (startsWith("Deflate")) must not claim the object
+        String encodeSpec = CodecChain.getEncodeSpecs(metadata)[0];
+        assertFalse(CodecUtil.getEncodeAlgorithm(encodeSpec).startsWith(DeflateCodec.SUBSPEC));
+
+        // dictionary spec without a dictionary ID
+        Map<String, String> noId = new HashMap<String, String>(metadata);
+        noId.remove(CompressionConstants.META_COMPRESSION_DICTIONARY_ID);
+        try {
+            chain.getDecodeStream(new ByteArrayInputStream(encoded), noId);
+            fail("dictionary spec without a dictionary ID should fail");
+        } catch (CompressionException e) {
+            // expected
+        }
+
+        // same ID, different content (zlib checks the dictionary's Adler-32)
+        CompressionDictionary wrong = new CompressionDictionary(dictionary.getId(), "not the dictionary".getBytes());
+        try {
+            TestUtil.copyStream(new CodecChain(DeflateCodec.encodeSpec(5))
+                    .withProperty(CompressionUtil.PROP_DICTIONARY_STORE, new BasicDictionaryStore(wrong))
+                    .getDecodeStream(new ByteArrayInputStream(encoded), new HashMap<String, String>(metadata)),
+                    new ByteArrayOutputStream(), false);
+            fail("decoding with the wrong dictionary should fail");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testDirectoryStore() throws Exception {
+        File directory = folder.newFolder();
+        CompressionDictionary dictionary = new DictionaryTrainer().withSamples(documents(new Random(4), 50)).train();
+        new DirectoryDictionaryStore(directory).saveDictionary(dictionary);
+        assertTrue(new File(directory, dictionary.getId() + DirectoryDictionaryStore.FILE_SUFFIX).isFile());
+
+        DirectoryDictionaryStore store = new DirectoryDictionaryStore(directory);
+        assertNull(store.getCurrentDictionary());
+        assertNull(store.getDictionary("unknown"));
+        CompressionDictionary loaded = store.getDictionary(dictionary.getId());
+        assertArrayEquals(dictionary.getData(), loaded.getData());
+        assertSame(loaded, store.getDictionary(dictionary.getId()));
+
+        assertSame(loaded, store.withCurrentDictionary(dictionary.getId()).getCurrentDictionary());
+
+        try {
+            store.getDictionary("../" + dictionary.getId());
+            fail("path characters should be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testNoCommonContent() throws Exception {
+        Random random = new Random(5);
+        DictionaryTrainer trainer = new DictionaryTrainer();
+        for (int i = 0; i < 10; i++) {
+            byte[] noise = new byte[1000];
+            random.nextBytes(noise);
+            trainer.addSample(noise);
+        }
+        // only k-mer hash collisions can score
+        assertTrue(trainer.train().getSize() < 1000);
+
+        try {
+            new DictionaryTrainer().withSamples("abcdefgh".getBytes(), "12345678".getBytes()).train();
+            fail("samples with nothing in common should fail");
+        } catch (CompressionException e) {
+            // expected
+        }
+    }
+
+    private byte[] encode(CodecChain chain, byte[] data, Map<String, String> metadata) throws IOException {
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        TestUtil.copyStream(new ByteArrayInputStream(data), chain.getEncodeStream(encoded, metadata), true);
+        return encoded.toByteArray();
+    }
+
+    private byte[][] documents(Random random, int count) {
+        byte[][] documents = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            documents[i] = document(random);
+        }
+        return documents;
+    }
+
+    /**
+     * @return a 1-3 KB JSON document with a fixed structure and random values
+     */
+    private byte[] document(Random random) {
+        StringBuilder json = new StringBuilder("{\"schemaVersion\":3,\"account\":{\"id\":\"")
+                .append(Long.toHexString(random.nextLong())).append("\",\"owner\":\"")
+                .append(NAMES[random.nextInt(NAMES.length)]).append("@example.com\",\"status\":\"")
+                .append(STATES[random.nextInt(STATES.length)]).append("\"},\"events\":[");
+        int events = 5 + random.nextInt(15);
+        for (int i = 0; i < events; i++) {
+            if (i > 0) json.append(',');
+            json.append("{\"timestamp\":\"2015-0").append(1 + random.nextInt(9)).append("-1")
+                    .append(random.nextInt(10)).append("T12:").append(10 + random.nextInt(50))
+                    .append(":00Z\",\"type\":\"").append(random.nextBoolean() ? "object.created" : "object.deleted")
+                    .append("\",\"bucket\":\"bucket-").append(random.nextInt(100)).append("\",\"size\":")
+                    .append(random.nextInt(1000000)).append(",\"user\":\"")
+                    .append(NAMES[random.nextInt(NAMES.length)]).append("\"}");
+        }
+        return json.append("]}").toString().getBytes();
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package com.emc.codec.compression;
+
+import com.emc.codec.CodecChain;
+import com.emc.codec.TestUtil;
+import com.emc.codec.compression.lzma.*;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class InlineLzmaTest {
+    @Test
+    public void testChainRoundTrip() throws Exception {
+        assertTrue(LzmaEncoder.isSupported());
+        byte[] originalData = TestUtil.getOriginalData();
+        CodecChain chain = new CodecChain(LzmaCodec.encodeSpec(3));
+        int threads = lzmaThreadCount();
+
+        // push encode
+        Map<String, String> metadata = new HashMap<String, String>();
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        TestUtil.copyStream(new ByteArrayInputStream(originalData), chain.getEncodeStream(encoded, metadata), true);
+
+        // pull encode gives identical output
+        ByteArrayOutputStream encoded2 = new ByteArrayOutputStream();
+        TestUtil.copyStream(chain.getEncodeStream(new ByteArrayInputStream(originalData),
+                new HashMap<String, String>()), encoded2, true);
+        assertArrayEquals(encoded.toByteArray(), encoded2.toByteArray());
+
+        // push decode
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        TestUtil.copyStream(new ByteArrayInputStream(encoded.toByteArray()),
+                chain.getDecodeStream(decoded, new HashMap<String, String>(metadata)), true);
+        assertArrayEquals(originalData, decoded.toByteArray());
+
+        // pull decode
+        decoded = new ByteArrayOutputStream();
+        TestUtil.copyStream(chain.getDecodeStream(new ByteArrayInputStream(encoded.toByteArray()), metadata),
+                decoded, true);
+        assertArrayEquals(originalData, decoded.toByteArray());
+
+        assertEquals(threads, lzmaThreadCount());
+    }
+
+    @Test
+    public void testInlineProperty() throws Exception {
+        LzmaCodec codec = new LzmaCodec();
+        Map<String, Object> properties = new HashMap<String, Object>();
+        OutputStream out = codec.getEncodingStream(new ByteArrayOutputStream(), LzmaCodec.encodeSpec(0), properties);
+        assertTrue(out instanceof InlineLzmaEncodeOutputStream);
+        out.close();
+
+        LzmaCodec.setInline(properties, false);
+        out = codec.getEncodingStream(new ByteArrayOutputStream(), LzmaCodec.encodeSpec(0), properties);
+        assertTrue(out instanceof LzmaEncodeOutputStream);
+        out.close();
+    }
+
+    @Test
+    public void testThreadedCompatibility() throws Exception {
+        byte[] originalData = Arrays.copyOf(TestUtil.getOriginalData(), 512 * 1024);
+
+        // threaded encode, inline decode
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        TestUtil.copyStream(new ByteArrayInputStream(originalData), new LzmaEncodeOutputStream(encoded,
+                LzmaCodec.encodeSpec(5), LzmaProfile.fromCompressionLevel(5), LzmaCodec.DEFAULT_PIPE_BUFFER_SIZE), true);
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        TestUtil.copyStream(new InlineLzmaDecodeInputStream(new ByteArrayInputStream(encoded.toByteArray()),
+                LzmaCodec.DEFAULT_PIPE_BUFFER_SIZE, null), decoded, true);
+        assertArrayEquals(originalData, decoded.toByteArray());
+
+        // inline encode, threaded decode
+        encoded = new ByteArrayOutputStream();
+        TestUtil.copyStream(new InlineLzmaEncodeInputStream(new ByteArrayInputStream(originalData),
+                LzmaCodec.encodeSpec(5), LzmaProfile.fromCompressionLevel(5), LzmaCodec.DEFAULT_PIPE_BUFFER_SIZE,
+                null), encoded, true);
+        decoded = new ByteArrayOutputStream();
+        TestUtil.copyStream(new LzmaDecodeInputStream(new ByteArrayInputStream(encoded.toByteArray()),
+                LzmaCodec.DEFAULT_PIPE_BUFFER_SIZE), decoded, true);
+        assertArrayEquals(originalData, decoded.toByteArray());
+    }
+
+    @Test
+    public void testTruncatedStream() throws Exception {
+        byte[] originalData = Arrays.copyOf(TestUtil.getOriginalData(), 64 * 1024);
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        TestUtil.copyStream(new InlineLzmaEncodeInputStream(new ByteArrayInputStream(originalData),
+                LzmaCodec.encodeSpec(1), LzmaProfile.fromCompressionLevel(1), 4096, null), encoded, true);
+        byte[] truncated = Arrays.copyOf(encoded.toByteArray(), encoded.size() / 2);
+
+        try {
+            TestUtil.copyStream(new InlineLzmaDecodeInputStream(new ByteArrayInputStream(truncated), 4096, null),
+                    new ByteArrayOutputStream(), true);
+            fail("truncated stream should fail");
+        } catch (CompressionException e) {
+            // expected
+        }
+
+        // push decoding only detects truncation on close
+        OutputStream decodeOut = new InlineLzmaDecodeOutputStream(new ByteArrayOutputStream(), 4096, null);
+        TestUtil.copyStream(new ByteArrayInputStream(truncated), decodeOut, false);
+        try {
+            decodeOut.close();
+            fail("truncated stream should fail");
+        } catch (CompressionException e) {
+            // expected
+        }
+    }
+
+    private int lzmaThreadCount() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getThreadGroup() != null && thread.getThreadGroup().getName().startsWith("LZMA")) count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package com.emc.codec.compression;
+
+import com.emc.codec.CodecChain;
+import com.emc.codec.TestUtil;
+import com.emc.codec.compression.lz4.Lz4Block;
+import com.emc.codec.compression.lz4.Lz4BlockDecodingOutputStream;
+import com.emc.codec.compression.lz4.Lz4BlockInputStream;
+import com.emc.codec.compression.lz4.Lz4Codec;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class Lz4CodecTest {
+    @Test
+    public void testEncodeDecode() throws Exception {
+        byte[] originalData = TestUtil.getOriginalData();
+        CodecChain chain = new CodecChain(Lz4Codec.encodeSpec(5));
+
+        // push encode
+        Map<String, String> metadata = new HashMap<String, String>();
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        TestUtil.copyStream(new ByteArrayInputStream(originalData), chain.getEncodeStream(encoded, metadata), true);
+        assertEquals(Lz4Codec.encodeSpec(5), metadata.get(CodecChain.META_TRANSFORM_MODE));
+        assertEquals(originalData.length,
+                Long.parseLong(metadata.get(CompressionConstants.META_COMPRESSION_UNCOMP_SIZE)));
+        assertEquals(encoded.size(), Long.parseLong(metadata.get(CompressionConstants.META_COMPRESSION_COMP_SIZE)));
+        assertTrue(encoded.size() < originalData.length / 2);
+
+        // pull encode gives identical output
+        ByteArrayOutputStream encoded2 = new ByteArrayOutputStream();
+        TestUtil.copyStream(chain.getEncodeStream(new ByteArrayInputStream(originalData),
+                new HashMap<String, String>()), encoded2, true);
+        assertArrayEquals(encoded.toByteArray(), encoded2.toByteArray());
+
+        // push decode
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        TestUtil.copyStream(new ByteArrayInputStream(encoded.toByteArray()),
+                chain.getDecodeStream(decoded, new HashMap<String, String>(metadata)), true);
+        assertArrayEquals(originalData, decoded.toByteArray());
+
+        // pull decode
+        decoded = new ByteArrayOutputStream();
+        TestUtil.copyStream(chain.getDecodeStream(new ByteArrayInputStream(encoded.toByteArray()), metadata),
+                decoded, true);
+        assertArrayEquals(originalData, decoded.toByteArray());
+    }
+
+    @Test
+    public void testBlockRoundTrip() throws Exception {
+        Random random = new Random(42);
+        byte[] text = TestUtil.getOriginalData();
+        byte[] noise = new byte[100000];
+        random.nextBytes(noise);
+        byte[] runs = new byte[100000];
+        for (int i = 0; i < runs.length; i++) runs[i] = (byte) (i / 1000);
+
+        int[] hashTable = new int[Lz4Block.HASH_TABLE_SIZE];
+        for (byte[] data : new byte[][]{text, noise, runs}) {
+            for (int length : new int[]{0, 1, 12, 13, 100, 65536, data.length}) {
+                for (int level : new int[]{0, 5, 9}) {
+                    byte[] framed = new byte[Lz4Block.maxFramedLength(length)];
+                    int framedLength = Lz4Block.frame(data, 0, length, framed, 0, hashTable,
+                            Lz4Block.getAcceleration(level));
+                    assertTrue(framedLength <= Lz4Block.HEADER_SIZE + length);
+
+                    byte[] decoded = new byte[length];
+                    Lz4Block.unframe(Lz4Block.readInt(framed, 0), framed, Lz4Block.HEADER_SIZE,
+                            framedLength - Lz4Block.HEADER_SIZE, decoded, 0, length);
+                    assertArrayEquals(Arrays.copyOf(data, length), decoded);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testBlockSizes() throws Exception {
+        byte[] originalData = Arrays.copyOf(TestUtil.getOriginalData(), 1000000);
+        for (int blockSize : new int[]{1, 1000, 1024 * 1024}) {
+            CodecChain chain = new CodecChain(Lz4Codec.encodeSpec(1))
+                    .withProperty(Lz4Codec.PROP_BLOCK_SIZE, blockSize);
+            Map<String, String> metadata = new HashMap<String, String>();
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+            TestUtil.copyStream(new ByteArrayInputStream(originalData), chain.getEncodeStream(encoded, metadata), true);
+
+            ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+            TestUtil.copyStream(chain.getDecodeStream(new ByteArrayInputStream(encoded.toByteArray()), metadata),
+                    decoded, true);
+            assertArrayEquals(originalData, decoded.toByteArray());
+        }
+    }
+
+    @Test
+    public void testCorruptStream() throws Exception {
+        byte[] originalData = Arrays.copyOf(TestUtil.getOriginalData(), 200000);
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        TestUtil.copyStream(new ByteArrayInputStream(originalData),
+                new Lz4Codec().getEncodingStream(encoded, Lz4Codec.encodeSpec(5), null), true);
+
+        // truncated
+        byte[] truncated = Arrays.copyOf(encoded.toByteArray(), encoded.size() - 10);
+        try {
+            TestUtil.copyStream(new Lz4BlockInputStream(new ByteArrayInputStream(truncated)),
+                    new ByteArrayOutputStream(), true);
+            fail("truncated stream should fail");
+        } catch (CompressionException e) {
+            // expected
+        }
+        OutputStream decodeOut = new Lz4BlockDecodingOutputStream(new ByteArrayOutputStream());
+        TestUtil.copyStream(new ByteArrayInputStream(truncated), decodeOut, false);
+        try {
+            decodeOut.close();
+            fail("truncated stream should fail");
+        } catch (CompressionException e) {
+            // expected
+        }
+
+        // damaged match offsets and lengths never read or write out of bounds
+        Random random = new Random(7);
+        for (int i = 0; i < 100; i++) {
+            byte[] damaged = encoded.toByteArray();
+            int pos = Lz4Block.HEADER_SIZE + random.nextInt(damaged.length - Lz4Block.HEADER_SIZE - 4);
+            damaged[pos] = (byte) random.nextInt();
+            try {
+                TestUtil.copyStream(new Lz4BlockInputStream(new ByteArrayInputStream(damaged)),
+                        new ByteArrayOutputStream(), true);
+            } catch (CompressionException e) {
+                // expected (or the damage may decode to different data, which the SHA1 in the metadata catches)
+            }
+        }
+    }
+}
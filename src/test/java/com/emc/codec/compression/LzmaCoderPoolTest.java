@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package com.emc.codec.compression;
+
+import SevenZip.Compression.LZMA.Encoder;
+import com.emc.codec.CodecChain;
+import com.emc.codec.TestUtil;
+import com.emc.codec.compression.lzma.LzmaCodec;
+import com.emc.codec.compression.lzma.LzmaCoderPool;
+import com.emc.codec.compression.lzma.LzmaDecoder;
+import com.emc.codec.compression.lzma.LzmaProfile;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class LzmaCoderPoolTest {
+    @Test
+    public void testReuse() throws Exception {
+        LzmaCoderPool pool = LzmaCoderPool.getInstance();
+        byte[] originalData = Arrays.copyOf(TestUtil.getOriginalData(), 256 * 1024);
+
+        for (boolean inline : new boolean[]{true, false}) {
+            CodecChain chain = new CodecChain(LzmaCodec.encodeSpec(2)).withProperty(LzmaCodec.PROP_INLINE, inline);
+            byte[] firstEncoded = null;
+            long created = pool.getCreatedCount(), reused = pool.getReusedCount();
+            for (int i = 0; i < 4; i++) {
+                Map<String, String> metadata = new HashMap<String, String>();
+                ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+                TestUtil.copyStream(new ByteArrayInputStream(originalData), chain.getEncodeStream(encoded, metadata),
+                        true);
+
+                // a reused encoder produces the same output as a new one
+                if (firstEncoded == null) firstEncoded = encoded.toByteArray();
+                else assertArrayEquals(firstEncoded, encoded.toByteArray());
+
+                ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+                TestUtil.copyStream(chain.getDecodeStream(new ByteArrayInputStream(encoded.toByteArray()), metadata),
+                        decoded, true);
+                assertArrayEquals(originalData, decoded.toByteArray());
+            }
+
+            // threaded coders return themselves after the stream is closed
+            for (int i = 0; i < 100 && pool.getReusedCount() - reused < 6; i++) {
+                Thread.sleep(50);
+            }
+
+            // at most one encoder and one decoder created; every later stream reused them
+            assertTrue(pool.getCreatedCount() - created <= 2);
+            assertTrue(pool.getReusedCount() - reused >= 6);
+        }
+    }
+
+    @Test
+    public void testIdleLimit() throws Exception {
+        LzmaProfile small = LzmaProfile.fromCompressionLevel(0);
+        long encoderSize = LzmaProfile.memoryRequiredForLzma(small);
+        LzmaCoderPool pool = new LzmaCoderPool(encoderSize * 2);
+
+        Encoder e1 = pool.borrowEncoder(small), e2 = pool.borrowEncoder(small), e3 = pool.borrowEncoder(small);
+        assertEquals(3, pool.getCreatedCount());
+        pool.returnEncoder(e1, small);
+        pool.returnEncoder(e2, small);
+        pool.returnEncoder(e3, small);
+
+        // the least recently returned was dropped
+        assertEquals(2, pool.getIdleCount());
+        assertEquals(encoderSize * 2, pool.getIdleBytes());
+        assertSame(e3, pool.borrowEncoder(small));
+        assertSame(e2, pool.borrowEncoder(small));
+        assertNotSame(e1, pool.borrowEncoder(small));
+        assertEquals(2, pool.getReusedCount());
+
+        // decoders are keyed by window size
+        byte[] properties = {93, 0, 0, 1, 0}, otherProperties = {93, 0, 0, 2, 0};
+        LzmaDecoder decoder = pool.borrowInlineDecoder(properties);
+        pool.returnInlineDecoder(decoder, properties);
+        assertNotSame(decoder, pool.borrowInlineDecoder(otherProperties));
+        assertSame(decoder, pool.borrowInlineDecoder(properties));
+
+        pool.returnInlineDecoder(decoder, properties);
+        pool.clear();
+        assertEquals(0, pool.getIdleCount());
+        assertEquals(0, pool.getIdleBytes());
+
+        // pooling disabled
+        pool = new LzmaCoderPool(0);
+        pool.returnEncoder(pool.borrowEncoder(small), small);
+        assertEquals(0, pool.getIdleCount());
+    }
+}
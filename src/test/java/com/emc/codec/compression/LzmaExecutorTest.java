@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.compression;
+
+import com.emc.codec.CodecChain;
+import com.emc.codec.TestUtil;
+import com.emc.codec.compression.lzma.LzmaCodec;
+import com.emc.codec.compression.lzma.LzmaExecutor;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.*;
+
+public class LzmaExecutorTest {
+    @Test
+    public void testChainOnExecutor() throws Exception {
+        LzmaExecutor executor = new LzmaExecutor(2, 0, 10000);
+        try {
+            byte[] originalData = Arrays.copyOf(TestUtil.getOriginalData(), 256 * 1024);
+            CodecChain chain = new CodecChain(LzmaCodec.encodeSpec(1))
+                    .withProperty(LzmaCodec.PROP_EXECUTOR, executor)
+                    .withProperty(LzmaCodec.PROP_INLINE, false);
+
+            for (int i = 0; i < 3; i++) {
+                Map<String, String> metadata = new HashMap<String, String>();
+                ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+                TestUtil.copyStream(new ByteArrayInputStream(originalData), chain.getEncodeStream(encoded, metadata), true);
+
+                // pull encode into push decode (two coders running at the same time)
+                ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+                InputStream encodeIn = chain.getEncodeStream(new ByteArrayInputStream(originalData),
+                        new HashMap<String, String>());
+                OutputStream decodeOut = chain.getDecodeStream(decoded, new HashMap<String, String>(metadata));
+                TestUtil.copyStream(encodeIn, decodeOut, true);
+                assertArrayEquals(originalData, decoded.toByteArray());
+
+                decoded = new ByteArrayOutputStream();
+                TestUtil.copyStream(chain.getDecodeStream(new ByteArrayInputStream(encoded.toByteArray()), metadata),
+                        decoded, true);
+                assertArrayEquals(originalData, decoded.toByteArray());
+            }
+
+            // workers are reused, not created per stream
+            assertTrue(executor.getPoolSize() <= 2);
+            assertEquals(0, executor.getQueueDepth());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testBackpressure() throws Exception {
+        LzmaExecutor executor = new LzmaExecutor(1, 1, 200);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch ran = new CountDownLatch(2);
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                ran.countDown();
+            }
+        };
+        try {
+            executor.execute(task);
+            executor.execute(task);
+            assertEquals(1, executor.getQueueDepth());
+
+            // the queue is full, so this waits and then gives up
+            long start = System.currentTimeMillis();
+            try {
+                executor.execute(task);
+                fail("task should have been rejected");
+            } catch (RejectedExecutionException e) {
+                assertTrue(System.currentTimeMillis() - start >= 200);
+            }
+            assertEquals(0, executor.getWaitingCount());
+
+            release.countDown();
+            ran.await();
+
+            // capacity is back
+            executor.execute(task);
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.compression;
+
+import com.emc.codec.CodecChain;
+import com.emc.codec.TestUtil;
+import com.emc.codec.compression.lzma.InlineLzmaEncodeOutputStream;
+import com.emc.codec.compression.lzma.LzmaCodec;
+import com.emc.codec.compression.lzma.LzmaMemoryBudget;
+import com.emc.codec.compression.lzma.LzmaProfile;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class LzmaMemoryBudgetTest {
+    @Test
+    public void testReservations() throws Exception {
+        LzmaMemoryBudget budget = new LzmaMemoryBudget(1000, 100);
+
+        LzmaMemoryBudget.Reservation r1 = budget.tryReserve(600);
+        assertNotNull(r1);
+        assertNull(budget.tryReserve(600));
+        long start = System.currentTimeMillis();
+        assertNull(budget.reserve(600));
+        assertTrue(System.currentTimeMillis() - start >= 100);
+
+        r1.release();
+        r1.release(); // no effect
+        assertEquals(0, budget.getReservedBytes());
+
+        // oversized reservations take the whole budget
+        LzmaMemoryBudget.Reservation r2 = budget.reserve(5000);
+        assertNotNull(r2);
+        assertEquals(1000, budget.getReservedBytes());
+        assertNull(budget.tryReserve(1));
+        r2.release();
+        assertEquals(0, budget.getReservedBytes());
+    }
+
+    @Test
+    public void testCodecReservesAndReleases() throws Exception {
+        byte[] originalData = Arrays.copyOf(TestUtil.getOriginalData(), 256 * 1024);
+        // the inline push encoder also queues its input
+        long level3 = LzmaProfile.memoryRequiredForLzma(3)
+                + InlineLzmaEncodeOutputStream.getQueueSize(LzmaProfile.fromCompressionLevel(3));
+        LzmaMemoryBudget budget = new LzmaMemoryBudget(LzmaProfile.memoryRequiredForLzma(5), 100);
+
+        // leave room for level 3, but not level 4 or 5
+        LzmaMemoryBudget.Reservation held = budget.tryReserve(budget.getMaxBytes() - level3);
+        assertNotNull(held);
+
+        CodecChain chain = new CodecChain(LzmaCodec.encodeSpec(5))
+                .withProperty(LzmaCodec.PROP_MEMORY_BUDGET, budget);
+        try {
+            chain.getEncodeStream(new ByteArrayOutputStream(), new HashMap<String, String>());
+            fail("encoder should not fit in the budget");
+        } catch (CompressionException e) {
+            // expected
+        }
+        assertEquals(budget.getMaxBytes() - level3, budget.getReservedBytes());
+
+        chain.addProperty(LzmaCodec.PROP_PROFILE_FALLBACK, true);
+        Map<String, String> metadata = new HashMap<String, String>();
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        TestUtil.copyStream(new ByteArrayInputStream(originalData), chain.getEncodeStream(encoded, metadata), true);
+        assertEquals(budget.getMaxBytes() - level3, budget.getReservedBytes());
+        assertEquals(LzmaCodec.encodeSpec(3), metadata.get(CodecChain.META_TRANSFORM_MODE));
+
+        // decoders reserve (much less) memory too
+        held.release();
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        TestUtil.copyStream(new ByteArrayInputStream(encoded.toByteArray()),
+                chain.getDecodeStream(decoded, new HashMap<String, String>(metadata)), true);
+        assertArrayEquals(originalData, decoded.toByteArray());
+        assertEquals(0, budget.getReservedBytes());
+    }
+
+    @Test
+    public void testInlineQueueReserved() throws Exception {
+        LzmaProfile profile = LzmaProfile.fromCompressionLevel(2);
+        LzmaMemoryBudget budget = new LzmaMemoryBudget(1L << 40, 100);
+        CodecChain chain = new CodecChain(LzmaCodec.encodeSpec(2)).withProperty(LzmaCodec.PROP_MEMORY_BUDGET, budget);
+
+        OutputStream encodeStream = chain.getEncodeStream(new ByteArrayOutputStream(), new HashMap<String, String>());
+        assertEquals(LzmaProfile.memoryRequiredForLzma(profile) + InlineLzmaEncodeOutputStream.getQueueSize(profile),
+                budget.getReservedBytes());
+        // one large write is queued a chunk at a time
+        encodeStream.write(Arrays.copyOf(TestUtil.getOriginalData(), 4 * 1024 * 1024));
+        encodeStream.close();
+        assertEquals(0, budget.getReservedBytes());
+
+        // pull and threaded encoders do not queue input
+        chain.addProperty(LzmaCodec.PROP_INLINE, false);
+        encodeStream = chain.getEncodeStream(new ByteArrayOutputStream(), new HashMap<String, String>());
+        assertEquals(LzmaProfile.memoryRequiredForLzma(profile), budget.getReservedBytes());
+        encodeStream.close();
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.compression;
+
+import com.emc.codec.CodecChain;
+import com.emc.codec.TestUtil;
+import com.emc.codec.compression.deflate.DeflateCodec;
+import com.emc.codec.compression.deflate.ZlibPool;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static org.junit.Assert.*;
+
+public class ZlibPoolTest {
+    @Test
+    public void testBorrowReturn() {
+        ZlibPool pool = new ZlibPool(2);
+
+        Deflater deflater = pool.borrowDeflater(5);
+        assertEquals(1, pool.getBorrowedDeflaters());
+        pool.returnDeflater(deflater, 5);
+        assertEquals(0, pool.getBorrowedDeflaters());
+        assertEquals(1, pool.getIdleDeflaters(5));
+        assertEquals(0, pool.getIdleDeflaters(6));
+
+        // same level is reused, other levels are not
+        assertSame(deflater, pool.borrowDeflater(5));
+        assertNotSame(deflater, pool.borrowDeflater(6));
+
+        // the pool is bounded; extra instances are ended
+        Inflater[] inflaters = {pool.borrowInflater(), pool.borrowInflater(), pool.borrowInflater()};
+        assertEquals(3, pool.getBorrowedInflaters());
+        for (Inflater inflater : inflaters) {
+            pool.returnInflater(inflater);
+        }
+        assertEquals(2, pool.getIdleInflaters());
+        assertEquals(1, pool.getEndedCount());
+        assertEquals(5, pool.getCreatedCount());
+
+        pool.clear();
+        assertEquals(0, pool.getIdleInflaters());
+        assertEquals(3, pool.getEndedCount());
+    }
+
+    @Test
+    public void testNoPooling() {
+        ZlibPool pool = new ZlibPool(0);
+        Deflater deflater = pool.borrowDeflater(-1);
+        pool.returnDeflater(deflater, -1);
+        assertEquals(0, pool.getIdleDeflaters());
+        assertEquals(1, pool.getEndedCount());
+        assertNotSame(deflater, pool.borrowDeflater(-1));
+    }
+
+    @Test
+    public void testStreams() throws Exception {
+        ZlibPool pool = new ZlibPool(4);
+        byte[] originalData = TestUtil.getOriginalData();
+
+        // reused instances must produce the same output as new ones
+        byte[] expected = null;
+        for (int i = 0; i < 3; i++) {
+            ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+            TestUtil.copyStream(new ByteArrayInputStream(originalData), pool.newDeflaterOutputStream(deflated, 5), true);
+            if (expected == null) expected = deflated.toByteArray();
+            else assertArrayEquals(expected, deflated.toByteArray());
+
+            deflated = new ByteArrayOutputStream();
+            TestUtil.copyStream(pool.newDeflaterInputStream(new ByteArrayInputStream(originalData), 5), deflated, true);
+            assertArrayEquals(expected, deflated.toByteArray());
+
+            ByteArrayOutputStream inflated = new ByteArrayOutputStream();
+            TestUtil.copyStream(new ByteArrayInputStream(expected), pool.newInflaterOutputStream(inflated), true);
+            assertArrayEquals(originalData, inflated.toByteArray());
+
+            inflated = new ByteArrayOutputStream();
+            TestUtil.copyStream(pool.newInflaterInputStream(new ByteArrayInputStream(expected)), inflated, true);
+            assertArrayEquals(originalData, inflated.toByteArray());
+        }
+        assertEquals(0, pool.getBorrowedDeflaters());
+        assertEquals(0, pool.getBorrowedInflaters());
+        assertEquals(2, pool.getCreatedCount()); // one of each
+
+        // closed streams must not touch an instance that is back in the pool
+        OutputStream out = pool.newDeflaterOutputStream(new ByteArrayOutputStream(), 5);
+        out.close();
+        try {
+            out.write(1);
+            fail("write after close should fail");
+        } catch (IOException e) {
+            // expected
+        }
+        InputStream in = pool.newInflaterInputStream(new ByteArrayInputStream(expected));
+        in.close();
+        in.close();
+        assertEquals(0, pool.getBorrowedInflaters());
+        assertEquals(1, pool.getIdleInflaters());
+    }
+
+    @Test
+    public void testCodecReturnsInstances() throws Exception {
+        ZlibPool pool = ZlibPool.getInstance();
+        int borrowedDeflaters = pool.getBorrowedDeflaters(), borrowedInflaters = pool.getBorrowedInflaters();
+        byte[] originalData = TestUtil.getOriginalData();
+        CodecChain chain = new CodecChain(new DeflateCodec());
+
+        Map<String, String> metadata = new HashMap<String, String>();
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        TestUtil.copyStream(new ByteArrayInputStream(originalData), chain.getEncodeStream(encoded, metadata), true);
+        TestUtil.copyStream(chain.getEncodeStream(new ByteArrayInputStream(originalData), new HashMap<String, String>()),
+                new ByteArrayOutputStream(), true);
+        chain.encode(new ByteArrayInputStream(originalData), new ByteArrayOutputStream(), new HashMap<String, String>());
+
+        TestUtil.copyStream(chain.getDecodeStream(new ByteArrayInputStream(encoded.toByteArray()),
+                new HashMap<String, String>(metadata)), new ByteArrayOutputStream(), true);
+        TestUtil.copyStream(new ByteArrayInputStream(encoded.toByteArray()),
+                chain.getDecodeStream(new ByteArrayOutputStream(), new HashMap<String, String>(metadata)), true);
+        chain.decode(new ByteArrayInputStream(encoded.toByteArray()), new ByteArrayOutputStream(),
+                new HashMap<String, String>(metadata));
+
+        assertEquals(borrowedDeflaters, pool.getBorrowedDeflaters());
+        assertEquals(borrowedInflaters, pool.getBorrowedInflaters());
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package com.emc.codec.compression;
+
+import com.emc.codec.CodecChain;
+import com.emc.codec.TestUtil;
+import com.emc.codec.compression.zstd.ZstdCodec;
+import com.emc.codec.compression.zstd.ZstdFrameDecodingOutputStream;
+import com.emc.codec.compression.zstd.ZstdFrameInputStream;
+import com.emc.codec.compression.zstd.ZstdFrameOutputStream;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ZstdCodecTest {
+    private static final long MAX_WINDOW = 1L << ZstdCodec.DEFAULT_MAX_WINDOW_LOG;
+
+    @Test
+    public void testEncodeDecode() throws Exception {
+        byte[] originalData = TestUtil.getOriginalData();
+        CodecChain chain = new CodecChain(ZstdCodec.encodeSpec(3));
+
+        // push encode
+        Map<String, String> metadata = new HashMap<String, String>();
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        TestUtil.copyStream(new ByteArrayInputStream(originalData), chain.getEncodeStream(encoded, metadata), true);
+        assertEquals(ZstdCodec.encodeSpec(3), metadata.get(CodecChain.META_TRANSFORM_MODE));
+        assertEquals(originalData.length,
+                Long.parseLong(metadata.get(CompressionConstants.META_COMPRESSION_UNCOMP_SIZE)));
+        assertEquals(encoded.size(), Long.parseLong(metadata.get(CompressionConstants.META_COMPRESSION_COMP_SIZE)));
+        assertTrue(encoded.size() < originalData.length / 5);
+
+        // pull encode gives identical output
+        ByteArrayOutputStream encoded2 = new ByteArrayOutputStream();
+        TestUtil.copyStream(chain.getEncodeStream(new ByteArrayInputStream(originalData),
+                new HashMap<String, String>()), encoded2, true);
+        assertArrayEquals(encoded.toByteArray(), encoded2.toByteArray());
+
+        // push decode
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        TestUtil.copyStream(new ByteArrayInputStream(encoded.toByteArray()),
+                chain.getDecodeStream(decoded, new HashMap<String, String>(metadata)), true);
+        assertArrayEquals(originalData, decoded.toByteArray());
+
+        // pull decode
+        decoded = new ByteArrayOutputStream();
+        TestUtil.copyStream(chain.getDecodeStream(new ByteArrayInputStream(encoded.toByteArray()), metadata),
+                decoded, true);
+        assertArrayEquals(originalData, decoded.toByteArray());
+    }
+
+    @Test
+    public void testLevels() throws Exception {
+        byte[] originalData = TestUtil.getOriginalData();
+        Random random = new Random(42);
+        byte[] noise = new byte[300000];
+        random.nextBytes(noise);
+        byte[] runs = new byte[300000];
+        for (int i = 0; i < runs.length; i++) runs[i] = (byte) (i / 1000);
+
+        int previousSize = Integer.MAX_VALUE;
+        for (int level : new int[]{1, 9, 19}) {
+            // higher levels compress better
+            int size = roundTrip(originalData, level, false);
+            assertTrue(size < previousSize);
+            previousSize = size;
+            for (byte[] data : new byte[][]{new byte[0], new byte[]{1}, Arrays.copyOf(originalData, 1000), noise, runs}) {
+                roundTrip(data, level, false);
+            }
+        }
+
+        // the range is wider than the usual 0-9
+        assertEquals(15, ZstdCodec.getCompressionLevel(ZstdCodec.encodeSpec(15)));
+        assertEquals(ZstdCodec.DEFAULT_COMPRESSION_LEVEL, ZstdCodec.getCompressionLevel("COMP:ZSTD"));
+        for (int level : new int[]{0, 23}) {
+            try {
+                ZstdCodec.encodeSpec(level);
+                fail("level " + level + " should be rejected");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testLongDistance() throws Exception {
+        // a repeat further back than the default window
+        Random random = new Random(7);
+        byte[] repeated = new byte[1024 * 1024], gap = new byte[3 * 1024 * 1024];
+        random.nextBytes(repeated);
+        random.nextBytes(gap);
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        data.write(repeated);
+        data.write(gap);
+        data.write(repeated);
+
+        int normalSize = roundTrip(data.toByteArray(), 3, false);
+        int longSize = roundTrip(data.toByteArray(), 3, true);
+        assertTrue(longSize < normalSize - repeated.length / 2);
+    }
+
+    @Test
+    public void testReferenceStream() throws Exception {
+        // written by the reference implementation (level 19)
+        byte[] originalData = TestUtil.getOriginalData();
+
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        TestUtil.copyStream(new ZstdFrameInputStream(getReferenceStream(), MAX_WINDOW), decoded, true);
+        assertArrayEquals(originalData, decoded.toByteArray());
+
+        decoded = new ByteArrayOutputStream();
+        TestUtil.copyStream(getReferenceStream(), new ZstdFrameDecodingOutputStream(decoded, MAX_WINDOW), true);
+        assertArrayEquals(originalData, decoded.toByteArray());
+
+        // the window is checked against the limit
+        try {
+            TestUtil.copyStream(new ZstdFrameInputStream(getReferenceStream(), 1024), new ByteArrayOutputStream(),
+                    true);
+            fail("window over the limit should fail");
+        } catch (CompressionException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testCorruptStream() throws Exception {
+        byte[] originalData = Arrays.copyOf(TestUtil.getOriginalData(), 200000);
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        TestUtil.copyStream(new ByteArrayInputStream(originalData),
+                new ZstdCodec().getEncodingStream(encoded, ZstdCodec.encodeSpec(3), null), true);
+
+        // truncated
+        byte[] truncated = Arrays.copyOf(encoded.toByteArray(), encoded.size() - 2);
+        try {
+            TestUtil.copyStream(new ZstdFrameInputStream(new ByteArrayInputStream(truncated), MAX_WINDOW),
+                    new ByteArrayOutputStream(), true);
+            fail("truncated stream should fail");
+        } catch (CompressionException e) {
+            // expected
+        }
+        OutputStream decodeOut = new ZstdFrameDecodingOutputStream(new ByteArrayOutputStream(), MAX_WINDOW);
+        TestUtil.copyStream(new ByteArrayInputStream(truncated), decodeOut, false);
+        try {
+            decodeOut.close();
+            fail("truncated stream should fail");
+        } catch (CompressionException e) {
+            // expected
+        }
+
+        // damage is always reported as a compression error (the content checksum catches what decodes)
+        Random random = new Random(7);
+        for (int i = 0; i < 100; i++) {
+            byte[] damaged = encoded.toByteArray();
+            damaged[random.nextInt(damaged.length)] ^= 1 + random.nextInt(255);
+            try {
+                TestUtil.copyStream(new ZstdFrameInputStream(new ByteArrayInputStream(damaged), MAX_WINDOW),
+                        new ByteArrayOutputStream(), true);
+                fail("damaged stream should fail");
+            } catch (CompressionException e) {
+                // expected
+            }
+        }
+    }
+
+    private InputStream getReferenceStream() {
+        return getClass().getClassLoader().getResourceAsStream("compressed.txt.zst");
+    }
+
+    // returns the compressed size
+    private int roundTrip(byte[] data, int level, boolean longDistance) throws Exception {
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        TestUtil.copyStream(new ByteArrayInputStream(data), new ZstdFrameOutputStream(encoded, level, longDistance),
+                true);
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        TestUtil.copyStream(new ZstdFrameInputStream(new ByteArrayInputStream(encoded.toByteArray()), MAX_WINDOW),
+                decoded, true);
+        assertArrayEquals(data, decoded.toByteArray());
+        return encoded.size();
+    }
+}
@@ -32,6 +32,7 @@ import com.emc.codec.CodecChain;
 import com.emc.codec.EncodeInputStream;
 import com.emc.codec.EncodeMetadata;
 import com.emc.codec.EncodeOutputStream;
+import com.emc.codec.util.JceEngineCache;
 import org.junit.Assert;
 import org.junit.Assume;
 import org.junit.Before;
@@ -40,13 +41,18 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.Provider;
 import java.security.SecureRandom;
+import java.security.interfaces.RSAPrivateKey;
 import java.security.interfaces.RSAPublicKey;
 import java.util.HashMap;
 import java.util.Map;
@@ -422,4 +428,358 @@ public class EncryptionCodecTest {
         
         assertArrayEquals("Decrypted output incorrect", uncompressedData, decodedData);
     }
+
+    @Test
+    public void testKeyEncryptionKey() throws Exception {
+        keyProvider.withMasterKey(masterKey).withKeys(oldKey);
+        EncryptionCodec.setUseKeyEncryptionKey(codecProperties, true);
+        CodecChain chain = new CodecChain(new EncryptionCodec()).withProperties(codecProperties);
+        byte[] data = "The quick brown fox jumps over the lazy dog".getBytes("UTF-8");
+
+        Map<String, String> metadata1 = new HashMap<String, String>();
+        byte[] encrypted1 = encrypt(chain, data, metadata1);
+        Map<String, String> metadata2 = new HashMap<String, String>();
+        encrypt(chain, data, metadata2);
+
+        // both objects share the KEK, wrapped with the master key
+        String kekId = metadata1.get(EncryptionConstants.META_ENCRYPTION_KEK_ID);
+        assertNotNull(kekId);
+        assertEquals(kekId, metadata2.get(EncryptionConstants.META_ENCRYPTION_KEK_ID));
+        assertEquals(metadata1.get(EncryptionConstants.META_ENCRYPTION_KEK),
+                metadata2.get(EncryptionConstants.META_ENCRYPTION_KEK));
+        assertEquals(keyProvider.getMasterKeyFingerprint(), metadata1.get(EncryptionConstants.META_ENCRYPTION_KEY_ID));
+        assertNotEquals(metadata1.get(EncryptionConstants.META_ENCRYPTION_OBJECT_KEY),
+                metadata2.get(EncryptionConstants.META_ENCRYPTION_OBJECT_KEY));
+
+        // a different key provider instance (nothing cached) with the master key can decode
+        BasicKeyProvider otherProvider = new BasicKeyProvider(keyProvider.getMasterKey()).withProvider(provider);
+        CodecChain decodeChain = new CodecChain(new EncryptionCodec())
+                .withProperty(EncryptionCodec.PROP_KEY_PROVIDER, otherProvider)
+                .withProperty(EncryptionCodec.PROP_SECURITY_PROVIDER, provider);
+        assertArrayEquals(data, decrypt(decodeChain, encrypted1, metadata1));
+
+        // the metadata is authenticated with the KEK
+        EncryptionMetadata encMeta = new EncryptionMetadata(encodeSpec, metadata1);
+        assertTrue(encMeta.hasKeyEncryptionKey());
+        KeyEncryptionKey kek = otherProvider.getKeyEncryptionKey(kekId, encMeta.getMasterKeyFingerprint(),
+                encMeta.getEncryptedKek(), encMeta.getKekSignature(), provider);
+        encMeta.verifySignature(kek, provider);
+        encMeta.setOriginalSize(encMeta.getOriginalSize() + 1);
+        try {
+            encMeta.verifySignature(kek, provider);
+            fail("tampered metadata should not verify");
+        } catch (EncryptionException e) {
+            // expected
+        }
+
+        // a substituted KEK does not match its ID
+        try {
+            otherProvider.getKeyEncryptionKey(kekId, encMeta.getMasterKeyFingerprint(),
+                    metadata2.get(EncryptionConstants.META_ENCRYPTION_OBJECT_KEY), encMeta.getKekSignature(), provider);
+            fail("KEK with the wrong ID should be rejected");
+        } catch (EncryptionException e) {
+            // expected
+        }
+
+        // after rotation, new objects use a new KEK and old objects still decode
+        keyProvider.rotateKeyEncryptionKey();
+        Map<String, String> metadata3 = new HashMap<String, String>();
+        encrypt(chain, data, metadata3);
+        assertNotEquals(kekId, metadata3.get(EncryptionConstants.META_ENCRYPTION_KEK_ID));
+        assertArrayEquals(data, decrypt(chain, encrypted1, metadata1));
+
+        // objects encoded without a KEK are unaffected
+        EncryptionCodec.setUseKeyEncryptionKey(codecProperties, false);
+        Map<String, String> metadata4 = new HashMap<String, String>();
+        byte[] encrypted4 = encrypt(new CodecChain(new EncryptionCodec()).withProperties(codecProperties), data,
+                metadata4);
+        assertNull(metadata4.get(EncryptionConstants.META_ENCRYPTION_KEK_ID));
+        assertArrayEquals(data, decrypt(decodeChain, encrypted4, metadata4));
+    }
+
+    @Test
+    public void testForgedKeyEncryptionKey() throws Exception {
+        // anyone with the master public key can wrap a KEK, but cannot sign it with the master private key
+        final KeyPair publicMasterKey = new KeyPair(masterKey.getPublic(), null);
+        BasicKeyProvider forgingProvider = new BasicKeyProvider() {
+            @Override
+            public KeyEncryptionKey getKeyEncryptionKey(Provider provider) {
+                SecretKey key = generateKeyEncryptionKey(provider);
+                String wrappedKey = EncryptionUtil.encryptKey(key, provider, publicMasterKey.getPublic());
+                String signature = KeyEncryptionKey.sign(wrappedKey, (RSAPrivateKey) oldKey.getPrivate(), provider);
+                return new KeyEncryptionKey(key, wrappedKey, signature, getMasterKeyFingerprint());
+            }
+        }.withMasterKey(masterKey).withProvider(provider);
+        CodecChain chain = new CodecChain(new EncryptionCodec())
+                .withProperty(EncryptionCodec.PROP_KEY_PROVIDER, forgingProvider)
+                .withProperty(EncryptionCodec.PROP_SECURITY_PROVIDER, provider)
+                .withProperty(EncryptionCodec.PROP_USE_KEY_ENCRYPTION_KEY, true);
+        byte[] data = "The quick brown fox jumps over the lazy dog".getBytes("UTF-8");
+        Map<String, String> metadata = new HashMap<String, String>();
+        byte[] encrypted = encrypt(chain, data, metadata);
+        assertNotNull(metadata.get(EncryptionConstants.META_ENCRYPTION_KEK_SIG));
+
+        CodecChain decodeChain = new CodecChain(new EncryptionCodec())
+                .withProperty(EncryptionCodec.PROP_KEY_PROVIDER, new BasicKeyProvider(masterKey).withProvider(provider))
+                .withProperty(EncryptionCodec.PROP_SECURITY_PROVIDER, provider);
+        try {
+            decrypt(decodeChain, encrypted, metadata);
+            fail("a KEK not signed with the master key should be rejected");
+        } catch (EncryptionException e) {
+            // expected
+        }
+
+        // nor can the signature be left out
+        metadata.remove(EncryptionConstants.META_ENCRYPTION_KEK_SIG);
+        try {
+            decrypt(decodeChain, encrypted, metadata);
+            fail("a KEK without a signature should be rejected");
+        } catch (EncryptionException e) {
+            // expected
+        }
+
+        // a public-only master key cannot create KEKs
+        try {
+            new BasicKeyProvider(publicMasterKey).getKeyEncryptionKey(provider);
+            fail("creating a KEK without the master private key should fail");
+        } catch (EncryptionException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testRekeyKeyEncryptionKey() throws Exception {
+        keyProvider.setMasterKey(oldKey);
+        EncryptionCodec.setUseKeyEncryptionKey(codecProperties, true);
+        EncryptionCodec codec = new EncryptionCodec();
+        CodecChain chain = new CodecChain(codec).withProperties(codecProperties);
+        byte[] data = "The quick brown fox jumps over the lazy dog".getBytes("UTF-8");
+
+        Map<String, String> metadata = new HashMap<String, String>();
+        byte[] encrypted = encrypt(chain, data, metadata);
+
+        keyProvider.setMasterKey(masterKey);
+        Map<String, String> newMetadata = new HashMap<String, String>(metadata);
+        codec.rekey(newMetadata, codecProperties);
+        assertEquals(keyProvider.getMasterKeyFingerprint(), newMetadata.get(EncryptionConstants.META_ENCRYPTION_KEY_ID));
+        assertNotEquals(metadata.get(EncryptionConstants.META_ENCRYPTION_KEK_ID),
+                newMetadata.get(EncryptionConstants.META_ENCRYPTION_KEK_ID));
+
+        // only the new master key is needed now
+        CodecChain decodeChain = new CodecChain(new EncryptionCodec())
+                .withProperty(EncryptionCodec.PROP_KEY_PROVIDER, new BasicKeyProvider(masterKey).withProvider(provider))
+                .withProperty(EncryptionCodec.PROP_SECURITY_PROVIDER, provider);
+        assertArrayEquals(data, decrypt(decodeChain, encrypted, newMetadata));
+    }
+
+    @Test
+    public void testCipherReleaseClearsKey() throws Exception {
+        keyProvider.setMasterKey(masterKey);
+        CodecChain chain = new CodecChain(new EncryptionCodec()).withProperties(codecProperties);
+        byte[] data = "The quick brown fox jumps over the lazy dog".getBytes("UTF-8");
+        Map<String, String> metadata = new HashMap<String, String>();
+        assertArrayEquals(data, decrypt(chain, encrypt(chain, data, metadata), metadata));
+
+        // the cached cipher no longer holds the object key (or IV)
+        String cipherSpec = EncryptionUtil.getCipherSpec(encodeSpec);
+        Cipher cipher = JceEngineCache.getInstance().borrowCipher(cipherSpec, provider);
+        try {
+            assertArrayEquals(new byte[cipher.getBlockSize()], cipher.getIV());
+            byte[] zeroKey = new byte[16];
+            Cipher expected = Cipher.getInstance(cipherSpec);
+            expected.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(zeroKey, "AES"), new IvParameterSpec(zeroKey));
+            assertArrayEquals(expected.doFinal(data), cipher.doFinal(data));
+        } finally {
+            JceEngineCache.getInstance().returnCipher(cipher, cipherSpec, provider);
+        }
+    }
+
+    @Test
+    public void testVerifySignature() throws Exception {
+        keyProvider.setMasterKey(masterKey);
+        CodecChain chain = new CodecChain(new EncryptionCodec()).withProperties(codecProperties);
+        byte[] data = "The quick brown fox jumps over the lazy dog".getBytes("UTF-8");
+        Map<String, String> metadata = new HashMap<String, String>();
+        byte[] encrypted = encrypt(chain, data, metadata);
+
+        // only the public key is needed to verify
+        EncryptionMetadata encMeta = new EncryptionMetadata(encodeSpec, metadata);
+        encMeta.verifySignature(masterKey.getPublic(), provider);
+
+        // a read-only node verifies every object on decode
+        SignatureCache signatureCache = new SignatureCache();
+        Map<String, Object> readProperties = new HashMap<String, Object>();
+        EncryptionCodec.setKeyProvider(readProperties, new BasicKeyProvider()
+                .withKeys(new KeyPair(masterKey.getPublic(), null)).withProvider(provider));
+        readProperties.put(EncryptionCodec.PROP_SECURITY_PROVIDER, provider);
+        EncryptionCodec.setSignatureCache(readProperties, signatureCache);
+        EncryptionCodec codec = new EncryptionCodec();
+        codec.verifySignature(encMeta, readProperties);
+        codec.verifySignature(new EncryptionMetadata(encodeSpec, metadata), readProperties);
+        assertEquals(1, signatureCache.getMissCount());
+        assertEquals(1, signatureCache.getHitCount());
+
+        // tampered metadata is rejected even though the original was cached
+        byte[] iv = encMeta.getInitVector().clone();
+        iv[0]++;
+        encMeta.setInitVector(iv);
+        try {
+            encMeta.verifySignature(masterKey.getPublic(), provider);
+            fail("tampered metadata should not verify");
+        } catch (EncryptionException e) {
+            // expected
+        }
+        try {
+            codec.verifySignature(encMeta, readProperties);
+            fail("tampered metadata should not verify");
+        } catch (EncryptionException e) {
+            // expected
+        }
+        assertEquals(1, signatureCache.getSize());
+
+        // decoding verifies first
+        EncryptionCodec.setVerifySignature(codecProperties, true);
+        chain = new CodecChain(new EncryptionCodec()).withProperties(codecProperties);
+        assertArrayEquals(data, decrypt(chain, encrypted, metadata));
+        Map<String, String> tampered = new HashMap<String, String>(metadata);
+        tampered.put(EncryptionConstants.META_ENCRYPTION_IV, EncryptionUtil.urlSafeEncodeBase64(iv));
+        try {
+            decrypt(chain, encrypted, tampered);
+            fail("tampered metadata should not decode");
+        } catch (EncryptionException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Objects written by earlier versions have a signature over the IV and object key only.
+     */
+    @Test
+    public void testLegacySignature() throws Exception {
+        Map<String, String> metadata = getLegacyMetadata();
+        EncryptionMetadata encMeta = new EncryptionMetadata(encodeSpec, metadata);
+        encMeta.verifySignature((RSAPrivateKey) masterKey.getPrivate(), provider);
+
+        keyProvider.setMasterKey(masterKey);
+        CodecChain chain = new CodecChain(new EncryptionCodec()).withProperties(codecProperties);
+        assertArrayEquals("The quick brown fox jumps over the lazy dog".getBytes("UTF-8"),
+                decrypt(chain, EncryptionUtil.urlSafeDecodeBase64(LEGACY_DATA), metadata));
+
+        // fields covered by the legacy signature are still protected
+        encMeta = new EncryptionMetadata(encodeSpec, metadata);
+        encMeta.setInitVector(new byte[16]);
+        try {
+            encMeta.verifySignature((RSAPrivateKey) masterKey.getPrivate(), provider);
+            fail("tampered metadata should not verify");
+        } catch (EncryptionException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testSignedForm() throws Exception {
+        // the RSA signature covers the same fields as in earlier versions (other clients verify these objects)
+        keyProvider.setMasterKey(oldKey);
+        EncryptionCodec codec = new EncryptionCodec();
+        CodecChain chain = new CodecChain(codec).withProperties(codecProperties);
+        Map<String, String> metadata = new HashMap<String, String>();
+        encrypt(chain, "The quick brown fox jumps over the lazy dog".getBytes("UTF-8"), metadata);
+
+        // a new object: only the IV and object key
+        Map<String, String> signed = new HashMap<String, String>();
+        signed.put(EncryptionConstants.META_ENCRYPTION_IV, metadata.get(EncryptionConstants.META_ENCRYPTION_IV));
+        signed.put(EncryptionConstants.META_ENCRYPTION_OBJECT_KEY,
+                metadata.get(EncryptionConstants.META_ENCRYPTION_OBJECT_KEY));
+        assertTrue(EncryptionUtil.verifyMetadataSignature(signed,
+                metadata.get(EncryptionConstants.META_ENCRYPTION_META_SIG), oldKey.getPublic(), provider));
+
+        // a re-keyed object: all encryption metadata
+        keyProvider.setMasterKey(masterKey);
+        codec.rekey(metadata, codecProperties);
+        signed = new HashMap<String, String>();
+        for (String name : new String[]{EncryptionConstants.META_ENCRYPTION_IV,
+                EncryptionConstants.META_ENCRYPTION_OBJECT_KEY, EncryptionConstants.META_ENCRYPTION_UNENC_SHA1,
+                EncryptionConstants.META_ENCRYPTION_UNENC_SIZE, EncryptionConstants.META_ENCRYPTION_KEY_ID}) {
+            signed.put(name, metadata.get(name));
+        }
+        assertTrue(EncryptionUtil.verifyMetadataSignature(signed,
+                metadata.get(EncryptionConstants.META_ENCRYPTION_META_SIG), masterKey.getPublic(), provider));
+    }
+
+    @Test
+    public void testVerifyLegacySignature() throws Exception {
+        Map<String, String> metadata = getLegacyMetadata();
+        new EncryptionMetadata(encodeSpec, metadata).verifySignature(masterKey.getPublic(), provider);
+
+        SignatureCache signatureCache = new SignatureCache();
+        Map<String, Object> readProperties = new HashMap<String, Object>();
+        EncryptionCodec.setKeyProvider(readProperties, new BasicKeyProvider()
+                .withKeys(new KeyPair(masterKey.getPublic(), null)).withProvider(provider));
+        readProperties.put(EncryptionCodec.PROP_SECURITY_PROVIDER, provider);
+        EncryptionCodec.setSignatureCache(readProperties, signatureCache);
+        EncryptionCodec codec = new EncryptionCodec();
+        codec.verifySignature(new EncryptionMetadata(encodeSpec, metadata), readProperties);
+        assertEquals(1, signatureCache.getSize());
+
+        // failures are not cached
+        Map<String, String> tampered = new HashMap<String, String>(metadata);
+        tampered.put(EncryptionConstants.META_ENCRYPTION_IV, EncryptionUtil.urlSafeEncodeBase64(new byte[16]));
+        try {
+            codec.verifySignature(new EncryptionMetadata(encodeSpec, tampered), readProperties);
+            fail("tampered metadata should not verify");
+        } catch (EncryptionException e) {
+            // expected
+        }
+        assertEquals(1, signatureCache.getSize());
+
+        // decoding with verification
+        keyProvider.setMasterKey(masterKey);
+        EncryptionCodec.setVerifySignature(codecProperties, true);
+        CodecChain chain = new CodecChain(new EncryptionCodec()).withProperties(codecProperties);
+        assertArrayEquals("The quick brown fox jumps over the lazy dog".getBytes("UTF-8"),
+                decrypt(chain, EncryptionUtil.urlSafeDecodeBase64(LEGACY_DATA), metadata));
+    }
+
+    // encoded with the version before metadata signatures covered all fields
+    private static final String LEGACY_DATA = "gcbVDYUNwdr8tEf05e9KqVJZcARDEVOc6PE9ufoKx60rG0mr16Tot40u7Csh58JI";
+
+    private Map<String, String> getLegacyMetadata() {
+        Map<String, String> metadata = new HashMap<String, String>();
+        metadata.put("x-emc-enc-iv", "K6WbT8y4HpFxc09TrU-aUw==");
+        metadata.put("x-emc-enc-key-id", "000317457b5645b7b5c4daf4cf6780c05438effd");
+        metadata.put("x-emc-enc-metadata-signature", "DYL74ZjQRd_E1JVwLBRn13Rn3hWkMCn7PQOPoneLZP0PJR7ryt-bknWxmRzCXEji2o"
+                + "km9LU9RF1nERkVl0RKURkQdyxUtf7l5b_B14NHt0EVvC9U32U5SrSZujgrgYIiOyVORJLbQDqsB__uNPNnvQ6LHPfXaSlx8F4d9Ua7A"
+                + "oSONrEcf64zhOQjBCQh5tbAkKGpzx6RoBMKigMtKW4kPMISAN07l8_HKoxKa1g3slsagcOJfKZM0vb0TTAuA8c2YqaCBZk1Rgxf2Xg6"
+                + "kG379uMotqQJwy3atwSC0uMFiXvmYZJ1BhBp0Bqeuq0bWvi5X5PQwVXakVpGBcOLm5xrqg==");
+        metadata.put("x-emc-enc-object-key", "BLAElKzq_ZMN43HB9Lf2v8cKABIhwity41zcF4e9MSY_SsToJZayZq1x2OBQQ73Am7sMOv4"
+                + "MatgsjT1utD4yn7gaWmCpTQteubRGfhBWGhJU7P1rQlr4-CvXO8kpPkaHqDBA-l_KQ6Di_Kro2opqoBwqkWjzG385IcJGsjTEd3Ne"
+                + "Q1l1SrC81uCjAiU9atL1UYhPMFPV7JqNAvLqp-PVRCkDL93jmB0egNp1pppY6wCwYqBseaGX2F11HmOfw2cZZma_ZK3t9D4R8BRwkv"
+                + "MZjO2F2mvSjTUgDGm42Yb2HZQGmMUD36ODtijlJzxgFImzLz5h6Vn8Rng1-jNQwjDmmg==");
+        metadata.put("x-emc-enc-unencrypted-sha1", "2fd4e1c67a2d28fced849ee1bb76e7391b93eb12");
+        metadata.put("x-emc-enc-unencrypted-size", "43");
+        metadata.put("x-emc-transform-complete", "true");
+        metadata.put("x-emc-transform-mode", "ENC:AES/CBC/PKCS5Padding");
+        return metadata;
+    }
+
+    private byte[] encrypt(CodecChain chain, byte[] data, Map<String, String> metadata) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputStream encodeStream = chain.getEncodeStream(out, metadata);
+        encodeStream.write(data);
+        encodeStream.close();
+        return out.toByteArray();
+    }
+
+    private byte[] decrypt(CodecChain chain, byte[] encrypted, Map<String, String> metadata) throws Exception {
+        InputStream decodeStream = chain.getDecodeStream(new ByteArrayInputStream(encrypted),
+                new HashMap<String, String>(metadata));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int c;
+        while ((c = decodeStream.read(buffer)) != -1) {
+            out.write(buffer, 0, c);
+        }
+        decodeStream.close();
+        return out.toByteArray();
+    }
 }
@@ -0,0 +1,228 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package com.emc.codec.encryption;
+
+import com.emc.codec.CodecChain;
+import com.emc.codec.TestUtil;
+import org.junit.Test;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ObjectKeyCacheTest {
+    @Test
+    public void testLru() throws Exception {
+        ObjectKeyCache cache = new ObjectKeyCache(2, 60000);
+        AtomicInteger unwraps = new AtomicInteger();
+        byte[][] material = new byte[3][];
+        for (int i = 0; i < 3; i++) {
+            material[i] = new byte[16];
+            Arrays.fill(material[i], (byte) (i + 1));
+        }
+
+        SecretKey key = cache.getKey("master", "AES", "key0", unwrapper(material[0], unwraps));
+        assertArrayEquals(material[0], key.getEncoded());
+        key = cache.getKey("master", "AES", "key0", unwrapper(material[0], unwraps));
+        assertArrayEquals(material[0], key.getEncoded());
+        assertEquals(1, unwraps.get());
+        assertEquals(1, cache.getHitCount());
+
+        // a different master key or algorithm is a different entry
+        cache.getKey("other", "AES", "key0", unwrapper(material[0], unwraps));
+        assertEquals(2, unwraps.get());
+
+        // key0 is now the least recently used
+        cache.getKey("master", "AES", "key1", unwrapper(material[1], unwraps));
+        assertEquals(2, cache.getSize());
+        assertEquals(1, cache.getEvictionCount());
+        cache.getKey("master", "AES", "key0", unwrapper(material[0], unwraps));
+        assertEquals(4, unwraps.get());
+        assertEquals(4, cache.getMissCount());
+    }
+
+    @Test
+    public void testZeroing() throws Exception {
+        ObjectKeyCache cache = new ObjectKeyCache(1, 60000);
+        final byte[] cachedCopy = new byte[16];
+        Arrays.fill(cachedCopy, (byte) 7);
+        // getEncoded() normally returns a copy; returning our own array shows what happens to the cached copy
+        final SecretKey key = new SecretKeySpec(cachedCopy, "AES") {
+            @Override
+            public byte[] getEncoded() {
+                return cachedCopy;
+            }
+        };
+        cache.getKey("master", "AES", "key0", new Callable<SecretKey>() {
+            @Override
+            public SecretKey call() {
+                return key;
+            }
+        });
+        assertEquals(7, cachedCopy[0]);
+
+        cache.getKey("master", "AES", "key1", unwrapper(new byte[16], new AtomicInteger()));
+        assertArrayEquals(new byte[16], cachedCopy);
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        ObjectKeyCache cache = new ObjectKeyCache(10, 50);
+        AtomicInteger unwraps = new AtomicInteger();
+        cache.getKey("master", "AES", "key0", unwrapper(new byte[16], unwraps));
+        cache.getKey("master", "AES", "key0", unwrapper(new byte[16], unwraps));
+        assertEquals(1, unwraps.get());
+
+        Thread.sleep(100);
+        cache.getKey("master", "AES", "key0", unwrapper(new byte[16], unwraps));
+        assertEquals(2, unwraps.get());
+    }
+
+    @Test
+    public void testCoalescing() throws Exception {
+        final ObjectKeyCache cache = new ObjectKeyCache();
+        final AtomicInteger unwraps = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Callable<SecretKey> slowUnwrapper = new Callable<SecretKey>() {
+            @Override
+            public SecretKey call() throws Exception {
+                unwraps.incrementAndGet();
+                started.countDown();
+                release.await();
+                return new SecretKeySpec(new byte[16], "AES");
+            }
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<SecretKey>> futures = new ArrayList<Future<SecretKey>>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(executor.submit(new Callable<SecretKey>() {
+                    @Override
+                    public SecretKey call() {
+                        return cache.getKey("master", "AES", "key0", slowUnwrapper);
+                    }
+                }));
+            }
+            started.await();
+            Thread.sleep(100); // let the other threads queue up behind the unwrap
+            release.countDown();
+            for (Future<SecretKey> future : futures) {
+                assertArrayEquals(new byte[16], future.get().getEncoded());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(1, unwraps.get());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testFailedUnwrapIsNotCached() throws Exception {
+        ObjectKeyCache cache = new ObjectKeyCache();
+        try {
+            cache.getKey("master", "AES", "key0", new Callable<SecretKey>() {
+                @Override
+                public SecretKey call() {
+                    throw new EncryptionException("bad key");
+                }
+            });
+            fail("unwrap error should propagate");
+        } catch (EncryptionException e) {
+            assertEquals("bad key", e.getMessage());
+        }
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void testCodec() throws Exception {
+        Properties keyprops = new Properties();
+        keyprops.load(getClass().getClassLoader().getResourceAsStream("keys.properties"));
+        KeyPair masterKey = EncryptionUtil.rsaKeyPairFromBase64(keyprops.getProperty("masterkey.public"),
+                keyprops.getProperty("masterkey.private"));
+        KeyPair oldKey = EncryptionUtil.rsaKeyPairFromBase64(keyprops.getProperty("oldkey.public"),
+                keyprops.getProperty("oldkey.private"));
+        ObjectKeyCache cache = new ObjectKeyCache();
+        CodecChain chain = new CodecChain(new EncryptionCodec())
+                .withProperty(EncryptionCodec.PROP_KEY_PROVIDER, new BasicKeyProvider(masterKey))
+                .withProperty(EncryptionCodec.PROP_KEY_CACHE, cache);
+
+        byte[] originalData = TestUtil.getOriginalData();
+        Map<String, String> metadata = new HashMap<String, String>();
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        TestUtil.copyStream(new ByteArrayInputStream(originalData), chain.getEncodeStream(encoded, metadata), true);
+
+        for (int i = 0; i < 3; i++) {
+            ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+            TestUtil.copyStream(chain.getDecodeStream(new ByteArrayInputStream(encoded.toByteArray()),
+                    new HashMap<String, String>(metadata)), decoded, true);
+            assertArrayEquals(originalData, decoded.toByteArray());
+        }
+        assertEquals(1, cache.getMissCount());
+        assertEquals(2, cache.getHitCount());
+
+        // a key provider without the master key gets nothing from the cache
+        CodecChain otherChain = new CodecChain(new EncryptionCodec())
+                .withProperty(EncryptionCodec.PROP_KEY_PROVIDER, new BasicKeyProvider(oldKey))
+                .withProperty(EncryptionCodec.PROP_KEY_CACHE, cache);
+        try {
+            otherChain.getDecodeStream(new ByteArrayInputStream(encoded.toByteArray()), metadata);
+            fail("decoding without the master key should fail");
+        } catch (EncryptionException e) {
+            // expected
+        }
+        assertEquals(2, cache.getHitCount());
+    }
+
+    private Callable<SecretKey> unwrapper(final byte[] keyBytes, final AtomicInteger unwraps) {
+        return new Callable<SecretKey>() {
+            @Override
+            public SecretKey call() {
+                unwraps.incrementAndGet();
+                return new SecretKeySpec(keyBytes, "AES");
+            }
+        };
+    }
+}
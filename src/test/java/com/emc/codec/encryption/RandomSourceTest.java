@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package com.emc.codec.encryption;
+
+import org.junit.Test;
+
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.security.SecureRandomSpi;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class RandomSourceTest {
+    @Test
+    public void testThreadInstances() throws Exception {
+        final RandomSource randomSource = new RandomSource();
+        SecureRandom random = randomSource.getSecureRandom(null);
+        assertSame(random, randomSource.getSecureRandom(null));
+        assertEquals(RandomSource.DEFAULT_ALGORITHM, random.getAlgorithm());
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            SecureRandom otherRandom = executor.submit(new Callable<SecureRandom>() {
+                @Override
+                public SecureRandom call() {
+                    return randomSource.getSecureRandom(null);
+                }
+            }).get();
+            assertNotSame(random, otherRandom);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testProviderInstances() throws Exception {
+        // e.g. PKCS#11 providers for different slots have the same name
+        RandomSource randomSource = new RandomSource("Test", RandomSource.DEFAULT_RESEED_INTERVAL, 0);
+        Provider provider1 = new TestProvider(), provider2 = new TestProvider();
+        SecureRandom random = randomSource.getSecureRandom(provider1);
+        assertSame(provider1, random.getProvider());
+        SecureRandom random2 = randomSource.getSecureRandom(provider2);
+        assertSame(provider2, random2.getProvider());
+        assertSame(random, randomSource.getSecureRandom(provider1));
+    }
+
+    @Test
+    public void testBufferedBytes() throws Exception {
+        RandomSource randomSource = new RandomSource(RandomSource.DEFAULT_ALGORITHM, 3, 64);
+        Set<String> values = new HashSet<String>();
+        // crosses several buffer refills and reseeds
+        for (int i = 0; i < 100; i++) {
+            byte[] bytes = randomSource.nextBytes(16, null);
+            assertFalse(Arrays.equals(new byte[16], bytes));
+            values.add(Arrays.toString(bytes));
+        }
+        assertEquals(100, values.size());
+
+        // larger than the buffer
+        assertEquals(100, randomSource.nextBytes(100, null).length);
+
+        // unbuffered
+        RandomSource unbuffered = new RandomSource(RandomSource.DEFAULT_ALGORITHM, 1, 0);
+        assertFalse(Arrays.equals(unbuffered.nextBytes(16, null), unbuffered.nextBytes(16, null)));
+    }
+
+    @Test
+    public void testReseed() throws Exception {
+        final int[] seeds = new int[1];
+        RandomSource randomSource = new RandomSource(RandomSource.DEFAULT_ALGORITHM, 2, 32) {
+            @Override
+            protected SecureRandom createSecureRandom(Provider provider) {
+                return new SecureRandom() {
+                    @Override
+                    public synchronized void setSeed(byte[] seed) {
+                        seeds[0]++;
+                        super.setSeed(seed);
+                    }
+                };
+            }
+        };
+        randomSource.nextBytes(32, null); // seeded when created
+        assertEquals(1, seeds[0]);
+        randomSource.nextBytes(32, null); // second request
+        assertEquals(2, seeds[0]);
+        randomSource.getSecureRandom(null);
+        randomSource.getSecureRandom(null);
+        assertEquals(3, seeds[0]);
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testBadAlgorithm() throws Exception {
+        new RandomSource("NoSuchPRNG", RandomSource.DEFAULT_RESEED_INTERVAL, 0).nextBytes(16, null);
+    }
+
+    public static class TestProvider extends Provider {
+        public TestProvider() {
+            super("Test", 1.0, "test provider");
+            put("SecureRandom.Test", TestRandom.class.getName());
+        }
+    }
+
+    public static class TestRandom extends SecureRandomSpi {
+        private SecureRandom random = new SecureRandom();
+
+        @Override
+        protected void engineSetSeed(byte[] seed) {
+        }
+
+        @Override
+        protected void engineNextBytes(byte[] bytes) {
+            random.nextBytes(bytes);
+        }
+
+        @Override
+        protected byte[] engineGenerateSeed(int numBytes) {
+            return random.generateSeed(numBytes);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2015, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ * products derived from this software without specific prior written
+ * permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.emc.codec.metrics;
+
+import com.emc.codec.CodecChain;
+import com.emc.codec.TestUtil;
+import com.emc.codec.compression.deflate.DeflateCodec;
+import com.emc.codec.compression.lzma.LzmaCodec;
+import com.emc.codec.encryption.EncryptionCodec;
+import com.emc.codec.encryption.KeystoreKeyProvider;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.emc.codec.metrics.HistogramCodecMetrics.*;
+import static org.junit.Assert.*;
+
+public class CodecMetricsTest {
+    @Test
+    public void testHistogram() {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getPercentile(50));
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500500, histogram.getSum());
+        assertEquals(1, histogram.getMin());
+        assertEquals(1000, histogram.getMax());
+        assertEquals(500.5, histogram.getMean(), 0.001);
+        assertEquals(511, histogram.getPercentile(50)); // 500 is in the 256-511 bucket
+        assertEquals(1000, histogram.getPercentile(99)); // capped at the max
+        assertEquals(1, histogram.getPercentile(0));
+    }
+
+    @Test
+    public void testEncryptedDeflate() throws Exception {
+        KeyStore keystore = KeyStore.getInstance("jks");
+        InputStream in = this.getClass().getClassLoader().getResourceAsStream("keystore.jks");
+        Assume.assumeNotNull(in);
+        keystore.load(in, "viprviprvipr".toCharArray());
+
+        HistogramCodecMetrics metrics = new HistogramCodecMetrics();
+        CodecChain chain = new CodecChain(new DeflateCodec(), new EncryptionCodec())
+                .withProperty(EncryptionCodec.PROP_KEY_PROVIDER,
+                        new KeystoreKeyProvider(keystore, "viprviprvipr".toCharArray(), "masterkey"))
+                .withProperty(MetricsUtil.PROP_METRICS, metrics)
+                .withProperty(MetricsUtil.PROP_CPU_TIME, true);
+        String deflateSpec = new DeflateCodec().getDefaultEncodeSpec();
+        String encryptSpec = new EncryptionCodec().getDefaultEncodeSpec();
+
+        byte[] originalData = TestUtil.getOriginalData();
+
+        // deflated size (to check the byte counts between stages)
+        Map<String, String> plainMeta = new HashMap<String, String>();
+        ByteArrayOutputStream plainOut = new ByteArrayOutputStream();
+        new CodecChain(new DeflateCodec()).encode(new ByteArrayInputStream(originalData), plainOut, plainMeta);
+
+        // push
+        Map<String, String> metadata = new HashMap<String, String>();
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        TestUtil.copyStream(new ByteArrayInputStream(originalData), chain.getEncodeStream(encoded, metadata), true);
+        byte[] encodedData = encoded.toByteArray();
+
+        long deflatedSize = plainOut.size();
+        assertStage(metrics, deflateSpec, true, 1, originalData.length, deflatedSize);
+        assertStage(metrics, encryptSpec, true, 1, deflatedSize, encodedData.length);
+        assertNotNull(metrics.getHistogram(stageName(deflateSpec, true, MEASURE_CPU_NANOS)));
+        assertEquals(1, metrics.getHistogram(keyOperationName(CodecMetrics.OP_WRAP_KEY)).getCount());
+        assertEquals(1, metrics.getHistogram(keyOperationName(CodecMetrics.OP_SIGN)).getCount());
+
+        // pull and single-pass
+        encoded = new ByteArrayOutputStream();
+        TestUtil.copyStream(chain.getEncodeStream(new ByteArrayInputStream(originalData), new HashMap<String, String>()),
+                encoded, true);
+        chain.encode(new ByteArrayInputStream(originalData), new ByteArrayOutputStream(), new HashMap<String, String>());
+        assertStage(metrics, deflateSpec, true, 3, 3L * originalData.length, 3 * deflatedSize);
+        assertEquals(3, metrics.getHistogram(keyOperationName(CodecMetrics.OP_SIGN)).getCount());
+
+        // decode (pull, push and single-pass)
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        TestUtil.copyStream(chain.getDecodeStream(new ByteArrayInputStream(encodedData),
+                new HashMap<String, String>(metadata)), decoded, true);
+        assertArrayEquals(originalData, decoded.toByteArray());
+        decoded = new ByteArrayOutputStream();
+        TestUtil.copyStream(new ByteArrayInputStream(encodedData),
+                chain.getDecodeStream(decoded, new HashMap<String, String>(metadata)), true);
+        assertArrayEquals(originalData, decoded.toByteArray());
+        decoded = new ByteArrayOutputStream();
+        chain.decode(new ByteArrayInputStream(encodedData), decoded, new HashMap<String, String>(metadata));
+        assertArrayEquals(originalData, decoded.toByteArray());
+
+        assertStage(metrics, encryptSpec, false, 3, 3L * encodedData.length, 3 * deflatedSize);
+        assertStage(metrics, deflateSpec, false, 3, 3 * deflatedSize, 3L * originalData.length);
+        assertEquals(3, metrics.getHistogram(keyOperationName(CodecMetrics.OP_UNWRAP_KEY)).getCount());
+    }
+
+    @Test
+    public void testLzmaPipes() throws Exception {
+        HistogramCodecMetrics metrics = new HistogramCodecMetrics();
+        CodecChain chain = new CodecChain(new LzmaCodec()).withProperty(MetricsUtil.PROP_METRICS, metrics)
+                .withProperty(LzmaCodec.PROP_INLINE, false);
+        String lzmaSpec = new LzmaCodec().getDefaultEncodeSpec();
+        byte[] originalData = TestUtil.getOriginalData();
+
+        Map<String, String> metadata = new HashMap<String, String>();
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        TestUtil.copyStream(new ByteArrayInputStream(originalData), chain.getEncodeStream(encoded, metadata), true);
+
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        TestUtil.copyStream(chain.getDecodeStream(new ByteArrayInputStream(encoded.toByteArray()), metadata),
+                decoded, true);
+        assertArrayEquals(originalData, decoded.toByteArray());
+
+        assertStage(metrics, lzmaSpec, true, 1, originalData.length, encoded.size());
+        assertStage(metrics, lzmaSpec, false, 1, encoded.size(), originalData.length);
+        assertEquals(1, metrics.getHistogram(stageName(lzmaSpec, true, MEASURE_PIPE_BLOCKED_NANOS)).getCount());
+        assertEquals(1, metrics.getHistogram(stageName(lzmaSpec, false, MEASURE_PIPE_BLOCKED_NANOS)).getCount());
+
+        // background threads report when they end (the decoder may still be closing its pipe)
+        for (int i = 0; i < 100 && metrics.getActiveThreads() > 0; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(0, metrics.getActiveThreads());
+    }
+
+    private void assertStage(HistogramCodecMetrics metrics, String encodeSpec, boolean encode, long count,
+                             long bytesIn, long bytesOut) {
+        Histogram in = metrics.getHistogram(stageName(encodeSpec, encode, MEASURE_BYTES_IN));
+        Histogram out = metrics.getHistogram(stageName(encodeSpec, encode, MEASURE_BYTES_OUT));
+        Histogram wall = metrics.getHistogram(stageName(encodeSpec, encode, MEASURE_WALL_NANOS));
+        assertEquals(count, in.getCount());
+        assertEquals(bytesIn, in.getSum());
+        assertEquals(bytesOut, out.getSum());
+        assertEquals(count, wall.getCount());
+        assertTrue(wall.getMin() > 0);
+    }
+}